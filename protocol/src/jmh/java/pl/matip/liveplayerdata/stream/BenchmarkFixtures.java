@@ -0,0 +1,101 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketListener;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+// Shared setup for the benchmarks: players with realistic names and advancement sets, and in-process
+// connections that look like open RFC 6455 connections to FrameBroadcaster. Nothing is written to a socket;
+// drain() plays the selector thread by consuming whatever was queued.
+final class BenchmarkFixtures {
+
+    // Vanilla 1.21 has about 1200 advancements counting recipe unlocks; players complete a few dozen to hundreds
+    static final int ADVANCEMENTS = 1200;
+
+    // Connection listener whose write-demand hook does nothing; frames stay queued until drain()
+    static final WebSocketListener NO_WRITE_DEMAND = (WebSocketListener) Proxy.newProxyInstance(
+            WebSocketListener.class.getClassLoader(), new Class<?>[]{WebSocketListener.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> "NO_WRITE_DEMAND";
+                default -> null;
+            });
+
+    private BenchmarkFixtures() {
+    }
+
+    static List<String> advancementIds() {
+        List<String> ids = new ArrayList<>(ADVANCEMENTS);
+        for (int i = 0; i < ADVANCEMENTS; i++) {
+            ids.add(i % 5 == 0 ? "minecraft:story/advancement_" + i : "minecraft:recipes/misc/recipe_" + i);
+        }
+        return ids;
+    }
+
+    static BitSet completed(int count, Random random) {
+        BitSet completed = new BitSet(ADVANCEMENTS);
+        while (completed.cardinality() < Math.min(count, ADVANCEMENTS)) {
+            completed.set(random.nextInt(ADVANCEMENTS));
+        }
+        return completed;
+    }
+
+    static PlayerData player(int sessionId, int completedAdvancements, Random random) {
+        return new PlayerData(sessionId, "Player_" + sessionId, 0,
+                random.nextDouble() * 2000 - 1000, 64 + random.nextInt(40), random.nextDouble() * 2000 - 1000,
+                1 + random.nextInt(20), random.nextInt(60), completed(completedAdvancements, random));
+    }
+
+    // Open connection; with deflate, one that negotiated permessage-deflate the way MyWebSocketServer offers it
+    static WebSocketImpl connection(boolean deflate) {
+        Draft draft = deflate ? new Draft_6455(new PerMessageDeflateExtension()) : new Draft_6455();
+        WebSocketImpl conn = new WebSocketImpl(NO_WRITE_DEMAND, draft) {
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+        };
+        if (deflate) {
+            HandshakeImpl1Client request = new HandshakeImpl1Client();
+            request.put("Sec-WebSocket-Version", "13");
+            request.put("Sec-WebSocket-Extensions", "permessage-deflate");
+            try {
+                conn.getDraft().acceptHandshakeAsServer(request);
+            } catch (InvalidHandshakeException e) {
+                throw new IllegalStateException(e);
+            }
+            if (!(conn.getDraft() instanceof Draft_6455 rfc) || !(rfc.getExtension() instanceof PerMessageDeflateExtension)) {
+                throw new IllegalStateException("permessage-deflate was not negotiated");
+            }
+        }
+        return conn;
+    }
+
+    static void drain(List<? extends WebSocketImpl> connections, Blackhole blackhole) {
+        for (int i = 0; i < connections.size(); i++) {
+            ByteBuffer frame;
+            while ((frame = connections.get(i).outQueue.poll()) != null) {
+                blackhole.consume(frame.remaining());
+                frame.position(frame.limit());
+            }
+        }
+    }
+}
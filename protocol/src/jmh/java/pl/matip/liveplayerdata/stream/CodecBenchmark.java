@@ -0,0 +1,146 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encoding cost of each message kind for a whole server's worth of players, into one preallocated direct
+// buffer the way the pipeline encodes into pooled frames. Apart from encodeAdvancementSet, which builds the
+// cached array, the encoders must not allocate; -prof gc shows it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"20", "100", "500"})
+    public int players;
+
+    // Completed advancements per player
+    @Param({"30", "300"})
+    public int advancements;
+
+    private PlayerData[] data;
+    private BitSet[] completed;
+    private AdvancementDictionary dictionary;
+    private ChangeSet absolute;
+    private ChangeSet deltas;
+    private AdvancementBatch advancementBatch;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        data = new PlayerData[players];
+        completed = new BitSet[players];
+        absolute = new ChangeSet(players);
+        deltas = new ChangeSet(players);
+        advancementBatch = new AdvancementBatch(players);
+        dictionary = new AdvancementDictionary(BenchmarkFixtures.advancementIds());
+        for (int i = 0; i < players; i++) {
+            data[i] = BenchmarkFixtures.player(i, advancements, random);
+            completed[i] = BenchmarkFixtures.completed(advancements, random);
+            // Both are built once per change in the pipeline, not per JOIN
+            data[i].advancementSet();
+            data[i].legacyAdvancementList(dictionary);
+            absolute.add(data[i], MessageCodec.MASK_ALL_FIELDS);
+            // A walking player: a few 1/32 blocks per axis, health and xp rarely
+            int entry = deltas.add(data[i], i % 8 == 0 ? MessageCodec.MASK_ALL_FIELDS : MessageCodec.MASK_COORDS);
+            deltas.dx[entry] = random.nextInt(64) - 32;
+            deltas.dy[entry] = random.nextInt(8) - 4;
+            deltas.dz[entry] = random.nextInt(64) - 32;
+            deltas.dHealth[entry] = -random.nextInt(32);
+            deltas.dXp[entry] = 1;
+            advancementBatch.add(data[i], random.nextInt(BenchmarkFixtures.ADVANCEMENTS), true);
+        }
+        out = ByteBuffer.allocateDirect(16 << 20);
+    }
+
+    // What a new protocol 2 client is sent: one JOIN per player
+    @Benchmark
+    public int joinAll() {
+        out.clear();
+        for (PlayerData player : data) {
+            byte[] set = player.advancementSet();
+            MessageCodec.writeSequence(out, 0);
+            MessageCodec.writeJoin(out, player, set);
+        }
+        return out.position();
+    }
+
+    @Benchmark
+    public int legacyJoinAll() {
+        out.clear();
+        for (PlayerData player : data) {
+            LegacyCodec.writeJoin(out, player, player.legacyAdvancementList(dictionary));
+        }
+        return out.position();
+    }
+
+    // Rebuilding the advancement set after a change (or a dictionary reload, for everyone)
+    @Benchmark
+    public int encodeAdvancementSets() {
+        int bytes = 0;
+        for (BitSet set : completed) {
+            bytes += MessageCodec.encodeAdvancementSet(set).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int batchUpdate() {
+        out.clear();
+        MessageCodec.writeSequence(out, 1);
+        MessageCodec.writeBatchUpdate(out, absolute);
+        return MessageCodec.batchUpdateSize(absolute) + out.position();
+    }
+
+    @Benchmark
+    public int deltaBatch() {
+        out.clear();
+        MessageCodec.writeSequence(out, 1);
+        MessageCodec.writeDeltaBatch(out, deltas, 5);
+        return MessageCodec.deltaBatchSize(deltas) + out.position();
+    }
+
+    // Protocol 1: one UPDATE message per changed player
+    @Benchmark
+    public int legacyUpdates() {
+        out.clear();
+        for (PlayerData player : data) {
+            LegacyCodec.writeUpdate(out, player, MessageCodec.MASK_ALL_FIELDS);
+        }
+        return out.position();
+    }
+
+    // One advancement per player in the same tick, e.g. /advancement grant @a only ...
+    @Benchmark
+    public int advancementBatch() {
+        out.clear();
+        MessageCodec.writeSequence(out, 1);
+        MessageCodec.writeAdvancementBatch(out, advancementBatch);
+        return MessageCodec.advancementBatchSize(advancementBatch) + out.position();
+    }
+
+    @Benchmark
+    public int advancementDictionary() {
+        out.clear();
+        MessageCodec.writeAdvancementDictionary(out, dictionary);
+        return out.position();
+    }
+}
@@ -0,0 +1,126 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocketImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One sample interval end to end on the encoder side: the server thread's snapshot copy, scheduling, dead-band
+// diffing, encoding, history and fan-out to a few protocol 2 clients. Drives an unstarted BroadcastPipeline
+// through processNext(), so the numbers are one thread's work (plus the diff pool's, when it is used) without
+// parking or hand-off noise.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+    @Param({"20", "100", "500"})
+    public int players;
+
+    @Param({"absolute", "delta"})
+    public String encoding;
+
+    // Share of players walking; the rest stand still (AFK, building, in menus)
+    @Param({"20", "100"})
+    public int movingPercent;
+
+    @Param({"4"})
+    public int clients;
+
+    // 0: diffed on the calling thread; otherwise samples this large go to SnapshotDiffer's fork-join pool
+    @Param({"0", "100"})
+    public int parallelDiffMinPlayers;
+
+    private BroadcastPipeline pipeline;
+    private final List<WebSocketImpl> connections = new ArrayList<>();
+    private int interval;
+    private long tick;
+    private double[] x, y, z;
+    private double[] vx, vz;
+    private float[] health;
+    private int[] xp;
+    private boolean[] moving;
+
+    @Setup
+    public void setUp() {
+        StreamSettings settings = new StreamSettings();
+        settings.deltaEncoding = encoding.equals("delta");
+        settings.parallelDiffMinPlayers = parallelDiffMinPlayers;
+        interval = settings.minIntervalTicks;
+        pipeline = new BroadcastPipeline(settings, null);
+
+        Random random = new Random(42);
+        x = new double[players];
+        y = new double[players];
+        z = new double[players];
+        vx = new double[players];
+        vz = new double[players];
+        health = new float[players];
+        xp = new int[players];
+        moving = new boolean[players];
+        pipeline.postEvent(new PipelineEvent.AdvancementDictionary(BenchmarkFixtures.advancementIds()));
+        pipeline.postEvent(new PipelineEvent.Dimension(0, "minecraft:overworld"));
+        for (int i = 0; i < players; i++) {
+            x[i] = random.nextDouble() * 2000 - 1000;
+            y[i] = 64;
+            z[i] = random.nextDouble() * 2000 - 1000;
+            // Walking is about 0.22 blocks per tick, sprinting 0.28
+            double angle = random.nextDouble() * Math.PI * 2;
+            vx[i] = Math.cos(angle) * 0.25;
+            vz[i] = Math.sin(angle) * 0.25;
+            health[i] = 20;
+            xp[i] = random.nextInt(30);
+            moving[i] = random.nextInt(100) < movingPercent;
+            pipeline.postEvent(new PipelineEvent.Join(tick, i, "Player_" + i, 0, x[i], y[i], z[i], health[i], xp[i],
+                    BenchmarkFixtures.completed(50, random)));
+        }
+        pipeline.publish();
+        pipeline.processNext();
+        for (int c = 0; c < clients; c++) {
+            WebSocketImpl conn = BenchmarkFixtures.connection(false);
+            connections.add(conn);
+            pipeline.addClient(conn, MessageCodec.PROTOCOL_VERSION, -1, -1);
+        }
+        pipeline.runTasks();
+    }
+
+    @Benchmark
+    public void sampleInterval(Blackhole blackhole) {
+        tick += interval;
+        TickSnapshot snapshot = pipeline.openSnapshot();
+        snapshot.beginPlayers(tick, players);
+        for (int i = 0; i < players; i++) {
+            if (moving[i]) {
+                x[i] += vx[i] * interval;
+                z[i] += vz[i] * interval;
+                // Now and then a fall or a mob
+                if ((tick + i) % 400 == 0) {
+                    health[i] = Math.max(1, health[i] - 3);
+                } else if ((tick + i) % 100 == 0) {
+                    health[i] = Math.min(20, health[i] + 1);
+                }
+            }
+            snapshot.addPlayer(i, 0, x[i], y[i], z[i], health[i], xp[i]);
+        }
+        pipeline.publish();
+        pipeline.processNext();
+        BenchmarkFixtures.drain(connections, blackhole);
+    }
+}
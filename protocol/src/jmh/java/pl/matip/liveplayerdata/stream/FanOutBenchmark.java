@@ -0,0 +1,91 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.framing.Framedata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One message to M connections: FrameBroadcaster (frame once, share read-only views, compress once) against
+// framing per connection the way WebSocket.send does, which is what the original broadcastBinary did.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int clients;
+
+    // A small update batch, and a JOIN burst or dictionary that is worth compressing
+    @Param({"64", "4096"})
+    public int payloadBytes;
+
+    @Param({"false", "true"})
+    public boolean deflate;
+
+    private FrameBroadcaster broadcaster;
+    private final List<WebSocketImpl> connections = new ArrayList<>();
+    private final List<ClientSession> sessions = new ArrayList<>();
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        StreamSettings settings = new StreamSettings();
+        broadcaster = new FrameBroadcaster(settings.compressionMinBytes, new PipelineMetrics());
+        for (int c = 0; c < clients; c++) {
+            WebSocketImpl conn = BenchmarkFixtures.connection(deflate);
+            ClientSession session = new ClientSession(conn, MessageCodec.PROTOCOL_VERSION);
+            conn.setAttachment(session);
+            connections.add(conn);
+            sessions.add(session);
+        }
+        // Player updates compress about as well as small repetitive numbers do: lots of short runs
+        Random random = new Random(42);
+        payload = new byte[payloadBytes];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i % 19 < 12 ? i % 7 : random.nextInt(256));
+        }
+    }
+
+    @Benchmark
+    public void pooled(Blackhole blackhole) {
+        PooledFrame frame = broadcaster.acquire(payload.length, MessageCodec.PROTOCOL_VERSION);
+        frame.buffer.put(payload);
+        broadcaster.broadcast(frame, sessions);
+        BenchmarkFixtures.drain(connections, blackhole);
+        broadcaster.reclaim();
+    }
+
+    // A frame and a copy of the payload per connection (and per-connection compression with deflate)
+    @Benchmark
+    public void perConnection(Blackhole blackhole) {
+        ByteBuffer message = ByteBuffer.wrap(payload);
+        for (int c = 0; c < connections.size(); c++) {
+            WebSocketImpl conn = connections.get(c);
+            Draft draft = conn.getDraft();
+            for (Framedata frame : draft.createFrames(message.duplicate(), false)) {
+                conn.outQueue.add(draft.createBinaryFrame(frame));
+            }
+        }
+        BenchmarkFixtures.drain(connections, blackhole);
+    }
+}
@@ -0,0 +1,370 @@
+package pl.matip.liveplayerdata.loadtest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.ClientSession;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+import pl.matip.liveplayerdata.stream.MyWebSocketServer;
+import pl.matip.liveplayerdata.stream.PipelineMetrics;
+import pl.matip.liveplayerdata.stream.StreamSettings;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Headless load test: simulated players drive a real BroadcastPipeline and MyWebSocketServer, and many
+// Java-WebSocket clients on the same machine decode the stream. No Minecraft server or client is involved.
+//   ./gradlew loadTest -PloadTestArgs="--players 200 --clients 500 --seconds 60"
+// Reports latency from a sample being taken on the server thread to a client having decoded it, throughput,
+// bytes per client and the CPU time of the mod's threads. The clients share the machine, so process CPU is
+// an upper bound; the per-thread numbers are the mod's own cost.
+public final class LoadTest {
+
+    static final Logger LOGGER = LoggerFactory.getLogger("LivePlayerData-LoadTest");
+
+    // Thread name prefixes of the server side: the encoder and Java-WebSocket's server selector and decoders
+    private static final String[] ENCODER_THREADS = {"LivePlayerData-Encoder"};
+    private static final String[] WEBSOCKET_THREADS = {"WebSocketSelector-", "WebSocketWorker-"};
+    private static final String[] SERVER_THREADS = {"LoadTest-Server"};
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        System.out.println(run(options));
+        System.exit(0); // Client threads are not daemons
+    }
+
+    static String run(Options options) throws Exception {
+        StreamSettings settings = new StreamSettings();
+        settings.deltaEncoding = options.deltaEncoding;
+        settings.permessageDeflate = options.deflate;
+        int port = options.port > 0 ? options.port : freePort();
+
+        BroadcastPipeline pipeline = new BroadcastPipeline(settings, null);
+        pipeline.start();
+        CountDownLatch started = new CountDownLatch(1);
+        MyWebSocketServer wsServer = new MyWebSocketServer(new InetSocketAddress("127.0.0.1", port), pipeline, null,
+                MessageCodec.PROTOCOL_VERSION, settings) {
+            @Override
+            public void onStart() {
+                super.onStart();
+                started.countDown();
+            }
+        };
+        wsServer.start();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("WebSocket server did not start on port " + port);
+        }
+
+        SimulatedServer server = new SimulatedServer(pipeline, options, settings.minIntervalTicks);
+        server.start();
+
+        // Connect in steps, like dashboards reconnecting after a restart
+        LOGGER.info("Connecting {} clients to port {}", options.clients, port);
+        URI uri = URI.create("ws://127.0.0.1:" + port + "/?protocol=" + MessageCodec.PROTOCOL_VERSION);
+        CountDownLatch opened = new CountDownLatch(options.clients);
+        List<StreamClient> clients = new ArrayList<>(options.clients);
+        for (int i = 0; i < options.clients; i++) {
+            StreamClient client = new StreamClient(uri, options.deflate, server, opened);
+            clients.add(client);
+            client.connect();
+            if (i % 50 == 49) {
+                Thread.sleep(50);
+            }
+        }
+        if (!opened.await(30, TimeUnit.SECONDS)) {
+            LOGGER.warn("{} clients did not connect within 30 seconds", opened.getCount());
+        }
+
+        LOGGER.info("Warming up for {} s", options.warmupSeconds);
+        Thread.sleep(options.warmupSeconds * 1000L);
+
+        Measurement before = Measurement.take(pipeline, clients);
+        clients.forEach(client -> client.recording(true));
+        LOGGER.info("Measuring for {} s", options.seconds);
+        Thread.sleep(options.seconds * 1000L);
+        clients.forEach(client -> client.recording(false));
+        Measurement after = Measurement.take(pipeline, clients);
+
+        String report = report(options, port, clients, pipeline.clientSessions(), before, after);
+
+        server.stop();
+        for (StreamClient client : clients) {
+            client.close();
+        }
+        wsServer.stop(1000);
+        pipeline.stop();
+        return report;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // --- Report ---
+
+    private static String report(Options options, int port, List<StreamClient> clients, List<ClientSession> sessions,
+                                 Measurement before, Measurement after) {
+        double seconds = (after.wallNanos - before.wallNanos) / 1e9;
+        StringBuilder out = new StringBuilder(2048);
+        out.append(String.format(Locale.ROOT, "%d players (%s), %d clients, protocol %d, %s encoding, deflate %s, %.0f s measured%n",
+                options.players, options.movement, options.clients, MessageCodec.PROTOCOL_VERSION,
+                options.deltaEncoding ? "delta" : "absolute", options.deflate ? "on" : "off", seconds));
+
+        // Latency: every client's samples together
+        long[] latencies = clients.stream().map(StreamClient::latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        out.append("\nLatency, sample taken to decoded by a client (ms)\n");
+        if (latencies.length == 0) {
+            out.append("  no samples\n");
+        } else {
+            out.append(String.format(Locale.ROOT, "  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  (%d samples)%n",
+                    percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                    percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e6, latencies.length));
+        }
+
+        // Throughput, as the clients received it (after inflating)
+        long messages = 0;
+        long bytes = 0;
+        long minBytes = Long.MAX_VALUE;
+        long maxBytes = 0;
+        long gaps = 0;
+        long malformed = 0;
+        int closed = 0;
+        for (int i = 0; i < clients.size(); i++) {
+            StreamClient client = clients.get(i);
+            long clientBytes = client.bytes() - before.clientBytes[i];
+            messages += client.messages() - before.clientMessages[i];
+            bytes += clientBytes;
+            minBytes = Math.min(minBytes, clientBytes);
+            maxBytes = Math.max(maxBytes, clientBytes);
+            gaps += client.sequenceGaps();
+            malformed += client.malformed();
+            if (client.closed()) closed++;
+        }
+        int connected = Math.max(1, clients.size());
+        out.append("\nReceived by all clients\n");
+        out.append(String.format(Locale.ROOT, "  %.0f messages/s, %.2f MB/s%n", messages / seconds, bytes / seconds / 1e6));
+        out.append("\nPer client\n");
+        out.append(String.format(Locale.ROOT, "  %.1f messages/s, %.1f KB/s (min %.1f, max %.1f)%n",
+                messages / seconds / connected, bytes / seconds / connected / 1e3,
+                clients.isEmpty() ? 0 : minBytes / seconds / 1e3, maxBytes / seconds / 1e3));
+        long wireBytes = 0;
+        long dropped = 0;
+        long catchUps = 0;
+        for (ClientSession session : sessions) {
+            wireBytes += session.bytesSent();
+            dropped += session.droppedFrames();
+            catchUps += session.catchUps();
+        }
+        // Server-side counters run from the connection's start, not the measurement window
+        out.append(String.format(Locale.ROOT, "  %.1f KB frame bytes sent on average since connecting%n",
+                wireBytes / (double) Math.max(1, sessions.size()) / 1e3));
+        out.append(String.format(Locale.ROOT, "  sequence gaps %d, malformed messages %d, disconnected %d, "
+                + "frames dropped while lagging %d, catch-ups %d%n", gaps, malformed, closed, dropped, catchUps));
+
+        // CPU: share of one core over the window
+        out.append("\nCPU (% of one core)\n");
+        out.append(String.format(Locale.ROOT, "  encoder thread %.1f, WebSocket server threads %.1f, "
+                        + "simulated server thread %.1f%n",
+                cpuPercent(before, after, ENCODER_THREADS, seconds), cpuPercent(before, after, WEBSOCKET_THREADS, seconds),
+                cpuPercent(before, after, SERVER_THREADS, seconds)));
+        if (after.processCpuNanos >= 0) {
+            out.append(String.format(Locale.ROOT, "  whole process, clients included %.1f%n",
+                    (after.processCpuNanos - before.processCpuNanos) / 1e7 / seconds));
+        }
+        long snapshots = after.snapshots - before.snapshots;
+        long ticks = after.serverTicks - before.serverTicks;
+        out.append("\nPipeline\n");
+        out.append(String.format(Locale.ROOT, "  %.1f us encoder time per snapshot (%d snapshots)%n",
+                snapshots == 0 ? 0 : (after.encoderNanos - before.encoderNanos) / 1e3 / snapshots, snapshots));
+        out.append(String.format(Locale.ROOT, "  %.1f us server thread time per tick, slowest %.1f us%n",
+                ticks == 0 ? 0 : (after.serverTickNanos - before.serverTickNanos) / 1e3 / ticks,
+                after.maxServerTickNanos / 1e3));
+        return out.toString();
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private static double cpuPercent(Measurement before, Measurement after, String[] prefixes, double seconds) {
+        long nanos = 0;
+        for (Map.Entry<Long, Long> thread : after.threadCpuNanos.entrySet()) {
+            if (!matches(after.threadNames.get(thread.getKey()), prefixes)) continue;
+            nanos += thread.getValue() - before.threadCpuNanos.getOrDefault(thread.getKey(), 0L);
+        }
+        return nanos / 1e7 / seconds;
+    }
+
+    private static boolean matches(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name != null && name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    // Counters at one point in time; the report uses the difference between two
+    private static final class Measurement {
+        long wallNanos;
+        long[] clientMessages;
+        long[] clientBytes;
+        Map<Long, Long> threadCpuNanos = new HashMap<>();
+        Map<Long, String> threadNames = new HashMap<>();
+        long processCpuNanos = -1;
+        long snapshots, encoderNanos, serverTicks, serverTickNanos, maxServerTickNanos;
+
+        static Measurement take(BroadcastPipeline pipeline, List<StreamClient> clients) {
+            Measurement m = new Measurement();
+            m.wallNanos = System.nanoTime();
+            m.clientMessages = new long[clients.size()];
+            m.clientBytes = new long[clients.size()];
+            for (int i = 0; i < clients.size(); i++) {
+                m.clientMessages[i] = clients.get(i).messages();
+                m.clientBytes[i] = clients.get(i).bytes();
+            }
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+                if (info == null) continue; // Ended in between
+                long cpu = threads.getThreadCpuTime(info.getThreadId());
+                if (cpu < 0) continue; // Not supported or ended
+                m.threadCpuNanos.put(info.getThreadId(), cpu);
+                m.threadNames.put(info.getThreadId(), info.getThreadName());
+            }
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean hotspot) {
+                m.processCpuNanos = hotspot.getProcessCpuTime();
+            }
+            PipelineMetrics metrics = pipeline.metrics();
+            m.snapshots = metrics.snapshots();
+            m.encoderNanos = metrics.encoderNanos();
+            m.serverTicks = metrics.serverTicks();
+            m.serverTickNanos = metrics.serverTickNanos();
+            m.maxServerTickNanos = metrics.maxServerTickNanos();
+            return m;
+        }
+    }
+
+    // --- Options ---
+
+    static final class Options {
+        static final String USAGE = """
+                Options (defaults in brackets):
+                  --players N                   simulated players [200]
+                  --clients N                   WebSocket clients [500]
+                  --seconds N                   measurement time [60]
+                  --warmup N                    seconds before measuring [10]
+                  --movement M                  mixed, idle, builder, walk, sprint or elytra [mixed]
+                  --damage-per-minute N         hits each player takes per minute [2]
+                  --xp-per-minute N             levels each player gains per minute [1]
+                  --completed-advancements N    average advancements done per player at join [60]
+                  --advancement-burst-seconds N every N seconds all players complete some advancements, 0 = never [30]
+                  --advancement-burst-size N    advancements per player in a burst [3]
+                  --encoding E                  absolute or delta [absolute]
+                  --deflate                     offer and use permessage-deflate
+                  --port N                      WebSocket port, 0 = any free one [0]
+                  --seed N                      random seed [42]""";
+
+        int players = 200;
+        int clients = 500;
+        int seconds = 60;
+        int warmupSeconds = 10;
+        String movement = "mixed";
+        double damagePerMinute = 2;
+        double xpPerMinute = 1;
+        int completedAdvancements = 60;
+        int advancementBurstSeconds = 30;
+        int advancementBurstSize = 3;
+        boolean deltaEncoding;
+        boolean deflate;
+        int port;
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--deflate")) {
+                    options.deflate = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                try {
+                    switch (arg) {
+                        case "--players" -> options.players = Integer.parseInt(value);
+                        case "--clients" -> options.clients = Integer.parseInt(value);
+                        case "--seconds" -> options.seconds = Integer.parseInt(value);
+                        case "--warmup" -> options.warmupSeconds = Integer.parseInt(value);
+                        case "--movement" -> {
+                            if (!value.equals("mixed")) Movement.parse(value);
+                            options.movement = value;
+                        }
+                        case "--damage-per-minute" -> options.damagePerMinute = Double.parseDouble(value);
+                        case "--xp-per-minute" -> options.xpPerMinute = Double.parseDouble(value);
+                        case "--completed-advancements" -> options.completedAdvancements = Integer.parseInt(value);
+                        case "--advancement-burst-seconds" -> options.advancementBurstSeconds = Integer.parseInt(value);
+                        case "--advancement-burst-size" -> options.advancementBurstSize = Integer.parseInt(value);
+                        case "--encoding" -> {
+                            if (!value.equals("absolute") && !value.equals("delta")) {
+                                throw new IllegalArgumentException("Unknown encoding " + value);
+                            }
+                            options.deltaEncoding = value.equals("delta");
+                        }
+                        case "--port" -> options.port = Integer.parseInt(value);
+                        case "--seed" -> options.seed = Long.parseLong(value);
+                        default -> throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a number for " + arg + ": " + value);
+                }
+            }
+            if (options.players < 0 || options.players >= 0xFFFF || options.clients < 0 || options.seconds <= 0) {
+                throw new IllegalArgumentException("Out of range: players 0-65534, clients >= 0, seconds > 0");
+            }
+            return options;
+        }
+
+        // A typical survival server: a third AFK or in menus, some building, most of the rest walking
+        Movement movement(Random random) {
+            if (!movement.equals("mixed")) {
+                return Movement.parse(movement);
+            }
+            int roll = random.nextInt(100);
+            if (roll < 30) return Movement.IDLE;
+            if (roll < 50) return Movement.BUILDER;
+            if (roll < 80) return Movement.WALK;
+            if (roll < 95) return Movement.SPRINT;
+            return Movement.ELYTRA;
+        }
+    }
+}
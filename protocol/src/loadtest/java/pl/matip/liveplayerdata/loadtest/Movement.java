@@ -0,0 +1,62 @@
+package pl.matip.liveplayerdata.loadtest;
+
+import java.util.Locale;
+import java.util.Random;
+
+// How a simulated player moves, per tick. Speeds are vanilla's: walking 0.216 blocks per tick, sprinting 0.28,
+// gliding with an elytra about 1.5. "mixed" in LoadTest picks one per player from a typical server population.
+enum Movement {
+    // AFK, in a menu or chatting
+    IDLE {
+        @Override
+        void step(SimulatedPlayer player, long tick, Random random) {
+        }
+    },
+    // Mostly standing; a step now and then to reach a block, often below the position dead band
+    BUILDER {
+        @Override
+        void step(SimulatedPlayer player, long tick, Random random) {
+            if (random.nextInt(40) == 0) {
+                player.x += random.nextDouble() * 1.2 - 0.6;
+                player.z += random.nextDouble() * 1.2 - 0.6;
+            }
+        }
+    },
+    WALK {
+        @Override
+        void step(SimulatedPlayer player, long tick, Random random) {
+            wander(player, random, 0.216, 200);
+        }
+    },
+    // Sprint-jumping: faster, and the height changes every jump
+    SPRINT {
+        @Override
+        void step(SimulatedPlayer player, long tick, Random random) {
+            wander(player, random, 0.28, 100);
+            long phase = (tick + player.sessionId) % 12;
+            player.y = player.groundY + (phase < 6 ? phase : 12 - phase) * 0.2;
+        }
+    },
+    ELYTRA {
+        @Override
+        void step(SimulatedPlayer player, long tick, Random random) {
+            wander(player, random, 1.5, 60);
+            player.y = player.groundY + 60 + 20 * Math.sin((tick + player.sessionId * 31L) / 80.0);
+        }
+    };
+
+    abstract void step(SimulatedPlayer player, long tick, Random random);
+
+    // Straight lines with a new heading about every turnTicks
+    private static void wander(SimulatedPlayer player, Random random, double speed, int turnTicks) {
+        if (random.nextInt(turnTicks) == 0) {
+            player.heading += random.nextGaussian() * Math.PI / 2;
+        }
+        player.x += Math.cos(player.heading) * speed;
+        player.z += Math.sin(player.heading) * speed;
+    }
+
+    static Movement parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
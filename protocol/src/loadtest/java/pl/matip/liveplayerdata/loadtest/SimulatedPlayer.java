@@ -0,0 +1,69 @@
+package pl.matip.liveplayerdata.loadtest;
+
+import java.util.BitSet;
+import java.util.Random;
+
+// State of one fake player, changed only on the simulated server thread
+final class SimulatedPlayer {
+
+    // Natural regeneration with a full hunger bar: one health point every 80 ticks
+    private static final int REGEN_TICKS = 80;
+
+    final int sessionId;
+    final String name;
+    final int dimension;
+    final Movement movement;
+    final BitSet completed;
+    double x, y, z;
+    double groundY;
+    double heading;
+    float health = 20;
+    int xp;
+    private long lastDamageTick;
+
+    SimulatedPlayer(int sessionId, String name, int dimension, Movement movement, BitSet completed, Random random) {
+        this.sessionId = sessionId;
+        this.name = name;
+        this.dimension = dimension;
+        this.movement = movement;
+        this.completed = completed;
+        this.x = random.nextDouble() * 4000 - 2000;
+        this.groundY = 62 + random.nextInt(20);
+        this.y = groundY;
+        this.z = random.nextDouble() * 4000 - 2000;
+        this.heading = random.nextDouble() * Math.PI * 2;
+        this.xp = random.nextInt(30);
+    }
+
+    // damageChance and xpChance are per tick
+    void tick(long tick, Random random, double damageChance, double xpChance) {
+        movement.step(this, tick, random);
+        if (random.nextDouble() < damageChance) {
+            health -= 1 + random.nextInt(6);
+            lastDamageTick = tick;
+            if (health <= 0) {
+                // Died: respawn at full health somewhere else, and lose the levels
+                health = 20;
+                xp = 0;
+                x = random.nextDouble() * 400 - 200;
+                z = random.nextDouble() * 400 - 200;
+            }
+        } else if (health < 20 && (tick - lastDamageTick) % REGEN_TICKS == 0) {
+            health++;
+        }
+        if (random.nextDouble() < xpChance) {
+            xp++;
+        }
+    }
+
+    // Index of an advancement this player has not done yet, or -1
+    int grantRandom(Random random, int advancements) {
+        if (completed.cardinality() >= advancements) return -1;
+        int index = completed.nextClearBit(random.nextInt(advancements));
+        if (index >= advancements) {
+            index = completed.nextClearBit(0);
+        }
+        completed.set(index);
+        return index;
+    }
+}
@@ -0,0 +1,177 @@
+package pl.matip.liveplayerdata.loadtest;
+
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.PipelineEvent;
+import pl.matip.liveplayerdata.stream.SessionIdAllocator;
+import pl.matip.liveplayerdata.stream.TickSnapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Stands in for the Minecraft server thread: 20 ticks per second, sampling players into the pipeline every
+// minIntervalTicks the way Live_player_data.handleServerTick does, plus the events the mod would post.
+//
+// One extra player, the probe, measures latency. It circles fast enough to be due at every sample, and its xp
+// is the number of the sample, so a client that decodes the probe's xp knows which sample it is looking at and
+// can look up when that sample was taken (same JVM, same System.nanoTime). Clients find the probe by its name.
+final class SimulatedServer {
+
+    static final int ADVANCEMENTS = 1200;
+    static final String PROBE_NAME = "LoadTest_Probe";
+    private static final String[] DIMENSIONS = {"minecraft:overworld", "minecraft:the_nether", "minecraft:the_end"};
+    private static final int SAMPLE_SLOTS = 1 << 16; // Power of two
+    private static final double PROBE_RADIUS = 40; // At 1/40 rad per tick: one block per tick
+
+    private final BroadcastPipeline pipeline;
+    private final LoadTest.Options options;
+    private final int sampleTicks;
+    private final Random random;
+    private final SessionIdAllocator sessionIds = new SessionIdAllocator();
+    private final List<SimulatedPlayer> players = new ArrayList<>();
+    private final AtomicLongArray sampleNanos = new AtomicLongArray(SAMPLE_SLOTS);
+    private final ScheduledExecutorService executor;
+    private int probeId = -1;
+    private int probeSample;
+    private long tick;
+    private int ticksSinceSample;
+    private long nextBurstTick;
+
+    SimulatedServer(BroadcastPipeline pipeline, LoadTest.Options options, int sampleTicks) {
+        this.pipeline = pipeline;
+        this.options = options;
+        this.sampleTicks = sampleTicks;
+        this.random = new Random(options.seed);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LoadTest-Server");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        executor.execute(this::joinAll);
+        executor.scheduleAtFixedRate(this::tick, 50, 50, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // When the sample whose probe xp was `sample` was taken; 0 if it is too old to still be known
+    long sampleNanos(int sample) {
+        return sampleNanos.get(sample & (SAMPLE_SLOTS - 1));
+    }
+
+    static List<String> advancementIds() {
+        List<String> ids = new ArrayList<>(ADVANCEMENTS);
+        for (int i = 0; i < ADVANCEMENTS; i++) {
+            ids.add(i % 5 == 0 ? "minecraft:story/advancement_" + i : "minecraft:recipes/misc/recipe_" + i);
+        }
+        return ids;
+    }
+
+    // --- Server thread ---
+
+    private void joinAll() {
+        pipeline.postEvent(new PipelineEvent.AdvancementDictionary(advancementIds()));
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            pipeline.postEvent(new PipelineEvent.Dimension(i, DIMENSIONS[i]));
+        }
+        probeId = sessionIds.allocate();
+        pipeline.postEvent(new PipelineEvent.Join(tick, probeId, PROBE_NAME, 0, PROBE_RADIUS, 64, 0, 20, 0,
+                new BitSet()));
+        for (int i = 0; i < options.players; i++) {
+            // Most players are in the overworld
+            int roll = random.nextInt(100);
+            int dimension = roll < 80 ? 0 : roll < 95 ? 1 : 2;
+            BitSet completed = new BitSet(ADVANCEMENTS);
+            int count = random.nextInt(options.completedAdvancements * 2 + 1);
+            while (completed.cardinality() < Math.min(count, ADVANCEMENTS)) {
+                completed.set(random.nextInt(ADVANCEMENTS));
+            }
+            SimulatedPlayer player = new SimulatedPlayer(sessionIds.allocate(), "Player_" + i, dimension,
+                    options.movement(random), completed, random);
+            players.add(player);
+            pipeline.postEvent(new PipelineEvent.Join(tick, player.sessionId, player.name, player.dimension,
+                    player.x, player.y, player.z, player.health, player.xp, (BitSet) completed.clone()));
+        }
+        nextBurstTick = options.advancementBurstSeconds * 20L;
+        pipeline.publish();
+    }
+
+    private void tick() {
+        try {
+            tick++;
+            double damageChance = options.damagePerMinute / 1200.0;
+            double xpChance = options.xpPerMinute / 1200.0;
+            for (int i = 0; i < players.size(); i++) {
+                players.get(i).tick(tick, random, damageChance, xpChance);
+            }
+            if (options.advancementBurstSeconds > 0 && tick >= nextBurstTick) {
+                nextBurstTick = tick + options.advancementBurstSeconds * 20L;
+                advancementBurst();
+            }
+
+            // What the mod does on the real server thread, timed the same way
+            long start = System.nanoTime();
+            if (++ticksSinceSample >= sampleTicks) {
+                ticksSinceSample = 0;
+                TickSnapshot snapshot = pipeline.openSnapshot();
+                snapshot.beginPlayers(tick, players.size() + 1);
+                double angle = tick / PROBE_RADIUS;
+                snapshot.addPlayer(probeId, 0, Math.cos(angle) * PROBE_RADIUS, 64, Math.sin(angle) * PROBE_RADIUS,
+                        20, ++probeSample);
+                for (int i = 0; i < players.size(); i++) {
+                    SimulatedPlayer player = players.get(i);
+                    snapshot.addPlayer(player.sessionId, player.dimension, player.x, player.y, player.z,
+                            player.health, player.xp);
+                }
+                sampleNanos.set(probeSample & (SAMPLE_SLOTS - 1), start);
+            }
+            pipeline.publish();
+            pipeline.metrics().serverTick(System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            // A throwing task would silently cancel the schedule
+            LoadTest.LOGGER.error("Simulated server tick failed", e);
+        }
+    }
+
+    // Every player completes a few advancements in the same tick, which the mod posts as one event
+    private void advancementBurst() {
+        int size = players.size() * options.advancementBurstSize;
+        int[] sessions = new int[size];
+        int[] indices = new int[size];
+        boolean[] granted = new boolean[size];
+        int count = 0;
+        for (int i = 0; i < players.size(); i++) {
+            SimulatedPlayer player = players.get(i);
+            for (int a = 0; a < options.advancementBurstSize; a++) {
+                int index = player.grantRandom(random, ADVANCEMENTS);
+                if (index < 0) break;
+                sessions[count] = player.sessionId;
+                indices[count] = index;
+                granted[count] = true;
+                count++;
+            }
+        }
+        if (count == 0) return;
+        if (count < size) {
+            sessions = Arrays.copyOf(sessions, count);
+            indices = Arrays.copyOf(indices, count);
+            granted = Arrays.copyOf(granted, count);
+        }
+        pipeline.postEvent(new PipelineEvent.AdvancementChanges(sessions, indices, granted));
+    }
+}
@@ -0,0 +1,205 @@
+package pl.matip.liveplayerdata.loadtest;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+import pl.matip.liveplayerdata.stream.VarInts;
+
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+// A dashboard on protocol 2. Reads every message far enough to check its framing, and follows the probe's xp
+// through JOIN, BATCH_UPDATE and DELTA_BATCH to measure how long a sample took to arrive. Counters are written
+// on the client's read thread only; LoadTest reads them from the main thread, where a slightly stale value
+// does no harm.
+final class StreamClient extends WebSocketClient {
+
+    private static final byte[] PROBE_NAME = SimulatedServer.PROBE_NAME.getBytes(StandardCharsets.UTF_8);
+
+    private final SimulatedServer server;
+    private final CountDownLatch opened;
+    private volatile boolean recording;
+    private volatile long messages;
+    private volatile long bytes;
+    private volatile long sequenceGaps;
+    private volatile long malformed;
+    private volatile boolean closed;
+    private int probeId = -1;
+    private int probeXp;
+    private long lastSequence;
+    private long[] latencies = new long[1024]; // Nanoseconds, guarded by this
+    private int latencyCount;
+
+    StreamClient(URI uri, boolean deflate, SimulatedServer server, CountDownLatch opened) {
+        super(uri, deflate ? new Draft_6455(new PerMessageDeflateExtension()) : new Draft_6455());
+        this.server = server;
+        this.opened = opened;
+        setConnectionLostTimeout(0); // The pipeline's slow-client handling is what is under test
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshake) {
+        opened.countDown();
+    }
+
+    @Override
+    public void onMessage(String message) {
+        messages++; // Errors and history answers; the load test does not ask for either
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message) {
+        messages++;
+        bytes += message.remaining();
+        try {
+            decode(message.order(ByteOrder.BIG_ENDIAN));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            malformed++;
+        }
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+        closed = true;
+        opened.countDown(); // Don't keep LoadTest waiting for a connection that failed
+    }
+
+    @Override
+    public void onError(Exception ex) {
+        LoadTest.LOGGER.debug("Client error", ex);
+    }
+
+    // --- Decoding ---
+
+    private void decode(ByteBuffer message) {
+        long sequence = message.getInt() & 0xFFFFFFFFL;
+        if (sequence != 0) {
+            // Main stream: numbered without gaps unless this client fell behind and was caught up
+            if (lastSequence != 0 && sequence != lastSequence + 1) {
+                sequenceGaps++;
+            }
+            lastSequence = sequence;
+        }
+        byte type = message.get();
+        switch (type) {
+            case MessageCodec.MSG_TYPE_HELLO -> lastSequence = 0; // Fresh state; numbering restarts at the SYNC
+            case MessageCodec.MSG_TYPE_SYNC -> lastSequence = message.getInt() & 0xFFFFFFFFL;
+            case MessageCodec.MSG_TYPE_JOIN -> decodeJoin(message);
+            case MessageCodec.MSG_TYPE_LEAVE -> {
+                if ((message.getShort() & 0xFFFF) == probeId) probeId = -1;
+            }
+            case MessageCodec.MSG_TYPE_BATCH_UPDATE -> decodeBatchUpdate(message);
+            case MessageCodec.MSG_TYPE_DELTA_BATCH -> decodeDeltaBatch(message);
+            case MessageCodec.MSG_TYPE_ADVANCEMENT_DICTIONARY, MessageCodec.MSG_TYPE_ADVANCEMENT_SET,
+                 MessageCodec.MSG_TYPE_ADVANCEMENT_BATCH, MessageCodec.MSG_TYPE_HISTORY -> {
+                // Counted only
+            }
+            default -> malformed++;
+        }
+    }
+
+    private void decodeJoin(ByteBuffer message) {
+        int id = message.getShort() & 0xFFFF;
+        byte[] name = new byte[message.get() & 0xFF];
+        message.get(name);
+        message.position(message.position() + 8 + 8 + 8 + 4);
+        int xp = message.getInt();
+        if (Arrays.equals(name, PROBE_NAME)) {
+            // Part of the initial state, which is older than the connection; not a latency sample
+            probeId = id;
+            probeXp = xp;
+        }
+    }
+
+    private void decodeBatchUpdate(ByteBuffer message) {
+        int count = message.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int length = message.get() & 0xFF;
+            int next = message.position() + length;
+            int id = message.getShort() & 0xFFFF;
+            int mask = (int) VarInts.read(message);
+            if (id == probeId && (mask & MessageCodec.MASK_XP) != 0) {
+                if ((mask & MessageCodec.MASK_COORDS) != 0) message.position(message.position() + 24);
+                if ((mask & MessageCodec.MASK_HEALTH) != 0) message.position(message.position() + 4);
+                probeUpdated(message.getInt());
+            }
+            message.position(next);
+        }
+    }
+
+    private void decodeDeltaBatch(ByteBuffer message) {
+        message.get(); // Precision bits
+        message.get(); // Flags
+        int count = message.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int length = message.get() & 0xFF;
+            int next = message.position() + length;
+            int id = message.getShort() & 0xFFFF;
+            int mask = (int) VarInts.read(message);
+            if (id == probeId && (mask & MessageCodec.MASK_XP) != 0) {
+                if ((mask & MessageCodec.MASK_COORDS) != 0) {
+                    VarInts.readSigned(message);
+                    VarInts.readSigned(message);
+                    VarInts.readSigned(message);
+                }
+                if ((mask & MessageCodec.MASK_HEALTH) != 0) VarInts.readSigned(message);
+                int xp = (int) VarInts.readSigned(message);
+                probeUpdated((mask & MessageCodec.MASK_ABSOLUTE) != 0 ? xp : probeXp + xp);
+            }
+            message.position(next);
+        }
+    }
+
+    private void probeUpdated(int xp) {
+        if (xp == probeXp) return; // Keyframe repeating a sample already seen
+        probeXp = xp;
+        long taken = server.sampleNanos(xp);
+        if (recording && taken != 0) {
+            recordLatency(System.nanoTime() - taken);
+        }
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        }
+        latencies[latencyCount++] = nanos;
+    }
+
+    // --- Read by LoadTest ---
+
+    void recording(boolean recording) {
+        this.recording = recording;
+    }
+
+    synchronized long[] latencies() {
+        return Arrays.copyOf(latencies, latencyCount);
+    }
+
+    long messages() {
+        return messages;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long sequenceGaps() {
+        return sequenceGaps;
+    }
+
+    long malformed() {
+        return malformed;
+    }
+
+    boolean closed() {
+        return closed;
+    }
+}
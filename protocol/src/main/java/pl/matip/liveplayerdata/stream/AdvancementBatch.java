@@ -0,0 +1,37 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.Arrays;
+
+// Advancement changes of one tick that are encoded together as one ADVANCEMENT_BATCH. Reused scratch space
+// of the encoder thread.
+final class AdvancementBatch {
+
+    int count;
+    PlayerData[] players;
+    int[] advancements;
+    boolean[] granted;
+
+    AdvancementBatch(int initialCapacity) {
+        players = new PlayerData[initialCapacity];
+        advancements = new int[initialCapacity];
+        granted = new boolean[initialCapacity];
+    }
+
+    void add(PlayerData data, int advancement, boolean grant) {
+        if (count == players.length) {
+            int capacity = count * 2;
+            players = Arrays.copyOf(players, capacity);
+            advancements = Arrays.copyOf(advancements, capacity);
+            granted = Arrays.copyOf(granted, capacity);
+        }
+        players[count] = data;
+        advancements[count] = advancement;
+        granted[count] = grant;
+        count++;
+    }
+
+    void clear() {
+        Arrays.fill(players, 0, count, null);
+        count = 0;
+    }
+}
@@ -0,0 +1,52 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+// Encoder-side copy of the server's advancement numbering (see PipelineEvent.AdvancementDictionary), with the
+// UTF-8 form of every ID computed once per data pack load instead of per message. Protocol 2 clients receive
+// the numbering itself (ADVANCEMENT_DICTIONARY) and from then on only indices; protocol 1 still gets IDs.
+final class AdvancementDictionary {
+
+    static final AdvancementDictionary EMPTY = new AdvancementDictionary(List.of());
+
+    private final byte[][] idBytes;
+
+    AdvancementDictionary(List<String> ids) {
+        idBytes = new byte[ids.size()][];
+        for (int i = 0; i < idBytes.length; i++) {
+            idBytes[i] = ids.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    int size() {
+        return idBytes.length;
+    }
+
+    // null for indices from another dictionary
+    byte[] idBytes(int index) {
+        return index >= 0 && index < idBytes.length ? idBytes[index] : null;
+    }
+
+    // Protocol 1 JOIN advancement section: u16 count, count * (u8 length, ID). IDs longer than the one-byte length
+    // prefix cannot be sent and are skipped.
+    byte[] encodeList(BitSet completed) {
+        int size = 2;
+        int count = 0;
+        for (int i = completed.nextSetBit(0); i >= 0 && i < idBytes.length; i = completed.nextSetBit(i + 1)) {
+            if (idBytes[i].length > 255) continue;
+            size += 1 + idBytes[i].length;
+            count++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) count);
+        for (int i = completed.nextSetBit(0); i >= 0 && i < idBytes.length; i = completed.nextSetBit(i + 1)) {
+            if (idBytes[i].length > 255) continue;
+            buffer.put((byte) idBytes[i].length);
+            buffer.put(idBytes[i]);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,118 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.framing.CloseFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Moves clients between the live stream and lagging by the depth of their outbound queue (see ClientSession),
+// and brings them back with one catch-up batch. Encoder thread only.
+final class Backpressure {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Backpressure.class);
+
+    // Lagging clients resume once their queue is down to maxQueuedFrames / 4, and are dropped above 4x
+    static final int LOW_WATERMARK_DIVISOR = 4;
+    static final int HARD_LIMIT_FACTOR = 4;
+
+    private final StreamSettings settings;
+    private final FrameBroadcaster broadcaster;
+    private final Function<ChangeSet, PooledFrame> encoder; // protocol 2 update batches
+    private final Consumer<ClientSession> caughtUp; // after a protocol 2 client's catch-up batch
+    private final ChangeSet catchUp;
+
+    Backpressure(StreamSettings settings, FrameBroadcaster broadcaster, Function<ChangeSet, PooledFrame> encoder,
+                 Consumer<ClientSession> caughtUp, int initialPlayers) {
+        this.settings = settings;
+        this.broadcaster = broadcaster;
+        this.encoder = encoder;
+        this.caughtUp = caughtUp;
+        this.catchUp = new ChangeSet(initialPlayers);
+    }
+
+    // Once per flush, before its updates are sent
+    void check(List<ClientSession> clients, PlayerData[] players, long nowNanos) {
+        int highWatermark = settings.maxQueuedFrames;
+        for (int c = 0; c < clients.size(); c++) {
+            ClientSession client = clients.get(c);
+            if (!client.conn.isOpen()) continue;
+            int depth = client.readQueueDepth();
+            if (depth > highWatermark * HARD_LIMIT_FACTOR) {
+                // Even the events it must not lose are piling up
+                disconnect(client, depth + " frames queued");
+            } else if (!client.isLagging()) {
+                if (depth >= highWatermark) {
+                    client.startLagging(nowNanos);
+                    LOGGER.info("WebSocket client {} is lagging ({} frames queued), holding back updates.", client.remoteAddress(), depth);
+                }
+            } else if (depth <= highWatermark / LOW_WATERMARK_DIVISOR) {
+                sendCatchUp(client, players);
+                client.caughtUp();
+            } else if (nowNanos - client.laggingSinceNanos > TimeUnit.SECONDS.toNanos(settings.slowClientTimeoutSeconds)) {
+                disconnect(client, "lagging for over " + settings.slowClientTimeoutSeconds + " s");
+            }
+        }
+    }
+
+    // Marks the update as missed by every lagging client; true if any client is live to receive it
+    static boolean anyLive(List<ClientSession> clients, ChangeSet updates) {
+        boolean anyLive = false;
+        for (int c = 0; c < clients.size(); c++) {
+            ClientSession client = clients.get(c);
+            if (client.isLagging()) {
+                client.dropped(updates);
+            } else {
+                anyLive = true;
+            }
+        }
+        return anyLive;
+    }
+
+    // Nothing is owed for a player that is gone; its LEAVE was queued regardless
+    static void playerLeft(List<ClientSession> clients, int sessionId) {
+        for (int c = 0; c < clients.size(); c++) {
+            clients.get(c).missed.clear(sessionId);
+        }
+    }
+
+    // One absolute batch with the current values of every player the client missed updates for
+    void sendCatchUp(ClientSession client, PlayerData[] players) {
+        BitSet missed = client.missed;
+        if (client.protocolVersion == LegacyCodec.PROTOCOL_VERSION) {
+            for (int sessionId = missed.nextSetBit(0); sessionId >= 0; sessionId = missed.nextSetBit(sessionId + 1)) {
+                PlayerData data = player(players, sessionId);
+                if (data == null) continue;
+                PooledFrame frame = broadcaster.acquire(LegacyCodec.updateSize(data, MessageCodec.MASK_ALL_FIELDS), LegacyCodec.PROTOCOL_VERSION);
+                LegacyCodec.writeUpdate(frame.buffer, data, MessageCodec.MASK_ALL_FIELDS);
+                broadcaster.send(frame, client.conn);
+            }
+            return;
+        }
+        Subscription subscription = client.group.subscription;
+        catchUp.clear();
+        for (int sessionId = missed.nextSetBit(0); sessionId >= 0; sessionId = missed.nextSetBit(sessionId + 1)) {
+            PlayerData data = player(players, sessionId);
+            if (data != null && subscription.admitsPlayer(data)) {
+                catchUp.addAbsolute(data, subscription.fieldMask, settings);
+            }
+        }
+        if (!catchUp.isEmpty()) {
+            broadcaster.send(encoder.apply(catchUp), client.conn);
+        }
+        caughtUp.accept(client);
+    }
+
+    void disconnect(ClientSession client, String reason) {
+        LOGGER.warn("Disconnecting slow WebSocket client {}: {}", client.remoteAddress(), reason);
+        client.conn.close(CloseFrame.TRY_AGAIN_LATER, "Client too slow");
+    }
+
+    private static PlayerData player(PlayerData[] players, int sessionId) {
+        return sessionId < players.length ? players[sessionId] : null;
+    }
+}
@@ -0,0 +1,692 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Diffs, encodes and broadcasts player state on its own thread.
+// The server thread only fills TickSnapshot slots (see producer methods) and publishes them; everything that
+// scales with players x clients happens here. Players are stored by session ID in a plain array and the
+// client lists are touched only by this thread, so no lock is held while sending. Samples are diffed against
+// column-stored state, on a fork-join pool for large player counts (see SnapshotDiffer). Messages are encoded
+// once into pooled frames shared by all clients (see FrameBroadcaster), so steady-state broadcasting does not
+// allocate per message or per client.
+// Protocol 2 clients are grouped by Subscription, see SubscriberGroups. Slow clients skip update frames and
+// catch up later, see Backpressure. The unfiltered stream is numbered for resuming and can be recorded, see
+// MainStream. Extra fields (see PlayerField) are read and diffed only while some subscription names them.
+// Samples also feed a decaying heatmap (see HeatmapStore). Requests such as history and heatmap tiles are
+// answered by StreamQueries. Updates can also go out as datagrams, see DatagramStream.
+public final class BroadcastPipeline implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BroadcastPipeline.class);
+
+    private static final int RING_CAPACITY = 8;
+    private static final int INITIAL_PLAYERS = 64;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int HISTORY_MAINTENANCE_TICKS = 20;
+
+    private final StreamSettings settings;
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final SnapshotRing ring = new SnapshotRing(RING_CAPACITY, INITIAL_PLAYERS);
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // --- Encoder thread state ---
+    private PlayerData[] players = new PlayerData[INITIAL_PLAYERS]; // indexed by session ID
+    private final List<ClientSession> legacyClients = new ArrayList<>(); // protocol 1
+    private final FrameBroadcaster broadcaster;
+    private final ChangeSet changes = new ChangeSet(INITIAL_PLAYERS);
+    private final SubscriberGroups subscribers; // protocol 2
+    private final Map<WebSocket, ClientSession> sessions = new HashMap<>();
+    // Same sessions, readable from other threads for stats
+    private final List<ClientSession> sessionList = new CopyOnWriteArrayList<>();
+    private final Backpressure backpressure;
+    private final MainStream mainStream;
+    private final ChangeSet catchUp = new ChangeSet(INITIAL_PLAYERS); // extra field values for a new subscriber
+    // The changes without extra fields, for the main stream, protocol 1, datagrams and history
+    private final ChangeSet coreChanges = new ChangeSet(INITIAL_PLAYERS);
+    private volatile int publishedExtraFields;
+    private AdvancementDictionary dictionary = AdvancementDictionary.EMPTY;
+    private final AdvancementBatch advancementBatch = new AdvancementBatch(16);
+    private final AdvancementBatch groupAdvancementBatch = new AdvancementBatch(16);
+    private final SnapshotDiffer differ;
+    private final TrajectoryStore history; // null when disabled
+    private long historyMaintainedTick;
+    private long lastTick; // latest server tick seen
+    private final HeatmapStore heatmap; // null when disabled
+    private final StreamQueries queries;
+    private final DatagramStream datagrams; // null when disabled
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // recorder: gets every main-stream message, or null
+    public BroadcastPipeline(StreamSettings settings, StreamRecorder recorder) {
+        this.settings = settings;
+        this.broadcaster = new FrameBroadcaster(settings.compressionMinBytes, metrics);
+        this.subscribers = new SubscriberGroups(settings, INITIAL_PLAYERS);
+        this.mainStream = new MainStream(settings, broadcaster, subscribers.all, recorder);
+        this.backpressure = new Backpressure(settings, broadcaster, updates -> encodeUpdates(updates, 0),
+                this::caughtUp, INITIAL_PLAYERS);
+        this.differ = new SnapshotDiffer(settings, INITIAL_PLAYERS);
+        this.history = settings.historyTicks > 0 ? new TrajectoryStore(settings.historyTicks,
+                settings.historyFullResolutionTicks, settings.historyDownsampleTicks, settings.historyMaxBytes) : null;
+        this.heatmap = settings.heatmapMaxBytes > 0 ? new HeatmapStore(settings.heatmapCellShift,
+                settings.heatmapHalfLifeTicks, settings.heatmapMaxBytes) : null;
+        this.queries = new StreamQueries(settings, broadcaster, history, heatmap, subscribers.dimensionIndices());
+        this.datagrams = settings.datagramsEnabled ? DatagramStream.open(settings, metrics, mainStream.epoch()) : null;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "LivePlayerData-Encoder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        differ.close();
+        if (datagrams != null) {
+            datagrams.close();
+        }
+    }
+
+    // --- Producer side (server thread only) ---
+
+    // Slot for this tick. Fill players with beginPlayers/addPlayer, then publish().
+    public TickSnapshot openSnapshot() {
+        return ring.openSlot();
+    }
+
+    public void postEvent(PipelineEvent event) {
+        TickSnapshot slot = ring.openSlot();
+        if (event instanceof PipelineEvent.Leave) {
+            // An unpublished sample may still carry the leaving player's session ID, which can be handed to
+            // the next player to join; drop it, the next sample is only a flush away
+            slot.discardPlayers();
+        }
+        slot.events.add(event);
+    }
+
+    public void publish() {
+        TickSnapshot slot = ring.openSlot();
+        if (!slot.hasPlayers && !slot.hasEvents()) return;
+        if (ring.publish()) {
+            LockSupport.unpark(thread);
+        }
+        // else: encoder is a full ring behind, the open slot is kept and published on a later tick
+    }
+
+    // --- Client side (WebSocket threads) ---
+
+    // resumeEpoch/resumeSequence: the client's ?resume=<epoch>:<sequence>, or -1 for none
+    public void addClient(WebSocket conn, int protocolVersion, long resumeEpoch, long resumeSequence) {
+        execute(() -> {
+            ClientSession client = new ClientSession(conn, protocolVersion);
+            conn.setAttachment(client); // Lets FrameBroadcaster count what is sent to it, the initial state included
+            if (protocolVersion == MessageCodec.PROTOCOL_VERSION) {
+                long missed = mainStream.resume(conn, resumeEpoch, resumeSequence);
+                if (missed >= 0) {
+                    LOGGER.debug("Resumed WebSocket client {} with {} missed message(s).", conn.getRemoteSocketAddress(), missed);
+                    addSession(client);
+                    return;
+                }
+                if (resumeEpoch >= 0) {
+                    LOGGER.debug("WebSocket client {} cannot resume, sending full state.", conn.getRemoteSocketAddress());
+                }
+                mainStream.sendHello(conn, false);
+                broadcaster.send(encodeDictionary(0), conn);
+            }
+            // Current state first, then the client joins the live stream at exactly this point
+            for (PlayerData data : players) {
+                if (data == null) continue;
+                if (!conn.isOpen()) {
+                    LOGGER.debug("WebSocket connection closed before sending initial state for {}", data.name);
+                    return;
+                }
+                try {
+                    broadcaster.send(encodeJoin(data, protocolVersion, 0), conn);
+                } catch (Exception e) {
+                    LOGGER.error("Error serializing initial state for player " + data.name + " for new client", e);
+                }
+            }
+            if (protocolVersion == MessageCodec.PROTOCOL_VERSION) {
+                mainStream.sendSync(conn);
+            }
+            addSession(client);
+            LOGGER.debug("Finished sending initial states (Binary) to new client.");
+        });
+    }
+
+    private void addSession(ClientSession client) {
+        if (client.protocolVersion == LegacyCodec.PROTOCOL_VERSION) {
+            legacyClients.add(client);
+        } else {
+            subscribers.add(client);
+            mainStream.clientJoined(System.nanoTime());
+        }
+        sessions.put(client.conn, client);
+        sessionList.add(client);
+    }
+
+    public void removeClient(WebSocket conn) {
+        execute(() -> {
+            ClientSession client = sessions.remove(conn);
+            if (client == null) return;
+            sessionList.remove(client);
+            legacyClients.remove(client);
+            subscribers.remove(client);
+            updateExtraFields();
+            if (datagrams != null) {
+                datagrams.remove(conn);
+            }
+        });
+    }
+
+    // Replaces the client's subscription. The client is sent {"type":"subscribed"}, on which it should forget
+    // the players it knows, followed by a JOIN for every player the new subscription admits. A subscription
+    // with extra fields gets a SCHEMA first and their current values after the JOINs.
+    public void subscribe(WebSocket conn, Subscription subscription) {
+        execute(() -> {
+            ClientSession client = protocol2Client(conn, "Subscriptions need protocol 2");
+            if (client == null) return;
+            SubscriberGroup group = subscribers.move(client, subscription, players);
+            conn.send("{\"type\":\"subscribed\"}");
+            int extra = group.subscription.extraFields();
+            if (extra != 0) {
+                queries.sendSchema(conn);
+            }
+            // Fields nobody wanted until now have no current values yet; the next sample sends them
+            int known = extra & differ.extraFields();
+            updateExtraFields();
+            catchUp.clear();
+            for (PlayerData data : players) {
+                if (data != null && group.subscription.admitsPlayer(data)) {
+                    broadcaster.send(encodeJoin(data, MessageCodec.PROTOCOL_VERSION, 0), conn);
+                    if (known != 0) {
+                        catchUp.addAbsolute(data, known, settings);
+                    }
+                }
+            }
+            if (!catchUp.isEmpty()) {
+                broadcaster.send(encodeUpdates(catchUp, 0), conn);
+            }
+            // The JOINs carry current values, so nothing missed under the old subscription is owed
+            client.missed.clear();
+            if (group == subscribers.all) {
+                mainStream.sendSync(conn);
+                mainStream.clientJoined(System.nanoTime());
+            }
+        });
+    }
+
+    // Sends a HISTORY with the last 'ticks' of the named players (lower-case names), or of everyone for null
+    public void queryHistory(WebSocket conn, Set<String> names, long ticks) {
+        execute(() -> {
+            if (protocol2Client(conn, "History needs protocol 2") != null) {
+                queries.sendHistory(conn, players, lastTick, names, ticks);
+            }
+        });
+    }
+
+    // Sends a HEATMAP with the tiles of one dimension and level that changed after version 'since';
+    // box: {minX, minZ, maxX, maxZ} in blocks, or null for everywhere
+    public void queryHeatmap(WebSocket conn, String dimension, int level, long since, double[] box) {
+        execute(() -> {
+            if (protocol2Client(conn, "The heatmap needs protocol 2") != null) {
+                queries.sendHeatmap(conn, lastTick, dimension, level, since, box);
+            }
+        });
+    }
+
+    // Sends a SCHEMA describing every field an update can carry
+    public void querySchema(WebSocket conn) {
+        execute(() -> {
+            if (protocol2Client(conn, "The schema needs protocol 2") != null) {
+                queries.sendSchema(conn);
+            }
+        });
+    }
+
+    // Extra fields some subscription wants; the server thread only reads these into its samples.
+    // Safe to call from any thread.
+    public int extraFields() {
+        return publishedExtraFields;
+    }
+
+    // Sends the connection's updates also as datagrams to the given UDP port at its address; 0 stops that.
+    // Answered with {"type":"datagrams","port":N}.
+    public void registerDatagrams(WebSocket conn, int port) {
+        execute(() -> {
+            if (protocol2Client(conn, "Datagrams need protocol 2") == null) return;
+            if (datagrams == null) {
+                conn.send("{\"type\":\"error\",\"message\":\"Datagrams are disabled on this server\"}");
+                return;
+            }
+            datagrams.register(conn, port);
+        });
+    }
+
+    // Safe to call from any thread
+    public int datagramReceivers() {
+        return datagrams != null ? datagrams.receiverCount() : 0;
+    }
+
+    // Per-connection outbound stats; safe to call from any thread
+    public List<ClientSession> clientSessions() {
+        return Collections.unmodifiableList(sessionList);
+    }
+
+    public CompressionStats compressionStats() {
+        return broadcaster.compressionStats();
+    }
+
+    // The server thread reports its own tick time here too
+    public PipelineMetrics metrics() {
+        return metrics;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        LockSupport.unpark(thread);
+    }
+
+    // The session of an open protocol 2 client. A protocol 1 client is sent an error instead; null then.
+    private ClientSession protocol2Client(WebSocket conn, String error) {
+        ClientSession client = sessions.get(conn);
+        if (client == null || !conn.isOpen()) return null;
+        if (client.group == null) {
+            conn.send("{\"type\":\"error\",\"message\":\"" + error + "\"}");
+            return null;
+        }
+        return client;
+    }
+
+    // --- Encoder thread ---
+
+    @Override
+    public void run() {
+        while (running) {
+            // Once per pass, so acquiring a frame never has to scan the frames in flight
+            broadcaster.reclaim();
+            runTasks();
+            if (!processNext()) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Processes the oldest published snapshot; false if there is none. Benchmarks call this (and runTasks)
+    // directly on an unstarted pipeline instead of running the encoder thread.
+    boolean processNext() {
+        TickSnapshot snapshot = ring.peek();
+        if (snapshot == null) return false;
+        long start = System.nanoTime();
+        try {
+            process(snapshot);
+        } catch (Exception e) {
+            LOGGER.error("Error processing player snapshot", e);
+        } finally {
+            ring.release();
+            metrics.snapshotProcessed(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOGGER.error("Error in encoder task", e);
+            }
+        }
+    }
+
+    private void process(TickSnapshot snapshot) {
+        mainStream.checkKeyframe(dictionary, players);
+        // Events first: a player that joined this tick must be known before its first sample
+        for (PipelineEvent event : snapshot.events) {
+            handleEvent(event);
+        }
+        long now = System.nanoTime();
+        mainStream.checkResumeWindow(now);
+        backpressure.check(sessionList, players, now);
+        if (snapshot.hasPlayers) {
+            diffPlayers(snapshot);
+        }
+    }
+
+    private void handleEvent(PipelineEvent event) {
+        if (event instanceof PipelineEvent.Join join) {
+            PlayerData data = new PlayerData(join.sessionId(), join.name(), join.dimension(),
+                    join.x(), join.y(), join.z(), join.health(), join.xp(), join.advancements());
+            if (settings.deltaEncoding) {
+                // Put the baseline on the fixed-point grid, so JOIN values convert to it exactly
+                double scale = settings.positionScale();
+                data.x = Math.round(data.x * scale) / scale;
+                data.y = Math.round(data.y * scale) / scale;
+                data.z = Math.round(data.z * scale) / scale;
+                data.health = (float) Math.round(data.health * MessageCodec.HEALTH_SCALE) / MessageCodec.HEALTH_SCALE;
+            }
+            if (data.sessionId >= players.length) {
+                players = Arrays.copyOf(players, Math.max(data.sessionId + 1, players.length * 2));
+            }
+            players[data.sessionId] = data;
+            differ.join(data, join.tick());
+            lastTick = Math.max(lastTick, join.tick());
+            if (history != null) {
+                history.remove(data.sessionId); // The ID may have belonged to someone else
+                history.record(data, join.tick());
+            }
+            subscribers.playerJoined(data);
+            try {
+                if (anyStreamFollows(data)) {
+                    long sequence = mainStream.nextSequence();
+                    broadcastToGroups(encodeJoin(data, MessageCodec.PROTOCOL_VERSION, sequence), sequence, data);
+                }
+                if (!legacyClients.isEmpty()) {
+                    broadcaster.broadcast(encodeJoin(data, LegacyCodec.PROTOCOL_VERSION, 0), legacyClients);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error serializing join message for " + join.name(), e);
+            }
+        } else if (event instanceof PipelineEvent.Leave leave) {
+            PlayerData data = player(leave.sessionId());
+            if (data == null) return;
+            players[data.sessionId] = null;
+            subscribers.playerLeft(data);
+            differ.leave(data.sessionId);
+            if (history != null) {
+                history.remove(data.sessionId);
+            }
+            Backpressure.playerLeft(sessionList, data.sessionId);
+            if (anyStreamFollows(data)) {
+                long sequence = mainStream.nextSequence();
+                PooledFrame frame = mainStream.acquireMessage(MessageCodec.leaveSize(), sequence);
+                MessageCodec.writeLeave(frame.buffer, data);
+                broadcastToGroups(frame, sequence, data);
+            }
+            if (!legacyClients.isEmpty()) {
+                PooledFrame frame = broadcaster.acquire(LegacyCodec.leaveSize(data), LegacyCodec.PROTOCOL_VERSION);
+                LegacyCodec.writeLeave(frame.buffer, data);
+                broadcaster.broadcast(frame, legacyClients);
+            }
+        } else if (event instanceof PipelineEvent.AdvancementChanges changes) {
+            handleAdvancementChanges(changes);
+        } else if (event instanceof PipelineEvent.AdvancementDictionary newDictionary) {
+            dictionary = new AdvancementDictionary(newDictionary.ids());
+            for (PlayerData data : players) {
+                if (data != null) {
+                    data.replaceAdvancements(data.advancements);
+                }
+            }
+            // Protocol 2 clients renumber; the AdvancementSet events that follow re-send every player's set
+            long sequence = mainStream.nextSequence();
+            PooledFrame frame = encodeDictionary(sequence);
+            frame.finish();
+            mainStream.record(frame, sequence);
+            for (int g = 0; g < subscribers.size(); g++) {
+                broadcaster.fanOut(frame, subscribers.get(g).members);
+            }
+            broadcaster.track(frame);
+        } else if (event instanceof PipelineEvent.AdvancementSet set) {
+            PlayerData data = player(set.sessionId());
+            if (data == null) return;
+            data.replaceAdvancements(set.advancements());
+            if (anyStreamFollows(data)) {
+                long sequence = mainStream.nextSequence();
+                byte[] advancements = data.advancementSet();
+                PooledFrame frame = mainStream.acquireMessage(MessageCodec.advancementSetSize(advancements), sequence);
+                MessageCodec.writeAdvancementSet(frame.buffer, data, advancements);
+                broadcastToGroups(frame, sequence, data);
+            }
+        } else if (event instanceof PipelineEvent.Dimension dimension) {
+            subscribers.dimensionNamed(dimension.name(), dimension.index());
+            queries.dimensionAdded(subscribers);
+        }
+    }
+
+    // --- Advancements ---
+
+    private void handleAdvancementChanges(PipelineEvent.AdvancementChanges changes) {
+        AdvancementBatch batch = advancementBatch;
+        for (int i = 0; i < changes.sessionIds().length; i++) {
+            PlayerData data = player(changes.sessionIds()[i]);
+            int advancement = changes.advancements()[i];
+            boolean granted = changes.granted()[i];
+            if (data == null || dictionary.idBytes(advancement) == null) continue;
+            if (data.setAdvancement(advancement, granted)) {
+                batch.add(data, advancement, granted);
+            }
+        }
+        if (batch.count == 0) return;
+        try {
+            broadcastAdvancementBatch(batch);
+            if (!legacyClients.isEmpty()) {
+                broadcastLegacyAchievements(batch);
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    // Groups that follow every player share one frame (the main-stream one); filtered groups get the changes
+    // of their players
+    private void broadcastAdvancementBatch(AdvancementBatch batch) {
+        PooledFrame shared = mainStream.isLive() ? encodeAdvancementBatch(batch, mainStream.nextSequence()) : null;
+        for (int g = 0; g < subscribers.size(); g++) {
+            SubscriberGroup group = subscribers.get(g);
+            if (group.members.isEmpty()) continue;
+            if (group.subscription.players == null) {
+                if (shared == null) {
+                    shared = encodeAdvancementBatch(batch, 0);
+                }
+                broadcaster.fanOut(shared, group.members);
+                continue;
+            }
+            AdvancementBatch filtered = groupAdvancementBatch;
+            for (int i = 0; i < batch.count; i++) {
+                if (group.subscription.admitsPlayer(batch.players[i])) {
+                    filtered.add(batch.players[i], batch.advancements[i], batch.granted[i]);
+                }
+            }
+            if (filtered.count > 0) {
+                PooledFrame frame = encodeAdvancementBatch(filtered, 0);
+                broadcaster.fanOut(frame, group.members);
+                broadcaster.track(frame);
+            }
+            filtered.clear();
+        }
+        if (shared != null) {
+            broadcaster.track(shared);
+        }
+    }
+
+    // Finished, and recorded when it is part of the main stream
+    private PooledFrame encodeAdvancementBatch(AdvancementBatch batch, long sequence) {
+        PooledFrame frame = mainStream.acquireMessage(MessageCodec.advancementBatchSize(batch), sequence);
+        MessageCodec.writeAdvancementBatch(frame.buffer, batch);
+        frame.finish();
+        mainStream.record(frame, sequence);
+        return frame;
+    }
+
+    // Protocol 1 has no revocations and no batching: one NEW_ACHIEVEMENT per grant
+    private void broadcastLegacyAchievements(AdvancementBatch batch) {
+        for (int i = 0; i < batch.count; i++) {
+            if (!batch.granted[i]) continue;
+            PlayerData data = batch.players[i];
+            byte[] achBytes = dictionary.idBytes(batch.advancements[i]);
+            if (achBytes.length > 255) {
+                LOGGER.warn("Achievement ID too long for protocol 1: {}", new String(achBytes, StandardCharsets.UTF_8));
+                continue;
+            }
+            PooledFrame frame = broadcaster.acquire(LegacyCodec.newAchievementSize(data, achBytes), LegacyCodec.PROTOCOL_VERSION);
+            LegacyCodec.writeNewAchievement(frame.buffer, data, achBytes);
+            broadcaster.broadcast(frame, legacyClients);
+        }
+    }
+
+    // After groups changed: the differ and the server thread follow the extra fields some group wants
+    private void updateExtraFields() {
+        int fields = subscribers.extraFields();
+        if (fields != differ.extraFields()) {
+            differ.setExtraFields(fields);
+            publishedExtraFields = fields;
+        }
+    }
+
+    // The main stream follows everyone while it is live, even without clients
+    private boolean anyStreamFollows(PlayerData data) {
+        return mainStream.isLive() || subscribers.anyFollows(data);
+    }
+
+    // JOIN, LEAVE and achievements go to every group that follows the player, wherever the player is
+    private void broadcastToGroups(PooledFrame frame, long sequence, PlayerData data) {
+        frame.finish();
+        mainStream.record(frame, sequence);
+        for (int g = 0; g < subscribers.size(); g++) {
+            SubscriberGroup group = subscribers.get(g);
+            if (!group.members.isEmpty() && group.subscription.admitsPlayer(data)) {
+                broadcaster.fanOut(frame, group.members);
+            }
+        }
+        broadcaster.track(frame);
+    }
+
+    // sequence: protocol 2 only, see MainStream
+    private PooledFrame encodeJoin(PlayerData data, int protocolVersion, long sequence) {
+        PooledFrame frame;
+        if (protocolVersion == LegacyCodec.PROTOCOL_VERSION) {
+            byte[] advancements = data.legacyAdvancementList(dictionary);
+            frame = broadcaster.acquire(LegacyCodec.joinSize(data, advancements), LegacyCodec.PROTOCOL_VERSION);
+            LegacyCodec.writeJoin(frame.buffer, data, advancements);
+        } else {
+            byte[] advancements = data.advancementSet();
+            frame = mainStream.acquireMessage(MessageCodec.joinSize(data, advancements), sequence);
+            MessageCodec.writeJoin(frame.buffer, data, advancements);
+        }
+        return frame;
+    }
+
+    private PooledFrame encodeDictionary(long sequence) {
+        PooledFrame frame = mainStream.acquireMessage(MessageCodec.advancementDictionarySize(dictionary), sequence);
+        MessageCodec.writeAdvancementDictionary(frame.buffer, dictionary);
+        return frame;
+    }
+
+    private PlayerData player(int sessionId) {
+        return sessionId >= 0 && sessionId < players.length ? players[sessionId] : null;
+    }
+
+    private void diffPlayers(TickSnapshot snapshot) {
+        changes.clear();
+        long tick = snapshot.tick;
+        lastTick = tick;
+        if (heatmap != null) {
+            heatmap.record(snapshot);
+        }
+        differ.diff(snapshot, players, changes);
+        ChangeSet core = changes;
+        if (differ.extraFields() != 0) {
+            coreChanges.copyCore(changes);
+            core = coreChanges;
+        }
+        flushUpdates(core);
+        if (datagrams != null) {
+            datagrams.send(core, players, tick);
+        }
+        if (history != null) {
+            recordHistory(core, tick);
+        }
+    }
+
+    // What was just sent is what the history keeps, so it thins out exactly like the stream does
+    private void recordHistory(ChangeSet core, long tick) {
+        for (int i = 0; i < core.count; i++) {
+            history.record(core.players[i], tick);
+        }
+        if (tick - historyMaintainedTick >= HISTORY_MAINTENANCE_TICKS) {
+            historyMaintainedTick = tick;
+            history.maintain(tick);
+        }
+    }
+
+    // --- Send the updates collected during this flush ---
+    // core: changes, or their core fields only while a group wants extra fields
+    private void flushUpdates(ChangeSet core) {
+        if (changes.isEmpty()) return;
+        subscribers.filter(changes);
+        if (mainStream.isLive() && !core.isEmpty()) {
+            sendUpdates(core, subscribers.all.members, mainStream.nextSequence());
+        }
+        for (int g = 0; g < subscribers.size(); g++) {
+            SubscriberGroup group = subscribers.get(g);
+            if (group != subscribers.all && !group.members.isEmpty() && !group.changes.isEmpty()) {
+                sendUpdates(group.changes, group.members, 0);
+            }
+        }
+        if (Backpressure.anyLive(legacyClients, core)) {
+            // Protocol 1: one UPDATE frame per changed player with raw values
+            for (int i = 0; i < core.count; i++) {
+                byte changeMask = (byte) (core.masks[i] & MessageCodec.MASK_ALL_FIELDS);
+                PooledFrame frame = broadcaster.acquire(LegacyCodec.updateSize(core.players[i], changeMask),
+                        LegacyCodec.PROTOCOL_VERSION);
+                LegacyCodec.writeUpdate(frame.buffer, core.players[i], changeMask);
+                broadcaster.broadcastUpdate(frame, legacyClients);
+            }
+        }
+    }
+
+    // A main-stream batch is encoded (and recorded) even when every client is lagging or gone
+    private void sendUpdates(ChangeSet updates, List<ClientSession> clients, long sequence) {
+        if (Backpressure.anyLive(clients, updates) || mainStream.isRecorded(sequence)) {
+            PooledFrame frame = encodeUpdates(updates, sequence);
+            frame.finish();
+            mainStream.record(frame, sequence);
+            broadcaster.broadcastUpdate(frame, clients);
+        }
+    }
+
+    private PooledFrame encodeUpdates(ChangeSet updates, long sequence) {
+        PooledFrame frame;
+        if (settings.deltaEncoding) {
+            frame = mainStream.acquireMessage(MessageCodec.deltaBatchSize(updates), sequence);
+            MessageCodec.writeDeltaBatch(frame.buffer, updates, settings.positionPrecisionBits);
+        } else {
+            frame = mainStream.acquireMessage(MessageCodec.batchUpdateSize(updates), sequence);
+            MessageCodec.writeBatchUpdate(frame.buffer, updates);
+        }
+        return frame;
+    }
+
+    // After a protocol 2 client's catch-up batch: a main-stream client is in sync again
+    private void caughtUp(ClientSession client) {
+        if (client.group == subscribers.all) {
+            mainStream.sendSync(client.conn);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.Arrays;
+
+// Players changed in one flush, with the change mask and (for delta encoding) the quantized deltas that were
+// applied to their baseline. Extra fields (see PlayerField) are always absolute and read from PlayerData.
+// Reused between flushes; only grows.
+final class ChangeSet {
+
+    int count;
+    PlayerData[] players;
+    int[] masks; // var-int on the wire, see PlayerField
+    // Quantized deltas, or absolute quantized values when the entry has MASK_ABSOLUTE
+    long[] dx, dy, dz;
+    int[] dHealth, dXp;
+
+    ChangeSet(int capacity) {
+        players = new PlayerData[capacity];
+        masks = new int[capacity];
+        dx = new long[capacity];
+        dy = new long[capacity];
+        dz = new long[capacity];
+        dHealth = new int[capacity];
+        dXp = new int[capacity];
+    }
+
+    // Returns the index of the new entry; delta columns are zeroed
+    int add(PlayerData data, int mask) {
+        if (count == players.length) {
+            int capacity = count * 2;
+            players = Arrays.copyOf(players, capacity);
+            masks = Arrays.copyOf(masks, capacity);
+            dx = Arrays.copyOf(dx, capacity);
+            dy = Arrays.copyOf(dy, capacity);
+            dz = Arrays.copyOf(dz, capacity);
+            dHealth = Arrays.copyOf(dHealth, capacity);
+            dXp = Arrays.copyOf(dXp, capacity);
+        }
+        int i = count++;
+        players[i] = data;
+        masks[i] = mask;
+        dx[i] = 0;
+        dy[i] = 0;
+        dz[i] = 0;
+        dHealth[i] = 0;
+        dXp[i] = 0;
+        return i;
+    }
+
+    // Copies entry i of another set with the given mask (a subset of the source mask)
+    void addFrom(ChangeSet source, int i, int mask) {
+        int entry = add(source.players[i], mask);
+        dx[entry] = source.dx[i];
+        dy[entry] = source.dy[i];
+        dz[entry] = source.dz[i];
+        dHealth[entry] = source.dHealth[i];
+        dXp[entry] = source.dXp[i];
+    }
+
+    // The entries of source with their extra fields dropped, leaving out those that had nothing else
+    void copyCore(ChangeSet source) {
+        clear();
+        for (int i = 0; i < source.count; i++) {
+            int mask = source.masks[i];
+            if ((mask & PlayerField.CORE_MASK) != 0) {
+                addFrom(source, i, mask & (PlayerField.CORE_MASK | MessageCodec.MASK_ABSOLUTE));
+            }
+        }
+    }
+
+    // Entry with the player's current (last sent) values, for clients whose baseline is stale
+    void addAbsolute(PlayerData data, int fieldMask, StreamSettings settings) {
+        if (fieldMask == 0) return;
+        if (!settings.deltaEncoding) {
+            // BATCH_UPDATE entries are always absolute
+            add(data, fieldMask);
+            return;
+        }
+        double scale = settings.positionScale();
+        int entry = add(data, fieldMask | MessageCodec.MASK_ABSOLUTE);
+        dx[entry] = Math.round(data.x * scale);
+        dy[entry] = Math.round(data.y * scale);
+        dz[entry] = Math.round(data.z * scale);
+        dHealth[entry] = Math.round(data.health * MessageCodec.HEALTH_SCALE);
+        dXp[entry] = data.xp;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    void clear() {
+        Arrays.fill(players, 0, count, null);
+        count = 0;
+    }
+}
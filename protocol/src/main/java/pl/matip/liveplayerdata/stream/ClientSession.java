@@ -0,0 +1,122 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+
+import java.util.BitSet;
+
+// Outbound state of one connection. The library's per-connection queue is unbounded, so the pipeline watches
+// its depth here instead:
+//   - above the high watermark the client is lagging: update frames are no longer queued for it, only the
+//     session IDs they carried are remembered (newest value wins, since the catch-up reads current state)
+//   - JOIN, LEAVE and achievements are always queued, they cannot be rebuilt from current state later
+//   - once the queue is back under the low watermark the client gets one absolute catch-up batch for the
+//     players it missed and rejoins the live stream
+//   - a client that lags longer than the timeout, or whose queue passes the hard limit, is disconnected
+// Mutated on the encoder thread; the counters are volatile so they can be read from anywhere.
+public final class ClientSession {
+
+    final WebSocket conn;
+    final int protocolVersion;
+    SubscriberGroup group; // protocol 2 only
+    // Session IDs with updates this client has not received
+    final BitSet missed = new BitSet();
+    long laggingSinceNanos;
+
+    private volatile boolean lagging;
+    private volatile int queueDepth;
+    private volatile long droppedFrames;
+    private volatile long catchUps;
+    private volatile long framesSent;
+    private volatile long bytesSent;
+    private volatile long sendFailures;
+
+    ClientSession(WebSocket conn, int protocolVersion) {
+        this.conn = conn;
+        this.protocolVersion = protocolVersion;
+    }
+
+    // Frames (or frame fragments) the library has not written to the socket yet
+    int readQueueDepth() {
+        int depth;
+        if (conn instanceof WebSocketImpl impl) {
+            depth = impl.outQueue.size();
+        } else {
+            depth = conn.hasBufferedData() ? 1 : 0;
+        }
+        queueDepth = depth;
+        return depth;
+    }
+
+    void startLagging(long nowNanos) {
+        lagging = true;
+        laggingSinceNanos = nowNanos;
+    }
+
+    void caughtUp() {
+        lagging = false;
+        missed.clear();
+        catchUps++;
+    }
+
+    // An update frame was skipped; remember whose values it carried
+    void dropped(ChangeSet updates) {
+        droppedFrames++;
+        for (int i = 0; i < updates.count; i++) {
+            missed.set(updates.players[i].sessionId);
+        }
+    }
+
+    void dropped(PlayerData data) {
+        droppedFrames++;
+        missed.set(data.sessionId);
+    }
+
+    // Queued for the socket; bytes as framed, after compression
+    void sent(int bytes) {
+        framesSent++;
+        bytesSent += bytes;
+    }
+
+    void sendFailed() {
+        sendFailures++;
+    }
+
+    // --- Stats ---
+
+    public String remoteAddress() {
+        return String.valueOf(conn.getRemoteSocketAddress());
+    }
+
+    public int protocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean isLagging() {
+        return lagging;
+    }
+
+    public int queueDepth() {
+        return queueDepth;
+    }
+
+    public long droppedFrames() {
+        return droppedFrames;
+    }
+
+    public long catchUps() {
+        return catchUps;
+    }
+
+    public long framesSent() {
+        return framesSent;
+    }
+
+    public long bytesSent() {
+        return bytesSent;
+    }
+
+    public long sendFailures() {
+        return sendFailures;
+    }
+}
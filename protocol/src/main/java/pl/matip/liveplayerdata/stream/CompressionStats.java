@@ -0,0 +1,12 @@
+package pl.matip.liveplayerdata.stream;
+
+// permessage-deflate totals since start-up. Every message is compressed once however many connections get it,
+// so these grow with broadcast volume, not with the number of clients.
+public record CompressionStats(long compressedMessages, long incompressibleMessages,
+                               long bytesBeforeCompression, long bytesAfterCompression, long cpuNanos) {
+
+    // Compressed size / original size of the messages that were sent compressed; 1 before the first one
+    public double ratio() {
+        return bytesBeforeCompression == 0 ? 1.0 : (double) bytesAfterCompression / bytesBeforeCompression;
+    }
+}
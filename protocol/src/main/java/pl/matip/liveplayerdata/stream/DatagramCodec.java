@@ -0,0 +1,86 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+
+// Datagram wire format (see DatagramStream): position, health and XP updates over UDP for receivers that would
+// rather lose an update than wait for it. Players are referred to by their protocol 2 session IDs, so a
+// receiver keeps a protocol 2 WebSocket connection for JOIN, LEAVE and advancements and learns names there.
+//
+// Datagram        u16 magic 0xCAFE, u32 epoch, u32 sequence, u32 tick, u8 flags (bit 0: keyframe),
+//                 u8 position precision bits, u16 count, count * entry
+//                 epoch is the one of the WebSocket connection's HELLO; datagrams of another epoch are stale.
+//                 sequence counts datagrams (every receiver gets the same ones), so gaps show loss; a receiver
+//                 should ignore a datagram that is not newer than the last one it applied. tick is the low
+//                 32 bits of the server tick the values were sampled at.
+// Entry           u16 id, u8 mask, fields selected by mask (bits as in BATCH_UPDATE)
+//                 zigzag var-int x/y/z in 1/2^precision blocks, zigzag var-int health in 1/HEALTH_SCALE points,
+//                 zigzag var-int xp in levels
+//
+// Every value is absolute, so a lost datagram costs only the updates it carried. Keyframe datagrams carry every
+// player with every field and go out periodically, which also repairs whatever a lost datagram left stale.
+// Entries for session IDs the receiver does not know (yet) are skipped.
+public final class DatagramCodec {
+
+    public static final short MAGIC = (short) 0xCAFE;
+    public static final byte FLAG_KEYFRAME = 0x01;
+
+    public static final int HEADER_SIZE = 2 // Magic
+            + 4 // Epoch
+            + 4 // Sequence
+            + 4 // Tick
+            + 1 // Flags
+            + 1 // Precision bits
+            + 2; // Entry count
+    // Largest entry: id, mask, three 64-bit and two 32-bit var-ints
+    public static final int MAX_ENTRY_SIZE = 2 + 1 + 3 * 10 + 2 * 5;
+
+    private static final int COUNT_OFFSET = HEADER_SIZE - 2;
+
+    private DatagramCodec() {
+    }
+
+    public static void writeHeader(ByteBuffer buffer, int epoch, long sequence, long tick, byte flags, int precisionBits) {
+        buffer.putShort(MAGIC);
+        buffer.putInt(epoch);
+        buffer.putInt((int) sequence);
+        buffer.putInt((int) tick);
+        buffer.put(flags);
+        buffer.put((byte) precisionBits);
+        buffer.putShort((short) 0); // Patched by finish()
+    }
+
+    // Values are the player's last sent ones, on the grid of scale = 2^precision
+    public static int entrySize(PlayerData data, byte changeMask, double scale) {
+        int size = 2 // Session ID
+                + 1; // Mask
+        if ((changeMask & MessageCodec.MASK_COORDS) != 0) {
+            size += VarInts.signedSize(Math.round(data.x * scale))
+                    + VarInts.signedSize(Math.round(data.y * scale))
+                    + VarInts.signedSize(Math.round(data.z * scale));
+        }
+        if ((changeMask & MessageCodec.MASK_HEALTH) != 0) {
+            size += VarInts.signedSize(Math.round(data.health * MessageCodec.HEALTH_SCALE));
+        }
+        if ((changeMask & MessageCodec.MASK_XP) != 0) size += VarInts.signedSize(data.xp);
+        return size;
+    }
+
+    public static void writeEntry(ByteBuffer buffer, PlayerData data, byte changeMask, double scale) {
+        buffer.putShort((short) data.sessionId);
+        buffer.put(changeMask);
+        if ((changeMask & MessageCodec.MASK_COORDS) != 0) {
+            VarInts.writeSigned(buffer, Math.round(data.x * scale));
+            VarInts.writeSigned(buffer, Math.round(data.y * scale));
+            VarInts.writeSigned(buffer, Math.round(data.z * scale));
+        }
+        if ((changeMask & MessageCodec.MASK_HEALTH) != 0) {
+            VarInts.writeSigned(buffer, Math.round(data.health * MessageCodec.HEALTH_SCALE));
+        }
+        if ((changeMask & MessageCodec.MASK_XP) != 0) VarInts.writeSigned(buffer, data.xp);
+    }
+
+    // Sets the entry count of the datagram that starts at index 0 of buffer
+    public static void finish(ByteBuffer buffer, int count) {
+        buffer.putShort(COUNT_OFFSET, (short) count);
+    }
+}
@@ -0,0 +1,162 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Lossy UDP side channel for receivers where TCP head-of-line blocking hurts more than a lost update, such as
+// overlay renderers next to the server. A protocol 2 WebSocket client registers a UDP port with
+// {"type":"datagrams","port":N} (0 unregisters) and from then on also gets every update of the unfiltered stream as
+// DatagramCodec datagrams, sent to that port at the connection's own address; JOIN, LEAVE and advancements stay
+// on the WebSocket. Such a client usually subscribes with {"type":"subscribe","fields":[]} so updates do not
+// come twice. Datagrams are packed with as many entries as fit in datagramMaxBytes, encoded once for all
+// receivers, and dropped rather than queued when the socket buffer is full.
+// Encoder thread only.
+final class DatagramStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatagramStream.class);
+
+    private final StreamSettings settings;
+    private final PipelineMetrics metrics;
+    private final int epoch;
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer;
+    private final Map<WebSocket, InetSocketAddress> receiversByConnection = new HashMap<>();
+    private final List<InetSocketAddress> receivers = new ArrayList<>();
+    private volatile int receiverCount;
+    private long sequence;
+    private long lastKeyframeTick;
+    private boolean keyframeRequested;
+    // Datagram being filled
+    private int count;
+    private long tick;
+    private byte flags;
+
+    private DatagramStream(StreamSettings settings, PipelineMetrics metrics, int epoch, DatagramChannel channel) {
+        this.settings = settings;
+        this.metrics = metrics;
+        this.epoch = epoch;
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(settings.datagramMaxBytes);
+    }
+
+    // epoch: the main stream's, see MessageCodec HELLO. Null if no socket could be opened.
+    static DatagramStream open(StreamSettings settings, PipelineMetrics metrics, int epoch) {
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(null);
+            return new DatagramStream(settings, metrics, epoch, channel);
+        } catch (IOException e) {
+            LOGGER.error("Could not open the datagram socket, datagrams are off", e);
+            return null;
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+    }
+
+    // Safe to call from any thread
+    int receiverCount() {
+        return receiverCount;
+    }
+
+    // Replaces the connection's registration, port 0 removes it, and confirms with {"type":"datagrams","port":N}
+    void register(WebSocket conn, int port) {
+        remove(conn);
+        if (port != 0) {
+            InetSocketAddress address = new InetSocketAddress(conn.getRemoteSocketAddress().getAddress(), port);
+            receiversByConnection.put(conn, address);
+            receivers.add(address);
+            receiverCount = receivers.size();
+            keyframeRequested = true; // The new receiver knows no values yet
+            LOGGER.debug("Datagram receiver registered: {}", address);
+        }
+        conn.send("{\"type\":\"datagrams\",\"port\":" + port + "}");
+    }
+
+    void remove(WebSocket conn) {
+        InetSocketAddress address = receiversByConnection.remove(conn);
+        if (address != null) {
+            receivers.remove(address);
+            receiverCount = receivers.size();
+        }
+    }
+
+    // After a flush: the changes just sent on the main stream, or everyone with every field when a keyframe is
+    // due. Values come from PlayerData, which already holds what was sent.
+    void send(ChangeSet changes, PlayerData[] players, long tick) {
+        if (receivers.isEmpty()) return;
+        double scale = settings.positionScale();
+        if (keyframeRequested || tick - lastKeyframeTick >= settings.datagramKeyframeTicks) {
+            keyframeRequested = false;
+            lastKeyframeTick = tick;
+            begin(tick, DatagramCodec.FLAG_KEYFRAME);
+            for (PlayerData data : players) {
+                if (data != null) {
+                    add(data, MessageCodec.MASK_ALL_FIELDS, scale);
+                }
+            }
+        } else {
+            if (changes.isEmpty()) return;
+            begin(tick, (byte) 0);
+            for (int i = 0; i < changes.count; i++) {
+                add(changes.players[i], (byte) (changes.masks[i] & MessageCodec.MASK_ALL_FIELDS), scale);
+            }
+        }
+        if (count > 0) {
+            flush();
+        }
+    }
+
+    private void begin(long tick, byte flags) {
+        this.tick = tick;
+        this.flags = flags;
+        buffer.clear();
+        DatagramCodec.writeHeader(buffer, epoch, sequence + 1, tick, flags, settings.positionPrecisionBits);
+        count = 0;
+    }
+
+    private void add(PlayerData data, byte mask, double scale) {
+        if (buffer.remaining() < DatagramCodec.entrySize(data, mask, scale)) {
+            flush();
+            begin(tick, flags);
+        }
+        DatagramCodec.writeEntry(buffer, data, mask, scale);
+        count++;
+    }
+
+    private void flush() {
+        sequence++;
+        DatagramCodec.finish(buffer, count);
+        int length = buffer.position();
+        for (int r = 0; r < receivers.size(); r++) {
+            buffer.limit(length).position(0);
+            try {
+                if (channel.send(buffer, receivers.get(r)) == 0) {
+                    metrics.datagramDropped(); // Socket buffer full
+                } else {
+                    metrics.datagramSent(length);
+                }
+            } catch (IOException e) {
+                metrics.datagramDropped();
+                LOGGER.debug("Could not send a datagram to {}", receivers.get(r), e);
+            }
+        }
+        buffer.limit(buffer.capacity()).position(length);
+    }
+}
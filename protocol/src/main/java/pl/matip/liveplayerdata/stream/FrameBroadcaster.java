@@ -0,0 +1,188 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+// Encode-once fan-out. A PooledFrame is framed once and its bytes are queued, read-only, on every plain
+// RFC 6455 connection (see FrameQueue); the library writes them out from the selector thread. Frames are
+// returned to the pool by reclaim() once every connection has drained its view. Only the encoder thread uses
+// this class.
+//
+// Draft_6455.createBinaryFrame allocates a new heap buffer per call, so the header is written by PooledFrame
+// in the same layout instead. Connections with another draft or an unknown extension fall back to
+// WebSocket.send, which frames (and copies) the payload per connection.
+//
+// permessage-deflate is negotiated with server_no_context_takeover, so every compressed message stands alone
+// and one compressed copy serves every connection that negotiated it. Payloads below the configured minimum,
+// and payloads that do not get smaller, go out uncompressed (RSV1 clear), which the extension allows.
+final class FrameBroadcaster {
+
+    private final FramePool pool = new FramePool();
+    private final List<PooledFrame> inFlight = new ArrayList<>();
+    // --- permessage-deflate ---
+    private final int compressionMinBytes;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    // Written by the encoder thread only; volatile so the stats can be read from anywhere
+    private volatile long compressedMessages;
+    private volatile long incompressibleMessages;
+    private volatile long bytesBeforeCompression;
+    private volatile long bytesAfterCompression;
+    private volatile long compressionNanos;
+    private final PipelineMetrics metrics;
+
+    FrameBroadcaster(int compressionMinBytes, PipelineMetrics metrics) {
+        this.compressionMinBytes = compressionMinBytes;
+        this.metrics = metrics;
+    }
+
+    PooledFrame acquire(int payloadSize, int protocolVersion) {
+        PooledFrame frame = pool.acquire(payloadSize);
+        frame.beginPayload();
+        frame.protocolVersion = protocolVersion;
+        return frame;
+    }
+
+    // Sends a finished frame to every open client, then hands it to reclaim()
+    void broadcast(PooledFrame frame, List<ClientSession> clients) {
+        frame.finish();
+        fanOut(frame, clients, true);
+        track(frame);
+    }
+
+    // Update frames skip clients that are lagging (see ClientSession)
+    void broadcastUpdate(PooledFrame frame, List<ClientSession> clients) {
+        frame.finish();
+        fanOut(frame, clients, false);
+        track(frame);
+    }
+
+    // For one frame going to several client lists (subscriber groups): frame.finish() once, fanOut() per
+    // list, then track() once
+    void fanOut(PooledFrame frame, List<ClientSession> clients) {
+        fanOut(frame, clients, true);
+    }
+
+    private void fanOut(PooledFrame frame, List<ClientSession> clients, boolean reliable) {
+        for (int i = clients.size() - 1; i >= 0; i--) {
+            ClientSession client = clients.get(i);
+            if (client.conn.isOpen()) {
+                if (reliable || !client.isLagging()) {
+                    enqueue(frame, client.conn);
+                }
+            } else if (client.conn.isClosed()) {
+                clients.remove(i);
+            }
+        }
+    }
+
+    void send(PooledFrame frame, WebSocket client) {
+        frame.finish();
+        if (client.isOpen()) {
+            enqueue(frame, client);
+        }
+        track(frame);
+    }
+
+    // Returns frames whose views have all been written (or whose connections closed) to the pool.
+    // This checks every view of every frame in flight, so the encoder calls it once per pass, not per message.
+    void reclaim() {
+        for (int i = inFlight.size() - 1; i >= 0; i--) {
+            PooledFrame frame = inFlight.get(i);
+            if (frame.isDrained()) {
+                int last = inFlight.size() - 1;
+                inFlight.set(i, inFlight.get(last));
+                inFlight.remove(last);
+                pool.release(frame);
+            }
+        }
+    }
+
+    // Every finished frame ends up here exactly once, so this is where messages are counted
+    void track(PooledFrame frame) {
+        metrics.encoded(frame.protocolVersion, frame.messageType(), frame.payloadLength());
+        if (frame.hasViews()) {
+            inFlight.add(frame);
+        } else {
+            pool.release(frame);
+        }
+    }
+
+    private void enqueue(PooledFrame frame, WebSocket client) {
+        ClientSession session = client.getAttachment() instanceof ClientSession attached ? attached : null;
+        PooledFrame sent = frame;
+        boolean queued;
+        try {
+            if (client instanceof WebSocketImpl impl && FrameQueue.acceptsShared(impl)) {
+                queued = FrameQueue.enqueue(impl, frame);
+            } else if (client instanceof WebSocketImpl impl && FrameQueue.acceptsDeflated(impl)) {
+                sent = deflated(frame);
+                queued = FrameQueue.enqueue(impl, sent);
+            } else {
+                // send() copies the payload into its own frame before returning
+                client.send(frame.payload());
+                queued = true;
+            }
+        } catch (WebsocketNotConnectedException e) {
+            // Connection went away between the isOpen() check and the write; onClose cleans it up
+            queued = false;
+        }
+        if (queued) {
+            if (session != null) {
+                session.sent(sent.frameLength());
+            }
+        } else {
+            metrics.sendFailed();
+            if (session != null) {
+                session.sendFailed();
+            }
+        }
+    }
+
+    // The frame to queue on permessage-deflate connections: the compressed copy, made on first use
+    private PooledFrame deflated(PooledFrame frame) {
+        if (frame.deflated != null) return frame.deflated;
+        int length = frame.payloadLength();
+        if (length < compressionMinBytes) {
+            frame.deflated = frame;
+            return frame;
+        }
+        long start = System.nanoTime();
+        // Room for the 4-byte flush marker that is stripped below; anything longer is not worth sending
+        PooledFrame copy = pool.acquire(length + 4);
+        ByteBuffer out = copy.beginPayload();
+        out.limit(out.position() + length + 4);
+        deflater.reset();
+        deflater.setInput(frame.payload());
+        deflater.deflate(out, Deflater.SYNC_FLUSH);
+        boolean complete = deflater.needsInput() && out.hasRemaining();
+        int compressedLength = out.position() - PooledFrame.MAX_HEADER - 4;
+        if (complete && compressedLength < length) {
+            // A message ends with the empty stored block 00 00 FF FF, which the receiver appends itself
+            out.position(out.position() - 4);
+            out.limit(out.capacity());
+            copy.compressed = true;
+            copy.finish();
+            frame.deflated = copy;
+            compressedMessages++;
+            bytesBeforeCompression += length;
+            bytesAfterCompression += compressedLength;
+        } else {
+            pool.release(copy);
+            frame.deflated = frame;
+            incompressibleMessages++;
+        }
+        compressionNanos += System.nanoTime() - start;
+        return frame.deflated;
+    }
+
+    CompressionStats compressionStats() {
+        return new CompressionStats(compressedMessages, incompressibleMessages,
+                bytesBeforeCompression, bytesAfterCompression, compressionNanos);
+    }
+}
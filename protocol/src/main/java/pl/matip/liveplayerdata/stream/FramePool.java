@@ -0,0 +1,48 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+
+// Power-of-two size classes of direct-buffer frames. Only the encoder thread touches the pool.
+// Frames larger than the biggest class are allocated on the heap and not kept.
+final class FramePool {
+
+    private static final int MIN_SHIFT = 9;  // 512 B
+    private static final int MAX_SHIFT = 20; // 1 MiB
+    private static final int MAX_POOLED_PER_CLASS = 32;
+    private static final int UNPOOLED = -1;
+
+    // Free frames per size class as stacks, most recently released on top
+    private final PooledFrame[][] free = new PooledFrame[MAX_SHIFT - MIN_SHIFT + 1][MAX_POOLED_PER_CLASS];
+    private final int[] freeCount = new int[MAX_SHIFT - MIN_SHIFT + 1];
+
+    PooledFrame acquire(int payloadSize) {
+        int needed = payloadSize + PooledFrame.MAX_HEADER;
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(needed - 1));
+        if (shift > MAX_SHIFT) {
+            return new PooledFrame(ByteBuffer.allocate(needed), UNPOOLED);
+        }
+        int sizeClass = shift - MIN_SHIFT;
+        if (freeCount[sizeClass] == 0) {
+            return new PooledFrame(ByteBuffer.allocateDirect(1 << shift), sizeClass);
+        }
+        PooledFrame[] stack = free[sizeClass];
+        int top = --freeCount[sizeClass];
+        PooledFrame frame = stack[top];
+        stack[top] = null;
+        return frame;
+    }
+
+    void release(PooledFrame frame) {
+        frame.clearOwners();
+        if (frame.deflated != null && frame.deflated != frame) {
+            release(frame.deflated);
+        }
+        frame.deflated = null;
+        if (frame.sizeClass == UNPOOLED) return;
+        int count = freeCount[frame.sizeClass];
+        if (count < MAX_POOLED_PER_CLASS) {
+            free[frame.sizeClass][count] = frame;
+            freeCount[frame.sizeClass] = count + 1;
+        }
+    }
+}
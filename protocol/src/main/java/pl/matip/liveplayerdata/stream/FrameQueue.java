@@ -0,0 +1,41 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.DefaultExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+
+// The one place that hands finished frames to Java-WebSocket without going through WebSocket.send.
+// send() and sendFrame() frame every payload into a new heap buffer per connection, and WebSocketImpl.write
+// formats a trace message with ByteBuffer.array() for every buffer up to 1000 bytes, even with tracing off,
+// which throws for the direct and read-only buffers PooledFrame shares. So a frame's view is put on the
+// connection's outQueue here, followed by the same onWriteDemand call WebSocketImpl.write makes.
+final class FrameQueue {
+
+    private FrameQueue() {
+    }
+
+    // Plain RFC 6455 connection: its frames are byte-for-byte what PooledFrame writes
+    static boolean acceptsShared(WebSocketImpl conn) {
+        // Compression extensions subclass DefaultExtension, so compare the exact class
+        return conn.getDraft() instanceof Draft_6455 rfc && rfc.getExtension().getClass() == DefaultExtension.class;
+    }
+
+    // permessage-deflate without context takeover: takes the frame's shared compressed copy (see FrameBroadcaster)
+    static boolean acceptsDeflated(WebSocketImpl conn) {
+        return conn.getDraft() instanceof Draft_6455 rfc
+                && rfc.getExtension() instanceof PerMessageDeflateExtension deflate
+                && deflate.getClass() == PerMessageDeflateExtension.class
+                && deflate.isServerNoContextTakeover();
+    }
+
+    // Queues conn's view of the frame. Like send(), refuses once the connection is closing; false then.
+    static boolean enqueue(WebSocketImpl conn, PooledFrame frame) {
+        if (!conn.isOpen() || conn.isFlushAndClose()) {
+            return false;
+        }
+        conn.outQueue.add(frame.viewFor(conn));
+        conn.getWebSocketListener().onWriteDemand(conn);
+        return true;
+    }
+}
@@ -0,0 +1,349 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Time-decayed player density per dimension at LEVELS resolutions, so map clients can be sent finished tiles
+// (HEATMAP) instead of each one aggregating hours of updates. Every sample adds, at every level, each
+// player's time since the previous sample to the cell the player stands in. Level l has cells of
+// cellBlocks * 4^l blocks, grouped into fixed tiles of TILE_SIZE x TILE_SIZE floats that are created on the
+// first visit.
+//   - decay is exponential with the configured half-life, without touching every cell per sample: new
+//     weight is scaled up by 2^(age / half-life) instead, and all values are scaled back down together
+//     once that factor gets large (tiles that decayed to nothing are dropped then)
+//   - every visited tile takes a new number from a change counter, so clients can ask for the tiles that
+//     changed since the number they last saw
+//   - above maxTiles, the tile with the least weight goes first, except tiles created in the last
+//     YOUNG_SAMPLES samples: a new tile is almost always the lightest, and new hotspots would evict each other
+//   - every dropped tile is remembered (Removed) with a number from the same counter, so clients drop it too;
+//     when too many are remembered they are forgotten at once, every tile is numbered anew after resetVersion
+//     and clients that asked from before that start over
+// Tiles live in an open-addressing table with primitive long keys, like SpatialGrid's cells.
+// Encoder thread only.
+final class HeatmapStore {
+
+    static final int LEVELS = 3;
+    static final int LEVEL_SHIFT = 2; // a cell is 4 x 4 cells of the level below
+    static final int TILE_SHIFT = 6;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    static final int TILE_CELLS = TILE_SIZE * TILE_SIZE;
+    // Heap per tile: the cells plus object and table overhead
+    static final int TILE_BYTES = TILE_CELLS * 4 + 64;
+    private static final double TICKS_PER_SECOND = 20;
+    // Values are scaled back down once new weight is scaled up this much
+    private static final double RENORMALIZE_SCALE = 1 << 20;
+    // Player-seconds below which a tile is dropped when values are scaled down
+    private static final double MIN_TILE_WEIGHT = 0.01;
+    // Longer gaps between samples (a stalled server) do not credit one position with the whole gap
+    private static final long MAX_SAMPLE_TICKS = 200;
+    // Samples for which a new tile is not evicted (a minute when sampling every tick)
+    private static final long YOUNG_SAMPLES = 1200;
+    // Removed tiles remembered per tile kept
+    private static final int REMOVED_PER_TILE = 4;
+    private static final long NO_KEY = Long.MIN_VALUE;
+
+    static final class Tile {
+        final int dimension;
+        final int level;
+        final int tileX, tileZ;
+        // Row-major, x fastest; scaled like every stored value, see weightScale
+        final float[] cells = new float[TILE_CELLS];
+        double total;
+        long version; // change counter at the last visit
+        final long createdSample;
+
+        Tile(int dimension, int level, int tileX, int tileZ, long createdSample) {
+            this.dimension = dimension;
+            this.level = level;
+            this.tileX = tileX;
+            this.tileZ = tileZ;
+            this.createdSample = createdSample;
+        }
+    }
+
+    // A tile that was dropped (decayed to nothing or evicted)
+    static final class Removed {
+        final int dimension;
+        final int level;
+        final int tileX, tileZ;
+        final long version; // change counter when it was dropped
+
+        Removed(int dimension, int level, int tileX, int tileZ, long version) {
+            this.dimension = dimension;
+            this.level = level;
+            this.tileX = tileX;
+            this.tileZ = tileZ;
+            this.version = version;
+        }
+    }
+
+    private final int cellShift; // of level 0
+    private final double halfLifeTicks;
+    private final int maxTiles;
+    private final int maxRemoved;
+    private long[] keys = new long[64];
+    private Tile[] tiles = new Tile[64];
+    private int size;
+    private long baseTick; // stored values are real values at this tick
+    private long lastSampleTick = Long.MIN_VALUE;
+    private long version;
+    private long samples;
+    private final List<Removed> removed = new ArrayList<>(); // oldest first
+    private long resetVersion; // tiles were numbered anew after this; removals before it are forgotten
+
+    HeatmapStore(int cellShift, long halfLifeTicks, long maxBytes) {
+        this.cellShift = cellShift;
+        this.halfLifeTicks = halfLifeTicks;
+        this.maxTiles = (int) Math.max(LEVELS, Math.min(Integer.MAX_VALUE / 2, maxBytes / TILE_BYTES));
+        this.maxRemoved = (int) Math.min(Integer.MAX_VALUE / 2, (long) maxTiles * REMOVED_PER_TILE);
+        Arrays.fill(keys, NO_KEY);
+    }
+
+    int cellShift(int level) {
+        return cellShift + level * LEVEL_SHIFT;
+    }
+
+    double halfLifeSeconds() {
+        return halfLifeTicks / TICKS_PER_SECOND;
+    }
+
+    long version() {
+        return version;
+    }
+
+    int tileCount() {
+        return size;
+    }
+
+    // A client that last saw a version before this has to drop its tiles and start over
+    long resetVersion() {
+        return resetVersion;
+    }
+
+    // --- Recording ---
+
+    void record(TickSnapshot snapshot) {
+        long tick = snapshot.tick;
+        if (lastSampleTick == Long.MIN_VALUE) {
+            baseTick = tick;
+            lastSampleTick = tick - 1;
+        }
+        long elapsed = Math.min(tick - lastSampleTick, MAX_SAMPLE_TICKS);
+        if (elapsed <= 0) return;
+        lastSampleTick = tick;
+        samples++;
+        double scale = weightScale(tick);
+        float weight = (float) (elapsed / TICKS_PER_SECOND * scale);
+        long sampleVersion = version;
+        for (int i = 0; i < snapshot.playerCount; i++) {
+            long blockX = (long) Math.floor(snapshot.x[i]);
+            long blockZ = (long) Math.floor(snapshot.z[i]);
+            for (int level = 0; level < LEVELS; level++) {
+                int shift = cellShift(level);
+                add(snapshot.dimension[i], level, blockX >> shift, blockZ >> shift, weight, sampleVersion);
+            }
+        }
+        if (scale > RENORMALIZE_SCALE) {
+            renormalize(tick, scale);
+        }
+    }
+
+    private void add(int dimension, int level, long cellX, long cellZ, float weight, long sampleVersion) {
+        int tileX = (int) (cellX >> TILE_SHIFT);
+        int tileZ = (int) (cellZ >> TILE_SHIFT);
+        Tile tile = getOrCreate(dimension, level, tileX, tileZ);
+        tile.cells[(int) ((cellZ & (TILE_SIZE - 1)) << TILE_SHIFT | (cellX & (TILE_SIZE - 1)))] += weight;
+        tile.total += weight;
+        if (tile.version <= sampleVersion) {
+            tile.version = ++version;
+        }
+    }
+
+    // 2^(age / half-life): what a real value at 'tick' is multiplied by to be stored
+    private double weightScale(long tick) {
+        return Math.pow(2, (tick - baseTick) / halfLifeTicks);
+    }
+
+    private void renormalize(long tick, double scale) {
+        List<Tile> dead = new ArrayList<>();
+        for (Tile tile : tiles) {
+            if (tile == null) continue;
+            float[] cells = tile.cells;
+            for (int c = 0; c < TILE_CELLS; c++) {
+                cells[c] = (float) (cells[c] / scale);
+            }
+            tile.total /= scale;
+            if (tile.total < MIN_TILE_WEIGHT) {
+                dead.add(tile);
+            }
+        }
+        baseTick = tick;
+        for (Tile tile : dead) {
+            delete(find(pack(tile.dimension, tile.level, tile.tileX, tile.tileZ)));
+        }
+    }
+
+    private void recordRemoved(Tile tile) {
+        if (removed.size() >= maxRemoved) {
+            renumber();
+        }
+        removed.add(new Removed(tile.dimension, tile.level, tile.tileX, tile.tileZ, ++version));
+    }
+
+    // Forgets every removal and numbers the tiles anew, in the order they changed, above resetVersion
+    private void renumber() {
+        removed.clear();
+        resetVersion = ++version;
+        List<Tile> live = new ArrayList<>(size);
+        for (Tile tile : tiles) {
+            if (tile != null) live.add(tile);
+        }
+        live.sort(Comparator.comparingLong(tile -> tile.version));
+        for (Tile tile : live) {
+            tile.version = ++version;
+        }
+    }
+
+    // --- Queries ---
+
+    // What a stored value is multiplied by to get player-seconds as of 'tick'
+    double decay(long tick) {
+        return 1 / weightScale(tick);
+    }
+
+    // Tiles of one dimension and level that changed after 'since', in the order they changed. With hasBox,
+    // only tiles overlapping the block box.
+    List<Tile> changedSince(int dimension, int level, long since, boolean hasBox,
+                            double minX, double minZ, double maxX, double maxZ) {
+        int shift = cellShift(level) + TILE_SHIFT;
+        long minTileX = (long) Math.floor(minX) >> shift;
+        long maxTileX = (long) Math.floor(maxX) >> shift;
+        long minTileZ = (long) Math.floor(minZ) >> shift;
+        long maxTileZ = (long) Math.floor(maxZ) >> shift;
+        List<Tile> result = new ArrayList<>();
+        for (Tile tile : tiles) {
+            if (tile == null || tile.dimension != dimension || tile.level != level || tile.version <= since) continue;
+            if (hasBox && (tile.tileX < minTileX || tile.tileX > maxTileX || tile.tileZ < minTileZ || tile.tileZ > maxTileZ)) {
+                continue;
+            }
+            result.add(tile);
+        }
+        result.sort(Comparator.comparingLong(tile -> tile.version));
+        return result;
+    }
+
+    // Tiles of one dimension and level dropped after 'since', oldest first. Not limited to a box: a client
+    // drops what it does not have for nothing.
+    List<Removed> removedSince(int dimension, int level, long since) {
+        List<Removed> result = new ArrayList<>();
+        for (int i = removed.size() - 1; i >= 0 && removed.get(i).version > since; i--) {
+            Removed tile = removed.get(i);
+            if (tile.dimension == dimension && tile.level == level) {
+                result.add(tile);
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    // --- Open-addressing table ---
+
+    // 12 bits dimension, 4 bits level, 24 bits tile x, 24 bits tile z
+    private static long pack(int dimension, int level, int tileX, int tileZ) {
+        return ((long) dimension << 52) | ((long) level << 48) | ((tileX & 0xFFFFFFL) << 24) | (tileZ & 0xFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = keys[slot];
+            if (k == key) return slot;
+            if (k == NO_KEY) return -1;
+        }
+    }
+
+    private Tile getOrCreate(int dimension, int level, int tileX, int tileZ) {
+        long key = pack(dimension, level, tileX, tileZ);
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != NO_KEY) {
+            if (keys[slot] == key) return tiles[slot];
+            slot = (slot + 1) & mask;
+        }
+        if (size >= maxTiles) {
+            evictLightest();
+            return getOrCreate(dimension, level, tileX, tileZ);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return getOrCreate(dimension, level, tileX, tileZ);
+        }
+        keys[slot] = key;
+        tiles[slot] = new Tile(dimension, level, tileX, tileZ, samples);
+        size++;
+        return tiles[slot];
+    }
+
+    // Scans every tile, but only runs when a new tile is needed at the cap. Young tiles only go when every
+    // tile is young.
+    private void evictLightest() {
+        int lightest = -1;
+        int lightestYoung = -1;
+        for (int slot = 0; slot < tiles.length; slot++) {
+            Tile tile = tiles[slot];
+            if (tile == null) continue;
+            if (samples - tile.createdSample < YOUNG_SAMPLES) {
+                if (lightestYoung < 0 || tile.total < tiles[lightestYoung].total) lightestYoung = slot;
+            } else if (lightest < 0 || tile.total < tiles[lightest].total) {
+                lightest = slot;
+            }
+        }
+        delete(lightest >= 0 ? lightest : lightestYoung);
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones in the table
+    private void delete(int slot) {
+        recordRemoved(tiles[slot]);
+        int mask = keys.length - 1;
+        keys[slot] = NO_KEY;
+        tiles[slot] = null;
+        size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; keys[next] != NO_KEY; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                tiles[hole] = tiles[next];
+                keys[next] = NO_KEY;
+                tiles[next] = null;
+                hole = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Tile[] oldTiles = tiles;
+        keys = new long[capacity];
+        tiles = new Tile[capacity];
+        Arrays.fill(keys, NO_KEY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == NO_KEY) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != NO_KEY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            tiles[slot] = oldTiles[i];
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+
+// Protocol 1: the original name-keyed wire format, one UPDATE frame per changed player.
+// Kept for consumers written before session IDs; selected with ?protocol=1 or default_protocol=1.
+// Bitmask definitions (UPDATE message)
+// bit 0: coordinates changed
+// bit 1: health changed
+// bit 2: xp changed
+public final class LegacyCodec {
+
+    public static final int PROTOCOL_VERSION = 1;
+
+    // --- Message Type Constants ---
+    public static final byte MSG_TYPE_JOIN = 0x01;
+    public static final byte MSG_TYPE_LEAVE = 0x02;
+    public static final byte MSG_TYPE_UPDATE = 0x03;
+    public static final byte MSG_TYPE_NEW_ACHIEVEMENT = 0x04;
+
+    // --- Change Mask Bits (for UPDATE message) ---
+    public static final byte MASK_COORDS = 0x01;
+    public static final byte MASK_HEALTH = 0x02;
+    public static final byte MASK_XP = 0x04;
+
+    private LegacyCodec() {
+    }
+
+    // --- JOIN ---
+
+    // advancements: the player's encoded advancement ID list, see AdvancementDictionary.encodeList
+    public static int joinSize(PlayerData data, byte[] advancements) {
+        return 1 // Type
+                + 1 + data.nameBytes.length // Name
+                + 8 + 8 + 8 // Coords
+                + 4 // Health
+                + 4 // XP
+                + advancements.length; // Advancement count + data
+    }
+
+    public static void writeJoin(ByteBuffer buffer, PlayerData data, byte[] advancements) {
+        buffer.put(MSG_TYPE_JOIN);
+        buffer.put((byte) data.nameBytes.length);
+        buffer.put(data.nameBytes);
+        buffer.putDouble(data.x);
+        buffer.putDouble(data.y);
+        buffer.putDouble(data.z);
+        buffer.putFloat(data.health);
+        buffer.putInt(data.xp);
+        buffer.put(advancements);
+    }
+
+    // --- LEAVE ---
+
+    public static int leaveSize(PlayerData data) {
+        return 1 // Type
+                + 1 + data.nameBytes.length; // Name
+    }
+
+    public static void writeLeave(ByteBuffer buffer, PlayerData data) {
+        buffer.put(MSG_TYPE_LEAVE);
+        buffer.put((byte) data.nameBytes.length);
+        buffer.put(data.nameBytes);
+    }
+
+    // --- NEW_ACHIEVEMENT ---
+
+    // Returns -1 if the ID does not fit the one-byte length prefix.
+    public static int newAchievementSize(PlayerData data, byte[] achBytes) {
+        if (achBytes.length > 255) { // Check length limit
+            return -1;
+        }
+        return 1 // Type
+                + 1 + data.nameBytes.length // Name
+                + 1 + achBytes.length; // Achievement ID
+    }
+
+    public static void writeNewAchievement(ByteBuffer buffer, PlayerData data, byte[] achBytes) {
+        buffer.put(MSG_TYPE_NEW_ACHIEVEMENT);
+        buffer.put((byte) data.nameBytes.length);
+        buffer.put(data.nameBytes);
+        buffer.put((byte) achBytes.length);
+        buffer.put(achBytes);
+    }
+
+    // --- UPDATE ---
+
+    private static int updateBodySize(PlayerData data, byte changeMask) {
+        int dataCapacity = 0;
+        if ((changeMask & MASK_COORDS) != 0) dataCapacity += 24; // 3 * double
+        if ((changeMask & MASK_HEALTH) != 0) dataCapacity += 4;  // float
+        if ((changeMask & MASK_XP) != 0) dataCapacity += 4;  // int
+        return 1 + data.nameBytes.length // Name
+                + 1 // Mask
+                + dataCapacity; // Conditional data
+    }
+
+    // Values are taken from data, which the caller has already updated.
+    private static void writeUpdateBody(ByteBuffer buffer, PlayerData data, byte changeMask) {
+        buffer.put((byte) data.nameBytes.length);
+        buffer.put(data.nameBytes);
+        buffer.put(changeMask);
+
+        // Add data based on mask
+        if ((changeMask & MASK_COORDS) != 0) {
+            buffer.putDouble(data.x);
+            buffer.putDouble(data.y);
+            buffer.putDouble(data.z);
+        }
+        if ((changeMask & MASK_HEALTH) != 0) {
+            buffer.putFloat(data.health);
+        }
+        if ((changeMask & MASK_XP) != 0) {
+            buffer.putInt(data.xp);
+        }
+    }
+
+    public static int updateSize(PlayerData data, byte changeMask) {
+        return 1 + updateBodySize(data, changeMask);
+    }
+
+    public static void writeUpdate(ByteBuffer buffer, PlayerData data, byte changeMask) {
+        buffer.put(MSG_TYPE_UPDATE);
+        writeUpdateBody(buffer, data, changeMask);
+    }
+}
@@ -0,0 +1,163 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// The main stream: what protocol 2 clients without a subscription receive (see MessageCodec, sequence numbers).
+// Hands out its sequence numbers and, while it has clients and for resumeWindowSeconds after the last one
+// left, keeps its recent messages in a ReplayRing, so a client that reconnects after a short drop is sent what
+// it missed instead of every player's state. The same messages go to the StreamRecorder, if there is one,
+// together with a keyframe of the full state every so often. Encoder thread only.
+final class MainStream {
+
+    private final StreamSettings settings;
+    private final FrameBroadcaster broadcaster;
+    private final SubscriberGroup clients;
+    private final int epoch = ThreadLocalRandom.current().nextInt();
+    private final ReplayRing replay; // null when disabled
+    private long sequence; // last sequence number handed out
+    private boolean replaying; // messages go into the replay ring
+    private long lastClientNanos;
+    private final StreamRecorder recorder; // null when disabled
+
+    MainStream(StreamSettings settings, FrameBroadcaster broadcaster, SubscriberGroup clients, StreamRecorder recorder) {
+        this.settings = settings;
+        this.broadcaster = broadcaster;
+        this.clients = clients;
+        this.recorder = recorder;
+        this.replay = settings.replayBufferBytes > 0 ? new ReplayRing(settings.replayBufferBytes) : null;
+    }
+
+    // Sent in HELLO; datagrams carry it too
+    int epoch() {
+        return epoch;
+    }
+
+    // Main-stream messages are encoded while the stream has clients or is being replayed or recorded
+    boolean isLive() {
+        return isRecorded() || !clients.members.isEmpty();
+    }
+
+    // Next sequence number for a main-stream message, or 0 when nobody follows the main stream
+    long nextSequence() {
+        return isLive() ? ++sequence : 0;
+    }
+
+    boolean isRecorded(long sequence) {
+        return sequence != 0 && isRecorded();
+    }
+
+    private boolean isRecorded() {
+        return replaying || recorderActive();
+    }
+
+    private boolean recorderActive() {
+        return recorder != null && recorder.isActive();
+    }
+
+    // Protocol 2 frame with the sequence number already written; the message goes right after it
+    PooledFrame acquireMessage(int messageSize, long sequence) {
+        PooledFrame frame = broadcaster.acquire(MessageCodec.SEQUENCE_SIZE + messageSize, MessageCodec.PROTOCOL_VERSION);
+        MessageCodec.writeSequence(frame.buffer, sequence);
+        return frame;
+    }
+
+    // frame must be finished
+    void record(PooledFrame frame, long sequence) {
+        if (sequence == 0) return;
+        if (replaying) {
+            replay.record(sequence, frame.payload());
+        }
+        if (recorderActive()) {
+            recorder.appendLive(System.currentTimeMillis(), frame.payload());
+        }
+    }
+
+    // Once per snapshot, before its events, while 'players' matches what the recording has seen so far:
+    // writes the full state into the recording when a keyframe is due
+    void checkKeyframe(AdvancementDictionary dictionary, PlayerData[] players) {
+        if (!recorderActive()) return;
+        long now = System.currentTimeMillis();
+        if (!recorder.keyframeDue(now)) return;
+        int dictionarySize = MessageCodec.advancementDictionarySize(dictionary);
+        long bytes = StreamRecorder.recordSize(MessageCodec.SEQUENCE_SIZE + dictionarySize);
+        for (PlayerData data : players) {
+            if (data != null) {
+                bytes += StreamRecorder.recordSize(MessageCodec.SEQUENCE_SIZE + MessageCodec.joinSize(data, data.advancementSet()));
+            }
+        }
+        recorder.beginKeyframe(now, bytes);
+        // The dictionary and a JOIN for every player, as sent to a new client
+        PooledFrame frame = acquireMessage(dictionarySize, 0);
+        MessageCodec.writeAdvancementDictionary(frame.buffer, dictionary);
+        recordState(now, frame);
+        for (PlayerData data : players) {
+            if (data == null) continue;
+            byte[] advancements = data.advancementSet();
+            frame = acquireMessage(MessageCodec.joinSize(data, advancements), 0);
+            MessageCodec.writeJoin(frame.buffer, data, advancements);
+            recordState(now, frame);
+        }
+        recorder.endKeyframe(now);
+    }
+
+    private void recordState(long now, PooledFrame frame) {
+        frame.finish();
+        recorder.appendState(now, frame.payload());
+        broadcaster.track(frame); // Never sent: straight back to the pool
+    }
+
+    // --- Clients ---
+
+    // A client joined the main stream's group; the replay ring is filled from now on
+    void clientJoined(long nowNanos) {
+        if (replay != null) {
+            replaying = true;
+            lastClientNanos = nowNanos;
+        }
+    }
+
+    // Once per snapshot: stops filling the replay ring once the stream has been without clients for the resume
+    // window
+    void checkResumeWindow(long nowNanos) {
+        if (!replaying) return;
+        if (!clients.members.isEmpty()) {
+            lastClientNanos = nowNanos;
+        } else if (nowNanos - lastClientNanos > TimeUnit.SECONDS.toNanos(settings.resumeWindowSeconds)) {
+            replaying = false;
+            // Messages are no longer kept from now on; skip a number so no held resume point matches any more
+            sequence++;
+            replay.clear(sequence + 1);
+        }
+    }
+
+    // Sends a resumed HELLO and every held message after resumeSequence, and returns how many that were. -1,
+    // with nothing sent, if the epoch is another server's or the messages are no longer held.
+    long resume(WebSocket conn, long resumeEpoch, long resumeSequence) {
+        if (replay == null || !replaying || resumeEpoch != Integer.toUnsignedLong(epoch)
+                || !replay.canResumeAfter(resumeSequence)) {
+            return -1;
+        }
+        sendHello(conn, true);
+        for (long s = resumeSequence + 1; s <= sequence; s++) {
+            PooledFrame frame = broadcaster.acquire(replay.length(s), MessageCodec.PROTOCOL_VERSION);
+            replay.copy(s, frame.buffer);
+            broadcaster.send(frame, conn);
+        }
+        return sequence - resumeSequence;
+    }
+
+    void sendHello(WebSocket conn, boolean resumed) {
+        PooledFrame frame = acquireMessage(MessageCodec.helloSize(), 0);
+        MessageCodec.writeHello(frame.buffer, epoch, resumed ? MessageCodec.HELLO_FLAG_RESUMED : 0);
+        broadcaster.send(frame, conn);
+    }
+
+    void sendSync(WebSocket conn) {
+        PooledFrame frame = acquireMessage(MessageCodec.syncSize(), 0);
+        MessageCodec.writeSync(frame.buffer, sequence);
+        broadcaster.send(frame, conn);
+    }
+}
@@ -0,0 +1,560 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.List;
+
+// Protocol 2 wire format. Players are named once, in JOIN, together with a 16-bit session ID; every later
+// message refers to them by that ID. IDs are only valid until the matching LEAVE and may then be reused.
+// Every message has a size method and a write method, so callers can take a buffer of the right size from
+// the FramePool and encode straight into it without intermediate arrays.
+//
+// Every message is preceded by a u32 sequence number. Messages of the main stream (what a client without a
+// subscription receives from everyone) are numbered 1, 2, 3, ... in the order they are sent; everything else
+// (the state sent to one client, catch-up batches, filtered updates) carries 0. A client that got every main
+// stream number since its last SYNC without a gap can reconnect with ?resume=<epoch>:<last sequence> and is
+// sent only the messages it missed, as long as the server still holds them.
+//
+// HELLO            type, u32 epoch, u8 flags (bit 0: resumed, bit 1: playback of a recording, see StreamPlayer)
+//                  First message of every connection. The epoch changes whenever the server restarts, and
+//                  sequence numbers are only comparable within one epoch. Not resumed: the client forgets all
+//                  players; their state and a SYNC follow. Resumed: the missed messages follow, with their
+//                  original sequence numbers.
+// SYNC             type, u32 sequence
+//                  The client's state now equals the main stream up to this sequence number; sent after the
+//                  initial state, a catch-up batch or a change back to the unfiltered stream
+// JOIN             type, u16 id, u8 name length, name, f64 x/y/z, f32 health, i32 xp, advancement set
+// LEAVE            type, u16 id
+// (0x04 was NEW_ACHIEVEMENT, replaced by ADVANCEMENT_BATCH)
+// BATCH_UPDATE     type, u16 count, count * (u8 entry length, u16 id, var-int mask, fields selected by mask)
+//                  mask bit 0: f64 x/y/z, bit 1: f32 health, bit 2: i32 xp; bits 4 and up: extra fields,
+//                  see PlayerField and SCHEMA. Fields follow in bit order. Only subscriptions that name extra
+//                  fields get them, so every other mask fits in one byte, as the u8 mask of earlier versions.
+// DELTA_BATCH      type, u8 position precision bits, u8 flags (bit 0: every entry is absolute), u16 count,
+//                  count * (u8 entry length, u16 id, var-int mask, fields selected by mask)
+//                  mask bits as above, bit 3: values are absolute instead of deltas.
+//                  Fields are zigzag var-ints of fixed-point values: x/y/z in 1/2^precision blocks, health
+//                  in 1/HEALTH_SCALE points, xp in levels. Deltas apply to the last value sent for that
+//                  player; JOIN values are already on the same grid, so a client converts them once with
+//                  round(value * scale) and from then on adds deltas. Extra fields are absolute and encoded
+//                  as in BATCH_UPDATE.
+// ADVANCEMENT_DICTIONARY
+//                  type, var-int count, count * (var-int length, advancement ID)
+//                  Numbers the advancements: ID i is index i. Sent first on every connection and again after a
+//                  data pack reload, followed then by an ADVANCEMENT_SET for every player.
+// ADVANCEMENT_SET  type, u16 id, advancement set (replaces everything known about the player's advancements)
+// ADVANCEMENT_BATCH
+//                  type, var-int count, count * (u16 id, var-int change)
+//                  change = index << 1 | 1 if the advancement is no longer done, index << 1 if it became done.
+//                  All changes of one server tick, in the order they happened.
+// HISTORY          type, var-int tick, i64 time (ms since epoch), u8 position precision bits, var-int count,
+//                  count * (u16 id, var-int chunk count, chunk count * (var-int points, var-int byte length, points))
+//                  Reply to {"type":"history"}, never part of the main stream. tick and time are the server's
+//                  at the moment of the reply, so a client can place ticks in time. Each chunk starts with an
+//                  absolute point (var-int tick, zigzag x/y/z, zigzag health, zigzag xp) and continues with
+//                  zigzag deltas (tick delta minus previous tick delta, then x/y/z, health and xp), the
+//                  fixed-point grid being the one of DELTA_BATCH with the precision given here. Chunks are
+//                  oldest first; points older than the full-resolution window are thinned out.
+// SCHEMA           type, var-int count, count * (var-int mask bit, u8 name length, name, u8 flags,
+//                  u8 components, u8 BATCH_UPDATE encoding, u8 DELTA_BATCH encoding, f32 scale,
+//                  var-int value count, value count * (u8 length, value name))
+//                  Describes every field an update entry can carry, so a client can decode fields it was not
+//                  built for. Encodings: 0 f64, 1 f32, 2 i32, 3 u8, 4 i8, 5 zigzag var-int. Integer encodings
+//                  are real value * scale; floats are real values. flags bit 0: DELTA_BATCH sends deltas
+//                  unless the entry is absolute. Value names name the values of an enumeration (game mode,
+//                  dimension) by index. Reply to {"type":"schema"}, and sent ahead of the JOINs to a
+//                  subscription with extra fields and again when a dimension is added; never part of the main
+//                  stream.
+// HEATMAP          type, var-int tick, var-int version, u8 flags (bit 0: more tiles changed than were sent;
+//                  bit 1: reset), u8 level, u8 cell size bits, u8 tile size bits, f32 half-life (s),
+//                  var-int removed count, removed count * (zigzag tile x, zigzag tile z), var-int count,
+//                  count * (zigzag tile x, zigzag tile z, f32 peak, 2^tile size bits squared * u8 cell)
+//                  Reply to {"type":"heatmap"}, never part of the main stream: the tiles of one dimension and
+//                  level that players visited since the version the client gave (see HeatmapStore), after
+//                  the tiles the server dropped since then, which the client drops first. With reset, the
+//                  server forgot what it dropped: the client drops all its tiles of the level first. Cells
+//                  are 2^cell size bits blocks on a side, rows of x at increasing z; a tile's first cell is at
+//                  block (tile x, tile z) * tile width. A cell holds player-seconds spent in it as of tick,
+//                  peak * (u8 / 255)^2 (the square root keeps rarely visited cells visible), decaying by half
+//                  every half-life; tiles not sent again decay the same way on the client. Ask again with
+//                  the version given here.
+//
+// An advancement set holds indices into the last dictionary received, in one of two forms, whichever is
+// smaller:
+//   u8 0, var-int byte count, bitmap (index i is bit i % 8 of byte i / 8)
+//   u8 1, var-int count, count * var-int gap (index minus previous index minus 1; the first gap is the index)
+// A player with a handful of advancements costs a few bytes, a completionist about one bit per advancement.
+//
+// Connecting: ?protocol=2 selects this format and ?protocol=1 the original name-keyed messages (see
+// LegacyCodec); without it a client gets the configured default. A protocol 2 client that lost its connection adds
+// ?resume=<epoch>:<sequence> to be sent only what it missed, see above. A client that offers permessage-deflate
+// gets messages of at least compression_min_bytes compressed; the server never keeps context between messages.
+// With recording on, ?playback&from=<ms>&to=<ms>&speed=<x> (all optional) plays the recording instead of the
+// live stream (see StreamPlayer); such a connection can send {"type":"seek","time":ms} and
+// {"type":"speed","speed":x}.
+// Protocol 2 clients make requests with text messages (see StreamEndpoint). A request that cannot be served is
+// answered with {"type":"error","message":...}, any other with the reply named here:
+//   {"type":"subscribe",...}                 narrows the stream, see Subscription; {"type":"subscribed"}
+//                                            comes before the new stream
+//   {"type":"history","players":[names],"minutes":N}
+//                                            HISTORY (both keys optional)
+//   {"type":"heatmap","dimension":"minecraft:overworld","level":0,"since":V,"box":{...}}
+//                                            HEATMAP (all but dimension optional; box as in Subscription)
+//   {"type":"schema"}                        SCHEMA
+//   {"type":"datagrams","port":N}            updates also as UDP datagrams to that port (see DatagramCodec),
+//                                            answered with {"type":"datagrams","port":N}; port 0 stops them
+public final class MessageCodec {
+
+    public static final int PROTOCOL_VERSION = 2;
+
+    // --- Message Type Constants ---
+    public static final byte MSG_TYPE_JOIN = 0x01;
+    public static final byte MSG_TYPE_LEAVE = 0x02;
+    public static final byte MSG_TYPE_BATCH_UPDATE = 0x05;
+    public static final byte MSG_TYPE_DELTA_BATCH = 0x06;
+    public static final byte MSG_TYPE_ADVANCEMENT_DICTIONARY = 0x07;
+    public static final byte MSG_TYPE_ADVANCEMENT_SET = 0x08;
+    public static final byte MSG_TYPE_ADVANCEMENT_BATCH = 0x09;
+    public static final byte MSG_TYPE_HELLO = 0x0A;
+    public static final byte MSG_TYPE_SYNC = 0x0B;
+    public static final byte MSG_TYPE_HISTORY = 0x0C;
+    public static final byte MSG_TYPE_SCHEMA = 0x0D;
+    public static final byte MSG_TYPE_HEATMAP = 0x0E;
+
+    public static final int SEQUENCE_SIZE = 4;
+    public static final byte HELLO_FLAG_RESUMED = 0x01;
+    public static final byte HELLO_FLAG_PLAYBACK = 0x02;
+    public static final byte HEATMAP_FLAG_MORE = 0x01;
+    public static final byte HEATMAP_FLAG_RESET = 0x02;
+
+    // --- Advancement set forms ---
+    public static final byte ADVANCEMENT_SET_BITMAP = 0;
+    public static final byte ADVANCEMENT_SET_GAPS = 1;
+
+    // --- Change Mask Bits (for BATCH_UPDATE entries) ---
+    public static final byte MASK_COORDS = 0x01;
+    public static final byte MASK_HEALTH = 0x02;
+    public static final byte MASK_XP = 0x04;
+    public static final byte MASK_ABSOLUTE = 0x08; // DELTA_BATCH only
+    public static final byte MASK_ALL_FIELDS = MASK_COORDS | MASK_HEALTH | MASK_XP;
+
+    public static final byte DELTA_FLAG_KEYFRAME = 0x01;
+    public static final int HEALTH_SCALE = 16;
+
+    private MessageCodec() {
+    }
+
+    // --- Sequence number (in front of every message) ---
+
+    public static void writeSequence(ByteBuffer buffer, long sequence) {
+        buffer.putInt((int) sequence);
+    }
+
+    // --- HELLO ---
+
+    public static int helloSize() {
+        return 1 // Type
+                + 4 // Epoch
+                + 1; // Flags
+    }
+
+    public static void writeHello(ByteBuffer buffer, int epoch, byte flags) {
+        buffer.put(MSG_TYPE_HELLO);
+        buffer.putInt(epoch);
+        buffer.put(flags);
+    }
+
+    // --- SYNC ---
+
+    public static int syncSize() {
+        return 1 // Type
+                + 4; // Sequence
+    }
+
+    public static void writeSync(ByteBuffer buffer, long sequence) {
+        buffer.put(MSG_TYPE_SYNC);
+        buffer.putInt((int) sequence);
+    }
+
+    // --- HISTORY ---
+
+    // Header only; add historyEntrySize for every player
+    public static int historySize(long tick, int count) {
+        return 1 // Type
+                + VarInts.size(tick)
+                + 8 // Time
+                + 1 // Position precision bits
+                + VarInts.size(count);
+    }
+
+    public static void writeHistory(ByteBuffer buffer, long tick, long time, int count) {
+        buffer.put(MSG_TYPE_HISTORY);
+        VarInts.write(buffer, tick);
+        buffer.putLong(time);
+        buffer.put((byte) TrajectoryChunk.POSITION_BITS);
+        VarInts.write(buffer, count);
+    }
+
+    static int historyEntrySize(List<TrajectoryChunk> chunks) {
+        int size = 2 + VarInts.size(chunks.size()); // ID, chunk count
+        for (TrajectoryChunk chunk : chunks) {
+            size += VarInts.size(chunk.count) + VarInts.size(chunk.length) + chunk.length;
+        }
+        return size;
+    }
+
+    static void writeHistoryEntry(ByteBuffer buffer, PlayerData data, List<TrajectoryChunk> chunks) {
+        buffer.putShort((short) data.sessionId);
+        VarInts.write(buffer, chunks.size());
+        for (TrajectoryChunk chunk : chunks) {
+            VarInts.write(buffer, chunk.count);
+            VarInts.write(buffer, chunk.length);
+            buffer.put(chunk.data, 0, chunk.length);
+        }
+    }
+
+    // --- HEATMAP ---
+
+    // Header and removed tiles; add heatmapTileSize for every tile
+    static int heatmapSize(long tick, long version, List<HeatmapStore.Removed> removed, int count) {
+        int size = VarInts.size(removed.size());
+        for (HeatmapStore.Removed tile : removed) {
+            size += VarInts.signedSize(tile.tileX) + VarInts.signedSize(tile.tileZ);
+        }
+        return size
+                + 1 // Type
+                + VarInts.size(tick)
+                + VarInts.size(version)
+                + 1 // Flags
+                + 1 // Level
+                + 1 // Cell size bits
+                + 1 // Tile size bits
+                + 4 // Half-life
+                + VarInts.size(count);
+    }
+
+    static void writeHeatmap(ByteBuffer buffer, long tick, long version, byte flags, int level, int cellShift,
+                             double halfLifeSeconds, List<HeatmapStore.Removed> removed, int count) {
+        buffer.put(MSG_TYPE_HEATMAP);
+        VarInts.write(buffer, tick);
+        VarInts.write(buffer, version);
+        buffer.put(flags);
+        buffer.put((byte) level);
+        buffer.put((byte) cellShift);
+        buffer.put((byte) HeatmapStore.TILE_SHIFT);
+        buffer.putFloat((float) halfLifeSeconds);
+        VarInts.write(buffer, removed.size());
+        for (HeatmapStore.Removed tile : removed) {
+            VarInts.writeSigned(buffer, tile.tileX);
+            VarInts.writeSigned(buffer, tile.tileZ);
+        }
+        VarInts.write(buffer, count);
+    }
+
+    static int heatmapTileSize(HeatmapStore.Tile tile) {
+        return VarInts.signedSize(tile.tileX)
+                + VarInts.signedSize(tile.tileZ)
+                + 4 // Peak
+                + HeatmapStore.TILE_CELLS;
+    }
+
+    // decay: what stored values are multiplied by to get player-seconds now, see HeatmapStore.decay
+    static void writeHeatmapTile(ByteBuffer buffer, HeatmapStore.Tile tile, double decay) {
+        float[] cells = tile.cells;
+        float max = 0;
+        for (float cell : cells) {
+            max = Math.max(max, cell);
+        }
+        VarInts.writeSigned(buffer, tile.tileX);
+        VarInts.writeSigned(buffer, tile.tileZ);
+        buffer.putFloat((float) (max * decay));
+        for (float cell : cells) {
+            buffer.put(max > 0 ? (byte) Math.round(Math.sqrt(cell / max) * 255) : 0);
+        }
+    }
+
+    // --- SCHEMA ---
+
+    // dimensions: names by index
+    public static int schemaSize(String[] dimensions) {
+        int size = 1 // Type
+                + VarInts.size(PlayerField.ALL.length);
+        for (PlayerField field : PlayerField.ALL) {
+            size += VarInts.size(field.bit)
+                    + 1 + field.nameBytes.length // Name
+                    + 1 // Flags
+                    + 1 // Components
+                    + 1 + 1 // Encodings
+                    + 4; // Scale
+            String[] values = field == PlayerField.DIMENSION ? dimensions : field.valueNames;
+            int count = values != null ? values.length : 0;
+            size += VarInts.size(count);
+            for (int i = 0; i < count; i++) {
+                size += 1 + values[i].getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return size;
+    }
+
+    // positionScale: DELTA_BATCH units per block
+    public static void writeSchema(ByteBuffer buffer, double positionScale, String[] dimensions) {
+        buffer.put(MSG_TYPE_SCHEMA);
+        VarInts.write(buffer, PlayerField.ALL.length);
+        for (PlayerField field : PlayerField.ALL) {
+            VarInts.write(buffer, field.bit);
+            buffer.put((byte) field.nameBytes.length);
+            buffer.put(field.nameBytes);
+            buffer.put(field.flags);
+            buffer.put((byte) field.components);
+            buffer.put(field.batchEncoding);
+            buffer.put(field.encoding);
+            buffer.putFloat(field.scale != 0 ? field.scale : (float) positionScale);
+            String[] values = field == PlayerField.DIMENSION ? dimensions : field.valueNames;
+            int count = values != null ? values.length : 0;
+            VarInts.write(buffer, count);
+            for (int i = 0; i < count; i++) {
+                byte[] name = values[i].getBytes(StandardCharsets.UTF_8);
+                buffer.put((byte) name.length);
+                buffer.put(name);
+            }
+        }
+    }
+
+    // --- JOIN ---
+
+    // advancements: the player's encoded advancement set, see encodeAdvancementSet
+    public static int joinSize(PlayerData data, byte[] advancements) {
+        return 1 // Type
+                + 2 // Session ID
+                + 1 + data.nameBytes.length // Name
+                + 8 + 8 + 8 // Coords
+                + 4 // Health
+                + 4 // XP
+                + advancements.length; // Advancement set
+    }
+
+    public static void writeJoin(ByteBuffer buffer, PlayerData data, byte[] advancements) {
+        buffer.put(MSG_TYPE_JOIN);
+        buffer.putShort((short) data.sessionId);
+        buffer.put((byte) data.nameBytes.length);
+        buffer.put(data.nameBytes);
+        buffer.putDouble(data.x);
+        buffer.putDouble(data.y);
+        buffer.putDouble(data.z);
+        buffer.putFloat(data.health);
+        buffer.putInt(data.xp);
+        buffer.put(advancements);
+    }
+
+    // --- LEAVE ---
+
+    public static int leaveSize() {
+        return 1 // Type
+                + 2; // Session ID
+    }
+
+    public static void writeLeave(ByteBuffer buffer, PlayerData data) {
+        buffer.put(MSG_TYPE_LEAVE);
+        buffer.putShort((short) data.sessionId);
+    }
+
+    // --- ADVANCEMENT_DICTIONARY ---
+
+    public static int advancementDictionarySize(AdvancementDictionary dictionary) {
+        int size = 1 // Type
+                + VarInts.size(dictionary.size()); // Count
+        for (int i = 0; i < dictionary.size(); i++) {
+            int length = dictionary.idBytes(i).length;
+            size += VarInts.size(length) + length;
+        }
+        return size;
+    }
+
+    public static void writeAdvancementDictionary(ByteBuffer buffer, AdvancementDictionary dictionary) {
+        buffer.put(MSG_TYPE_ADVANCEMENT_DICTIONARY);
+        VarInts.write(buffer, dictionary.size());
+        for (int i = 0; i < dictionary.size(); i++) {
+            byte[] id = dictionary.idBytes(i);
+            VarInts.write(buffer, id.length);
+            buffer.put(id);
+        }
+    }
+
+    // --- ADVANCEMENT_SET ---
+
+    public static int advancementSetSize(byte[] advancements) {
+        return 1 // Type
+                + 2 // Session ID
+                + advancements.length; // Advancement set
+    }
+
+    public static void writeAdvancementSet(ByteBuffer buffer, PlayerData data, byte[] advancements) {
+        buffer.put(MSG_TYPE_ADVANCEMENT_SET);
+        buffer.putShort((short) data.sessionId);
+        buffer.put(advancements);
+    }
+
+    // --- ADVANCEMENT_BATCH ---
+
+    public static int advancementBatchSize(AdvancementBatch batch) {
+        int size = 1 // Type
+                + VarInts.size(batch.count); // Count
+        for (int i = 0; i < batch.count; i++) {
+            size += 2 + VarInts.size(advancementChange(batch, i));
+        }
+        return size;
+    }
+
+    public static void writeAdvancementBatch(ByteBuffer buffer, AdvancementBatch batch) {
+        buffer.put(MSG_TYPE_ADVANCEMENT_BATCH);
+        VarInts.write(buffer, batch.count);
+        for (int i = 0; i < batch.count; i++) {
+            buffer.putShort((short) batch.players[i].sessionId);
+            VarInts.write(buffer, advancementChange(batch, i));
+        }
+    }
+
+    private static int advancementChange(AdvancementBatch batch, int i) {
+        return batch.advancements[i] << 1 | (batch.granted[i] ? 0 : 1);
+    }
+
+    // Encoded once per change of the player's set and cached by PlayerData
+    public static byte[] encodeAdvancementSet(BitSet completed) {
+        byte[] bitmap = completed.toByteArray(); // little-endian, trailing zero bytes dropped
+        int bitmapSize = 1 + VarInts.size(bitmap.length) + bitmap.length;
+        int count = 0;
+        int gapsSize = 0;
+        int previous = -1;
+        for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+            gapsSize += VarInts.size(i - previous - 1);
+            previous = i;
+            count++;
+        }
+        gapsSize += 1 + VarInts.size(count);
+
+        ByteBuffer buffer;
+        if (bitmapSize <= gapsSize) {
+            buffer = ByteBuffer.allocate(bitmapSize);
+            buffer.put(ADVANCEMENT_SET_BITMAP);
+            VarInts.write(buffer, bitmap.length);
+            buffer.put(bitmap);
+        } else {
+            buffer = ByteBuffer.allocate(gapsSize);
+            buffer.put(ADVANCEMENT_SET_GAPS);
+            VarInts.write(buffer, count);
+            previous = -1;
+            for (int i = completed.nextSetBit(0); i >= 0; i = completed.nextSetBit(i + 1)) {
+                VarInts.write(buffer, i - previous - 1);
+                previous = i;
+            }
+        }
+        return buffer.array();
+    }
+
+    // --- BATCH_UPDATE ---
+
+    // Entry without its length prefix; changeMask without MASK_ABSOLUTE
+    public static int updateEntrySize(PlayerData data, int changeMask) {
+        int size = 2 // Session ID
+                + VarInts.size(changeMask); // Mask
+        if ((changeMask & MASK_COORDS) != 0) size += 24; // 3 * double
+        if ((changeMask & MASK_HEALTH) != 0) size += 4;  // float
+        if ((changeMask & MASK_XP) != 0) size += 4;  // int
+        if ((changeMask & PlayerField.EXTRA_MASK) != 0) size += PlayerField.extraSize(changeMask, data.extra);
+        return size;
+    }
+
+    public static int batchUpdateSize(ChangeSet changes) {
+        int capacity = 1 // Type
+                + 2; // Entry count
+        for (int i = 0; i < changes.count; i++) {
+            // Length prefix + entry
+            capacity += 1 + updateEntrySize(changes.players[i], changes.masks[i] & PlayerField.FIELD_MASK);
+        }
+        return capacity;
+    }
+
+    // Values are taken from the PlayerData objects, which the caller has already updated.
+    public static void writeBatchUpdate(ByteBuffer buffer, ChangeSet changes) {
+        buffer.put(MSG_TYPE_BATCH_UPDATE);
+        buffer.putShort((short) changes.count);
+        for (int i = 0; i < changes.count; i++) {
+            PlayerData data = changes.players[i];
+            int changeMask = changes.masks[i] & PlayerField.FIELD_MASK;
+            buffer.put((byte) updateEntrySize(data, changeMask));
+            buffer.putShort((short) data.sessionId);
+            VarInts.write(buffer, changeMask);
+            if ((changeMask & MASK_COORDS) != 0) {
+                buffer.putDouble(data.x);
+                buffer.putDouble(data.y);
+                buffer.putDouble(data.z);
+            }
+            if ((changeMask & MASK_HEALTH) != 0) {
+                buffer.putFloat(data.health);
+            }
+            if ((changeMask & MASK_XP) != 0) {
+                buffer.putInt(data.xp);
+            }
+            if ((changeMask & PlayerField.EXTRA_MASK) != 0) {
+                PlayerField.writeExtra(buffer, changeMask, data.extra);
+            }
+        }
+    }
+
+    // --- DELTA_BATCH ---
+
+    // Entry without its length prefix
+    public static int deltaEntrySize(ChangeSet changes, int i) {
+        int changeMask = changes.masks[i];
+        int size = 2 // Session ID
+                + VarInts.size(changeMask); // Mask
+        if ((changeMask & MASK_COORDS) != 0) {
+            size += VarInts.signedSize(changes.dx[i])
+                    + VarInts.signedSize(changes.dy[i])
+                    + VarInts.signedSize(changes.dz[i]);
+        }
+        if ((changeMask & MASK_HEALTH) != 0) size += VarInts.signedSize(changes.dHealth[i]);
+        if ((changeMask & MASK_XP) != 0) size += VarInts.signedSize(changes.dXp[i]);
+        if ((changeMask & PlayerField.EXTRA_MASK) != 0) size += PlayerField.extraSize(changeMask, changes.players[i].extra);
+        return size;
+    }
+
+    public static int deltaBatchSize(ChangeSet changes) {
+        int capacity = 1 // Type
+                + 1 // Precision bits
+                + 1 // Flags
+                + 2; // Entry count
+        for (int i = 0; i < changes.count; i++) {
+            capacity += 1 + deltaEntrySize(changes, i); // Length prefix + entry
+        }
+        return capacity;
+    }
+
+    public static void writeDeltaBatch(ByteBuffer buffer, ChangeSet changes, int precisionBits) {
+        boolean keyframe = true;
+        for (int i = 0; i < changes.count && keyframe; i++) {
+            keyframe = (changes.masks[i] & MASK_ABSOLUTE) != 0;
+        }
+        buffer.put(MSG_TYPE_DELTA_BATCH);
+        buffer.put((byte) precisionBits);
+        buffer.put(keyframe ? DELTA_FLAG_KEYFRAME : 0);
+        buffer.putShort((short) changes.count);
+        for (int i = 0; i < changes.count; i++) {
+            int changeMask = changes.masks[i];
+            buffer.put((byte) deltaEntrySize(changes, i));
+            buffer.putShort((short) changes.players[i].sessionId);
+            VarInts.write(buffer, changeMask);
+            if ((changeMask & MASK_COORDS) != 0) {
+                VarInts.writeSigned(buffer, changes.dx[i]);
+                VarInts.writeSigned(buffer, changes.dy[i]);
+                VarInts.writeSigned(buffer, changes.dz[i]);
+            }
+            if ((changeMask & MASK_HEALTH) != 0) VarInts.writeSigned(buffer, changes.dHealth[i]);
+            if ((changeMask & MASK_XP) != 0) VarInts.writeSigned(buffer, changes.dXp[i]);
+            if ((changeMask & PlayerField.EXTRA_MASK) != 0) {
+                PlayerField.writeExtra(buffer, changeMask, changes.players[i].extra);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package pl.matip.liveplayerdata.stream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves PipelineStats as Prometheus text on http://<address>:<port>/metrics. Bound to loopback by default;
+// there is no authentication, so only bind it elsewhere behind something that has some.
+public final class MetricsHttpServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LivePlayerData-Metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MetricsHttpServer(InetSocketAddress address, PipelineStats stats) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                // Replies without a body (HEAD, 405) are finished before the handler returns, and the server
+                // closes the connection then unless the request was read to the end
+                exchange.getRequestBody().close();
+                if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                respond(exchange, stats.prometheusText().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        exchange.sendResponseHeaders(200, head ? -1 : body.length);
+        if (!head) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+}
@@ -0,0 +1,57 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+
+// WebSocket front end of the mod, on Java-WebSocket's server. What connections can ask for (protocol choice,
+// resume, subscriptions, playback, history) is handled by StreamEndpoint, so opening a connection costs the
+// Minecraft server thread nothing.
+public class MyWebSocketServer extends WebSocketServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MyWebSocketServer.class);
+
+    private final StreamEndpoint endpoint;
+
+    public MyWebSocketServer(InetSocketAddress address, BroadcastPipeline pipeline, StreamPlayer player,
+                             int defaultProtocol, StreamSettings settings) {
+        super(address, StreamEndpoint.drafts(settings));
+        this.endpoint = new StreamEndpoint(pipeline, player, defaultProtocol);
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        endpoint.open(conn, handshake.getResourceDescriptor());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        endpoint.close(conn);
+        LOGGER.debug("WebSocket connection closed: {} Code: {} Reason: {}", conn.getRemoteSocketAddress(), code, reason);
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String message) {
+        endpoint.message(conn, message);
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        LOGGER.warn("WebSocket error for connection " + (conn != null ? conn.getRemoteSocketAddress() : "UNKNOWN"), ex);
+        if (conn != null) {
+            // Ensure client is removed if an error occurs that might not trigger onClose
+            endpoint.close(conn);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        LOGGER.debug("WebSocket server internal start successful.");
+        // Set TCP_NODELAY for lower latency, often useful for real-time data
+        setTcpNoDelay(true);
+    }
+}
@@ -0,0 +1,33 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.BitSet;
+import java.util.List;
+
+// Discrete events raised on the server thread and carried to the encoder thread inside a TickSnapshot.
+// They are rare compared to position samples, so a small object per event is fine.
+public sealed interface PipelineEvent {
+
+    record Join(long tick, int sessionId, String name, int dimension, double x, double y, double z, float health,
+                int xp, BitSet advancements) implements PipelineEvent {
+    }
+
+    record Leave(int sessionId) implements PipelineEvent {
+    }
+
+    // Advancements that became done (granted[i]) or stopped being done, in order, batched per tick.
+    // Indices refer to the last AdvancementDictionary posted.
+    record AdvancementChanges(int[] sessionIds, int[] advancements, boolean[] granted) implements PipelineEvent {
+    }
+
+    // New advancement numbering, posted at start-up and after data pack reloads; followed by an
+    // AdvancementSet for every online player
+    record AdvancementDictionary(List<String> ids) implements PipelineEvent {
+    }
+
+    record AdvancementSet(int sessionId, BitSet advancements) implements PipelineEvent {
+    }
+
+    // A dimension got its small index (used in snapshots) the first time a player was seen in it
+    record Dimension(int index, String name) implements PipelineEvent {
+    }
+}
@@ -0,0 +1,129 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters for the pipeline, cheap enough to leave on. Every counter has a single writer (the server thread
+// for tick timing, the encoder thread for everything else), so an update is a plain add published with a
+// release store; no locks, no contended atomics. Readable from any thread, see PipelineStats.
+public final class PipelineMetrics {
+
+    // Slowest tick is reported per window, so one spike does not stick forever
+    private static final int MAX_WINDOW_TICKS = 1200;
+    private static final String[] LEGACY_TYPES = {null, "join", "leave", "update", "new_achievement"};
+    private static final String[] TYPES = {null, "join", "leave", null, null, "batch_update", "delta_batch",
+            "advancement_dictionary", "advancement_set", "advancement_batch", "hello", "sync", "history", "schema", "heatmap"};
+
+    // --- Server thread ---
+    private volatile long serverTicks;
+    private volatile long serverTickNanos;
+    private volatile long maxServerTickNanos; // slowest tick of the last complete window
+    private long windowMaxNanos;
+    private int windowTicks;
+
+    // --- Encoder thread ---
+    private volatile long snapshots;
+    private volatile long encoderNanos;
+    private volatile long sendFailures;
+    private volatile long datagramsSent;
+    private volatile long datagramBytes;
+    private volatile long datagramsDropped;
+    // Index: protocol version * 256 + message type
+    private final AtomicLongArray messages = new AtomicLongArray(3 * 256);
+    private final AtomicLongArray bytes = new AtomicLongArray(3 * 256);
+
+    public void serverTick(long nanos) {
+        serverTicks++;
+        serverTickNanos += nanos;
+        if (nanos > windowMaxNanos) {
+            windowMaxNanos = nanos;
+        }
+        if (++windowTicks == MAX_WINDOW_TICKS) {
+            maxServerTickNanos = windowMaxNanos;
+            windowMaxNanos = 0;
+            windowTicks = 0;
+        }
+    }
+
+    void snapshotProcessed(long nanos) {
+        snapshots++;
+        encoderNanos += nanos;
+    }
+
+    void encoded(int protocolVersion, int type, int length) {
+        int i = protocolVersion * 256 + (type & 0xFF);
+        messages.setRelease(i, messages.getPlain(i) + 1);
+        bytes.setRelease(i, bytes.getPlain(i) + length);
+    }
+
+    void sendFailed() {
+        sendFailures++;
+    }
+
+    void datagramSent(int length) {
+        datagramsSent++;
+        datagramBytes += length;
+    }
+
+    void datagramDropped() {
+        datagramsDropped++;
+    }
+
+    // --- Readers ---
+
+    public long serverTicks() {
+        return serverTicks;
+    }
+
+    public long serverTickNanos() {
+        return serverTickNanos;
+    }
+
+    public long maxServerTickNanos() {
+        return maxServerTickNanos;
+    }
+
+    public long snapshots() {
+        return snapshots;
+    }
+
+    public long encoderNanos() {
+        return encoderNanos;
+    }
+
+    public long sendFailures() {
+        return sendFailures;
+    }
+
+    public long datagramsSent() {
+        return datagramsSent;
+    }
+
+    public long datagramBytes() {
+        return datagramBytes;
+    }
+
+    public long datagramsDropped() {
+        return datagramsDropped;
+    }
+
+    // Calls out for every message type encoded so far
+    public void forEachMessageType(MessageTypeConsumer consumer) {
+        for (int i = 256; i < messages.length(); i++) {
+            long count = messages.getAcquire(i);
+            if (count > 0) {
+                consumer.accept(i / 256, typeName(i / 256, i % 256), count, bytes.getAcquire(i));
+            }
+        }
+    }
+
+    static String typeName(int protocolVersion, int type) {
+        String[] names = protocolVersion == LegacyCodec.PROTOCOL_VERSION ? LEGACY_TYPES : TYPES;
+        String name = type < names.length ? names[type] : null;
+        return name != null ? name : String.format("0x%02x", type);
+    }
+
+    @FunctionalInterface
+    public interface MessageTypeConsumer {
+        void accept(int protocolVersion, String type, long messages, long bytes);
+    }
+}
@@ -0,0 +1,247 @@
+package pl.matip.liveplayerdata.stream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+
+// Read side of PipelineMetrics and the client sessions: as an MXBean for JMX consoles and as Prometheus text
+// for MetricsHttpServer. Nothing here runs unless someone asks, so reads may allocate.
+public final class PipelineStats implements PipelineStatsMXBean {
+
+    public static final String OBJECT_NAME = "pl.matip.liveplayerdata:type=Pipeline";
+    private static final String PREFIX = "live_player_data_";
+
+    private final BroadcastPipeline pipeline;
+    private final PipelineMetrics metrics;
+
+    public PipelineStats(BroadcastPipeline pipeline) {
+        this.pipeline = pipeline;
+        this.metrics = pipeline.metrics();
+    }
+
+    // --- JMX ---
+
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name); // Left over from an earlier start in the same JVM
+        }
+        server.registerMBean(this, name);
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            // Going away anyway
+        }
+    }
+
+    @Override
+    public long getServerTicks() {
+        return metrics.serverTicks();
+    }
+
+    @Override
+    public long getServerTickNanosTotal() {
+        return metrics.serverTickNanos();
+    }
+
+    @Override
+    public long getServerTickNanosMax() {
+        return metrics.maxServerTickNanos();
+    }
+
+    @Override
+    public long getSnapshotsProcessed() {
+        return metrics.snapshots();
+    }
+
+    @Override
+    public long getEncoderNanosTotal() {
+        return metrics.encoderNanos();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesEncoded() {
+        Map<String, Long> result = new TreeMap<>();
+        metrics.forEachMessageType((protocol, type, messages, bytes) -> result.put(protocol + "/" + type, messages));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getBytesEncoded() {
+        Map<String, Long> result = new TreeMap<>();
+        metrics.forEachMessageType((protocol, type, messages, bytes) -> result.put(protocol + "/" + type, bytes));
+        return result;
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return pipeline.clientSessions().size();
+    }
+
+    @Override
+    public int getLaggingClients() {
+        int lagging = 0;
+        for (ClientSession client : pipeline.clientSessions()) {
+            if (client.isLagging()) {
+                lagging++;
+            }
+        }
+        return lagging;
+    }
+
+    @Override
+    public long getSendFailures() {
+        return metrics.sendFailures();
+    }
+
+    @Override
+    public Map<String, Long> getClientFramesSent() {
+        return perClient(ClientSession::framesSent);
+    }
+
+    @Override
+    public Map<String, Long> getClientBytesSent() {
+        return perClient(ClientSession::bytesSent);
+    }
+
+    @Override
+    public Map<String, Long> getClientQueueDepth() {
+        return perClient(ClientSession::queueDepth);
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return compressionRatio(pipeline.compressionStats());
+    }
+
+    @Override
+    public int getDatagramReceivers() {
+        return pipeline.datagramReceivers();
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return metrics.datagramsSent();
+    }
+
+    @Override
+    public long getDatagramBytesSent() {
+        return metrics.datagramBytes();
+    }
+
+    @Override
+    public long getDatagramsDropped() {
+        return metrics.datagramsDropped();
+    }
+
+    // NaN until a message was compressed: there is no ratio yet, and 1.0 would read as "compresses nothing"
+    private static double compressionRatio(CompressionStats compression) {
+        return compression.compressedMessages() > 0 ? compression.ratio() : Double.NaN;
+    }
+
+    private Map<String, Long> perClient(ToLongFunction<ClientSession> value) {
+        Map<String, Long> result = new TreeMap<>();
+        for (ClientSession client : pipeline.clientSessions()) {
+            result.put(client.remoteAddress(), value.applyAsLong(client));
+        }
+        return result;
+    }
+
+    // --- Prometheus text format (version 0.0.4) ---
+
+    public String prometheusText() {
+        StringBuilder out = new StringBuilder(2048);
+        header(out, "server_tick_seconds", "summary", "Time spent copying player state on the server thread");
+        sample(out, "server_tick_seconds_sum", null, metrics.serverTickNanos() / 1e9);
+        sample(out, "server_tick_seconds_count", null, metrics.serverTicks());
+        header(out, "server_tick_max_seconds", "gauge", "Slowest server tick of the last 1200");
+        sample(out, "server_tick_max_seconds", null, metrics.maxServerTickNanos() / 1e9);
+        header(out, "encoder_seconds", "summary", "Time the encoder thread spent on snapshots");
+        sample(out, "encoder_seconds_sum", null, metrics.encoderNanos() / 1e9);
+        sample(out, "encoder_seconds_count", null, metrics.snapshots());
+
+        header(out, "messages_encoded_total", "counter", "Messages encoded, by protocol and type");
+        metrics.forEachMessageType((protocol, type, messages, bytes) ->
+                sample(out, "messages_encoded_total", "protocol=\"" + protocol + "\",type=\"" + type + "\"", messages));
+        header(out, "message_bytes_encoded_total", "counter", "Payload bytes encoded, by protocol and type");
+        metrics.forEachMessageType((protocol, type, messages, bytes) ->
+                sample(out, "message_bytes_encoded_total", "protocol=\"" + protocol + "\",type=\"" + type + "\"", bytes));
+
+        List<ClientSession> clients = pipeline.clientSessions();
+        header(out, "connected_clients", "gauge", "Open WebSocket stream connections");
+        sample(out, "connected_clients", null, clients.size());
+        header(out, "lagging_clients", "gauge", "Clients held back for a full outbound queue");
+        sample(out, "lagging_clients", null, getLaggingClients());
+        header(out, "send_failures_total", "counter", "Frames that could not be queued on a connection");
+        sample(out, "send_failures_total", null, metrics.sendFailures());
+        header(out, "client_frames_sent_total", "counter", "Frames queued for each client");
+        for (ClientSession client : clients) {
+            sample(out, "client_frames_sent_total", clientLabel(client), client.framesSent());
+        }
+        header(out, "client_bytes_sent_total", "counter", "Frame bytes queued for each client, after compression");
+        for (ClientSession client : clients) {
+            sample(out, "client_bytes_sent_total", clientLabel(client), client.bytesSent());
+        }
+        header(out, "client_queue_depth", "gauge", "Frames waiting in each client's outbound queue");
+        for (ClientSession client : clients) {
+            sample(out, "client_queue_depth", clientLabel(client), client.queueDepth());
+        }
+        header(out, "client_dropped_frames_total", "counter", "Update frames skipped while each client lagged");
+        for (ClientSession client : clients) {
+            sample(out, "client_dropped_frames_total", clientLabel(client), client.droppedFrames());
+        }
+
+        CompressionStats compression = pipeline.compressionStats();
+        header(out, "compressed_messages_total", "counter", "Messages sent with permessage-deflate");
+        sample(out, "compressed_messages_total", null, compression.compressedMessages());
+        header(out, "compression_ratio", "gauge", "Compressed size over original size of compressed messages");
+        sample(out, "compression_ratio", null, compressionRatio(compression));
+
+        header(out, "datagram_receivers", "gauge", "Registered UDP receivers");
+        sample(out, "datagram_receivers", null, pipeline.datagramReceivers());
+        header(out, "datagrams_sent_total", "counter", "Datagrams sent, counted once per receiver");
+        sample(out, "datagrams_sent_total", null, metrics.datagramsSent());
+        header(out, "datagram_bytes_sent_total", "counter", "Datagram payload bytes sent, counted once per receiver");
+        sample(out, "datagram_bytes_sent_total", null, metrics.datagramBytes());
+        header(out, "datagrams_dropped_total", "counter", "Datagrams not sent for a full socket buffer or an error");
+        sample(out, "datagrams_dropped_total", null, metrics.datagramsDropped());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String clientLabel(ClientSession client) {
+        String address = client.remoteAddress().replace("\\", "\\\\").replace("\"", "\\\"");
+        return "remote=\"" + address + "\",protocol=\"" + client.protocolVersion() + "\"";
+    }
+}
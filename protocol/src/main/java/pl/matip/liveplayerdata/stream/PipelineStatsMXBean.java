@@ -0,0 +1,45 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.Map;
+
+// JMX view of the pipeline, registered as pl.matip.liveplayerdata:type=Pipeline (see PipelineStats).
+// Per-type maps are keyed "protocol/type", e.g. "2/delta_batch"; per-client maps by remote address.
+public interface PipelineStatsMXBean {
+
+    long getServerTicks();
+
+    long getServerTickNanosTotal();
+
+    // Slowest tick of the last minute of ticks
+    long getServerTickNanosMax();
+
+    long getSnapshotsProcessed();
+
+    long getEncoderNanosTotal();
+
+    Map<String, Long> getMessagesEncoded();
+
+    Map<String, Long> getBytesEncoded();
+
+    int getConnectedClients();
+
+    int getLaggingClients();
+
+    long getSendFailures();
+
+    Map<String, Long> getClientFramesSent();
+
+    Map<String, Long> getClientBytesSent();
+
+    Map<String, Long> getClientQueueDepth();
+
+    double getCompressionRatio();
+
+    int getDatagramReceivers();
+
+    long getDatagramsSent();
+
+    long getDatagramBytesSent();
+
+    long getDatagramsDropped();
+}
@@ -0,0 +1,73 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Locale;
+
+// Last state sent to clients for one player. Owned by the encoder thread. Diffing works on the same values
+// in PlayerStateStore's columns, which also hold the scheduling state.
+// The UTF-8 name and the encoded advancement list are kept, so a JOIN for a new client is mostly a copy of
+// precomputed bytes; the list is rebuilt only after the player's advancements (or the dictionary) change.
+public final class PlayerData {
+    final int sessionId;
+    final String name;
+    final byte[] nameBytes;
+    final String nameLower; // for subscription player filters
+    int dimension; // index assigned on the server thread, see PipelineEvent.Dimension
+    double x, y, z;
+    float health;
+    int xp;
+    final int[] extra = new int[PlayerField.EXTRA_COUNT]; // by PlayerField.index
+    // --- Subscription state ---
+    long gridKey; // SpatialGrid cell holding this player
+
+    // Completed advancements by dictionary index
+    BitSet advancements;
+    // Encoded forms of advancements, null when stale
+    private byte[] advancementSet; // protocol 2
+    private byte[] legacyAdvancementList; // protocol 1
+
+    PlayerData(int sessionId, String name, int dimension, double x, double y, double z, float health, int xp, BitSet advancements) {
+        this.sessionId = sessionId;
+        this.name = name;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.nameLower = name.toLowerCase(Locale.ROOT);
+        this.dimension = dimension;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.health = health;
+        this.xp = xp;
+        this.advancements = advancements;
+    }
+
+    // Returns false if nothing changed
+    boolean setAdvancement(int index, boolean done) {
+        if (index < 0 || advancements.get(index) == done) return false;
+        advancements.set(index, done);
+        advancementSet = null;
+        legacyAdvancementList = null;
+        return true;
+    }
+
+    // Also call when the dictionary changed, the legacy list holds IDs from it
+    void replaceAdvancements(BitSet completed) {
+        advancements = completed;
+        advancementSet = null;
+        legacyAdvancementList = null;
+    }
+
+    byte[] advancementSet() {
+        if (advancementSet == null) {
+            advancementSet = MessageCodec.encodeAdvancementSet(advancements);
+        }
+        return advancementSet;
+    }
+
+    byte[] legacyAdvancementList(AdvancementDictionary dictionary) {
+        if (legacyAdvancementList == null) {
+            legacyAdvancementList = dictionary.encodeList(advancements);
+        }
+        return legacyAdvancementList;
+    }
+}
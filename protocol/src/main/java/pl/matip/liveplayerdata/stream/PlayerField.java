@@ -0,0 +1,151 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// The fields an update entry can carry, one bit each in the entry's var-int mask, in bit order on the wire.
+// coords, health and xp are the original fields: every client gets them, they have their own columns and
+// dead-bands (StreamSettings) and DELTA_BATCH sends them as deltas. The extra fields after them are
+// described entirely by their descriptor: a small integer read on the server thread (see
+// TickSnapshot.setExtra), a dead-band, and a fixed or var-length encoding, always absolute. They are only
+// sent to subscriptions that name them, so clients that predate them never see a mask above 0x7F.
+// Adding a field is a descriptor here plus its reader on the server thread; diffing, sizes and encoding loop
+// over the descriptors. SCHEMA (see MessageCodec) describes all of them to clients.
+public final class PlayerField {
+
+    // --- Encodings, as numbered in SCHEMA ---
+    public static final byte ENCODING_F64 = 0;
+    public static final byte ENCODING_F32 = 1;
+    public static final byte ENCODING_I32 = 2;
+    public static final byte ENCODING_U8 = 3;
+    public static final byte ENCODING_I8 = 4;
+    public static final byte ENCODING_VAR_INT = 5; // zigzag
+
+    // --- SCHEMA flags ---
+    public static final byte FLAG_DELTA = 0x01; // DELTA_BATCH sends deltas unless the entry is absolute
+
+    // Bit 3 of the mask is MessageCodec.MASK_ABSOLUTE; extra field i has bit EXTRA_SHIFT + i
+    static final int EXTRA_SHIFT = 4;
+
+    public static final PlayerField COORDS = new PlayerField(-1, MessageCodec.MASK_COORDS, "coords", 3,
+            ENCODING_F64, ENCODING_VAR_INT, FLAG_DELTA, 0, 0, 0, null);
+    public static final PlayerField HEALTH = new PlayerField(-1, MessageCodec.MASK_HEALTH, "health", 1,
+            ENCODING_F32, ENCODING_VAR_INT, FLAG_DELTA, MessageCodec.HEALTH_SCALE, 0, 0, null);
+    public static final PlayerField XP = new PlayerField(-1, MessageCodec.MASK_XP, "xp", 1,
+            ENCODING_I32, ENCODING_VAR_INT, FLAG_DELTA, 1, 0, 0, null);
+
+    // Index into PipelineEvent.Dimension's numbering; read from the dimension column, not an extra one
+    public static final PlayerField DIMENSION = extra(0, "dimension", ENCODING_VAR_INT, 1, 1, 0, null);
+    // Minecraft's byte angles: 256 steps per turn
+    public static final PlayerField YAW = extra(1, "yaw", ENCODING_U8, 256 / 360f, 2, 256, null);
+    public static final PlayerField PITCH = extra(2, "pitch", ENCODING_I8, 256 / 360f, 2, 0, null);
+    public static final PlayerField FOOD = extra(3, "food", ENCODING_U8, 1, 1, 0, null);
+    public static final PlayerField ARMOR = extra(4, "armor", ENCODING_U8, 1, 1, 0, null);
+    public static final PlayerField GAME_MODE = extra(5, "game_mode", ENCODING_U8, 1, 1, 0,
+            new String[]{"survival", "creative", "adventure", "spectator"});
+    // Milliseconds, as smoothed by the server; jitter below the dead-band is not worth an update
+    public static final PlayerField PING = extra(6, "ping", ENCODING_VAR_INT, 1, 20, 0, null);
+
+    // In bit order
+    static final PlayerField[] EXTRA = {DIMENSION, YAW, PITCH, FOOD, ARMOR, GAME_MODE, PING};
+    public static final PlayerField[] ALL = {COORDS, HEALTH, XP, DIMENSION, YAW, PITCH, FOOD, ARMOR, GAME_MODE, PING};
+
+    public static final int EXTRA_COUNT = EXTRA.length;
+    public static final int CORE_MASK = MessageCodec.MASK_ALL_FIELDS;
+    public static final int EXTRA_MASK = ((1 << EXTRA_COUNT) - 1) << EXTRA_SHIFT;
+    public static final int FIELD_MASK = CORE_MASK | EXTRA_MASK;
+
+    // Bytes of the fixed-size extra fields, by extra mask >>> EXTRA_SHIFT, so entry sizes only loop over the
+    // var-int ones
+    private static final byte[] FIXED_EXTRA_SIZE = new byte[1 << EXTRA_COUNT];
+    private static final int VAR_INT_EXTRA_MASK;
+
+    static {
+        int varInts = 0;
+        for (PlayerField field : EXTRA) {
+            if (field.encoding == ENCODING_VAR_INT) varInts |= field.bit;
+        }
+        VAR_INT_EXTRA_MASK = varInts;
+        for (int m = 0; m < FIXED_EXTRA_SIZE.length; m++) {
+            int size = 0;
+            for (PlayerField field : EXTRA) {
+                if ((m << EXTRA_SHIFT & field.bit) != 0 && field.encoding != ENCODING_VAR_INT) size++;
+            }
+            FIXED_EXTRA_SIZE[m] = (byte) size;
+        }
+    }
+
+    public final int index; // into the extra columns, -1 for the core fields
+    public final int bit;
+    public final String name;
+    final byte[] nameBytes;
+    final int components;
+    final byte batchEncoding; // in BATCH_UPDATE
+    final byte encoding; // in DELTA_BATCH; for extra fields in both
+    final byte flags;
+    // Encoded value / scale = real value, for the integer encodings; 0 = the position precision
+    final float scale;
+    // Smallest change that is sent (extra fields; the core ones use StreamSettings)
+    final int deadband;
+    // > 0: values wrap around at this modulus, so the shorter way round is the change
+    final int wrap;
+    final String[] valueNames; // names of the values of an enumeration, or null
+
+    private PlayerField(int index, int bit, String name, int components, byte batchEncoding, byte encoding,
+                        byte flags, float scale, int deadband, int wrap, String[] valueNames) {
+        this.index = index;
+        this.bit = bit;
+        this.name = name;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.components = components;
+        this.batchEncoding = batchEncoding;
+        this.encoding = encoding;
+        this.flags = flags;
+        this.scale = scale;
+        this.deadband = deadband;
+        this.wrap = wrap;
+        this.valueNames = valueNames;
+    }
+
+    private static PlayerField extra(int index, String name, byte encoding, float scale, int deadband, int wrap,
+                                     String[] valueNames) {
+        return new PlayerField(index, 1 << (EXTRA_SHIFT + index), name, 1, encoding, encoding, (byte) 0,
+                scale, deadband, wrap, valueNames);
+    }
+
+    // null if there is no such field
+    public static PlayerField byName(String name) {
+        for (PlayerField field : ALL) {
+            if (field.name.equals(name)) return field;
+        }
+        return null;
+    }
+
+    // Size of a change from 'from' to 'to', the shorter way round for wrapping fields
+    int change(int from, int to) {
+        int change = Math.abs(to - from);
+        return wrap > 0 ? Math.min(change, wrap - change) : change;
+    }
+
+    // --- Encoding of the extra fields of an entry; values indexed like PlayerData.extra ---
+
+    static int extraSize(int mask, int[] values) {
+        int size = FIXED_EXTRA_SIZE[(mask & EXTRA_MASK) >>> EXTRA_SHIFT];
+        for (int m = mask & VAR_INT_EXTRA_MASK; m != 0; m &= m - 1) {
+            size += VarInts.signedSize(values[Integer.numberOfTrailingZeros(m) - EXTRA_SHIFT]);
+        }
+        return size;
+    }
+
+    static void writeExtra(ByteBuffer buffer, int mask, int[] values) {
+        for (int m = (mask & EXTRA_MASK) >>> EXTRA_SHIFT; m != 0; m &= m - 1) {
+            int i = Integer.numberOfTrailingZeros(m);
+            int value = values[i];
+            if (EXTRA[i].encoding == ENCODING_VAR_INT) {
+                VarInts.writeSigned(buffer, value);
+            } else {
+                buffer.put((byte) value); // U8 and I8 alike
+            }
+        }
+    }
+}
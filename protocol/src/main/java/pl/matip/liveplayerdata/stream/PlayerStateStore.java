@@ -0,0 +1,132 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.Arrays;
+
+// What diffing reads and writes, in primitive columns indexed by slot (= session ID, so slots are reused as IDs
+// are). A sample is diffed by walking its columns next to these, without touching a PlayerData object per
+// player; PlayerData keeps the copy of the sent values that the encoders, subscriptions and history read,
+// refreshed only for players that changed (see SnapshotDiffer). Each slot is written only while its own
+// player is diffed, so disjoint ranges of a sample can be diffed on different threads.
+final class PlayerStateStore {
+
+    boolean[] present;
+    // --- Last values sent, the diff baseline ---
+    int[] dimension;
+    double[] x, y, z;
+    float[] health;
+    int[] xp;
+    int[] extra; // PlayerField.EXTRA_COUNT per slot
+    int[] extraKnown; // extra fields whose baseline has been sent since they were last wanted
+    // --- Scheduling (see UpdateScheduler) ---
+    long[] sampleTick;
+    double[] sampleX, sampleY, sampleZ;
+    float[] sampleHealth;
+    double[] speed; // blocks per tick, smoothed
+    long[] lastActiveTick;
+    long[] lastHealthChangeTick;
+    long[] lastCheckTick;
+    long[] lastKeyframeTick;
+    // --- Diff output, valid for the slots of the last diffed sample ---
+    int[] dirty; // change mask, 0 = nothing to send
+    // Quantized deltas, or absolute quantized values with MASK_ABSOLUTE (delta encoding only)
+    long[] dx, dy, dz;
+    int[] dHealth, dXp;
+
+    PlayerStateStore(int capacity) {
+        allocate(capacity);
+    }
+
+    int capacity() {
+        return present.length;
+    }
+
+    // Baseline from the player's JOIN values; scheduling state is set by UpdateScheduler.onJoin
+    void join(PlayerData data) {
+        int slot = data.sessionId;
+        if (slot >= present.length) {
+            grow(Math.max(slot + 1, present.length * 2));
+        }
+        present[slot] = true;
+        dimension[slot] = data.dimension;
+        x[slot] = data.x;
+        y[slot] = data.y;
+        z[slot] = data.z;
+        health[slot] = data.health;
+        xp[slot] = data.xp;
+        extraKnown[slot] = 0;
+        dirty[slot] = 0;
+    }
+
+    void leave(int slot) {
+        if (slot >= 0 && slot < present.length) {
+            present[slot] = false;
+        }
+    }
+
+    boolean isPresent(int slot) {
+        return slot >= 0 && slot < present.length && present[slot];
+    }
+
+    // The baseline of these extra fields went stale while nobody wanted them: send them again
+    void forget(int fields) {
+        for (int slot = 0; slot < present.length; slot++) {
+            extraKnown[slot] &= ~fields;
+        }
+    }
+
+    private void allocate(int capacity) {
+        present = new boolean[capacity];
+        dimension = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        health = new float[capacity];
+        xp = new int[capacity];
+        extra = new int[capacity * PlayerField.EXTRA_COUNT];
+        extraKnown = new int[capacity];
+        sampleTick = new long[capacity];
+        sampleX = new double[capacity];
+        sampleY = new double[capacity];
+        sampleZ = new double[capacity];
+        sampleHealth = new float[capacity];
+        speed = new double[capacity];
+        lastActiveTick = new long[capacity];
+        lastHealthChangeTick = new long[capacity];
+        lastCheckTick = new long[capacity];
+        lastKeyframeTick = new long[capacity];
+        dirty = new int[capacity];
+        dx = new long[capacity];
+        dy = new long[capacity];
+        dz = new long[capacity];
+        dHealth = new int[capacity];
+        dXp = new int[capacity];
+    }
+
+    private void grow(int capacity) {
+        present = Arrays.copyOf(present, capacity);
+        dimension = Arrays.copyOf(dimension, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        health = Arrays.copyOf(health, capacity);
+        xp = Arrays.copyOf(xp, capacity);
+        extra = Arrays.copyOf(extra, capacity * PlayerField.EXTRA_COUNT);
+        extraKnown = Arrays.copyOf(extraKnown, capacity);
+        sampleTick = Arrays.copyOf(sampleTick, capacity);
+        sampleX = Arrays.copyOf(sampleX, capacity);
+        sampleY = Arrays.copyOf(sampleY, capacity);
+        sampleZ = Arrays.copyOf(sampleZ, capacity);
+        sampleHealth = Arrays.copyOf(sampleHealth, capacity);
+        speed = Arrays.copyOf(speed, capacity);
+        lastActiveTick = Arrays.copyOf(lastActiveTick, capacity);
+        lastHealthChangeTick = Arrays.copyOf(lastHealthChangeTick, capacity);
+        lastCheckTick = Arrays.copyOf(lastCheckTick, capacity);
+        lastKeyframeTick = Arrays.copyOf(lastKeyframeTick, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        dx = Arrays.copyOf(dx, capacity);
+        dy = Arrays.copyOf(dy, capacity);
+        dz = Arrays.copyOf(dz, capacity);
+        dHealth = Arrays.copyOf(dHealth, capacity);
+        dXp = Arrays.copyOf(dXp, capacity);
+    }
+}
@@ -0,0 +1,130 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A complete server-to-client WebSocket frame (RFC 6455 header + binary payload) in a pooled direct buffer.
+// The payload is encoded once after a reserved header gap; finish() writes the header right in front of it.
+// Every recipient gets its own read-only view of the same memory. Views are created once per frame object
+// and reused, so a recycled frame sends to the same number of clients without allocating.
+// Connections that negotiated permessage-deflate get a compressed copy instead, made once per frame by
+// FrameBroadcaster and kept alongside it until both are drained.
+final class PooledFrame {
+
+    // FIN + opcode, then 7-bit length, or 126 + u16, or 127 + u64. Server frames are never masked.
+    static final int MAX_HEADER = 10;
+    private static final byte FIN_BINARY = (byte) 0x82;
+    private static final byte FIN_RSV1_BINARY = (byte) 0xC2; // RSV1: compressed message (RFC 7692)
+
+    final ByteBuffer buffer;
+    final int sizeClass;
+    private int frameStart;
+    private int frameEnd;
+    boolean compressed;
+    int protocolVersion; // of the message inside, for PipelineMetrics
+    // permessage-deflate copy of this frame: null until tried, or this frame itself if not worth compressing
+    PooledFrame deflated;
+
+    private ByteBuffer[] views = new ByteBuffer[4];
+    private WebSocket[] owners = new WebSocket[4];
+    private int viewCount;
+    private final ByteBuffer payloadView;
+
+    PooledFrame(ByteBuffer buffer, int sizeClass) {
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.payloadView = buffer.asReadOnlyBuffer();
+    }
+
+    // Buffer positioned at the start of the payload area
+    ByteBuffer beginPayload() {
+        buffer.clear();
+        buffer.position(MAX_HEADER);
+        viewCount = 0;
+        compressed = false;
+        deflated = null;
+        return buffer;
+    }
+
+    void finish() {
+        int end = buffer.position();
+        long length = end - MAX_HEADER;
+        int start;
+        if (length <= 125) {
+            start = MAX_HEADER - 2;
+            buffer.put(start + 1, (byte) length);
+        } else if (length <= 0xFFFF) {
+            start = MAX_HEADER - 4;
+            buffer.put(start + 1, (byte) 126);
+            buffer.putShort(start + 2, (short) length);
+        } else {
+            start = 0;
+            buffer.put(1, (byte) 127);
+            buffer.putLong(2, length);
+        }
+        buffer.put(start, compressed ? FIN_RSV1_BINARY : FIN_BINARY);
+        frameStart = start;
+        frameEnd = end;
+    }
+
+    int payloadLength() {
+        return frameEnd - MAX_HEADER;
+    }
+
+    int frameLength() {
+        return frameEnd - frameStart;
+    }
+
+    // Protocol 2 messages start after their sequence number
+    int messageType() {
+        return buffer.get(protocolVersion == LegacyCodec.PROTOCOL_VERSION ? MAX_HEADER : MAX_HEADER + MessageCodec.SEQUENCE_SIZE);
+    }
+
+    // Read-only view of the payload, for connections that need the library to frame the data itself
+    ByteBuffer payload() {
+        payloadView.clear();
+        payloadView.limit(frameEnd);
+        payloadView.position(MAX_HEADER);
+        return payloadView;
+    }
+
+    // Read-only view of the whole frame, tracked until the connection has written it out
+    ByteBuffer viewFor(WebSocket owner) {
+        if (viewCount == views.length) {
+            views = Arrays.copyOf(views, viewCount * 2);
+            owners = Arrays.copyOf(owners, viewCount * 2);
+        }
+        ByteBuffer view = views[viewCount];
+        if (view == null) {
+            view = buffer.asReadOnlyBuffer();
+            views[viewCount] = view;
+        }
+        view.clear();
+        view.limit(frameEnd);
+        view.position(frameStart);
+        owners[viewCount] = owner;
+        viewCount++;
+        return view;
+    }
+
+    boolean hasViews() {
+        return viewCount > 0 || (deflated != null && deflated != this && deflated.hasViews());
+    }
+
+    // True once every connection has either written its view or gone away
+    boolean isDrained() {
+        for (int i = 0; i < viewCount; i++) {
+            if (views[i].hasRemaining() && !owners[i].isClosed()) {
+                return false;
+            }
+        }
+        return deflated == null || deflated == this || deflated.isDrained();
+    }
+
+    void clearOwners() {
+        Arrays.fill(owners, 0, viewCount, null);
+        viewCount = 0;
+    }
+}
@@ -0,0 +1,93 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+
+// The most recent main-stream messages (see MessageCodec, sequence numbers), so a reconnecting client can be
+// sent what it missed instead of a full snapshot. Payloads are copied back to back into one byte arena that
+// wraps around; recording a message evicts the oldest ones it overwrites. Encoder thread only.
+final class ReplayRing {
+
+    private final byte[] arena;
+    private final int[] offsets;
+    private final int[] lengths;
+    // Sequence numbers held: first .. next - 1
+    private long first = 1;
+    private long next = 1;
+    private int head; // arena write position
+
+    ReplayRing(int capacityBytes) {
+        arena = new byte[capacityBytes];
+        // Messages are rarely below a few dozen bytes; the arena is usually full before the index is
+        int slots = Math.max(64, capacityBytes / 32);
+        offsets = new int[slots];
+        lengths = new int[slots];
+    }
+
+    // Copies the message out of payload (position to limit, position is not moved)
+    void record(long sequence, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (sequence != next || length > arena.length) {
+            // Not contiguous with what is held, or can never fit: start over from this message
+            clear(sequence);
+            if (length > arena.length) {
+                next = sequence + 1;
+                first = next;
+                return;
+            }
+        }
+        if (head + length > arena.length) {
+            // Leave the tail unused rather than split a message
+            evictUntil(arena.length);
+            head = 0;
+        }
+        evictUntil(head + length);
+        if (next - first == offsets.length) {
+            first++;
+        }
+        payload.get(payload.position(), arena, head, length);
+        int slot = slot(sequence);
+        offsets[slot] = head;
+        lengths[slot] = length;
+        head += length;
+        next = sequence + 1;
+    }
+
+    // Evicts messages that start in the region from head to end
+    private void evictUntil(int end) {
+        while (first < next) {
+            int offset = offsets[slot(first)];
+            if (offset < head || offset >= end) return;
+            first++;
+        }
+    }
+
+    // Every sequence after 'sequence' is still held, so a client that has seen up to it can be replayed
+    boolean canResumeAfter(long sequence) {
+        return sequence >= first - 1 && sequence < next;
+    }
+
+    // Last sequence number recorded, 0 before the first one
+    long last() {
+        return next - 1;
+    }
+
+    int length(long sequence) {
+        return lengths[slot(sequence)];
+    }
+
+    void copy(long sequence, ByteBuffer out) {
+        int slot = slot(sequence);
+        out.put(arena, offsets[slot], lengths[slot]);
+    }
+
+    // Drops everything; the next message recorded must be 'sequence'
+    void clear(long sequence) {
+        first = sequence;
+        next = sequence;
+        head = 0;
+    }
+
+    private int slot(long sequence) {
+        return (int) Long.remainderUnsigned(sequence, offsets.length);
+    }
+}
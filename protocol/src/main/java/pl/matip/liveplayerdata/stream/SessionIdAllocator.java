@@ -0,0 +1,24 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.BitSet;
+
+// Hands out the 16-bit session IDs used on the wire, lowest free ID first, so the ID range (and every array
+// indexed by it) stays as small as the number of players online. Used from the server thread only.
+public final class SessionIdAllocator {
+
+    public static final int MAX_SESSION_ID = 0xFFFF;
+
+    private final BitSet used = new BitSet();
+
+    // Returns -1 when all IDs are taken
+    public int allocate() {
+        int id = used.nextClearBit(0);
+        if (id > MAX_SESSION_ID) return -1;
+        used.set(id);
+        return id;
+    }
+
+    public void free(int id) {
+        used.clear(id);
+    }
+}
@@ -0,0 +1,269 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+// Turns a sample into the ChangeSet the encoder sends, in two passes:
+//   1. per player: scheduling, dead-bands and quantization on the sample's columns and the PlayerStateStore
+//      columns, leaving a change mask (and deltas) in the player's slot. A slot is only written by its own
+//      player, so from parallelDiffMinPlayers players on, the sample is split into ranges diffed on a
+//      fork-join pool.
+//   2. on the encoder thread, in sample order: every slot with a change mask becomes a ChangeSet entry, and
+//      its PlayerData is brought up to the new baseline.
+// The output does not depend on whether pass 1 ran in parallel. Extra fields (see PlayerField) are only
+// diffed while some subscription wants them; a field that becomes wanted, or a player that joins, is sent in
+// full on the next sample, since nobody has a baseline for it.
+final class SnapshotDiffer {
+
+    // Players per fork-join leaf; below this, splitting costs more than it saves
+    private static final int LEAF_PLAYERS = 64;
+
+    private final StreamSettings settings;
+    private final UpdateScheduler scheduler;
+    private final PlayerStateStore store;
+    private ForkJoinPool pool; // created on first use
+    private int extraFields; // wanted extra fields, see setExtraFields
+
+    SnapshotDiffer(StreamSettings settings, int initialPlayers) {
+        this.settings = settings;
+        this.scheduler = new UpdateScheduler(settings);
+        this.store = new PlayerStateStore(initialPlayers);
+    }
+
+    void join(PlayerData data, long tick) {
+        store.join(data);
+        scheduler.onJoin(store, data.sessionId, tick);
+    }
+
+    void leave(int sessionId) {
+        store.leave(sessionId);
+    }
+
+    int extraFields() {
+        return extraFields;
+    }
+
+    // Encoder thread, between diffs
+    void setExtraFields(int fields) {
+        store.forget(fields & ~extraFields);
+        extraFields = fields;
+    }
+
+    void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    // players: PlayerData by session ID, for the entries of changes
+    void diff(TickSnapshot snapshot, PlayerData[] players, ChangeSet changes) {
+        int count = snapshot.playerCount;
+        int threads = diffThreads();
+        if (settings.parallelDiffMinPlayers > 0 && count >= settings.parallelDiffMinPlayers && threads > 1) {
+            if (pool == null) {
+                pool = new ForkJoinPool(threads, SnapshotDiffer::newThread, null, false);
+            }
+            pool.invoke(new DiffTask(snapshot, 0, count));
+        } else {
+            diffRange(snapshot, 0, count);
+        }
+        collect(snapshot, players, changes);
+    }
+
+    private int diffThreads() {
+        return settings.diffThreads > 0 ? settings.diffThreads : Runtime.getRuntime().availableProcessors() / 2;
+    }
+
+    private static ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("LivePlayerData-Diff-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // --- Pass 1: any thread, one slot per entry ---
+
+    private void diffRange(TickSnapshot snapshot, int from, int to) {
+        long tick = snapshot.tick;
+        PlayerStateStore store = this.store;
+        // A field the sample lacks (the server thread had not seen it wanted yet) waits for the next one
+        int extra = extraFields & (snapshot.extraMask | PlayerField.DIMENSION.bit);
+        for (int i = from; i < to; i++) {
+            int slot = snapshot.sessionIds[i];
+            if (!store.isPresent(slot)) continue;
+            boolean due = scheduler.observe(store, slot, tick, snapshot.x[i], snapshot.y[i], snapshot.z[i], snapshot.health[i]);
+            boolean dimensionChanged = snapshot.dimension[i] != store.dimension[slot];
+            boolean unknown = (extra & ~store.extraKnown[slot]) != 0;
+            if (!due && !dimensionChanged && !unknown) {
+                store.dirty[slot] = 0;
+                continue;
+            }
+            // Positions in another dimension are unrelated, so a dimension change is sent like a keyframe
+            boolean keyframe = dimensionChanged || scheduler.keyframeDue(store, slot, tick);
+            store.dimension[slot] = snapshot.dimension[i];
+            int mask = settings.deltaEncoding
+                    ? diffQuantized(store, slot, snapshot, i, keyframe)
+                    : diffAbsolute(store, slot, snapshot, i, keyframe);
+            if (extra != 0) {
+                mask |= diffExtra(store, slot, snapshot, i, extra, keyframe);
+            }
+            store.dirty[slot] = mask;
+            scheduler.checked(store, slot, tick, keyframe);
+        }
+    }
+
+    // Non-short-circuit operators: each field test is a compare, not a chain of branches
+    private int diffAbsolute(PlayerStateStore store, int slot, TickSnapshot snapshot, int i, boolean keyframe) {
+        double currentX = snapshot.x[i];
+        double currentY = snapshot.y[i];
+        double currentZ = snapshot.z[i];
+        float currentHealth = snapshot.health[i];
+        int currentXp = snapshot.xp[i];
+
+        double moved = Math.max(Math.abs(currentX - store.x[slot]),
+                Math.max(Math.abs(currentY - store.y[slot]), Math.abs(currentZ - store.z[slot])));
+        float healthChange = Math.abs(currentHealth - store.health[slot]);
+        int xpChange = Math.abs(currentXp - store.xp[slot]);
+        boolean coords = keyframe | (moved != 0 & moved >= settings.positionDeadband);
+        boolean health = keyframe | (healthChange != 0 & healthChange >= settings.healthDeadband);
+        boolean xp = keyframe | (xpChange != 0 & xpChange >= settings.xpDeadband);
+
+        if (coords) {
+            store.x[slot] = currentX;
+            store.y[slot] = currentY;
+            store.z[slot] = currentZ;
+        }
+        if (health) {
+            store.health[slot] = currentHealth;
+        }
+        if (xp) {
+            store.xp[slot] = currentXp;
+        }
+        return (coords ? MessageCodec.MASK_COORDS : 0) | (health ? MessageCodec.MASK_HEALTH : 0)
+                | (xp ? MessageCodec.MASK_XP : 0);
+    }
+
+    // Compares on the fixed-point grid, so sub-precision jitter never counts as a change
+    private int diffQuantized(PlayerStateStore store, int slot, TickSnapshot snapshot, int i, boolean keyframe) {
+        double scale = settings.positionScale();
+        long qx = Math.round(snapshot.x[i] * scale);
+        long qy = Math.round(snapshot.y[i] * scale);
+        long qz = Math.round(snapshot.z[i] * scale);
+        int qHealth = Math.round(snapshot.health[i] * MessageCodec.HEALTH_SCALE);
+        int currentXp = snapshot.xp[i];
+
+        long dx = qx - Math.round(store.x[slot] * scale);
+        long dy = qy - Math.round(store.y[slot] * scale);
+        long dz = qz - Math.round(store.z[slot] * scale);
+        int dHealth = qHealth - Math.round(store.health[slot] * MessageCodec.HEALTH_SCALE);
+        int dXp = currentXp - store.xp[slot];
+
+        long moved = Math.max(Math.abs(dx), Math.max(Math.abs(dy), Math.abs(dz)));
+        boolean coords = keyframe | (moved != 0 & moved >= settings.positionDeadband * scale);
+        boolean health = keyframe | (dHealth != 0 & Math.abs(dHealth) >= settings.healthDeadband * MessageCodec.HEALTH_SCALE);
+        boolean xp = keyframe | (dXp != 0 & Math.abs(dXp) >= settings.xpDeadband);
+        if (!(coords | health | xp)) return 0;
+
+        if (coords) {
+            store.dx[slot] = keyframe ? qx : dx;
+            store.dy[slot] = keyframe ? qy : dy;
+            store.dz[slot] = keyframe ? qz : dz;
+            store.x[slot] = qx / scale;
+            store.y[slot] = qy / scale;
+            store.z[slot] = qz / scale;
+        }
+        if (health) {
+            store.dHealth[slot] = keyframe ? qHealth : dHealth;
+            store.health[slot] = (float) qHealth / MessageCodec.HEALTH_SCALE;
+        }
+        if (xp) {
+            store.dXp[slot] = keyframe ? currentXp : dXp;
+            store.xp[slot] = currentXp;
+        }
+        return (coords ? MessageCodec.MASK_COORDS : 0) | (health ? MessageCodec.MASK_HEALTH : 0)
+                | (xp ? MessageCodec.MASK_XP : 0) | (keyframe ? MessageCodec.MASK_ABSOLUTE : 0);
+    }
+
+    // Extra fields are small integers sent as absolute values: the baseline is simply the last value sent
+    private int diffExtra(PlayerStateStore store, int slot, TickSnapshot snapshot, int i, int fields, boolean keyframe) {
+        int known = store.extraKnown[slot];
+        int base = slot * PlayerField.EXTRA_COUNT;
+        int row = i * PlayerField.EXTRA_COUNT;
+        int mask = 0;
+        for (int m = fields >>> PlayerField.EXTRA_SHIFT; m != 0; m &= m - 1) {
+            int f = Integer.numberOfTrailingZeros(m);
+            PlayerField field = PlayerField.EXTRA[f];
+            int value = field == PlayerField.DIMENSION ? snapshot.dimension[i] : snapshot.extra[row + f];
+            int change = field.change(store.extra[base + f], value);
+            if (keyframe | (known & field.bit) == 0 | (change != 0 & change >= field.deadband)) {
+                store.extra[base + f] = value;
+                mask |= field.bit;
+            }
+        }
+        store.extraKnown[slot] = known | mask;
+        return mask;
+    }
+
+    @SuppressWarnings("serial") // ForkJoinTask is Serializable; tasks never leave the pool
+    private final class DiffTask extends RecursiveAction {
+        private final TickSnapshot snapshot;
+        private final int from, to;
+
+        DiffTask(TickSnapshot snapshot, int from, int to) {
+            this.snapshot = snapshot;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_PLAYERS) {
+                diffRange(snapshot, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DiffTask(snapshot, from, middle), new DiffTask(snapshot, middle, to));
+        }
+    }
+
+    // --- Pass 2: encoder thread ---
+
+    private void collect(TickSnapshot snapshot, PlayerData[] players, ChangeSet changes) {
+        PlayerStateStore store = this.store;
+        for (int i = 0; i < snapshot.playerCount; i++) {
+            int slot = snapshot.sessionIds[i];
+            if (!store.isPresent(slot)) continue;
+            int mask = store.dirty[slot];
+            if (mask == 0) continue;
+            store.dirty[slot] = 0;
+            PlayerData data = players[slot];
+            int entry = changes.add(data, mask);
+            data.dimension = store.dimension[slot];
+            if ((mask & MessageCodec.MASK_COORDS) != 0) {
+                data.x = store.x[slot];
+                data.y = store.y[slot];
+                data.z = store.z[slot];
+                changes.dx[entry] = store.dx[slot];
+                changes.dy[entry] = store.dy[slot];
+                changes.dz[entry] = store.dz[slot];
+            }
+            if ((mask & MessageCodec.MASK_HEALTH) != 0) {
+                data.health = store.health[slot];
+                changes.dHealth[entry] = store.dHealth[slot];
+            }
+            if ((mask & MessageCodec.MASK_XP) != 0) {
+                data.xp = store.xp[slot];
+                changes.dXp[entry] = store.dXp[slot];
+            }
+            if ((mask & PlayerField.EXTRA_MASK) != 0) {
+                int base = slot * PlayerField.EXTRA_COUNT;
+                for (int m = (mask & PlayerField.EXTRA_MASK) >>> PlayerField.EXTRA_SHIFT; m != 0; m &= m - 1) {
+                    int f = Integer.numberOfTrailingZeros(m);
+                    data.extra[f] = store.extra[base + f];
+                }
+            }
+        }
+    }
+}
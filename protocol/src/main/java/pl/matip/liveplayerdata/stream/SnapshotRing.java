@@ -0,0 +1,55 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer / single-consumer ring of preallocated TickSnapshot slots.
+// The server thread always owns the slot at head ("open" slot) and fills it; publish() hands it to the
+// encoder thread. One slot is kept spare, so the open slot never aliases one the consumer is still reading.
+// If the consumer falls a full ring behind, publish() refuses and the producer keeps writing into the same
+// open slot: the next player sample overwrites the stale one, events keep accumulating.
+final class SnapshotRing {
+
+    private final TickSnapshot[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to publish (producer)
+    private final AtomicLong tail = new AtomicLong(); // next slot to consume (consumer)
+
+    SnapshotRing(int capacity, int initialPlayers) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 2) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two >= 2: " + capacity);
+        }
+        slots = new TickSnapshot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new TickSnapshot(initialPlayers);
+        }
+        mask = capacity - 1;
+    }
+
+    // --- Producer (server thread) ---
+
+    TickSnapshot openSlot() {
+        return slots[(int) head.get() & mask];
+    }
+
+    boolean publish() {
+        long h = head.get();
+        if (h + 1 - tail.get() >= slots.length) {
+            return false;
+        }
+        head.lazySet(h + 1);
+        slots[(int) (h + 1) & mask].reset();
+        return true;
+    }
+
+    // --- Consumer (encoder thread) ---
+
+    TickSnapshot peek() {
+        long t = tail.get();
+        if (t == head.get()) return null;
+        return slots[(int) t & mask];
+    }
+
+    void release() {
+        tail.lazySet(tail.get() + 1);
+    }
+}
@@ -0,0 +1,190 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.Arrays;
+
+// Uniform grid over the positions clients last received, keyed by (dimension, cell x, cell z).
+// Region subscriptions ask it for the players inside their box, so matching costs the number of players near
+// the region instead of every player for every subscriber. Cells live in an open-addressing table with
+// primitive long keys (no boxing on lookups) and are removed again when they empty.
+// Encoder thread only.
+final class SpatialGrid {
+
+    static final int CELL_SHIFT = 6; // 64-block cells
+    static final int ANY_DIMENSION = -1;
+    private static final long NO_KEY = Long.MIN_VALUE;
+
+    private static final class Cell {
+        int[] sessionIds = new int[4];
+        int count;
+    }
+
+    private long[] keys = new long[64];
+    private Cell[] cells = new Cell[64];
+    private int size;
+
+    // Result of the last query
+    int[] result = new int[64];
+    int resultCount;
+
+    SpatialGrid() {
+        Arrays.fill(keys, NO_KEY);
+    }
+
+    // --- Maintenance ---
+
+    void insert(PlayerData data) {
+        long key = key(data.dimension, data.x, data.z);
+        data.gridKey = key;
+        Cell cell = getOrCreate(key);
+        if (cell.count == cell.sessionIds.length) {
+            cell.sessionIds = Arrays.copyOf(cell.sessionIds, cell.count * 2);
+        }
+        cell.sessionIds[cell.count++] = data.sessionId;
+    }
+
+    void remove(PlayerData data) {
+        int slot = find(data.gridKey);
+        if (slot < 0) return;
+        Cell cell = cells[slot];
+        for (int i = 0; i < cell.count; i++) {
+            if (cell.sessionIds[i] == data.sessionId) {
+                cell.sessionIds[i] = cell.sessionIds[--cell.count];
+                break;
+            }
+        }
+        if (cell.count == 0) {
+            delete(slot);
+        }
+    }
+
+    // Call after the player's sent position or dimension changed
+    void update(PlayerData data) {
+        if (key(data.dimension, data.x, data.z) != data.gridKey) {
+            remove(data);
+            insert(data);
+        }
+    }
+
+    // --- Queries ---
+
+    // Fills result with the players in cells overlapping the box; callers still test exact bounds
+    void query(int dimension, double minX, double minZ, double maxX, double maxZ) {
+        resultCount = 0;
+        long minCellX = (long) Math.floor(minX) >> CELL_SHIFT;
+        long maxCellX = (long) Math.floor(maxX) >> CELL_SHIFT;
+        long minCellZ = (long) Math.floor(minZ) >> CELL_SHIFT;
+        long maxCellZ = (long) Math.floor(maxZ) >> CELL_SHIFT;
+        long regionCells = (maxCellX - minCellX + 1) * (maxCellZ - minCellZ + 1);
+        if (dimension == ANY_DIMENSION || regionCells > size) {
+            // Fewer occupied cells than cells in the region: walk the occupied ones
+            for (int slot = 0; slot < keys.length; slot++) {
+                long key = keys[slot];
+                if (key == NO_KEY) continue;
+                int cellDimension = (int) (key >>> 48);
+                long cellX = (key << 16) >> 40;
+                long cellZ = (key << 40) >> 40;
+                if ((dimension == ANY_DIMENSION || cellDimension == dimension)
+                        && cellX >= minCellX && cellX <= maxCellX && cellZ >= minCellZ && cellZ <= maxCellZ) {
+                    collect(cells[slot]);
+                }
+            }
+            return;
+        }
+        for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (long cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+                int slot = find(pack(dimension, cellX, cellZ));
+                if (slot >= 0) {
+                    collect(cells[slot]);
+                }
+            }
+        }
+    }
+
+    private void collect(Cell cell) {
+        if (resultCount + cell.count > result.length) {
+            result = Arrays.copyOf(result, Math.max(result.length * 2, resultCount + cell.count));
+        }
+        System.arraycopy(cell.sessionIds, 0, result, resultCount, cell.count);
+        resultCount += cell.count;
+    }
+
+    // --- Open-addressing table ---
+
+    static long key(int dimension, double x, double z) {
+        return pack(dimension, (long) Math.floor(x) >> CELL_SHIFT, (long) Math.floor(z) >> CELL_SHIFT);
+    }
+
+    // 16 bits dimension, 24 bits cell x, 24 bits cell z (enough for +-30M blocks at 64-block cells)
+    private static long pack(int dimension, long cellX, long cellZ) {
+        return ((long) dimension << 48) | ((cellX & 0xFFFFFFL) << 24) | (cellZ & 0xFFFFFFL);
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = keys[slot];
+            if (k == key) return slot;
+            if (k == NO_KEY) return -1;
+        }
+    }
+
+    private Cell getOrCreate(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != NO_KEY) {
+            if (keys[slot] == key) return cells[slot];
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            return getOrCreate(key);
+        }
+        keys[slot] = key;
+        cells[slot] = new Cell();
+        size++;
+        return cells[slot];
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    private void delete(int slot) {
+        int mask = keys.length - 1;
+        keys[slot] = NO_KEY;
+        cells[slot] = null;
+        size--;
+        int hole = slot;
+        for (int next = (slot + 1) & mask; keys[next] != NO_KEY; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // Move the entry back if the hole lies on its probe path
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                cells[hole] = cells[next];
+                keys[next] = NO_KEY;
+                cells[next] = null;
+                hole = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Cell[] oldCells = cells;
+        keys = new long[capacity];
+        cells = new Cell[capacity];
+        Arrays.fill(keys, NO_KEY);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == NO_KEY) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != NO_KEY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            cells[slot] = oldCells[i];
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package pl.matip.liveplayerdata.stream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What a stream connection can ask for, independent of the server that accepted it: MyWebSocketServer in the
+// mod and the standalone relay's server both hand their connections here. Connections are passed to the
+// BroadcastPipeline, which sends them the current state from its own copy of the players.
+// Reads the connection's query parameters (protocol, resume, playback) and dispatches the text messages clients
+// send; both are described with the wire format in MessageCodec.
+public final class StreamEndpoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamEndpoint.class);
+
+    private final BroadcastPipeline pipeline;
+    private final StreamPlayer player; // null when recording is off
+    private final int defaultProtocol;
+    private final Set<WebSocket> playbackConnections = ConcurrentHashMap.newKeySet();
+
+    public StreamEndpoint(BroadcastPipeline pipeline, StreamPlayer player, int defaultProtocol) {
+        this.pipeline = pipeline;
+        this.player = player;
+        this.defaultProtocol = defaultProtocol;
+    }
+
+    // Drafts a server should accept stream connections with
+    public static List<Draft> drafts(StreamSettings settings) {
+        if (!settings.permessageDeflate) {
+            return List.of(new Draft_6455());
+        }
+        PerMessageDeflateExtension deflate = new PerMessageDeflateExtension();
+        // Binary frames are compressed by FrameBroadcaster; this covers text replies the library frames itself
+        deflate.setThreshold(settings.compressionMinBytes);
+        // Required for sharing one compressed copy between connections
+        deflate.setServerNoContextTakeover(true);
+        return List.of(new Draft_6455(deflate));
+    }
+
+    // resourceDescriptor: the request path and query of the handshake
+    public void open(WebSocket conn, String resourceDescriptor) {
+        if (queryParameter(resourceDescriptor, "playback") != null) {
+            openPlayback(conn, resourceDescriptor);
+            return;
+        }
+        String protocolParam = queryParameter(resourceDescriptor, "protocol");
+        int protocol = defaultProtocol;
+        if ("1".equals(protocolParam)) protocol = LegacyCodec.PROTOCOL_VERSION;
+        if ("2".equals(protocolParam)) protocol = MessageCodec.PROTOCOL_VERSION;
+
+        long resumeEpoch = -1;
+        long resumeSequence = -1;
+        String resume = queryParameter(resourceDescriptor, "resume");
+        if (resume != null) {
+            int colon = resume.indexOf(':');
+            try {
+                resumeEpoch = Long.parseLong(resume.substring(0, colon));
+                resumeSequence = Long.parseLong(resume.substring(colon + 1));
+            } catch (RuntimeException e) {
+                // Malformed: treated like a fresh connection
+                resumeEpoch = -1;
+                resumeSequence = -1;
+            }
+        }
+        LOGGER.debug("WebSocket connection opened: {} (protocol {})", conn.getRemoteSocketAddress(), protocol);
+        pipeline.addClient(conn, protocol, resumeEpoch, resumeSequence);
+    }
+
+    private void openPlayback(WebSocket conn, String resourceDescriptor) {
+        if (player == null) {
+            sendError(conn, "Recording is not enabled on this server");
+            conn.close();
+            return;
+        }
+        long from;
+        long to;
+        double speed;
+        try {
+            String fromParam = queryParameter(resourceDescriptor, "from");
+            String toParam = queryParameter(resourceDescriptor, "to");
+            String speedParam = queryParameter(resourceDescriptor, "speed");
+            from = fromParam != null ? Long.parseLong(fromParam) : 0;
+            to = toParam != null ? Long.parseLong(toParam) : Long.MAX_VALUE;
+            speed = speedParam != null ? Double.parseDouble(speedParam) : 1;
+        } catch (NumberFormatException e) {
+            sendError(conn, "Invalid playback parameters: " + e.getMessage());
+            conn.close();
+            return;
+        }
+        LOGGER.debug("WebSocket playback connection opened: {}", conn.getRemoteSocketAddress());
+        playbackConnections.add(conn);
+        player.open(conn, from, to, speed);
+    }
+
+    // Value of name=value in the query, "" for a bare name, null if absent
+    public static String queryParameter(String resourceDescriptor, String name) {
+        if (resourceDescriptor == null) return null;
+        int query = resourceDescriptor.indexOf('?');
+        if (query < 0) return null;
+        for (String param : resourceDescriptor.substring(query + 1).split("&")) {
+            if (param.equals(name)) {
+                return "";
+            }
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    public void message(WebSocket conn, String message) {
+        try {
+            JsonObject json = JsonParser.parseString(message).getAsJsonObject();
+            String type = json.has("type") ? json.get("type").getAsString() : "";
+            if (playbackConnections.contains(conn)) {
+                if (type.equals("seek")) {
+                    player.seek(conn, json.get("time").getAsLong());
+                } else if (type.equals("speed")) {
+                    player.setSpeed(conn, json.get("speed").getAsDouble());
+                } else {
+                    sendError(conn, "Unknown playback message type: " + type);
+                }
+            } else if (type.equals("subscribe")) {
+                pipeline.subscribe(conn, Subscription.parse(json));
+            } else if (type.equals("history")) {
+                Set<String> players = null;
+                if (json.has("players")) {
+                    players = new HashSet<>();
+                    for (JsonElement name : json.getAsJsonArray("players")) {
+                        players.add(name.getAsString().toLowerCase(Locale.ROOT));
+                    }
+                }
+                long ticks = json.has("minutes") ? Math.max(0, json.get("minutes").getAsInt()) * 60L * 20 : Long.MAX_VALUE;
+                pipeline.queryHistory(conn, players, ticks);
+            } else if (type.equals("datagrams")) {
+                int port = json.get("port").getAsInt();
+                if (port < 0 || port > 0xFFFF) {
+                    sendError(conn, "Invalid port: " + port);
+                    return;
+                }
+                pipeline.registerDatagrams(conn, port);
+            } else if (type.equals("heatmap")) {
+                String dimension = json.get("dimension").getAsString();
+                int level = json.has("level") ? json.get("level").getAsInt() : 0;
+                long since = json.has("since") ? json.get("since").getAsLong() : 0;
+                double[] box = null;
+                if (json.has("box")) {
+                    JsonObject region = json.getAsJsonObject("box");
+                    double minX = region.get("minX").getAsDouble();
+                    double minZ = region.get("minZ").getAsDouble();
+                    double maxX = region.get("maxX").getAsDouble();
+                    double maxZ = region.get("maxZ").getAsDouble();
+                    box = new double[]{Math.min(minX, maxX), Math.min(minZ, maxZ), Math.max(minX, maxX), Math.max(minZ, maxZ)};
+                }
+                pipeline.queryHeatmap(conn, dimension, level, since, box);
+            } else if (type.equals("schema")) {
+                pipeline.querySchema(conn);
+            } else {
+                sendError(conn, "Unknown message type: " + type);
+            }
+        } catch (RuntimeException e) {
+            // Malformed JSON, wrong value types or missing keys
+            sendError(conn, "Invalid message: " + e.getMessage());
+        }
+    }
+
+    private static void sendError(WebSocket conn, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("type", "error");
+        error.addProperty("message", message);
+        conn.send(error.toString());
+    }
+
+    // Closed, or failed in a way that might not be followed by a close
+    public void close(WebSocket conn) {
+        if (playbackConnections.remove(conn)) {
+            player.close(conn);
+        } else {
+            pipeline.removeClient(conn);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package pl.matip.liveplayerdata.stream;
+
+import com.google.gson.JsonObject;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays recordings (see StreamRecorder) to WebSocket clients that connected with ?playback. One thread paces
+// every playback connection, so playback never touches the server thread or the live encoder.
+//
+// A playback client gets the same protocol 2 messages as a live one, starting with a HELLO that has the
+// playback flag set (it cannot resume). On a seek, and whenever playback moves into the next segment, the
+// client gets a new HELLO and the keyframe, i.e. it forgets all players and receives their state again.
+// Progress is reported in text messages: {"type":"playback","time":ms,"speed":x,"start":ms,"end":ms} on start,
+// seek, speed change and when an idle stretch of the recording is skipped, {"type":"playback_end","time":ms}
+// at the end of the requested range or of the recording.
+public final class StreamPlayer implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamPlayer.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long PLAYING_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // Stretches without records (no players, server down) that would take longer than this to play are skipped
+    private static final long MAX_WAIT_MILLIS = 10_000;
+    // Frames a playback connection may have queued before it is paused for a round
+    private static final int MAX_QUEUED_FRAMES = 256;
+    private static final int MAX_RECORDS_PER_ROUND = 4096;
+    public static final double MIN_SPEED = 0.1;
+    public static final double MAX_SPEED = 64;
+
+    private final StreamRecorder recorder;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // --- Player thread state ---
+    private final Map<WebSocket, Session> sessions = new HashMap<>();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    public StreamPlayer(StreamRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "LivePlayerData-Playback");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // --- Client side (WebSocket threads) ---
+
+    // from: start time (ms since epoch), to: end time or Long.MAX_VALUE to follow the recording
+    public void open(WebSocket conn, long from, long to, double speed) {
+        execute(() -> {
+            Session session = new Session(conn, to, clampSpeed(speed));
+            sessions.put(conn, session);
+            session.seek(from);
+        });
+    }
+
+    public void seek(WebSocket conn, long time) {
+        execute(() -> {
+            Session session = sessions.get(conn);
+            if (session != null) {
+                session.seek(time);
+            }
+        });
+    }
+
+    public void setSpeed(WebSocket conn, double speed) {
+        execute(() -> {
+            Session session = sessions.get(conn);
+            if (session != null) {
+                session.setSpeed(clampSpeed(speed), System.nanoTime());
+            }
+        });
+    }
+
+    public void close(WebSocket conn) {
+        execute(() -> sessions.remove(conn));
+    }
+
+    private static double clampSpeed(double speed) {
+        return Double.isNaN(speed) ? 1 : Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        LockSupport.unpark(thread);
+    }
+
+    // --- Player thread ---
+
+    @Override
+    public void run() {
+        while (running) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    LOGGER.error("Error in playback task", e);
+                }
+            }
+            boolean playing = false;
+            long now = System.nanoTime();
+            for (Session session : sessions.values()) {
+                try {
+                    playing |= session.pump(now);
+                } catch (Exception e) {
+                    LOGGER.error("Error playing back recording", e);
+                    session.end();
+                }
+            }
+            LockSupport.parkNanos(this, playing ? PLAYING_PARK_NANOS : IDLE_PARK_NANOS);
+        }
+    }
+
+    private final class Session {
+        final WebSocket conn;
+        final long to;
+        double speed;
+        StreamRecorder.Cursor cursor;
+        boolean ended;
+        // Records before this time are sent at once (the way from a keyframe to a seek target)
+        long fastForwardUntil;
+        // Sending a keyframe: STATE records are part of it until the first LIVE record
+        boolean inKeyframe;
+        // Recording time that corresponds to anchorNanos
+        long anchorMillis;
+        long anchorNanos;
+
+        Session(WebSocket conn, long to, double speed) {
+            this.conn = conn;
+            this.to = to;
+            this.speed = speed;
+        }
+
+        void seek(long time) {
+            cursor = recorder.seek(time);
+            if (cursor == null) {
+                ended = true;
+                sendEnd(time);
+                return;
+            }
+            ended = false;
+            startKeyframe();
+            fastForwardUntil = time;
+            anchorMillis = Math.max(time, cursor.segment.startMillis);
+            anchorNanos = System.nanoTime();
+            sendStatus(anchorMillis);
+        }
+
+        void setSpeed(double newSpeed, long now) {
+            anchorMillis = playbackTime(now);
+            anchorNanos = now;
+            speed = newSpeed;
+            sendStatus(anchorMillis);
+        }
+
+        long playbackTime(long now) {
+            return anchorMillis + (long) ((now - anchorNanos) / 1e6 * speed);
+        }
+
+        // Sends what is due; true while playback is running
+        boolean pump(long now) {
+            if (ended || !conn.isOpen()) return false;
+            if (queueDepth() > MAX_QUEUED_FRAMES) return true;
+            long target = playbackTime(now);
+            for (int sent = 0; sent < MAX_RECORDS_PER_ROUND; sent++) {
+                long next = cursor.nextTime();
+                if (next < 0) {
+                    if (!cursor.finished()) return true; // Live edge of the recording
+                    StreamRecorder.Segment following = recorder.after(cursor.segment);
+                    if (following == null) {
+                        end();
+                        return false;
+                    }
+                    if (!openSegment(following)) return false;
+                    continue;
+                }
+                if (next > to) {
+                    end();
+                    return false;
+                }
+                boolean due = inKeyframe || next < fastForwardUntil || next <= target;
+                if (!due) {
+                    if ((next - target) / speed > MAX_WAIT_MILLIS) {
+                        anchorMillis = next;
+                        anchorNanos = now;
+                        target = next;
+                        sendStatus(next);
+                    } else {
+                        return true;
+                    }
+                }
+                cursor.next();
+                if (cursor.kind == StreamRecorder.KIND_STATE) {
+                    if (!inKeyframe) continue; // Keyframe inside the range; the client is up to date already
+                } else {
+                    inKeyframe = false;
+                }
+                send(cursor.payload());
+            }
+            return true;
+        }
+
+        // Records lost at the end of a full segment are covered by the keyframe the next one starts with
+        boolean openSegment(StreamRecorder.Segment segment) {
+            try {
+                cursor = new StreamRecorder.Cursor(segment, StreamRecorder.SEGMENT_HEADER);
+            } catch (IOException e) {
+                LOGGER.warn("Could not open recording segment {}: {}", segment.file, e.getMessage());
+                end();
+                return false;
+            }
+            startKeyframe();
+            return true;
+        }
+
+        void startKeyframe() {
+            inKeyframe = true;
+            ByteBuffer hello = ByteBuffer.allocate(MessageCodec.SEQUENCE_SIZE + MessageCodec.helloSize());
+            MessageCodec.writeSequence(hello, 0);
+            MessageCodec.writeHello(hello, 0, MessageCodec.HELLO_FLAG_PLAYBACK);
+            hello.flip();
+            send(hello);
+        }
+
+        void end() {
+            if (ended) return;
+            ended = true;
+            sendEnd(cursor != null ? cursor.time : 0);
+        }
+
+        void send(ByteBuffer payload) {
+            if (conn.isOpen()) {
+                conn.send(payload);
+            }
+        }
+
+        int queueDepth() {
+            return conn instanceof WebSocketImpl impl ? impl.outQueue.size() : 0;
+        }
+
+        void sendStatus(long time) {
+            JsonObject status = new JsonObject();
+            status.addProperty("type", "playback");
+            status.addProperty("time", time);
+            status.addProperty("speed", speed);
+            long[] range = recorder.recordedRange();
+            if (range != null) {
+                status.addProperty("start", range[0]);
+                status.addProperty("end", range[1]);
+            }
+            if (conn.isOpen()) {
+                conn.send(status.toString());
+            }
+        }
+
+        void sendEnd(long time) {
+            JsonObject end = new JsonObject();
+            end.addProperty("type", "playback_end");
+            end.addProperty("time", time);
+            if (conn.isOpen()) {
+                conn.send(end.toString());
+            }
+        }
+    }
+}
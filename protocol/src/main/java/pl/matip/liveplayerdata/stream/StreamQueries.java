@@ -0,0 +1,151 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Answers the one-off requests of protocol 2 clients (HISTORY, HEATMAP, SCHEMA; see MessageCodec) from the
+// pipeline's stores. Replies go to the asking connection only and carry sequence number 0, never being part
+// of the main stream. Encoder thread only: BroadcastPipeline checks the client and calls in from its tasks.
+final class StreamQueries {
+
+    // Tiles per HEATMAP reply (about 4 KB each before compression); clients ask again for the rest
+    private static final int MAX_HEATMAP_TILES = 64;
+
+    private final StreamSettings settings;
+    private final FrameBroadcaster broadcaster;
+    private final TrajectoryStore history; // null when disabled
+    private final HeatmapStore heatmap; // null when disabled
+    private final Map<String, Integer> dimensionIndices; // SubscriberGroups', kept current by it
+
+    StreamQueries(StreamSettings settings, FrameBroadcaster broadcaster, TrajectoryStore history,
+                  HeatmapStore heatmap, Map<String, Integer> dimensionIndices) {
+        this.settings = settings;
+        this.broadcaster = broadcaster;
+        this.history = history;
+        this.heatmap = heatmap;
+        this.dimensionIndices = dimensionIndices;
+    }
+
+    // --- HISTORY ---
+
+    // The last 'ticks' of the named players (lower-case names), or of everyone for null
+    void sendHistory(WebSocket conn, PlayerData[] players, long tick, Set<String> names, long ticks) {
+        if (history == null) {
+            conn.send("{\"type\":\"error\",\"message\":\"History is disabled on this server\"}");
+            return;
+        }
+        long since = tick - Math.min(ticks, settings.historyTicks);
+        int count = 0;
+        int size = 0;
+        for (PlayerData data : players) {
+            if (data == null || (names != null && !names.contains(data.nameLower))) continue;
+            List<TrajectoryChunk> chunks = history.chunks(data.sessionId, since);
+            if (chunks == null) continue;
+            count++;
+            size += MessageCodec.historyEntrySize(chunks);
+        }
+        PooledFrame frame = acquireReply(MessageCodec.historySize(tick, count) + size);
+        MessageCodec.writeHistory(frame.buffer, tick, System.currentTimeMillis(), count);
+        for (PlayerData data : players) {
+            if (data == null || (names != null && !names.contains(data.nameLower))) continue;
+            List<TrajectoryChunk> chunks = history.chunks(data.sessionId, since);
+            if (chunks != null) {
+                MessageCodec.writeHistoryEntry(frame.buffer, data, chunks);
+            }
+        }
+        broadcaster.send(frame, conn);
+    }
+
+    // --- HEATMAP ---
+
+    // The tiles of one dimension and level that changed after version 'since';
+    // box: {minX, minZ, maxX, maxZ} in blocks, or null for everywhere
+    void sendHeatmap(WebSocket conn, long tick, String dimension, int level, long since, double[] box) {
+        if (heatmap == null) {
+            conn.send("{\"type\":\"error\",\"message\":\"The heatmap is disabled on this server\"}");
+            return;
+        }
+        if (level < 0 || level >= HeatmapStore.LEVELS) {
+            conn.send("{\"type\":\"error\",\"message\":\"Heatmap levels are 0 to " + (HeatmapStore.LEVELS - 1) + "\"}");
+            return;
+        }
+        long version = heatmap.version();
+        byte flags = 0;
+        if (since < heatmap.resetVersion()) {
+            since = 0;
+            flags |= MessageCodec.HEATMAP_FLAG_RESET;
+        }
+        Integer dimensionIndex = dimensionIndices.get(dimension);
+        List<HeatmapStore.Tile> tiles = dimensionIndex == null ? List.of() : box == null
+                ? heatmap.changedSince(dimensionIndex, level, since, false, 0, 0, 0, 0)
+                : heatmap.changedSince(dimensionIndex, level, since, true, box[0], box[1], box[2], box[3]);
+        // All of them, even past the last tile sent: dropping again what a later reply also drops is harmless
+        List<HeatmapStore.Removed> removed = dimensionIndex == null || since == 0 ? List.of()
+                : heatmap.removedSince(dimensionIndex, level, since);
+        if (tiles.size() > MAX_HEATMAP_TILES) {
+            tiles = tiles.subList(0, MAX_HEATMAP_TILES);
+            version = tiles.get(tiles.size() - 1).version;
+            flags |= MessageCodec.HEATMAP_FLAG_MORE;
+        }
+        int size = MessageCodec.heatmapSize(tick, version, removed, tiles.size());
+        for (HeatmapStore.Tile tile : tiles) {
+            size += MessageCodec.heatmapTileSize(tile);
+        }
+        PooledFrame frame = acquireReply(size);
+        MessageCodec.writeHeatmap(frame.buffer, tick, version, flags, level, heatmap.cellShift(level),
+                heatmap.halfLifeSeconds(), removed, tiles.size());
+        double decay = heatmap.decay(tick);
+        for (HeatmapStore.Tile tile : tiles) {
+            MessageCodec.writeHeatmapTile(frame.buffer, tile, decay);
+        }
+        broadcaster.send(frame, conn);
+    }
+
+    // --- SCHEMA ---
+
+    void sendSchema(WebSocket conn) {
+        broadcaster.send(encodeSchema(), conn);
+    }
+
+    // The dimension field's value names grew: groups that get the field are sent the new SCHEMA unasked
+    void dimensionAdded(SubscriberGroups subscribers) {
+        PooledFrame schema = null;
+        for (int g = 0; g < subscribers.size(); g++) {
+            SubscriberGroup group = subscribers.get(g);
+            if ((group.subscription.fieldMask & PlayerField.DIMENSION.bit) == 0 || group.members.isEmpty()) continue;
+            if (schema == null) {
+                schema = encodeSchema();
+                schema.finish();
+            }
+            broadcaster.fanOut(schema, group.members);
+        }
+        if (schema != null) {
+            broadcaster.track(schema);
+        }
+    }
+
+    private PooledFrame encodeSchema() {
+        String[] dimensions = new String[dimensionIndices.size()];
+        for (Map.Entry<String, Integer> entry : dimensionIndices.entrySet()) {
+            if (entry.getValue() < dimensions.length) {
+                dimensions[entry.getValue()] = entry.getKey();
+            }
+        }
+        for (int i = 0; i < dimensions.length; i++) {
+            if (dimensions[i] == null) dimensions[i] = "";
+        }
+        PooledFrame frame = acquireReply(MessageCodec.schemaSize(dimensions));
+        MessageCodec.writeSchema(frame.buffer, settings.positionScale(), dimensions);
+        return frame;
+    }
+
+    // Protocol 2 frame with sequence number 0 already written
+    private PooledFrame acquireReply(int messageSize) {
+        PooledFrame frame = broadcaster.acquire(MessageCodec.SEQUENCE_SIZE + messageSize, MessageCodec.PROTOCOL_VERSION);
+        MessageCodec.writeSequence(frame.buffer, 0);
+        return frame;
+    }
+}
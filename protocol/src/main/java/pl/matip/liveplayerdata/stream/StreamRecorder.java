@@ -0,0 +1,385 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Append-only recording of the main stream (see MessageCodec) for playback (see StreamPlayer).
+// Messages are copied as sent, with the wall-clock time, into segment files of a fixed size that are
+// memory-mapped while written, so recording is a memory copy on the encoder thread; the OS writes the pages
+// out. Only the segment being written is mapped for writing, and the oldest segments are deleted beyond the
+// configured count, so memory and disk use are bounded.
+//
+// Segment (<start millis>.lpdr): u32 magic, u16 version, u16 reserved, i64 start time, then records:
+//   u32 payload length, i64 time (ms since epoch), u8 kind, payload
+// A zero length (the unwritten, zero-filled rest of the file) ends the segment. The length is written last,
+// so a record is either complete or not there.
+// Record kinds: LIVE is a main-stream message; STATE records form a keyframe, a dictionary and a JOIN for every
+// player, which is the whole state right before the LIVE records after it. Every segment starts with a
+// keyframe and gets another every keyframe interval, so playback can start near any time and old segments can
+// be deleted without breaking newer ones.
+// Index (<start millis>.idx): i64 time, i32 offset per keyframe; sparse enough to keep in memory.
+public final class StreamRecorder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamRecorder.class);
+
+    static final int SEGMENT_MAGIC = 0x4C504452; // "LPDR"
+    static final short FORMAT_VERSION = 1;
+    static final int SEGMENT_HEADER = 16;
+    static final int RECORD_HEADER = 13;
+    static final byte KIND_LIVE = 0;
+    static final byte KIND_STATE = 1;
+    private static final int INDEX_ENTRY = 12;
+    private static final String SEGMENT_SUFFIX = ".lpdr";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long keyframeIntervalMillis;
+    private final List<Segment> segments = new ArrayList<>(); // oldest first, guarded by this
+
+    // --- Writer state (encoder thread) ---
+    private Segment current;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private FileChannel indexChannel;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private long lastKeyframeMillis;
+    private int keyframeOffset;
+    private boolean full; // a record did not fit; the next keyframe starts a new segment
+    private volatile boolean failed;
+
+    private StreamRecorder(Path directory, int segmentBytes, int maxSegments, long keyframeIntervalMillis) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.keyframeIntervalMillis = keyframeIntervalMillis;
+    }
+
+    // Opens the directory and the segments already in it; recording starts with a new segment
+    public static StreamRecorder open(Path directory, StreamSettings settings) throws IOException {
+        Files.createDirectories(directory);
+        StreamRecorder recorder = new StreamRecorder(directory, settings.recordingSegmentBytes,
+                Math.max(1, settings.recordingMaxSegments), TimeUnit.SECONDS.toMillis(settings.recordingKeyframeSeconds));
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null); // Names are zero-padded start times
+        for (Path file : files) {
+            try {
+                recorder.segments.add(Segment.load(file, indexFile(file)));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Skipping unreadable recording segment {}: {}", file, e.getMessage());
+            }
+        }
+        return recorder;
+    }
+
+    private static Path indexFile(Path segmentFile) {
+        String name = segmentFile.getFileName().toString();
+        return segmentFile.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    public boolean isActive() {
+        return !failed;
+    }
+
+    // --- Writer (encoder thread) ---
+
+    // True when the pipeline should write a keyframe before this tick's messages
+    boolean keyframeDue(long nowMillis) {
+        if (failed) return false;
+        return current == null || full
+                || nowMillis - lastKeyframeMillis >= keyframeIntervalMillis
+                || segmentBytes - current.committed < segmentBytes / 8;
+    }
+
+    // Starts a keyframe of 'bytes' bytes (records included, see recordSize). A keyframe that would leave less
+    // than an eighth of the segment for live records goes into a new segment.
+    void beginKeyframe(long nowMillis, long bytes) {
+        if (failed) return;
+        try {
+            if (SEGMENT_HEADER + bytes > segmentBytes) {
+                throw new IOException("keyframe of " + bytes + " bytes does not fit a segment");
+            }
+            if (current == null || full || segmentBytes - current.committed - bytes < segmentBytes / 8) {
+                roll(nowMillis);
+            }
+            keyframeOffset = current.committed;
+            lastKeyframeMillis = nowMillis;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    void appendState(long nowMillis, ByteBuffer payload) {
+        append(nowMillis, KIND_STATE, payload);
+    }
+
+    void endKeyframe(long nowMillis) {
+        if (failed || current == null) return;
+        try {
+            indexEntry.clear();
+            indexEntry.putLong(nowMillis).putInt(keyframeOffset).flip();
+            while (indexEntry.hasRemaining()) {
+                indexChannel.write(indexEntry);
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        current.addKeyframe(nowMillis, keyframeOffset);
+    }
+
+    void appendLive(long nowMillis, ByteBuffer payload) {
+        append(nowMillis, KIND_LIVE, payload);
+    }
+
+    static int recordSize(int payloadLength) {
+        return RECORD_HEADER + payloadLength;
+    }
+
+    // payload: position to limit, position is not moved
+    private void append(long nowMillis, byte kind, ByteBuffer payload) {
+        if (failed || current == null || full) return;
+        int length = payload.remaining();
+        int position = current.committed;
+        if ((long) position + RECORD_HEADER + length > segmentBytes) {
+            // Dropped; the keyframe that opens the next segment carries the state on
+            full = true;
+            return;
+        }
+        map.putLong(position + 4, nowMillis);
+        map.put(position + 12, kind);
+        map.put(position + RECORD_HEADER, payload, payload.position(), length);
+        map.putInt(position, length);
+        current.endMillis = nowMillis;
+        current.committed = position + RECORD_HEADER + length;
+    }
+
+    private void roll(long nowMillis) throws IOException {
+        seal();
+        long startMillis = nowMillis;
+        synchronized (this) {
+            if (!segments.isEmpty()) {
+                startMillis = Math.max(startMillis, segments.get(segments.size() - 1).startMillis + 1);
+            }
+        }
+        Path file = directory.resolve(String.format("%013d", startMillis) + SEGMENT_SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        map.putInt(0, SEGMENT_MAGIC);
+        map.putShort(4, FORMAT_VERSION);
+        map.putLong(8, startMillis);
+        indexChannel = FileChannel.open(indexFile(file), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        current = new Segment(file, startMillis);
+        current.committed = SEGMENT_HEADER;
+        current.endMillis = startMillis;
+        full = false;
+        List<Segment> expired = new ArrayList<>();
+        synchronized (this) {
+            segments.add(current);
+            while (segments.size() > maxSegments) {
+                expired.add(segments.remove(0));
+            }
+        }
+        for (Segment segment : expired) {
+            // Playback that still has it mapped keeps reading; the space is freed once it lets go
+            Files.deleteIfExists(segment.file);
+            Files.deleteIfExists(indexFile(segment.file));
+        }
+    }
+
+    // Finishes the segment being written; the file is cut to what was recorded
+    private void seal() {
+        if (current == null) return;
+        Segment segment = current;
+        current = null;
+        map = null;
+        segment.sealed = true;
+        try {
+            indexChannel.close();
+            channel.truncate(segment.committed);
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not finish recording segment {}: {}", segment.file, e.getMessage());
+        }
+    }
+
+    private void fail(IOException e) {
+        LOGGER.error("Stream recording stopped: {}", e.getMessage());
+        failed = true;
+        seal();
+    }
+
+    // After the encoder thread has stopped
+    public void close() {
+        seal();
+    }
+
+    // --- Reader side (any thread) ---
+
+    // Earliest and latest recorded time, or null when nothing is recorded
+    public synchronized long[] recordedRange() {
+        if (segments.isEmpty()) return null;
+        return new long[]{segments.get(0).startMillis, segments.get(segments.size() - 1).endMillis};
+    }
+
+    // Cursor on the last keyframe at or before 'time' (the first one if 'time' is earlier), or null
+    synchronized Cursor seek(long time) {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            if (segment.startMillis <= time || i == 0) {
+                try {
+                    return new Cursor(segment, segment.keyframeAtOrBefore(time));
+                } catch (IOException e) {
+                    LOGGER.warn("Could not open recording segment {}: {}", segment.file, e.getMessage());
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Segment recorded after 'segment', or null when there is none (yet)
+    synchronized Segment after(Segment segment) {
+        int index = segments.indexOf(segment);
+        if (index >= 0) {
+            return index + 1 < segments.size() ? segments.get(index + 1) : null;
+        }
+        // Deleted while being played: continue with the oldest one left after it
+        for (Segment candidate : segments) {
+            if (candidate.startMillis > segment.startMillis) return candidate;
+        }
+        return null;
+    }
+
+    static final class Segment {
+        final Path file;
+        final long startMillis;
+        volatile int committed; // bytes of complete records, header included
+        volatile long endMillis; // time of the last record
+        volatile boolean sealed;
+        private long[] keyframeTimes = new long[16];
+        private int[] keyframeOffsets = new int[16];
+        private int keyframeCount;
+
+        Segment(Path file, long startMillis) {
+            this.file = file;
+            this.startMillis = startMillis;
+        }
+
+        // A finished segment from an earlier run: the records are walked once to find where they end
+        static Segment load(Path file, Path indexFile) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (map.limit() < SEGMENT_HEADER || map.getInt(0) != SEGMENT_MAGIC || map.getShort(4) != FORMAT_VERSION) {
+                    throw new IOException("not a recording segment");
+                }
+                Segment segment = new Segment(file, map.getLong(8));
+                int position = SEGMENT_HEADER;
+                long end = segment.startMillis;
+                while (position + RECORD_HEADER <= map.limit()) {
+                    int length = map.getInt(position);
+                    if (length <= 0 || position + RECORD_HEADER + (long) length > map.limit()) break;
+                    end = map.getLong(position + 4);
+                    position += RECORD_HEADER + length;
+                }
+                segment.committed = position;
+                segment.endMillis = end;
+                segment.sealed = true;
+                if (Files.exists(indexFile)) {
+                    ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+                    while (index.remaining() >= INDEX_ENTRY) {
+                        long time = index.getLong();
+                        int offset = index.getInt();
+                        if (offset < position) {
+                            segment.addKeyframe(time, offset);
+                        }
+                    }
+                }
+                return segment;
+            }
+        }
+
+        synchronized void addKeyframe(long time, int offset) {
+            if (keyframeCount == keyframeTimes.length) {
+                keyframeTimes = Arrays.copyOf(keyframeTimes, keyframeCount * 2);
+                keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframeCount * 2);
+            }
+            keyframeTimes[keyframeCount] = time;
+            keyframeOffsets[keyframeCount] = offset;
+            keyframeCount++;
+        }
+
+        // Offset of the last keyframe at or before 'time'; the segment start, which is a keyframe, otherwise
+        synchronized int keyframeAtOrBefore(long time) {
+            int offset = SEGMENT_HEADER;
+            for (int i = 0; i < keyframeCount && keyframeTimes[i] <= time; i++) {
+                offset = keyframeOffsets[i];
+            }
+            return offset;
+        }
+    }
+
+    // Reads the records of one segment, including those still being appended. One reader thread per cursor.
+    static final class Cursor {
+        final Segment segment;
+        private final MappedByteBuffer map;
+        private int offset;
+        // Current record, valid after next() returned true
+        long time;
+        byte kind;
+        private int payloadOffset;
+        private int length;
+
+        Cursor(Segment segment, int offset) throws IOException {
+            this.segment = segment;
+            this.offset = offset;
+            try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed
+                this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        // Moves to the next record; false if none is recorded yet (or the segment is done, see finished())
+        boolean next() {
+            if (offset + RECORD_HEADER > Math.min(segment.committed, map.limit())) return false;
+            length = map.getInt(offset);
+            time = map.getLong(offset + 4);
+            kind = map.get(offset + 12);
+            payloadOffset = offset + RECORD_HEADER;
+            offset = payloadOffset + length;
+            return true;
+        }
+
+        // Peek at the time of the next record without moving; -1 if there is none yet
+        long nextTime() {
+            if (offset + RECORD_HEADER > Math.min(segment.committed, map.limit())) return -1;
+            return map.getLong(offset + 4);
+        }
+
+        boolean finished() {
+            return segment.sealed && offset + RECORD_HEADER > Math.min(segment.committed, map.limit());
+        }
+
+        ByteBuffer payload() {
+            return map.slice(payloadOffset, length);
+        }
+    }
+}
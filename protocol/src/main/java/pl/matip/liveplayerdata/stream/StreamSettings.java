@@ -0,0 +1,88 @@
+package pl.matip.liveplayerdata.stream;
+
+// Encoder-side knobs, filled from the mod config. Kept free of Minecraft and config-file types so the
+// pipeline can be driven by anything that sets these fields.
+public final class StreamSettings {
+
+    // --- Update encoding ---
+    // true: protocol 2 clients get DELTA_BATCH (quantized var-int deltas), false: BATCH_UPDATE with raw values
+    public boolean deltaEncoding = false;
+    // Fractional bits of fixed-point positions; 5 = 1/32 block
+    public int positionPrecisionBits = 5;
+
+    // --- Dead-bands: changes smaller than these are not sent until they add up or a keyframe goes out ---
+    public double positionDeadband = 0.05; // blocks, largest axis
+    public double healthDeadband = 0.5; // health points
+    public int xpDeadband = 1; // levels
+
+    // A player's full state is sent at least this often, which also heals anything the dead-bands held back
+    public int keyframeIntervalTicks = 600;
+
+    // --- Adaptive scheduling (see UpdateScheduler) ---
+    // Players are sampled every minIntervalTicks; each is diffed somewhere between min and max
+    public int minIntervalTicks = 2;
+    public int maxIntervalTicks = 100;
+    // At speed, send often enough that a player moves about this far between updates
+    public double targetDistance = 1.0;
+    // Stay at the min interval this long after a health change
+    public int combatHoldTicks = 60;
+    // Drop to the max interval after this long without movement or health changes
+    public int idleAfterTicks = 600;
+
+    // --- Parallel diffing (see SnapshotDiffer) ---
+    // Samples with at least this many players are diffed on a fork-join pool; 0 always diffs on the encoder thread
+    public int parallelDiffMinPlayers = 256;
+    // Pool size; 0 = half the available processors (parallel diffing is off below two threads)
+    public int diffThreads = 0;
+
+    // --- Slow clients (see ClientSession) ---
+    // Queued frames at which a client stops getting update frames until it has caught up
+    public int maxQueuedFrames = 1024;
+    // A client that stays behind this long is disconnected
+    public int slowClientTimeoutSeconds = 30;
+
+    // --- Resume (see ReplayRing) ---
+    // Bytes of recent main-stream messages kept for reconnecting clients; 0 disables resuming
+    public int replayBufferBytes = 1 << 20;
+    // The main stream is still recorded this long after its last client left, so that client can resume
+    public int resumeWindowSeconds = 60;
+
+    // --- Compression ---
+    // Offer permessage-deflate to clients; messages shorter than compressionMinBytes are never compressed
+    public boolean permessageDeflate = true;
+    public int compressionMinBytes = 1024;
+
+    // --- Recording (see StreamRecorder) ---
+    public int recordingSegmentBytes = 64 << 20;
+    // The oldest segments are deleted beyond this many
+    public int recordingMaxSegments = 32;
+    // Full state is written at least this often, so playback can start near any time
+    public int recordingKeyframeSeconds = 60;
+
+    // --- History (see TrajectoryStore) ---
+    // How far back player paths are kept; 0 disables history
+    public int historyTicks = 30 * 60 * 20;
+    // Newer points are all kept, older ones thinned to one per historyDownsampleTicks
+    public int historyFullResolutionTicks = 5 * 60 * 20;
+    public int historyDownsampleTicks = 100;
+    public long historyMaxBytes = 16L << 20;
+
+    // --- Heatmap (see HeatmapStore) ---
+    // Memory for heatmap tiles; 0 disables the heatmap
+    public long heatmapMaxBytes = 16L << 20;
+    // Level 0 cells are 2^heatmapCellShift blocks on a side
+    public int heatmapCellShift = 2;
+    public long heatmapHalfLifeTicks = 60 * 60 * 20;
+
+    // --- Datagrams (see DatagramStream) ---
+    // Let protocol 2 clients register a UDP port for lossy updates
+    public boolean datagramsEnabled = false;
+    // Largest datagram payload; 1200 stays under the usual 1500-byte MTU with room for IP/UDP headers and tunnels
+    public int datagramMaxBytes = 1200;
+    // Every player's full state is sent this often, so values a lost datagram left stale are corrected
+    public int datagramKeyframeTicks = 20;
+
+    double positionScale() {
+        return 1L << positionPrecisionBits;
+    }
+}
@@ -0,0 +1,36 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Protocol 2 clients that share one Subscription. Filtering and encoding are done once per group, not once
+// per client. Encoder thread only.
+final class SubscriberGroup {
+
+    // Dimension named by the subscription that no player has been in yet: matches nobody
+    static final int UNRESOLVED_DIMENSION = -2;
+
+    final Subscription subscription;
+    final List<ClientSession> members = new ArrayList<>();
+    // Filters on dimension or region, so players can move in and out of view
+    final boolean positional;
+    int dimensionIndex = SpatialGrid.ANY_DIMENSION;
+    // Session IDs whose updates the members currently receive
+    final BitSet visible = new BitSet();
+    // Updates of this flush after filtering
+    final ChangeSet changes;
+
+    SubscriberGroup(Subscription subscription, int initialPlayers) {
+        this.subscription = subscription;
+        this.positional = subscription.hasRegion || subscription.dimension != null;
+        this.changes = new ChangeSet(initialPlayers);
+        if (subscription.dimension != null) {
+            dimensionIndex = UNRESOLVED_DIMENSION;
+        }
+    }
+
+    boolean admits(PlayerData data) {
+        return subscription.admitsPlayer(data) && subscription.admitsPosition(data, dimensionIndex);
+    }
+}
@@ -0,0 +1,218 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Protocol 2 clients grouped by Subscription, and the filtering of each flush's changes down to what every
+// group asked for. Groups with members other than the full stream are created on subscribe and dropped when
+// their last member leaves. Entering players are found through a SpatialGrid over the positions clients last
+// received, so a region costs the players near it rather than every change for every group.
+// Encoder thread only.
+final class SubscriberGroups {
+
+    private final StreamSettings settings;
+    private final int initialPlayers;
+    // The unfiltered stream every protocol 2 client starts in; its updates are the pipeline's own ChangeSet
+    final SubscriberGroup all;
+    private final List<SubscriberGroup> groups = new ArrayList<>();
+    private final Map<Subscription, SubscriberGroup> bySubscription = new HashMap<>();
+    private final Map<String, Integer> dimensionIndices = new HashMap<>();
+    private final SpatialGrid grid = new SpatialGrid();
+    private int[] changeIndex; // session ID -> entry in the flush's changes, or -1
+
+    SubscriberGroups(StreamSettings settings, int initialPlayers) {
+        this.settings = settings;
+        this.initialPlayers = initialPlayers;
+        this.all = new SubscriberGroup(Subscription.ALL, initialPlayers);
+        groups.add(all);
+        bySubscription.put(Subscription.ALL, all);
+        changeIndex = new int[initialPlayers];
+        Arrays.fill(changeIndex, -1);
+    }
+
+    int size() {
+        return groups.size();
+    }
+
+    SubscriberGroup get(int index) {
+        return groups.get(index);
+    }
+
+    // --- Clients ---
+
+    void add(ClientSession client) {
+        client.group = all;
+        all.members.add(client);
+    }
+
+    void remove(ClientSession client) {
+        SubscriberGroup group = client.group;
+        if (group == null) return;
+        group.members.remove(client);
+        if (group.members.isEmpty() && group != all) {
+            groups.remove(group);
+            bySubscription.remove(group.subscription);
+        }
+    }
+
+    // Moves the client to the group for 'subscription', creating it for the given players if needed
+    SubscriberGroup move(ClientSession client, Subscription subscription, PlayerData[] players) {
+        remove(client);
+        SubscriberGroup group = bySubscription.get(subscription);
+        if (group == null) {
+            group = newGroup(subscription, players);
+        }
+        client.group = group;
+        group.members.add(client);
+        return group;
+    }
+
+    private SubscriberGroup newGroup(Subscription subscription, PlayerData[] players) {
+        SubscriberGroup group = new SubscriberGroup(subscription, initialPlayers);
+        if (subscription.dimension != null) {
+            Integer index = dimensionIndices.get(subscription.dimension);
+            if (index != null) {
+                group.dimensionIndex = index;
+            }
+        }
+        for (PlayerData data : players) {
+            if (data != null && group.admits(data)) {
+                group.visible.set(data.sessionId);
+            }
+        }
+        groups.add(group);
+        bySubscription.put(subscription, group);
+        return group;
+    }
+
+    // --- Players ---
+
+    void playerJoined(PlayerData data) {
+        if (data.sessionId >= changeIndex.length) {
+            int oldLength = changeIndex.length;
+            changeIndex = Arrays.copyOf(changeIndex, Math.max(data.sessionId + 1, oldLength * 2));
+            Arrays.fill(changeIndex, oldLength, changeIndex.length, -1);
+        }
+        grid.insert(data);
+        for (int g = 0; g < groups.size(); g++) {
+            SubscriberGroup group = groups.get(g);
+            if (group.admits(data)) {
+                group.visible.set(data.sessionId);
+            }
+        }
+    }
+
+    void playerLeft(PlayerData data) {
+        grid.remove(data);
+        for (int g = 0; g < groups.size(); g++) {
+            groups.get(g).visible.clear(data.sessionId);
+        }
+    }
+
+    void dimensionNamed(String name, int index) {
+        dimensionIndices.put(name, index);
+        for (int g = 0; g < groups.size(); g++) {
+            SubscriberGroup group = groups.get(g);
+            if (name.equals(group.subscription.dimension)) {
+                group.dimensionIndex = index;
+            }
+        }
+    }
+
+    // Dimension name -> index, as far as named yet; kept current by dimensionNamed
+    Map<String, Integer> dimensionIndices() {
+        return Collections.unmodifiableMap(dimensionIndices);
+    }
+
+    // Extra fields (see PlayerField) some group wants
+    int extraFields() {
+        int fields = 0;
+        for (int g = 0; g < groups.size(); g++) {
+            fields |= groups.get(g).subscription.extraFields();
+        }
+        return fields;
+    }
+
+    // Whether any group with members gets the player's JOIN, LEAVE and achievements
+    boolean anyFollows(PlayerData data) {
+        for (int g = 0; g < groups.size(); g++) {
+            SubscriberGroup group = groups.get(g);
+            if (!group.members.isEmpty() && group.subscription.admitsPlayer(data)) return true;
+        }
+        return false;
+    }
+
+    // --- Updates ---
+
+    // Fills the changes of every group but 'all' from this flush's changes, which already hold the sent state
+    void filter(ChangeSet changes) {
+        for (int i = 0; i < changes.count; i++) {
+            PlayerData data = changes.players[i];
+            changeIndex[data.sessionId] = i;
+            if ((changes.masks[i] & MessageCodec.MASK_COORDS) != 0) {
+                grid.update(data);
+            }
+        }
+        for (int g = 0; g < groups.size(); g++) {
+            SubscriberGroup group = groups.get(g);
+            if (group != all && !group.members.isEmpty()) {
+                filter(group, changes);
+            }
+        }
+        for (int i = 0; i < changes.count; i++) {
+            changeIndex[changes.players[i].sessionId] = -1;
+        }
+    }
+
+    // Fills group.changes with what the group's clients should get from this flush:
+    //   - players in view: their changes, restricted to the field mask. A player that moved out of the filter
+    //     gets this last update, then nothing until it is back.
+    //   - players that moved into the filter: every subscribed field as an absolute value, since the clients'
+    //     baseline for them is stale
+    // Only players in view and players near the region are looked at, not every change.
+    private void filter(SubscriberGroup group, ChangeSet changes) {
+        ChangeSet out = group.changes;
+        out.clear();
+        Subscription subscription = group.subscription;
+        int keepMask = subscription.fieldMask | MessageCodec.MASK_ABSOLUTE;
+        BitSet visible = group.visible;
+        for (int sessionId = visible.nextSetBit(0); sessionId >= 0; sessionId = visible.nextSetBit(sessionId + 1)) {
+            int i = changeIndex[sessionId];
+            if (i < 0) continue;
+            int mask = changes.masks[i] & keepMask;
+            if ((mask & PlayerField.FIELD_MASK) != 0) {
+                out.addFrom(changes, i, mask);
+            }
+            if (!subscription.admitsPosition(changes.players[i], group.dimensionIndex)) {
+                visible.clear(sessionId);
+            }
+        }
+        if (!group.positional || group.dimensionIndex == SubscriberGroup.UNRESOLVED_DIMENSION) return;
+
+        if (subscription.hasRegion) {
+            grid.query(group.dimensionIndex, subscription.minX, subscription.minZ, subscription.maxX, subscription.maxZ);
+            for (int k = 0; k < grid.resultCount; k++) {
+                enterView(group, changes, grid.result[k]);
+            }
+        } else {
+            for (int i = 0; i < changes.count; i++) {
+                enterView(group, changes, changes.players[i].sessionId);
+            }
+        }
+    }
+
+    private void enterView(SubscriberGroup group, ChangeSet changes, int sessionId) {
+        // Only a sent position change can bring a player into view
+        int i = changeIndex[sessionId];
+        if (i < 0 || group.visible.get(sessionId)) return;
+        PlayerData data = changes.players[i];
+        if (!group.admits(data)) return;
+        group.visible.set(sessionId);
+        group.changes.addAbsolute(data, group.subscription.fieldMask, settings);
+    }
+}
@@ -0,0 +1,136 @@
+package pl.matip.liveplayerdata.stream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+// What a protocol 2 client wants to receive. Sent as a text message:
+//   {"type": "subscribe",
+//    "players": ["Steve", "Alex"],          only these players (JOIN/LEAVE/achievements and updates)
+//    "fields": ["coords", "health", "xp"],  update fields to include, any of PlayerField's (extra fields such
+//                                           as "food" or "ping" are only sent to subscriptions naming them)
+//    "dimension": "minecraft:the_nether",   only players in this dimension
+//    "box": {"minX": -500, "minZ": -500, "maxX": 500, "maxZ": 500},
+//    "center": {"x": 0, "z": 0}, "radius": 200}
+// Every key is optional; {"type": "subscribe"} goes back to the full stream. box and center/radius are
+// alternatives on the X/Z plane, in the given dimension or in every dimension if none is given.
+// Subscriptions are values: clients with equal subscriptions share one encoded stream.
+public final class Subscription {
+
+    public static final Subscription ALL = new Subscription(null, MessageCodec.MASK_ALL_FIELDS, null,
+            false, 0, 0, 0, 0, 0);
+
+    // World border limit; keeps region sizes sane whatever a client sends
+    private static final double MAX_COORDINATE = 30_000_000;
+
+    final Set<String> players; // lower-case names, null = all
+    final int fieldMask;
+    final String dimension; // null = all
+    final boolean hasRegion;
+    final double minX, minZ, maxX, maxZ;
+    final double radius; // > 0: circle around the box centre
+
+    private Subscription(Set<String> players, int fieldMask, String dimension, boolean hasRegion,
+                         double minX, double minZ, double maxX, double maxZ, double radius) {
+        this.players = players;
+        this.fieldMask = fieldMask;
+        this.dimension = dimension;
+        this.hasRegion = hasRegion;
+        this.minX = minX;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxZ = maxZ;
+        this.radius = radius;
+    }
+
+    public static Subscription parse(JsonObject json) {
+        Set<String> players = null;
+        if (json.has("players")) {
+            players = new HashSet<>();
+            for (JsonElement name : json.getAsJsonArray("players")) {
+                players.add(name.getAsString().toLowerCase(Locale.ROOT));
+            }
+        }
+
+        int fieldMask = MessageCodec.MASK_ALL_FIELDS;
+        if (json.has("fields")) {
+            fieldMask = 0;
+            JsonArray fields = json.getAsJsonArray("fields");
+            for (JsonElement name : fields) {
+                PlayerField field = PlayerField.byName(name.getAsString());
+                if (field == null) throw new IllegalArgumentException("Unknown field: " + name.getAsString());
+                fieldMask |= field.bit;
+            }
+        }
+
+        String dimension = json.has("dimension") ? json.get("dimension").getAsString() : null;
+
+        if (json.has("box")) {
+            JsonObject box = json.getAsJsonObject("box");
+            double minX = clamp(box.get("minX").getAsDouble());
+            double minZ = clamp(box.get("minZ").getAsDouble());
+            double maxX = clamp(box.get("maxX").getAsDouble());
+            double maxZ = clamp(box.get("maxZ").getAsDouble());
+            return new Subscription(players, fieldMask, dimension, true,
+                    Math.min(minX, maxX), Math.min(minZ, maxZ), Math.max(minX, maxX), Math.max(minZ, maxZ), 0);
+        }
+        if (json.has("radius")) {
+            JsonObject center = json.getAsJsonObject("center");
+            double x = clamp(center.get("x").getAsDouble());
+            double z = clamp(center.get("z").getAsDouble());
+            double radius = Math.min(Math.abs(json.get("radius").getAsDouble()), MAX_COORDINATE);
+            return new Subscription(players, fieldMask, dimension, true,
+                    x - radius, z - radius, x + radius, z + radius, radius);
+        }
+        return new Subscription(players, fieldMask, dimension, false, 0, 0, 0, 0, 0);
+    }
+
+    private static double clamp(double value) {
+        if (Double.isNaN(value)) throw new IllegalArgumentException("NaN coordinate");
+        return Math.max(-MAX_COORDINATE, Math.min(MAX_COORDINATE, value));
+    }
+
+    int extraFields() {
+        return fieldMask & PlayerField.EXTRA_MASK;
+    }
+
+    boolean admitsPlayer(PlayerData data) {
+        return players == null || players.contains(data.nameLower);
+    }
+
+    // Position part of the filter, against the position clients last received
+    boolean admitsPosition(PlayerData data, int dimensionIndex) {
+        if (dimensionIndex != SpatialGrid.ANY_DIMENSION && data.dimension != dimensionIndex) {
+            return false;
+        }
+        if (!hasRegion) return true;
+        if (data.x < minX || data.x > maxX || data.z < minZ || data.z > maxZ) return false;
+        if (radius > 0) {
+            double dx = data.x - (minX + maxX) / 2;
+            double dz = data.z - (minZ + maxZ) / 2;
+            return dx * dx + dz * dz <= radius * radius;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Subscription other)) return false;
+        return fieldMask == other.fieldMask && hasRegion == other.hasRegion
+                && Double.compare(minX, other.minX) == 0 && Double.compare(minZ, other.minZ) == 0
+                && Double.compare(maxX, other.maxX) == 0 && Double.compare(maxZ, other.maxZ) == 0
+                && Double.compare(radius, other.radius) == 0
+                && Objects.equals(players, other.players) && Objects.equals(dimension, other.dimension);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(players, fieldMask, dimension, hasRegion, minX, minZ, maxX, maxZ, radius);
+    }
+}
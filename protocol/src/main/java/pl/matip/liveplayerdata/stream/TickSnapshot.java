@@ -0,0 +1,104 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// One slot of the SnapshotRing.
+// Filled on the server thread with plain copies of player state and the events (join/leave/achievement)
+// raised since the previous slot, then read by the encoder thread. Slots are reused, so nothing here is
+// allocated per tick once the arrays have grown to the player count.
+public final class TickSnapshot {
+
+    // --- Player columns (valid only when hasPlayers) ---
+    boolean hasPlayers;
+    long tick;
+    int playerCount;
+    int[] sessionIds;
+    int[] dimension;
+    double[] x, y, z;
+    float[] health;
+    int[] xp;
+    // Extra fields (see PlayerField), EXTRA_COUNT per player; only the fields in extraMask were filled
+    int[] extra;
+    int extraMask;
+
+    // --- Events, in the order they happened ---
+    final List<PipelineEvent> events = new ArrayList<>();
+
+    TickSnapshot(int initialPlayers) {
+        allocate(Math.max(initialPlayers, 1));
+    }
+
+    // --- Producer side ---
+
+    public void beginPlayers(long serverTick, int expectedCount) {
+        if (sessionIds.length < expectedCount) {
+            allocate(Math.max(expectedCount, sessionIds.length * 2));
+        }
+        hasPlayers = true;
+        tick = serverTick;
+        playerCount = 0;
+        extraMask = 0;
+    }
+
+    public void addPlayer(int sessionId, int playerDimension, double px, double py, double pz, float playerHealth, int playerXp) {
+        int i = playerCount;
+        if (i == sessionIds.length) {
+            grow(sessionIds.length * 2);
+        }
+        sessionIds[i] = sessionId;
+        dimension[i] = playerDimension;
+        x[i] = px;
+        y[i] = py;
+        z[i] = pz;
+        health[i] = playerHealth;
+        xp[i] = playerXp;
+        playerCount = i + 1;
+    }
+
+    // Extra field of the player added last. A field set for one player of the sample must be set for all of
+    // them. The dimension field comes from the dimension column and needs no call.
+    public void setExtra(PlayerField field, int value) {
+        extra[(playerCount - 1) * PlayerField.EXTRA_COUNT + field.index] = value;
+        extraMask |= field.bit;
+    }
+
+    // Drops a sample that has not been published yet, e.g. because it still lists a player that just left
+    public void discardPlayers() {
+        hasPlayers = false;
+        playerCount = 0;
+    }
+
+    public boolean hasEvents() {
+        return !events.isEmpty();
+    }
+
+    void reset() {
+        hasPlayers = false;
+        playerCount = 0;
+        events.clear();
+    }
+
+    private void allocate(int capacity) {
+        sessionIds = new int[capacity];
+        dimension = new int[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        health = new float[capacity];
+        xp = new int[capacity];
+        extra = new int[capacity * PlayerField.EXTRA_COUNT];
+    }
+
+    private void grow(int capacity) {
+        sessionIds = Arrays.copyOf(sessionIds, capacity);
+        dimension = Arrays.copyOf(dimension, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        health = Arrays.copyOf(health, capacity);
+        xp = Arrays.copyOf(xp, capacity);
+        extra = Arrays.copyOf(extra, capacity * PlayerField.EXTRA_COUNT);
+    }
+}
@@ -0,0 +1,131 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A run of one player's history points, encoded the way the HISTORY message carries them (see MessageCodec):
+//   first point   var-int tick, zigzag x/y/z, zigzag health, zigzag xp
+//   later points  zigzag tick delta-of-delta, zigzag deltas of x/y/z, health and xp
+// Positions are in 1/2^POSITION_BITS blocks and health in 1/HEALTH_SCALE points, so a player walking at a
+// steady update rate costs about six bytes a point. Every chunk starts from absolute values, so chunks can be
+// dropped or downsampled on their own and sent as they are. Encoder thread only.
+final class TrajectoryChunk {
+
+    static final int POSITION_BITS = 4;
+    static final double POSITION_SCALE = 1 << POSITION_BITS;
+    static final int CAPACITY = 512;
+    // tick dod, 3 coords, health, xp, each at most a 10-byte var-int
+    private static final int MAX_POINT_BYTES = 6 * 10;
+
+    byte[] data;
+    int length;
+    int count;
+    long firstTick;
+    long lastTick;
+    boolean downsampled;
+    private ByteBuffer writer; // null once sealed
+    // Previous point, for deltas
+    private long previousDelta;
+    private long x;
+    private long y;
+    private long z;
+    private long health;
+    private long xp;
+
+    TrajectoryChunk() {
+        this(CAPACITY);
+    }
+
+    private TrajectoryChunk(int capacity) {
+        data = new byte[capacity];
+        writer = ByteBuffer.wrap(data);
+    }
+
+    boolean isSealed() {
+        return writer == null;
+    }
+
+    // false when the chunk is full; seal it and start another
+    boolean append(long tick, long qx, long qy, long qz, long qHealth, long newXp) {
+        if (length + MAX_POINT_BYTES > data.length) return false;
+        if (count == 0) {
+            VarInts.write(writer, tick);
+            VarInts.writeSigned(writer, qx);
+            VarInts.writeSigned(writer, qy);
+            VarInts.writeSigned(writer, qz);
+            VarInts.writeSigned(writer, qHealth);
+            VarInts.writeSigned(writer, newXp);
+            firstTick = tick;
+            previousDelta = 0;
+        } else {
+            long delta = tick - lastTick;
+            VarInts.writeSigned(writer, delta - previousDelta);
+            VarInts.writeSigned(writer, qx - x);
+            VarInts.writeSigned(writer, qy - y);
+            VarInts.writeSigned(writer, qz - z);
+            VarInts.writeSigned(writer, qHealth - health);
+            VarInts.writeSigned(writer, newXp - xp);
+            previousDelta = delta;
+        }
+        lastTick = tick;
+        x = qx;
+        y = qy;
+        z = qz;
+        health = qHealth;
+        xp = newXp;
+        count++;
+        length = writer.position();
+        return true;
+    }
+
+    void seal() {
+        data = Arrays.copyOf(data, length);
+        writer = null;
+    }
+
+    // Sealed copy that keeps the first point and then at most one point per stepTicks
+    TrajectoryChunk downsample(int stepTicks) {
+        // Points further apart can need longer deltas; room for the worst case, trimmed by seal()
+        TrajectoryChunk out = new TrajectoryChunk(count * MAX_POINT_BYTES);
+        ByteBuffer in = ByteBuffer.wrap(data, 0, length);
+        long tick = 0;
+        long delta = 0;
+        long px = 0;
+        long py = 0;
+        long pz = 0;
+        long pHealth = 0;
+        long pXp = 0;
+        long keptTick = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0) {
+                tick = VarInts.read(in);
+                px = VarInts.readSigned(in);
+                py = VarInts.readSigned(in);
+                pz = VarInts.readSigned(in);
+                pHealth = VarInts.readSigned(in);
+                pXp = VarInts.readSigned(in);
+            } else {
+                delta += VarInts.readSigned(in);
+                tick += delta;
+                px += VarInts.readSigned(in);
+                py += VarInts.readSigned(in);
+                pz += VarInts.readSigned(in);
+                pHealth += VarInts.readSigned(in);
+                pXp += VarInts.readSigned(in);
+            }
+            // The last point is kept too, so the path still ends where it did
+            if (i == 0 || tick - keptTick >= stepTicks || i == count - 1) {
+                out.append(tick, px, py, pz, pHealth, pXp);
+                keptTick = tick;
+            }
+        }
+        out.seal();
+        out.downsampled = true;
+        return out;
+    }
+
+    // Memory held, for the store's cap
+    int footprint() {
+        return data.length + 64;
+    }
+}
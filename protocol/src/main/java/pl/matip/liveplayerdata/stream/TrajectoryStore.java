@@ -0,0 +1,128 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Recent path, health and XP of every online player, kept as TrajectoryChunks so clients can ask for it
+// (HISTORY) instead of each browser tab keeping its own. A point is stored whenever the player's values are
+// sent, so the dead-bands and the update scheduler already thin it out.
+//   - chunks newer than the full-resolution window keep every point
+//   - older chunks are downsampled to one point per downsample step
+//   - chunks older than the retention window are dropped
+//   - a chunk that has not been written for the full-resolution window is sealed, so an idle player's last
+//     chunk ages like the others
+//   - above the memory cap the oldest chunks of any player go first
+// Encoder thread only.
+final class TrajectoryStore {
+
+    private final long retentionTicks;
+    private final long fullResolutionTicks;
+    private final int downsampleTicks;
+    private final long maxBytes;
+    private final ArrayList<List<TrajectoryChunk>> histories = new ArrayList<>(); // by session ID, oldest chunk first
+    private long bytes;
+
+    TrajectoryStore(long retentionTicks, long fullResolutionTicks, int downsampleTicks, long maxBytes) {
+        this.retentionTicks = retentionTicks;
+        this.fullResolutionTicks = fullResolutionTicks;
+        this.downsampleTicks = downsampleTicks;
+        this.maxBytes = maxBytes;
+    }
+
+    void record(PlayerData data, long tick) {
+        while (histories.size() <= data.sessionId) {
+            histories.add(null);
+        }
+        List<TrajectoryChunk> chunks = histories.get(data.sessionId);
+        if (chunks == null) {
+            chunks = new ArrayList<>();
+            histories.set(data.sessionId, chunks);
+        }
+        TrajectoryChunk open = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (open != null && tick <= open.lastTick) return; // One point per tick
+        long qx = Math.round(data.x * TrajectoryChunk.POSITION_SCALE);
+        long qy = Math.round(data.y * TrajectoryChunk.POSITION_SCALE);
+        long qz = Math.round(data.z * TrajectoryChunk.POSITION_SCALE);
+        long qHealth = Math.round(data.health * MessageCodec.HEALTH_SCALE);
+        if (open == null || open.isSealed() || !open.append(tick, qx, qy, qz, qHealth, data.xp)) {
+            if (open != null && !open.isSealed()) {
+                seal(open);
+            }
+            TrajectoryChunk chunk = new TrajectoryChunk();
+            chunk.append(tick, qx, qy, qz, qHealth, data.xp);
+            chunks.add(chunk);
+            bytes += chunk.footprint();
+        }
+    }
+
+    private void seal(TrajectoryChunk chunk) {
+        bytes -= chunk.footprint();
+        chunk.seal();
+        bytes += chunk.footprint();
+    }
+
+    void remove(int sessionId) {
+        List<TrajectoryChunk> chunks = sessionId < histories.size() ? histories.get(sessionId) : null;
+        if (chunks == null) return;
+        for (TrajectoryChunk chunk : chunks) {
+            bytes -= chunk.footprint();
+        }
+        histories.set(sessionId, null);
+    }
+
+    // Downsamples and drops what has aged, then enforces the memory cap
+    void maintain(long tick) {
+        for (List<TrajectoryChunk> chunks : histories) {
+            if (chunks == null) continue;
+            for (int i = chunks.size() - 1; i >= 0; i--) {
+                TrajectoryChunk chunk = chunks.get(i);
+                long age = tick - chunk.lastTick;
+                if (!chunk.isSealed()) {
+                    if (age <= fullResolutionTicks) continue;
+                    seal(chunk); // Idle or left without a remove; the next point starts a new chunk
+                }
+                if (age > retentionTicks) {
+                    bytes -= chunk.footprint();
+                    chunks.remove(i);
+                } else if (!chunk.downsampled && age > fullResolutionTicks) {
+                    TrajectoryChunk smaller = chunk.downsample(downsampleTicks);
+                    bytes += smaller.footprint() - chunk.footprint();
+                    chunks.set(i, smaller);
+                }
+            }
+        }
+        while (bytes > maxBytes && dropOldest()) {
+            // Until under the cap, or only chunks still being written are left
+        }
+    }
+
+    private boolean dropOldest() {
+        List<TrajectoryChunk> oldest = null;
+        for (List<TrajectoryChunk> chunks : histories) {
+            if (chunks == null || chunks.isEmpty() || !chunks.get(0).isSealed()) continue;
+            if (oldest == null || chunks.get(0).firstTick < oldest.get(0).firstTick) {
+                oldest = chunks;
+            }
+        }
+        if (oldest == null) return false;
+        bytes -= oldest.remove(0).footprint();
+        return true;
+    }
+
+    // --- Queries ---
+
+    // Chunks of the player that reach back to sinceTick or later; null if there are none
+    List<TrajectoryChunk> chunks(int sessionId, long sinceTick) {
+        List<TrajectoryChunk> chunks = sessionId < histories.size() ? histories.get(sessionId) : null;
+        if (chunks == null) return null;
+        int first = chunks.size();
+        while (first > 0 && chunks.get(first - 1).lastTick >= sinceTick) {
+            first--;
+        }
+        return first < chunks.size() ? chunks.subList(first, chunks.size()) : null;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+}
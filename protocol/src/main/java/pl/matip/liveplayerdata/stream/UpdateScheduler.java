@@ -0,0 +1,92 @@
+package pl.matip.liveplayerdata.stream;
+
+// Picks how often each player is diffed and sent, replacing the old fixed 30-tick debounce.
+// Every sample updates a cheap activity estimate (smoothed speed, last health change, last movement); a player
+// is only diffed once the time since its last check reaches the interval that activity asks for:
+//   - health changed recently (combat, fall damage): min interval
+//   - idle for a while (AFK): max interval
+//   - otherwise: the time it takes to move targetDistance blocks at the current speed, clamped to [min, max]
+// The interval is re-evaluated on every sample, so a player who takes off with an elytra is picked up on the
+// next sample instead of at the end of a long idle interval. Players start at staggered phases, so players
+// with long intervals are spread over ticks instead of all coming due together. State lives in the
+// PlayerStateStore columns of each slot, and a call only touches its own slot, so the diff threads of
+// SnapshotDiffer can share one scheduler.
+final class UpdateScheduler {
+
+    // Weight of the newest speed sample in the moving average
+    private static final double SPEED_SMOOTHING = 0.5;
+
+    private final StreamSettings settings;
+
+    UpdateScheduler(StreamSettings settings) {
+        this.settings = settings;
+    }
+
+    // After PlayerStateStore.join, which set the baseline
+    void onJoin(PlayerStateStore store, int slot, long tick) {
+        store.sampleTick[slot] = tick;
+        store.sampleX[slot] = store.x[slot];
+        store.sampleY[slot] = store.y[slot];
+        store.sampleZ[slot] = store.z[slot];
+        store.sampleHealth[slot] = store.health[slot];
+        store.speed[slot] = 0;
+        store.lastActiveTick[slot] = tick;
+        store.lastHealthChangeTick[slot] = Long.MIN_VALUE / 2;
+        store.lastKeyframeTick[slot] = tick; // JOIN carries the full state
+        // Stagger the first check so players that joined together do not stay in lockstep
+        store.lastCheckTick[slot] = tick - (slot * 7L) % settings.maxIntervalTicks;
+    }
+
+    // Records a sample; returns true if the player is due for a diff now
+    boolean observe(PlayerStateStore store, int slot, long tick, double x, double y, double z, float health) {
+        long elapsed = tick - store.sampleTick[slot];
+        if (elapsed > 0) {
+            double dx = x - store.sampleX[slot];
+            double dy = y - store.sampleY[slot];
+            double dz = z - store.sampleZ[slot];
+            double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            store.speed[slot] += SPEED_SMOOTHING * (distance / elapsed - store.speed[slot]);
+            if (distance > settings.positionDeadband) {
+                store.lastActiveTick[slot] = tick;
+            }
+            if (health != store.sampleHealth[slot]) {
+                store.lastHealthChangeTick[slot] = tick;
+                store.lastActiveTick[slot] = tick;
+            }
+            store.sampleTick[slot] = tick;
+            store.sampleX[slot] = x;
+            store.sampleY[slot] = y;
+            store.sampleZ[slot] = z;
+            store.sampleHealth[slot] = health;
+        }
+        return tick - store.lastCheckTick[slot] >= interval(store, slot, tick) || keyframeDue(store, slot, tick);
+    }
+
+    boolean keyframeDue(PlayerStateStore store, int slot, long tick) {
+        return tick - store.lastKeyframeTick[slot] >= settings.keyframeIntervalTicks;
+    }
+
+    void checked(PlayerStateStore store, int slot, long tick, boolean keyframe) {
+        store.lastCheckTick[slot] = tick;
+        if (keyframe) {
+            store.lastKeyframeTick[slot] = tick;
+        }
+    }
+
+    private int interval(PlayerStateStore store, int slot, long tick) {
+        int min = settings.minIntervalTicks;
+        int max = settings.maxIntervalTicks;
+        if (tick - store.lastHealthChangeTick[slot] <= settings.combatHoldTicks) {
+            return min;
+        }
+        if (tick - store.lastActiveTick[slot] >= settings.idleAfterTicks) {
+            return max;
+        }
+        double speed = store.speed[slot];
+        if (speed <= 0) {
+            return max;
+        }
+        double ticks = settings.targetDistance / speed;
+        return ticks >= max ? max : Math.max(min, (int) ticks);
+    }
+}
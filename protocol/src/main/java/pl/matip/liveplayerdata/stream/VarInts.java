@@ -0,0 +1,56 @@
+package pl.matip.liveplayerdata.stream;
+
+import java.nio.ByteBuffer;
+
+// LEB128 variable-length integers with zigzag mapping, so small deltas of either sign take one byte.
+public final class VarInts {
+
+    private VarInts() {
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Bytes needed for an unsigned (already zigzagged) value
+    public static int size(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value | 1);
+        return (bits + 6) / 7;
+    }
+
+    public static int signedSize(long value) {
+        return size(zigzag(value));
+    }
+
+    public static void write(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static void writeSigned(ByteBuffer buffer, long value) {
+        write(buffer, zigzag(value));
+    }
+
+    public static long read(ByteBuffer buffer) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+
+    public static long readSigned(ByteBuffer buffer) {
+        return unzigzag(read(buffer));
+    }
+}
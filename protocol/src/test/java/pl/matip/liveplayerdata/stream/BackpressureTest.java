@@ -0,0 +1,262 @@
+package pl.matip.liveplayerdata.stream;
+
+import com.google.gson.JsonParser;
+import org.java_websocket.framing.CloseFrame;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Clients are driven through the depth of their outbound queue, see TestConnection.queued
+final class BackpressureTest {
+
+    private static final int HIGH = 16;
+    private static final int LOW = HIGH / Backpressure.LOW_WATERMARK_DIVISOR;
+    private static final int HARD = HIGH * Backpressure.HARD_LIMIT_FACTOR;
+    private static final int PRECISION_BITS = 5;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    private final StreamSettings settings = settings();
+    private final FrameBroadcaster broadcaster = new FrameBroadcaster(new StreamSettings().compressionMinBytes,
+            new PipelineMetrics());
+    private final List<ClientSession> resynced = new ArrayList<>(); // catch-ups reported to the pipeline
+    private final Backpressure backpressure = new Backpressure(settings, broadcaster, this::encode,
+            resynced::add, 4);
+    private final PlayerData[] players = {
+            null,
+            player(1, 1.5, 20, 10),
+            player(2, -100, 12.5f, 3),
+            player(3, 4000.25, 0.5f, 30),
+    };
+
+    private static StreamSettings settings() {
+        StreamSettings settings = new StreamSettings();
+        settings.maxQueuedFrames = HIGH;
+        settings.slowClientTimeoutSeconds = TIMEOUT_SECONDS;
+        settings.deltaEncoding = true;
+        settings.positionPrecisionBits = PRECISION_BITS;
+        return settings;
+    }
+
+    private static PlayerData player(int sessionId, double x, float health, int xp) {
+        return new PlayerData(sessionId, "Player" + sessionId, 0, x, 64, -x, health, xp, new BitSet());
+    }
+
+    // --- Watermarks ---
+
+    @Test
+    void lagsAtTheHighWatermarkAndResumesOnlyAtTheLow() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = session(conn, Subscription.ALL);
+
+        check(client, conn, HIGH - 1, 0);
+        assertFalse(client.isLagging());
+        check(client, conn, HIGH, 0);
+        assertTrue(client.isLagging());
+        assertEquals(HIGH, client.queueDepth());
+
+        check(client, conn, HIGH - 1, 1);
+        check(client, conn, LOW + 1, 2);
+        assertTrue(client.isLagging(), "between the watermarks a lagging client keeps lagging");
+        assertEquals(0, client.catchUps());
+
+        check(client, conn, LOW, 3);
+        assertFalse(client.isLagging());
+        assertEquals(1, client.catchUps());
+        check(client, conn, HIGH - 1, 4);
+        assertFalse(client.isLagging(), "between the watermarks a live client stays live");
+        assertEquals(0, conn.closeCode);
+    }
+
+    // --- Missed updates ---
+
+    @Test
+    void laggingClientsRememberWhoseUpdatesTheyMissed() {
+        ClientSession live = session(new TestConnection(), Subscription.ALL);
+        ClientSession lagging = session(new TestConnection(), Subscription.ALL);
+        lagging.startLagging(0);
+        List<ClientSession> clients = List.of(live, lagging);
+
+        assertTrue(Backpressure.anyLive(clients, changes(1, 3)));
+        assertTrue(Backpressure.anyLive(clients, changes(3, 2)));
+        assertEquals("{1, 2, 3}", lagging.missed.toString());
+        assertEquals(2, lagging.droppedFrames());
+        assertTrue(live.missed.isEmpty());
+        assertEquals(0, live.droppedFrames());
+
+        Backpressure.playerLeft(clients, 3);
+        assertEquals("{1, 2}", lagging.missed.toString());
+
+        live.startLagging(0);
+        assertFalse(Backpressure.anyLive(clients, changes(1)), "nobody left to encode for");
+    }
+
+    // --- Catch-up ---
+
+    @Test
+    void catchUpCarriesCurrentAbsoluteValuesOfTheMissedPlayers() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = session(conn, Subscription.ALL);
+        lagBehind(client, conn);
+        client.missed.set(1);
+        client.missed.set(3);
+        client.missed.set(7); // Left meanwhile
+        players[3].x = 5000; // Values newer than the dropped updates win
+
+        check(client, conn, 0, 1);
+
+        assertTrue(client.missed.isEmpty());
+        assertEquals(List.of(client), resynced);
+        ByteBuffer batch = conn.nextPayload();
+        assertNull(conn.outQueue.poll());
+        assertEquals(MessageCodec.MSG_TYPE_DELTA_BATCH, batch.get());
+        assertEquals(PRECISION_BITS, batch.get());
+        assertEquals(MessageCodec.DELTA_FLAG_KEYFRAME, batch.get());
+        assertEquals(2, batch.getShort());
+        for (PlayerData data : List.of(players[1], players[3])) {
+            batch.get(); // Entry length
+            assertEquals(data.sessionId, batch.getShort());
+            assertEquals(MessageCodec.MASK_ALL_FIELDS | MessageCodec.MASK_ABSOLUTE, batch.get());
+            assertEquals(Math.round(data.x * 32), VarInts.readSigned(batch));
+            assertEquals(Math.round(data.y * 32), VarInts.readSigned(batch));
+            assertEquals(Math.round(data.z * 32), VarInts.readSigned(batch));
+            assertEquals(Math.round(data.health * MessageCodec.HEALTH_SCALE), VarInts.readSigned(batch));
+            assertEquals(data.xp, VarInts.readSigned(batch));
+        }
+        assertFalse(batch.hasRemaining());
+    }
+
+    @Test
+    void catchUpKeepsToTheSubscription() {
+        TestConnection conn = new TestConnection();
+        Subscription healthOfTwo = Subscription.parse(JsonParser.parseString(
+                "{\"players\": [\"player2\"], \"fields\": [\"health\"]}").getAsJsonObject());
+        ClientSession client = session(conn, healthOfTwo);
+        lagBehind(client, conn);
+        client.missed.set(1);
+        client.missed.set(2);
+
+        check(client, conn, 0, 1);
+
+        ByteBuffer batch = conn.nextPayload();
+        batch.position(3);
+        assertEquals(1, batch.getShort());
+        batch.get();
+        assertEquals(2, batch.getShort());
+        assertEquals(MessageCodec.MASK_HEALTH | MessageCodec.MASK_ABSOLUTE, batch.get());
+        assertEquals(Math.round(12.5f * MessageCodec.HEALTH_SCALE), VarInts.readSigned(batch));
+        assertFalse(batch.hasRemaining());
+    }
+
+    @Test
+    void protocol1CatchUpIsOneUpdatePerMissedPlayer() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = new ClientSession(conn, LegacyCodec.PROTOCOL_VERSION);
+        lagBehind(client, conn);
+        client.missed.set(2);
+        client.missed.set(3);
+
+        check(client, conn, 0, 1);
+
+        for (int sessionId : new int[]{2, 3}) {
+            ByteBuffer update = conn.nextPayload();
+            assertEquals(LegacyCodec.MSG_TYPE_UPDATE, update.get());
+            byte[] name = new byte[update.get() & 0xFF];
+            update.get(name);
+            assertEquals("Player" + sessionId, new String(name, StandardCharsets.UTF_8));
+        }
+        assertNull(conn.outQueue.poll());
+        assertEquals(List.of(), resynced, "protocol 1 has no SYNC");
+    }
+
+    @Test
+    void nothingIsSentWhenNothingWasMissed() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = session(conn, Subscription.ALL);
+        lagBehind(client, conn);
+        check(client, conn, 0, 1);
+        assertFalse(client.isLagging());
+        assertNull(conn.outQueue.poll());
+        assertEquals(List.of(client), resynced, "in sync again even without a batch");
+    }
+
+    // --- Disconnects ---
+
+    @Test
+    void queuePastTheHardLimitDisconnects() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = session(conn, Subscription.ALL);
+        check(client, conn, HARD, 0);
+        assertEquals(0, conn.closeCode, "at the limit the client only lags");
+        assertTrue(client.isLagging());
+
+        check(client, conn, HARD + 1, 1);
+        assertEquals(CloseFrame.TRY_AGAIN_LATER, conn.closeCode);
+    }
+
+    @Test
+    void lagBeyondTheTimeoutDisconnects() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = session(conn, Subscription.ALL);
+        long timeout = TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        backpressure.check(List.of(client), players, lag(conn, HIGH, 1_000));
+        backpressure.check(List.of(client), players, lag(conn, HIGH / 2, 1_000 + timeout));
+        assertEquals(0, conn.closeCode);
+
+        backpressure.check(List.of(client), players, lag(conn, HIGH / 2, 1_000 + timeout + 1));
+        assertEquals(CloseFrame.TRY_AGAIN_LATER, conn.closeCode);
+    }
+
+    @Test
+    void closedClientsAreNotChecked() {
+        TestConnection conn = new TestConnection();
+        ClientSession client = session(conn, Subscription.ALL);
+        conn.closed = true;
+        check(client, conn, HARD + 1, 0);
+        assertEquals(0, conn.closeCode);
+        assertFalse(client.isLagging());
+    }
+
+    // --- Helpers ---
+
+    private ClientSession session(TestConnection conn, Subscription subscription) {
+        ClientSession client = new ClientSession(conn, MessageCodec.PROTOCOL_VERSION);
+        client.group = new SubscriberGroup(subscription, 4);
+        return client;
+    }
+
+    private void lagBehind(ClientSession client, TestConnection conn) {
+        check(client, conn, HIGH, 0);
+        assertTrue(client.isLagging());
+    }
+
+    // Runs a check with 'queued' frames pending, 'second' seconds in
+    private void check(ClientSession client, TestConnection conn, int queued, int second) {
+        backpressure.check(List.of(client), players, lag(conn, queued, TimeUnit.SECONDS.toNanos(second)));
+    }
+
+    private static long lag(TestConnection conn, int queued, long nowNanos) {
+        conn.queued(queued);
+        return nowNanos;
+    }
+
+    private ChangeSet changes(int... sessionIds) {
+        ChangeSet changes = new ChangeSet(4);
+        for (int sessionId : sessionIds) {
+            changes.add(players[sessionId], MessageCodec.MASK_COORDS);
+        }
+        return changes;
+    }
+
+    private PooledFrame encode(ChangeSet updates) {
+        PooledFrame frame = broadcaster.acquire(MessageCodec.deltaBatchSize(updates), MessageCodec.PROTOCOL_VERSION);
+        MessageCodec.writeDeltaBatch(frame.buffer, updates, PRECISION_BITS);
+        return frame;
+    }
+}
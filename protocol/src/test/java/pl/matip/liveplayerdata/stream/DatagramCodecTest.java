@@ -0,0 +1,74 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class DatagramCodecTest {
+
+    private static final int PRECISION_BITS = 5;
+    private static final double SCALE = 1 << PRECISION_BITS;
+
+    @Test
+    void headerHasItsDeclaredSize() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        DatagramCodec.writeHeader(buffer, 0x12345678, 7, 1000, DatagramCodec.FLAG_KEYFRAME, PRECISION_BITS);
+        assertEquals(DatagramCodec.HEADER_SIZE, buffer.position());
+    }
+
+    @Test
+    void datagramRoundTrips() {
+        PlayerData walking = new PlayerData(1, "Walking", 0, 12.5, 64, -300.03125, 17.5f, 30, new BitSet());
+        PlayerData far = new PlayerData(65535, "Far", 0, 29_999_984, -64, -29_999_984, 0.5f, 0, new BitSet());
+        byte[] masks = {MessageCodec.MASK_ALL_FIELDS, MessageCodec.MASK_COORDS};
+        PlayerData[] players = {walking, far};
+
+        ByteBuffer buffer = ByteBuffer.allocate(DatagramCodec.HEADER_SIZE + 2 * DatagramCodec.MAX_ENTRY_SIZE);
+        // Sequence and tick keep their low 32 bits
+        DatagramCodec.writeHeader(buffer, -5, (1L << 32) + 9, (1L << 33) + 20, (byte) 0, PRECISION_BITS);
+        for (int i = 0; i < players.length; i++) {
+            int start = buffer.position();
+            DatagramCodec.writeEntry(buffer, players[i], masks[i], SCALE);
+            assertEquals(DatagramCodec.entrySize(players[i], masks[i], SCALE), buffer.position() - start);
+        }
+        DatagramCodec.finish(buffer, players.length);
+        buffer.flip();
+
+        assertEquals(DatagramCodec.MAGIC, buffer.getShort());
+        assertEquals(-5, buffer.getInt());
+        assertEquals(9, buffer.getInt());
+        assertEquals(20, buffer.getInt());
+        assertEquals(0, buffer.get());
+        assertEquals(PRECISION_BITS, buffer.get());
+        assertEquals(2, buffer.getShort());
+
+        assertEquals(1, buffer.getShort() & 0xFFFF);
+        assertEquals(MessageCodec.MASK_ALL_FIELDS, buffer.get());
+        assertEquals(12.5, VarInts.readSigned(buffer) / SCALE);
+        assertEquals(64, VarInts.readSigned(buffer) / SCALE);
+        assertEquals(-300.03125, VarInts.readSigned(buffer) / SCALE);
+        assertEquals(17.5, VarInts.readSigned(buffer) / (double) MessageCodec.HEALTH_SCALE);
+        assertEquals(30, VarInts.readSigned(buffer));
+
+        assertEquals(65535, buffer.getShort() & 0xFFFF);
+        assertEquals(MessageCodec.MASK_COORDS, buffer.get());
+        assertEquals(29_999_984, VarInts.readSigned(buffer) / SCALE);
+        assertEquals(-64, VarInts.readSigned(buffer) / SCALE);
+        assertEquals(-29_999_984, VarInts.readSigned(buffer) / SCALE);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void largestEntryFitsMaxEntrySize() {
+        PlayerData extreme = new PlayerData(1, "Extreme", 0, -Double.MAX_VALUE, Double.MAX_VALUE, -1e300,
+                -Float.MAX_VALUE, Integer.MIN_VALUE, new BitSet());
+        int size = DatagramCodec.entrySize(extreme, MessageCodec.MASK_ALL_FIELDS, SCALE);
+        assertTrue(size <= DatagramCodec.MAX_ENTRY_SIZE, "entry of " + size + " bytes");
+        ByteBuffer buffer = ByteBuffer.allocate(DatagramCodec.MAX_ENTRY_SIZE);
+        DatagramCodec.writeEntry(buffer, extreme, MessageCodec.MASK_ALL_FIELDS, SCALE);
+        assertEquals(size, buffer.position());
+    }
+}
@@ -0,0 +1,276 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidHandshakeException;
+import org.java_websocket.extensions.DefaultExtension;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.handshake.HandshakeImpl1Client;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class FrameBroadcasterTest {
+
+    private static final int COMPRESSION_MIN_BYTES = 256;
+
+    @Test
+    void plainConnectionsShareTheBytesTheLibraryWouldFrame() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection first = new TestConnection(new Draft_6455());
+        TestConnection second = new TestConnection(new Draft_6455());
+        byte[] payload = payload(300); // 16-bit length header
+
+        broadcaster.broadcast(frame(broadcaster, payload), clients(first, second));
+
+        ByteBuffer expected = libraryFrame(payload);
+        for (TestConnection conn : List.of(first, second)) {
+            ByteBuffer queued = conn.outQueue.poll();
+            assertNotNull(queued);
+            assertTrue(queued.isReadOnly());
+            assertEquals(expected, queued);
+            assertNull(conn.outQueue.poll());
+            assertEquals(1, conn.writeDemands);
+        }
+    }
+
+    @Test
+    void negotiatedExtensionFallsBackToSend() throws InvalidHandshakeException {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection conn = new TestConnection(new Draft_6455(new UnknownExtension()));
+        HandshakeImpl1Client request = new HandshakeImpl1Client();
+        request.put("Sec-WebSocket-Version", "13");
+        request.put("Sec-WebSocket-Extensions", "x-unknown");
+        conn.getDraft().acceptHandshakeAsServer(request);
+        byte[] payload = payload(200);
+        PooledFrame frame = frame(broadcaster, payload);
+
+        broadcaster.send(frame, conn);
+
+        ByteBuffer queued = conn.outQueue.poll();
+        assertFalse(queued.isReadOnly()); // The library's own copy
+        assertEquals(libraryFrame(payload), queued);
+        assertSame(frame, broadcaster.acquire(200, MessageCodec.PROTOCOL_VERSION)); // No view was handed out
+    }
+
+    @Test
+    void closingConnectionIsNotQueued() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection conn = new TestConnection(new Draft_6455());
+        conn.flushAndClose = true;
+        PooledFrame frame = frame(broadcaster, payload(10));
+
+        broadcaster.send(frame, conn);
+
+        assertTrue(conn.outQueue.isEmpty());
+        assertEquals(0, conn.writeDemands);
+        assertSame(frame, broadcaster.acquire(10, MessageCodec.PROTOCOL_VERSION));
+    }
+
+    @Test
+    void closedClientsAreDroppedAndNotSent() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection open = new TestConnection(new Draft_6455());
+        TestConnection closed = new TestConnection(new Draft_6455());
+        closed.closed = true;
+        List<ClientSession> clients = clients(open, closed);
+
+        broadcaster.broadcast(frame(broadcaster, payload(10)), clients);
+
+        assertEquals(1, clients.size());
+        assertSame(open, clients.get(0).conn);
+        assertTrue(closed.outQueue.isEmpty());
+        assertEquals(1, open.outQueue.size());
+    }
+
+    @Test
+    void frameIsReusedOnlyAfterEveryViewIsWritten() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection first = new TestConnection(new Draft_6455());
+        TestConnection second = new TestConnection(new Draft_6455());
+        PooledFrame frame = frame(broadcaster, payload(10));
+        broadcaster.broadcast(frame, clients(first, second));
+
+        write(first);
+        broadcaster.reclaim();
+        assertNotSame(frame, broadcaster.acquire(10, MessageCodec.PROTOCOL_VERSION)); // second has not written its view yet
+
+        write(second);
+        broadcaster.reclaim();
+        assertSame(frame, broadcaster.acquire(10, MessageCodec.PROTOCOL_VERSION));
+    }
+
+    @Test
+    void updatesSkipLaggingClients() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection live = new TestConnection(new Draft_6455());
+        TestConnection lagging = new TestConnection(new Draft_6455());
+        List<ClientSession> clients = clients(live, lagging);
+        clients.get(1).startLagging(0);
+
+        broadcaster.broadcastUpdate(frame(broadcaster, payload(10)), clients);
+        assertEquals(1, live.outQueue.size());
+        assertTrue(lagging.outQueue.isEmpty());
+
+        broadcaster.broadcast(frame(broadcaster, payload(10)), clients); // JOIN, LEAVE and the like
+        assertEquals(1, lagging.outQueue.size());
+    }
+
+    @Test
+    void closedConnectionReleasesItsView() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection conn = new TestConnection(new Draft_6455());
+        PooledFrame frame = frame(broadcaster, payload(10));
+        broadcaster.send(frame, conn);
+
+        conn.closed = true;
+        broadcaster.reclaim();
+        assertSame(frame, broadcaster.acquire(10, MessageCodec.PROTOCOL_VERSION));
+    }
+
+    @Test
+    void framesWithoutViewsGoStraightBack() {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        PooledFrame frame = frame(broadcaster, payload(10));
+        broadcaster.broadcast(frame, clients());
+        assertSame(frame, broadcaster.acquire(10, MessageCodec.PROTOCOL_VERSION));
+    }
+
+    @Test
+    void deflateClientsGetTheCompressedCopy() throws InvalidHandshakeException, DataFormatException {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection conn = deflateConnection();
+        byte[] payload = new byte[4000]; // Compresses well
+
+        broadcaster.send(frame(broadcaster, payload), conn);
+
+        ByteBuffer queued = conn.outQueue.poll();
+        assertNotNull(queued);
+        assertEquals((byte) 0xC2, queued.get(queued.position())); // FIN, RSV1, binary
+        assertArrayEquals(payload, inflate(conn.payloadOf(queued)));
+        assertEquals(1, broadcaster.compressionStats().compressedMessages());
+    }
+
+    @Test
+    void compressedCopyIsMadeOncePerBroadcast() throws InvalidHandshakeException, DataFormatException {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        List<TestConnection> conns = List.of(deflateConnection(), deflateConnection(), deflateConnection());
+        TestConnection plain = new TestConnection(new Draft_6455());
+        byte[] payload = new byte[4000];
+        List<ClientSession> clients = clients(conns.get(0), conns.get(1), plain, conns.get(2));
+
+        broadcaster.broadcast(frame(broadcaster, payload), clients);
+
+        assertEquals(1, broadcaster.compressionStats().compressedMessages());
+        ByteBuffer first = conns.get(0).outQueue.poll();
+        for (TestConnection conn : conns.subList(1, 3)) {
+            assertEquals(first, conn.outQueue.poll());
+        }
+        assertArrayEquals(payload, inflate(conns.get(0).payloadOf(first)));
+        assertEquals(libraryFrame(payload), plain.outQueue.poll());
+    }
+
+    @Test
+    void smallPayloadsGoOutUncompressed() throws InvalidHandshakeException {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection conn = deflateConnection();
+        byte[] payload = new byte[COMPRESSION_MIN_BYTES - 1];
+
+        broadcaster.send(frame(broadcaster, payload), conn);
+
+        assertEquals(libraryFrame(payload), conn.outQueue.poll());
+        assertEquals(0, broadcaster.compressionStats().compressedMessages());
+    }
+
+    @Test
+    void compressedCopyIsReclaimedWithItsFrame() throws InvalidHandshakeException {
+        FrameBroadcaster broadcaster = new FrameBroadcaster(COMPRESSION_MIN_BYTES, new PipelineMetrics());
+        TestConnection conn = deflateConnection();
+        PooledFrame frame = frame(broadcaster, new byte[4000]);
+        broadcaster.send(frame, conn);
+
+        broadcaster.reclaim();
+        assertNotSame(frame, broadcaster.acquire(4000, MessageCodec.PROTOCOL_VERSION)); // Only the compressed copy was queued
+
+        write(conn);
+        broadcaster.reclaim();
+        assertSame(frame, broadcaster.acquire(4000, MessageCodec.PROTOCOL_VERSION));
+    }
+
+    private static PooledFrame frame(FrameBroadcaster broadcaster, byte[] payload) {
+        PooledFrame frame = broadcaster.acquire(payload.length, MessageCodec.PROTOCOL_VERSION);
+        frame.buffer.put(payload);
+        return frame;
+    }
+
+    private static List<ClientSession> clients(WebSocket... conns) {
+        List<ClientSession> clients = new ArrayList<>();
+        for (WebSocket conn : conns) {
+            clients.add(new ClientSession(conn, MessageCodec.PROTOCOL_VERSION));
+        }
+        return clients;
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    private static ByteBuffer libraryFrame(byte[] payload) {
+        BinaryFrame frame = new BinaryFrame();
+        frame.setPayload(ByteBuffer.wrap(payload));
+        return new Draft_6455().createBinaryFrame(frame);
+    }
+
+    // Negotiated the way MyWebSocketServer offers it
+    private static TestConnection deflateConnection() throws InvalidHandshakeException {
+        PerMessageDeflateExtension deflate = new PerMessageDeflateExtension();
+        deflate.setServerNoContextTakeover(true);
+        TestConnection conn = new TestConnection(new Draft_6455(deflate));
+        HandshakeImpl1Client request = new HandshakeImpl1Client();
+        request.put("Sec-WebSocket-Version", "13");
+        request.put("Sec-WebSocket-Extensions", "permessage-deflate");
+        conn.getDraft().acceptHandshakeAsServer(request);
+        return conn;
+    }
+
+    // What the client does with a compressed message: restore the trailing empty block, then inflate
+    private static byte[] inflate(ByteBuffer compressed) throws DataFormatException {
+        byte[] input = new byte[compressed.remaining() + 4];
+        compressed.get(input, 0, compressed.remaining());
+        input[input.length - 2] = (byte) 0xFF;
+        input[input.length - 1] = (byte) 0xFF;
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(input);
+        byte[] out = new byte[64 * 1024];
+        int length = inflater.inflate(out);
+        inflater.end();
+        return Arrays.copyOf(out, length);
+    }
+
+    // What the selector thread does with a queued buffer
+    private static void write(TestConnection conn) {
+        ByteBuffer queued = conn.outQueue.poll();
+        queued.position(queued.limit());
+    }
+
+    // Accepts any offer and leaves frames alone, but is not the plain DefaultExtension
+    private static final class UnknownExtension extends DefaultExtension {
+        @Override
+        public IExtension copyInstance() {
+            return new UnknownExtension();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class HeatmapStoreTest {
+
+    private static final int CELL_SHIFT = 2; // 4-block cells, 256-block level 0 tiles
+    private static final long HALF_LIFE = 72_000;
+    // Far enough apart that players get their own tile at every level
+    private static final double SPACING = 10_000;
+
+    private static final TickSnapshot SNAPSHOT = new TickSnapshot(8);
+
+    // One sample with a player at x = spot * SPACING for every spot
+    private static void sample(HeatmapStore store, long tick, int... spots) {
+        SNAPSHOT.beginPlayers(tick, spots.length);
+        for (int i = 0; i < spots.length; i++) {
+            SNAPSHOT.addPlayer(i, 0, spots[i] * SPACING, 64, 0, 20, 0);
+        }
+        store.record(SNAPSHOT);
+    }
+
+    private static List<HeatmapStore.Tile> tiles(HeatmapStore store, int level) {
+        return store.changedSince(0, level, 0, false, 0, 0, 0, 0);
+    }
+
+    private static boolean hasTileAt(HeatmapStore store, int spot) {
+        int tileX = (int) ((long) (spot * SPACING) >> (CELL_SHIFT + HeatmapStore.TILE_SHIFT));
+        return tiles(store, 0).stream().anyMatch(tile -> tile.tileX == tileX);
+    }
+
+    @Test
+    void recordsTimeSpentInTheCell() {
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, HALF_LIFE, 1 << 20);
+        for (long tick = 1; tick <= 200; tick++) {
+            sample(store, tick, 1);
+        }
+        assertEquals(HeatmapStore.LEVELS, store.tileCount());
+        for (int level = 0; level < HeatmapStore.LEVELS; level++) {
+            List<HeatmapStore.Tile> tiles = tiles(store, level);
+            assertEquals(1, tiles.size());
+            HeatmapStore.Tile tile = tiles.get(0);
+            double seconds = tile.total * store.decay(200);
+            assertEquals(10, seconds, 0.01); // 200 ticks, slightly decayed
+        }
+    }
+
+    @Test
+    void changedSinceListsTilesInTheOrderTheyChanged() {
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, HALF_LIFE, 1 << 20);
+        sample(store, 1, 1);
+        sample(store, 2, 2);
+        long seen = store.version();
+        sample(store, 3, 3);
+        sample(store, 4, 1);
+        List<HeatmapStore.Tile> changed = store.changedSince(0, 0, seen, false, 0, 0, 0, 0);
+        assertEquals(2, changed.size());
+        assertTrue(changed.get(0).version < changed.get(1).version);
+        assertTrue(hasTileAt(store, 3));
+        assertTrue(store.changedSince(0, 0, store.version(), false, 0, 0, 0, 0).isEmpty());
+    }
+
+    // Backward-shift deletion must leave every other tile reachable: visiting a kept tile again must not
+    // create a second one
+    @Test
+    void evictionKeepsTheTableConsistent() {
+        int maxTiles = 60;
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, HALF_LIFE, (long) maxTiles * HeatmapStore.TILE_BYTES);
+        long tick = 1;
+        for (int spot = 0; spot < 400; spot++) {
+            sample(store, tick++, spot, spot / 2, spot / 3);
+            assertTrue(store.tileCount() <= maxTiles);
+            for (int level = 0; level < HeatmapStore.LEVELS; level++) {
+                Set<Long> positions = new HashSet<>();
+                for (HeatmapStore.Tile tile : tiles(store, level)) {
+                    assertTrue(positions.add((long) tile.tileX << 32 | (tile.tileZ & 0xFFFFFFFFL)), "duplicate tile");
+                }
+            }
+        }
+        int count = store.tileCount();
+        sample(store, tick, 399, 199, 133);
+        assertEquals(count, store.tileCount());
+    }
+
+    @Test
+    void newTilesAreNotEvictedByNewerOnes() {
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, HALF_LIFE, 6L * HeatmapStore.TILE_BYTES);
+        long tick = 1;
+        for (int i = 0; i < 2000; i++) {
+            sample(store, tick++, 1); // Old and heavy
+        }
+        sample(store, tick++, 1, 2); // Cap reached
+        sample(store, tick++, 1, 2, 3); // Needs tiles: the old ones go, not the lighter young ones
+        assertTrue(hasTileAt(store, 2));
+        assertTrue(hasTileAt(store, 3));
+        assertFalse(hasTileAt(store, 1));
+    }
+
+    @Test
+    void evictedTilesAreListedAsRemoved() {
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, HALF_LIFE, 3L * HeatmapStore.TILE_BYTES);
+        sample(store, 1, 1);
+        long seen = store.version();
+        sample(store, 2, 2);
+        List<HeatmapStore.Removed> removed = store.removedSince(0, 0, seen);
+        assertEquals(1, removed.size());
+        assertEquals((int) ((long) SPACING >> (CELL_SHIFT + HeatmapStore.TILE_SHIFT)), removed.get(0).tileX);
+        assertTrue(removed.get(0).version > seen);
+        assertTrue(store.removedSince(0, 0, store.version()).isEmpty());
+        assertTrue(store.removedSince(1, 0, 0).isEmpty()); // Other dimension
+    }
+
+    @Test
+    void decayedTilesAreDroppedAndListedAsRemoved() {
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, 20, 1 << 20); // One-second half-life
+        sample(store, 1, 1);
+        long seen = store.version();
+        // Values are scaled down after 20 half-lives; by then the first tiles are worth nothing
+        for (long tick = 2; tick <= 500; tick += 10) {
+            sample(store, tick, 2);
+        }
+        assertFalse(hasTileAt(store, 1));
+        assertTrue(hasTileAt(store, 2));
+        assertEquals(1, store.removedSince(0, 0, seen).size());
+    }
+
+    @Test
+    void forgettingRemovalsRenumbersTheTiles() {
+        // 3 tiles kept, so 12 removals remembered
+        HeatmapStore store = new HeatmapStore(CELL_SHIFT, HALF_LIFE, 3L * HeatmapStore.TILE_BYTES);
+        assertEquals(0, store.resetVersion());
+        for (int spot = 1; spot <= 6; spot++) {
+            sample(store, spot, spot);
+        }
+        long reset = store.resetVersion();
+        assertTrue(reset > 0);
+        for (int level = 0; level < HeatmapStore.LEVELS; level++) {
+            for (HeatmapStore.Tile tile : tiles(store, level)) {
+                assertTrue(tile.version > reset);
+            }
+        }
+        assertTrue(store.removedSince(0, 0, 0).stream().allMatch(removed -> removed.version > reset));
+    }
+}
@@ -0,0 +1,126 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class MainStreamTest {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final FrameBroadcaster broadcaster = new FrameBroadcaster(new StreamSettings().compressionMinBytes,
+            new PipelineMetrics());
+    private final SubscriberGroup group = new SubscriberGroup(Subscription.ALL, 4);
+    private final MainStream stream = new MainStream(settings(), broadcaster, group, null);
+
+    private static StreamSettings settings() {
+        StreamSettings settings = new StreamSettings();
+        settings.replayBufferBytes = 1024;
+        settings.resumeWindowSeconds = WINDOW_SECONDS;
+        return settings;
+    }
+
+    @Test
+    void numbersOnlyWhileSomeoneFollows() {
+        assertFalse(stream.isLive());
+        assertEquals(0, stream.nextSequence());
+
+        stream.clientJoined(0);
+        assertTrue(stream.isLive());
+        assertEquals(1, stream.nextSequence());
+        assertEquals(2, stream.nextSequence());
+        assertTrue(stream.isRecorded(2));
+        assertFalse(stream.isRecorded(0), "per-client messages are never recorded");
+    }
+
+    @Test
+    void resumeSendsTheMissedMessagesInOrder() {
+        stream.clientJoined(0);
+        int epoch = epoch();
+        for (int i = 0; i < 5; i++) {
+            sendLeave(i);
+        }
+
+        TestConnection conn = new TestConnection();
+        assertEquals(3, stream.resume(conn, Integer.toUnsignedLong(epoch), 2));
+        ByteBuffer hello = conn.nextPayload();
+        assertEquals(0, hello.getInt());
+        assertEquals(MessageCodec.MSG_TYPE_HELLO, hello.get());
+        assertEquals(epoch, hello.getInt());
+        assertEquals(MessageCodec.HELLO_FLAG_RESUMED, hello.get());
+        for (int sequence = 3; sequence <= 5; sequence++) {
+            ByteBuffer leave = conn.nextPayload();
+            assertEquals(sequence, leave.getInt());
+            assertEquals(MessageCodec.MSG_TYPE_LEAVE, leave.get());
+            assertEquals(sequence - 1, leave.getShort());
+        }
+        assertNull(conn.outQueue.poll());
+    }
+
+    @Test
+    void resumeFailsForAnotherEpochOrALostGap() {
+        stream.clientJoined(0);
+        int epoch = epoch();
+        sendLeave(1);
+        TestConnection conn = new TestConnection();
+        assertEquals(-1, stream.resume(conn, Integer.toUnsignedLong(epoch + 1), 0));
+        assertEquals(-1, stream.resume(conn, Integer.toUnsignedLong(epoch), 7), "ahead of the server");
+        assertNull(conn.outQueue.poll(), "a failed resume sends nothing");
+    }
+
+    @Test
+    void replayStopsAfterTheResumeWindow() {
+        stream.clientJoined(0);
+        int epoch = epoch();
+        sendLeave(1);
+        long window = TimeUnit.SECONDS.toNanos(WINDOW_SECONDS);
+
+        stream.checkResumeWindow(window);
+        assertTrue(stream.isLive(), "a lone client may still come back");
+        stream.checkResumeWindow(window + 1);
+        assertFalse(stream.isLive());
+        assertEquals(0, stream.nextSequence());
+        assertEquals(-1, stream.resume(new TestConnection(), Integer.toUnsignedLong(epoch), 1));
+
+        // Replaying again: the old resume point stays invalid
+        stream.clientJoined(window + 2);
+        assertEquals(3, stream.nextSequence());
+        assertEquals(-1, stream.resume(new TestConnection(), Integer.toUnsignedLong(epoch), 1));
+    }
+
+    @Test
+    void syncCarriesTheLastSequence() {
+        stream.clientJoined(0);
+        stream.nextSequence();
+        stream.nextSequence();
+        TestConnection conn = new TestConnection();
+        stream.sendSync(conn);
+        ByteBuffer sync = conn.nextPayload();
+        assertEquals(0, sync.getInt());
+        assertEquals(MessageCodec.MSG_TYPE_SYNC, sync.get());
+        assertEquals(2, sync.getInt());
+    }
+
+    private int epoch() {
+        TestConnection conn = new TestConnection();
+        stream.sendHello(conn, false);
+        ByteBuffer hello = conn.nextPayload();
+        hello.position(MessageCodec.SEQUENCE_SIZE + 1);
+        return hello.getInt();
+    }
+
+    // A recorded main-stream LEAVE for session ID 'sessionId'
+    private void sendLeave(int sessionId) {
+        long sequence = stream.nextSequence();
+        PooledFrame frame = stream.acquireMessage(MessageCodec.leaveSize(), sequence);
+        MessageCodec.writeLeave(frame.buffer, new PlayerData(sessionId, "Player" + sessionId, 0, 0, 64, 0, 20, 0,
+                new BitSet()));
+        frame.finish();
+        stream.record(frame, sequence);
+        broadcaster.track(frame);
+    }
+}
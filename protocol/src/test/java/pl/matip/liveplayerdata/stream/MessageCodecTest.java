@@ -0,0 +1,300 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Every size method must agree with what its write method puts, or frames taken from the FramePool overflow
+// or carry garbage; decoding follows the format described in MessageCodec.
+final class MessageCodecTest {
+
+    private static final int PRECISION_BITS = 5;
+
+    private static PlayerData player(int sessionId) {
+        return new PlayerData(sessionId, "Player" + sessionId, 0, 1.5, 64, -3.25, 20, 7, new BitSet());
+    }
+
+    // --- DELTA_BATCH ---
+
+    @Test
+    void deltaBatchSizeMatchesWhatIsWritten() {
+        ChangeSet changes = new ChangeSet(2); // Grows while filled
+        int i = changes.add(player(1), (byte) (MessageCodec.MASK_ALL_FIELDS | MessageCodec.MASK_ABSOLUTE));
+        changes.dx[i] = 48L << PRECISION_BITS;
+        changes.dy[i] = 64L << PRECISION_BITS;
+        changes.dz[i] = -(104L << PRECISION_BITS);
+        changes.dHealth[i] = 20 * MessageCodec.HEALTH_SCALE;
+        changes.dXp[i] = 7;
+        i = changes.add(player(2), MessageCodec.MASK_COORDS);
+        changes.dx[i] = -1;
+        changes.dy[i] = 0;
+        changes.dz[i] = Integer.MAX_VALUE + 1L;
+        i = changes.add(player(65535), (byte) (MessageCodec.MASK_HEALTH | MessageCodec.MASK_XP));
+        changes.dHealth[i] = -64;
+        changes.dXp[i] = 1;
+
+        ByteBuffer buffer = write(MessageCodec.deltaBatchSize(changes),
+                b -> MessageCodec.writeDeltaBatch(b, changes, PRECISION_BITS));
+
+        assertEquals(MessageCodec.MSG_TYPE_DELTA_BATCH, buffer.get());
+        assertEquals(PRECISION_BITS, buffer.get());
+        assertEquals(0, buffer.get()); // Not every entry is absolute
+        assertEquals(changes.count, buffer.getShort());
+        for (int e = 0; e < changes.count; e++) {
+            int length = buffer.get() & 0xFF;
+            int start = buffer.position();
+            assertEquals(changes.players[e].sessionId, buffer.getShort() & 0xFFFF);
+            byte mask = buffer.get();
+            assertEquals(changes.masks[e], mask);
+            if ((mask & MessageCodec.MASK_COORDS) != 0) {
+                assertEquals(changes.dx[e], VarInts.readSigned(buffer));
+                assertEquals(changes.dy[e], VarInts.readSigned(buffer));
+                assertEquals(changes.dz[e], VarInts.readSigned(buffer));
+            }
+            if ((mask & MessageCodec.MASK_HEALTH) != 0) assertEquals(changes.dHealth[e], VarInts.readSigned(buffer));
+            if ((mask & MessageCodec.MASK_XP) != 0) assertEquals(changes.dXp[e], VarInts.readSigned(buffer));
+            assertEquals(length, buffer.position() - start, "length prefix of entry " + e);
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void deltaBatchOfAbsoluteEntriesIsAKeyframe() {
+        ChangeSet changes = new ChangeSet(4);
+        changes.add(player(1), (byte) (MessageCodec.MASK_ALL_FIELDS | MessageCodec.MASK_ABSOLUTE));
+        changes.add(player(2), (byte) (MessageCodec.MASK_COORDS | MessageCodec.MASK_ABSOLUTE));
+        ByteBuffer buffer = write(MessageCodec.deltaBatchSize(changes),
+                b -> MessageCodec.writeDeltaBatch(b, changes, PRECISION_BITS));
+        assertEquals(MessageCodec.DELTA_FLAG_KEYFRAME, buffer.get(2));
+    }
+
+    @Test
+    void deltaEntrySizeGrowsWithTheDeltas() {
+        ChangeSet changes = new ChangeSet(4);
+        int small = changes.add(player(1), MessageCodec.MASK_COORDS);
+        changes.dx[small] = 1;
+        int large = changes.add(player(2), MessageCodec.MASK_COORDS);
+        changes.dx[large] = 1L << 20;
+        assertEquals(2 + 1 + 3, MessageCodec.deltaEntrySize(changes, small));
+        assertEquals(2 + 1 + 4 + 1 + 1, MessageCodec.deltaEntrySize(changes, large));
+    }
+
+    // --- Advancement sets (bitmap and gap list forms) ---
+
+    @Test
+    void fewScatteredAdvancementsUseTheGapList() {
+        BitSet completed = new BitSet();
+        completed.set(3);
+        completed.set(700);
+        completed.set(701);
+        byte[] encoded = MessageCodec.encodeAdvancementSet(completed);
+        assertEquals(MessageCodec.ADVANCEMENT_SET_GAPS, encoded[0]);
+        assertEquals(completed, decodeAdvancementSet(ByteBuffer.wrap(encoded)));
+        assertEquals(1 + 1 + 1 + 2 + 1, encoded.length); // Form, count, gaps 3, 696, 0
+    }
+
+    @Test
+    void denseAdvancementsUseTheBitmap() {
+        BitSet completed = new BitSet();
+        completed.set(0, 100);
+        completed.clear(42);
+        byte[] encoded = MessageCodec.encodeAdvancementSet(completed);
+        assertEquals(MessageCodec.ADVANCEMENT_SET_BITMAP, encoded[0]);
+        assertEquals(completed, decodeAdvancementSet(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    void advancementSetPicksTheSmallerForm() {
+        BitSet completed = new BitSet();
+        for (int count = 0; count < 200; count++) {
+            completed.set(count * 7 % 301);
+            byte[] encoded = MessageCodec.encodeAdvancementSet(completed);
+            assertEquals(completed, decodeAdvancementSet(ByteBuffer.wrap(encoded)));
+            int bitmapSize = 1 + VarInts.size(completed.toByteArray().length) + completed.toByteArray().length;
+            assertTrue(encoded.length <= bitmapSize, "larger than the bitmap with " + completed.cardinality());
+        }
+    }
+
+    @Test
+    void emptyAdvancementSetRoundTrips() {
+        byte[] encoded = MessageCodec.encodeAdvancementSet(new BitSet());
+        assertEquals(new BitSet(), decodeAdvancementSet(ByteBuffer.wrap(encoded)));
+        assertEquals(2, encoded.length); // Form and an empty bitmap
+    }
+
+    @Test
+    void joinAndAdvancementSetSizesMatchWhatIsWritten() {
+        PlayerData data = player(9);
+        data.advancements.set(5);
+        data.advancements.set(64);
+        byte[] set = data.advancementSet();
+        ByteBuffer join = write(MessageCodec.joinSize(data, set), b -> MessageCodec.writeJoin(b, data, set));
+        join.position(join.limit() - set.length);
+        assertEquals(data.advancements, decodeAdvancementSet(join));
+
+        ByteBuffer message = write(MessageCodec.advancementSetSize(set),
+                b -> MessageCodec.writeAdvancementSet(b, data, set));
+        assertEquals(MessageCodec.MSG_TYPE_ADVANCEMENT_SET, message.get());
+        assertEquals(9, message.getShort());
+        assertEquals(data.advancements, decodeAdvancementSet(message));
+    }
+
+    @Test
+    void advancementBatchSizeMatchesWhatIsWritten() {
+        AdvancementBatch batch = new AdvancementBatch(1);
+        batch.add(player(1), 0, true);
+        batch.add(player(2), 63, false);
+        batch.add(player(300), 5000, true);
+        ByteBuffer buffer = write(MessageCodec.advancementBatchSize(batch),
+                b -> MessageCodec.writeAdvancementBatch(b, batch));
+        assertEquals(MessageCodec.MSG_TYPE_ADVANCEMENT_BATCH, buffer.get());
+        assertEquals(3, VarInts.read(buffer));
+        for (int i = 0; i < batch.count; i++) {
+            assertEquals(batch.players[i].sessionId, buffer.getShort());
+            long change = VarInts.read(buffer);
+            assertEquals(batch.advancements[i], change >> 1);
+            assertEquals(!batch.granted[i], (change & 1) != 0);
+        }
+    }
+
+    @Test
+    void advancementDictionarySizeMatchesWhatIsWritten() {
+        AdvancementDictionary dictionary = new AdvancementDictionary(
+                List.of("minecraft:story/root", "minecraft:nether/root", "x".repeat(200)));
+        ByteBuffer buffer = write(MessageCodec.advancementDictionarySize(dictionary),
+                b -> MessageCodec.writeAdvancementDictionary(b, dictionary));
+        assertEquals(MessageCodec.MSG_TYPE_ADVANCEMENT_DICTIONARY, buffer.get());
+        assertEquals(3, VarInts.read(buffer));
+        for (int i = 0; i < 3; i++) {
+            byte[] id = new byte[(int) VarInts.read(buffer)];
+            buffer.get(id);
+            assertArrayEquals(dictionary.idBytes(i), id);
+        }
+    }
+
+    // --- Extra fields and SCHEMA ---
+
+    @Test
+    void extraFieldBitsMakeAMultiByteMaskThatRoundTrips() {
+        PlayerData data = player(3);
+        data.extra[PlayerField.YAW.index] = 200;
+        data.extra[PlayerField.GAME_MODE.index] = 1;
+        data.extra[PlayerField.PING.index] = 300;
+        int mask = MessageCodec.MASK_COORDS | PlayerField.YAW.bit | PlayerField.GAME_MODE.bit | PlayerField.PING.bit;
+        ChangeSet changes = new ChangeSet(2);
+        changes.add(data, mask);
+        changes.add(player(4), MessageCodec.MASK_HEALTH);
+
+        ByteBuffer buffer = write(MessageCodec.batchUpdateSize(changes), b -> MessageCodec.writeBatchUpdate(b, changes));
+        assertEquals(MessageCodec.MSG_TYPE_BATCH_UPDATE, buffer.get());
+        assertEquals(2, buffer.getShort());
+        int length = buffer.get() & 0xFF;
+        int start = buffer.position();
+        assertEquals(3, buffer.getShort());
+        int maskStart = buffer.position();
+        assertEquals(mask, VarInts.read(buffer));
+        assertEquals(2, buffer.position() - maskStart, "bits 9 and 10 need a second mask byte");
+        assertEquals(1.5, buffer.getDouble());
+        assertEquals(64, buffer.getDouble());
+        assertEquals(-3.25, buffer.getDouble());
+        assertEquals(200, buffer.get() & 0xFF); // Yaw, u8
+        assertEquals(1, buffer.get() & 0xFF); // Game mode, u8
+        assertEquals(300, VarInts.readSigned(buffer)); // Ping
+        assertEquals(length, buffer.position() - start, "length prefix");
+        // A core-only entry keeps the one-byte mask of earlier versions
+        assertEquals(2 + 1 + 4, buffer.get());
+        assertEquals(4, buffer.getShort());
+        assertEquals(MessageCodec.MASK_HEALTH, buffer.get());
+        assertEquals(20f, buffer.getFloat());
+        assertFalse(buffer.hasRemaining());
+
+        ChangeSet deltas = new ChangeSet(1);
+        int i = deltas.add(data, PlayerField.PING.bit | MessageCodec.MASK_XP);
+        deltas.dXp[i] = -2;
+        buffer = write(MessageCodec.deltaBatchSize(deltas), b -> MessageCodec.writeDeltaBatch(b, deltas, PRECISION_BITS));
+        buffer.position(1 + 1 + 1 + 2); // Type, precision, flags, count
+        length = buffer.get() & 0xFF;
+        start = buffer.position();
+        assertEquals(3, buffer.getShort());
+        assertEquals(deltas.masks[i], VarInts.read(buffer));
+        assertEquals(-2, VarInts.readSigned(buffer));
+        assertEquals(300, VarInts.readSigned(buffer), "extra fields are absolute in DELTA_BATCH too");
+        assertEquals(length, buffer.position() - start, "length prefix");
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void schemaDescribesEveryPlayerField() {
+        String[] dimensions = {"minecraft:overworld", "minecraft:the_nether"};
+        double positionScale = 1 << PRECISION_BITS;
+        ByteBuffer buffer = write(MessageCodec.schemaSize(dimensions),
+                b -> MessageCodec.writeSchema(b, positionScale, dimensions));
+
+        assertEquals(MessageCodec.MSG_TYPE_SCHEMA, buffer.get());
+        assertEquals(PlayerField.ALL.length, VarInts.read(buffer));
+        int bits = 0;
+        for (PlayerField field : PlayerField.ALL) {
+            int bit = (int) VarInts.read(buffer);
+            assertEquals(field.bit, bit);
+            assertEquals(1, Integer.bitCount(bit), field.name);
+            assertEquals(0, bits & bit, field.name + " shares a bit");
+            assertTrue(bit > bits, field.name + " is out of bit order");
+            bits |= bit;
+            byte[] name = new byte[buffer.get() & 0xFF];
+            buffer.get(name);
+            assertEquals(field.name, new String(name, StandardCharsets.UTF_8));
+            assertSame(field, PlayerField.byName(field.name));
+            assertEquals(field.flags, buffer.get(), field.name);
+            assertEquals(field.components, buffer.get(), field.name);
+            assertEquals(field.batchEncoding, buffer.get(), field.name);
+            assertEquals(field.encoding, buffer.get(), field.name);
+            assertEquals(field.scale != 0 ? field.scale : (float) positionScale, buffer.getFloat(), field.name);
+            List<String> values = new ArrayList<>();
+            for (long v = VarInts.read(buffer); v > 0; v--) {
+                byte[] value = new byte[buffer.get() & 0xFF];
+                buffer.get(value);
+                values.add(new String(value, StandardCharsets.UTF_8));
+            }
+            String[] expected = field == PlayerField.DIMENSION ? dimensions : field.valueNames;
+            assertEquals(expected != null ? List.of(expected) : List.of(), values, field.name);
+        }
+        assertEquals(PlayerField.FIELD_MASK, bits);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    // --- Helpers ---
+
+    static BitSet decodeAdvancementSet(ByteBuffer buffer) {
+        BitSet completed = new BitSet();
+        byte form = buffer.get();
+        if (form == MessageCodec.ADVANCEMENT_SET_BITMAP) {
+            byte[] bitmap = new byte[(int) VarInts.read(buffer)];
+            buffer.get(bitmap);
+            completed.or(BitSet.valueOf(bitmap));
+        } else {
+            assertEquals(MessageCodec.ADVANCEMENT_SET_GAPS, form);
+            long count = VarInts.read(buffer);
+            int index = -1;
+            for (long i = 0; i < count; i++) {
+                index += (int) VarInts.read(buffer) + 1;
+                completed.set(index);
+            }
+        }
+        return completed;
+    }
+
+    // Writes into a buffer of exactly 'size' bytes and returns it flipped
+    static ByteBuffer write(int size, Consumer<ByteBuffer> writer) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        writer.accept(buffer);
+        assertEquals(size, buffer.position(), "size method and write method disagree");
+        return buffer.flip();
+    }
+}
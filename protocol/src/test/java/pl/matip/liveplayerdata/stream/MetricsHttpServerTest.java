@@ -0,0 +1,51 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class MetricsHttpServerTest {
+
+    private final BroadcastPipeline pipeline = new BroadcastPipeline(new StreamSettings(), null);
+    private final PipelineStats stats = new PipelineStats(pipeline);
+    private final HttpClient client = HttpClient.newHttpClient();
+    private MetricsHttpServer server;
+    private URI uri;
+
+    @AfterEach
+    void stop() {
+        server.stop();
+        pipeline.stop();
+    }
+
+    @Test
+    void servesTheStatsToGetAndHeadOnly() throws Exception {
+        server = new MetricsHttpServer(new InetSocketAddress("127.0.0.1", 0), stats);
+        server.start();
+        uri = URI.create("http://127.0.0.1:" + server.address().getPort() + "/metrics");
+        pipeline.metrics().serverTick(1_000_000);
+
+        HttpResponse<String> get = request("GET");
+        assertEquals(200, get.statusCode());
+        assertEquals("text/plain; version=0.0.4; charset=utf-8", get.headers().firstValue("Content-Type").orElse(null));
+        assertEquals(stats.prometheusText(), get.body());
+
+        HttpResponse<String> head = request("HEAD");
+        assertEquals(200, head.statusCode());
+        assertEquals("", head.body());
+
+        assertEquals(405, request("POST").statusCode());
+    }
+
+    private HttpResponse<String> request(String method) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri).method(method, HttpRequest.BodyPublishers.noBody()).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,133 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Counters as FrameBroadcaster and the server thread feed them
+final class PipelineMetricsTest {
+
+    private final PipelineMetrics metrics = new PipelineMetrics();
+    private final FrameBroadcaster broadcaster = new FrameBroadcaster(new StreamSettings().compressionMinBytes, metrics);
+
+    @Test
+    void eachFrameIsCountedOnceHoweverItIsSent() {
+        List<ClientSession> clients = clients(3);
+        broadcaster.broadcast(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_SYNC, 20), clients);
+        broadcaster.broadcastUpdate(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_BATCH_UPDATE, 50), clients);
+
+        // One frame for two subscriber groups
+        PooledFrame shared = frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_BATCH_UPDATE, 70);
+        shared.finish();
+        broadcaster.fanOut(shared, clients.subList(0, 1));
+        broadcaster.fanOut(shared, clients.subList(1, 3));
+        broadcaster.track(shared);
+
+        broadcaster.send(frame(LegacyCodec.PROTOCOL_VERSION, LegacyCodec.MSG_TYPE_JOIN, 30), clients.get(0).conn);
+        broadcaster.broadcast(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_SYNC, 20), clients(0));
+
+        assertEquals(List.of("1/join 1 30", "2/batch_update 2 120", "2/sync 2 40"), messageTypes());
+    }
+
+    @Test
+    void clientSessionsCountWhatWasQueuedForThem() {
+        List<ClientSession> clients = clients(2);
+        ClientSession first = clients.get(0);
+        broadcaster.broadcast(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_SYNC, 20), clients);
+        broadcaster.send(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_HISTORY, 300), first.conn);
+
+        // As framed: 2-byte header up to 125 bytes of payload, 4 bytes up to 64 KiB
+        assertEquals(2, first.framesSent());
+        assertEquals(22 + 304, first.bytesSent());
+        assertEquals(queuedBytes(first), first.bytesSent());
+        assertEquals(1, clients.get(1).framesSent());
+        assertEquals(22, clients.get(1).bytesSent());
+        assertEquals(0, metrics.sendFailures());
+    }
+
+    @Test
+    void framesTheQueueRefusesAreSendFailures() {
+        List<ClientSession> clients = clients(2);
+        ClientSession closing = clients.get(1);
+        ((TestConnection) closing.conn).flushAndClose = true;
+
+        broadcaster.broadcast(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_SYNC, 20), clients);
+        broadcaster.send(frame(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_SYNC, 20), closing.conn);
+
+        assertEquals(2, metrics.sendFailures());
+        assertEquals(2, closing.sendFailures());
+        assertEquals(0, closing.framesSent());
+        assertEquals(0, clients.get(0).sendFailures());
+        assertEquals(1, clients.get(0).framesSent());
+        assertEquals(List.of("2/sync 2 40"), messageTypes()); // Still encoded, and counted as such
+    }
+
+    @Test
+    void slowestTickIsReportedPerWindow() {
+        for (int i = 0; i < 1199; i++) {
+            metrics.serverTick(i == 10 ? 9_000 : 1_000);
+        }
+        assertEquals(0, metrics.maxServerTickNanos(), "the first window is not complete");
+        metrics.serverTick(1_000);
+        assertEquals(9_000, metrics.maxServerTickNanos());
+
+        for (int i = 0; i < 1200; i++) {
+            metrics.serverTick(i == 1199 ? 5_000 : 2_000);
+        }
+        assertEquals(5_000, metrics.maxServerTickNanos(), "the spike of the first window is forgotten");
+        assertEquals(2400, metrics.serverTicks());
+        assertEquals(1198 * 1_000L + 9_000 + 1_000 + 1199 * 2_000L + 5_000, metrics.serverTickNanos());
+    }
+
+    @Test
+    void typesWithoutANameAreNumbered() {
+        assertEquals("update", PipelineMetrics.typeName(LegacyCodec.PROTOCOL_VERSION, 0x03));
+        assertEquals("0x03", PipelineMetrics.typeName(MessageCodec.PROTOCOL_VERSION, 0x03)); // UPDATE is protocol 1 only
+        assertEquals("heatmap", PipelineMetrics.typeName(MessageCodec.PROTOCOL_VERSION, MessageCodec.MSG_TYPE_HEATMAP));
+        assertEquals("0x7f", PipelineMetrics.typeName(MessageCodec.PROTOCOL_VERSION, 0x7F));
+    }
+
+    // 'length' bytes of payload starting with the message type, after the sequence number in protocol 2
+    private PooledFrame frame(int protocolVersion, byte type, int length) {
+        PooledFrame frame = broadcaster.acquire(length, protocolVersion);
+        int start = frame.buffer.position();
+        if (protocolVersion == MessageCodec.PROTOCOL_VERSION) {
+            MessageCodec.writeSequence(frame.buffer, 0);
+        }
+        frame.buffer.put(type);
+        frame.buffer.position(start + length);
+        return frame;
+    }
+
+    // Sessions attached to their connections, as BroadcastPipeline.addClient does
+    private static List<ClientSession> clients(int count) {
+        List<ClientSession> clients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TestConnection conn = new TestConnection();
+            ClientSession client = new ClientSession(conn, MessageCodec.PROTOCOL_VERSION);
+            conn.setAttachment(client);
+            clients.add(client);
+        }
+        return clients;
+    }
+
+    private static long queuedBytes(ClientSession client) {
+        long bytes = 0;
+        for (ByteBuffer queued : ((TestConnection) client.conn).outQueue) {
+            bytes += queued.remaining();
+        }
+        return bytes;
+    }
+
+    // "<protocol>/<type> <messages> <bytes>"
+    private List<String> messageTypes() {
+        List<String> types = new ArrayList<>();
+        metrics.forEachMessageType((protocol, type, messages, bytes) ->
+                types.add(protocol + "/" + type + " " + messages + " " + bytes));
+        return types;
+    }
+}
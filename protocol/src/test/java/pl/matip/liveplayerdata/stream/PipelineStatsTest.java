@@ -0,0 +1,159 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// An unstarted pipeline driven through runTasks/processNext, the way the benchmarks drive it, so every
+// counter is known when the stats are read
+final class PipelineStatsTest {
+
+    private static final String PREFIX = "live_player_data_";
+
+    private final BroadcastPipeline pipeline = new BroadcastPipeline(new StreamSettings(), null);
+    private final PipelineStats stats = new PipelineStats(pipeline);
+
+    @AfterEach
+    void stop() {
+        stats.unregister();
+        pipeline.stop();
+    }
+
+    @Test
+    void prometheusTextReportsEveryCounter() {
+        TestConnection viewer = connect(MessageCodec.PROTOCOL_VERSION, "view\"er\\1", 25565);
+        TestConnection legacy = connect(LegacyCodec.PROTOCOL_VERSION, "legacy", 1);
+        pipeline.runTasks();
+        // An empty sample, so the encoder reads the queue depths
+        pipeline.openSnapshot().beginPlayers(1, 0);
+        pipeline.publish();
+        assertTrue(pipeline.processNext());
+        pipeline.metrics().serverTick(1_500_000);
+        pipeline.metrics().serverTick(2_000_000);
+
+        List<String> lines = List.of(stats.prometheusText().split("\n"));
+        int frames = viewer.outQueue.size();
+        assertTrue(frames > 0, "no HELLO or SYNC was sent");
+        assertTrue(legacy.outQueue.isEmpty());
+        String viewerLabels = "{remote=\"view\\\"er\\\\1/<unresolved>:25565\",protocol=\"2\"}";
+        String legacyLabels = "{remote=\"legacy/<unresolved>:1\",protocol=\"1\"}";
+        List<String> expected = new ArrayList<>(List.of(
+                "# HELP " + PREFIX + "server_tick_seconds Time spent copying player state on the server thread",
+                "# TYPE " + PREFIX + "server_tick_seconds summary",
+                PREFIX + "server_tick_seconds_sum 0.0035",
+                PREFIX + "server_tick_seconds_count 2",
+                PREFIX + "server_tick_max_seconds 0",
+                PREFIX + "encoder_seconds_count 1",
+                "# HELP " + PREFIX + "connected_clients Open WebSocket stream connections",
+                "# TYPE " + PREFIX + "connected_clients gauge",
+                PREFIX + "connected_clients 2",
+                PREFIX + "lagging_clients 0",
+                PREFIX + "send_failures_total 0",
+                PREFIX + "client_frames_sent_total" + viewerLabels + " " + frames,
+                PREFIX + "client_frames_sent_total" + legacyLabels + " 0",
+                PREFIX + "client_bytes_sent_total" + viewerLabels + " " + queuedBytes(viewer),
+                PREFIX + "client_bytes_sent_total" + legacyLabels + " 0",
+                PREFIX + "client_queue_depth" + viewerLabels + " " + frames,
+                PREFIX + "client_dropped_frames_total" + viewerLabels + " 0",
+                PREFIX + "compressed_messages_total 0",
+                PREFIX + "compression_ratio NaN",
+                PREFIX + "datagram_receivers 0",
+                PREFIX + "datagrams_sent_total 0"));
+        // Everything encoded went to the one protocol 2 client
+        for (Map.Entry<String, long[]> type : messageTypes(viewer).entrySet()) {
+            String labels = "{protocol=\"2\",type=\"" + type.getKey() + "\"}";
+            expected.add(PREFIX + "messages_encoded_total" + labels + " " + type.getValue()[0]);
+            expected.add(PREFIX + "message_bytes_encoded_total" + labels + " " + type.getValue()[1]);
+        }
+        for (String line : expected) {
+            assertTrue(lines.contains(line), "missing " + line + " in\n" + String.join("\n", lines));
+        }
+        assertEquals(messageTypes(viewer).size() * 2,
+                lines.stream().filter(line -> line.startsWith(PREFIX + "message")).count(), "only protocol 2 types");
+        assertWellFormed(lines);
+    }
+
+    @Test
+    void jmxBeanReadsTheSameCounters() throws Exception {
+        connect(MessageCodec.PROTOCOL_VERSION, "viewer", 2);
+        pipeline.runTasks();
+        stats.register();
+        stats.register(); // A second start in the same JVM replaces the bean
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(PipelineStats.OBJECT_NAME);
+        assertEquals(1, server.getAttribute(name, "ConnectedClients"));
+        assertEquals(Double.NaN, server.getAttribute(name, "CompressionRatio"));
+        assertEquals(stats.getClientFramesSent(), Map.of("viewer/<unresolved>:2",
+                pipeline.clientSessions().get(0).framesSent()));
+        stats.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+
+    private TestConnection connect(int protocolVersion, String host, int port) {
+        TestConnection conn = new TestConnection();
+        conn.remoteAddress = InetSocketAddress.createUnresolved(host, port);
+        pipeline.addClient(conn, protocolVersion, -1, -1);
+        return conn;
+    }
+
+    private static long queuedBytes(TestConnection conn) {
+        long bytes = 0;
+        for (ByteBuffer queued : conn.outQueue) {
+            bytes += queued.remaining();
+        }
+        return bytes;
+    }
+
+    // Type name -> {messages, payload bytes} of the protocol 2 frames queued on 'conn'
+    private static Map<String, long[]> messageTypes(TestConnection conn) {
+        Map<String, long[]> types = new TreeMap<>();
+        for (ByteBuffer queued : conn.outQueue) {
+            ByteBuffer payload = conn.payloadOf(queued);
+            String type = PipelineMetrics.typeName(MessageCodec.PROTOCOL_VERSION,
+                    payload.get(payload.position() + MessageCodec.SEQUENCE_SIZE));
+            long[] counts = types.computeIfAbsent(type, key -> new long[2]);
+            counts[0]++;
+            counts[1] += payload.remaining();
+        }
+        return types;
+    }
+
+    // Each family is announced by HELP then TYPE before its samples; samples are integers unless they have
+    // to be doubles
+    private static void assertWellFormed(List<String> lines) {
+        Map<String, String> families = new HashMap<>();
+        String help = null;
+        for (String line : lines) {
+            if (line.startsWith("# HELP ")) {
+                help = line.split(" ")[2];
+            } else if (line.startsWith("# TYPE ")) {
+                String[] parts = line.split(" ");
+                assertEquals(help, parts[2], "TYPE without HELP: " + line);
+                families.put(parts[2], parts[3]);
+            } else {
+                String name = line.substring(0, line.contains("{") ? line.indexOf('{') : line.indexOf(' '));
+                String family = name.replaceFirst("_(sum|count)$", "");
+                assertTrue(families.containsKey(name) || "summary".equals(families.get(family)),
+                        "sample before its family: " + line);
+                String value = line.substring(line.lastIndexOf(' ') + 1);
+                double parsed = Double.parseDouble(value);
+                if (parsed == (long) parsed) {
+                    assertEquals(Long.toString((long) parsed), value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class ReplayRingTest {
+
+    // A message whose bytes all equal its sequence number
+    private static ByteBuffer message(long sequence, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) sequence);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void assertHolds(ReplayRing ring, long sequence, int length) {
+        assertEquals(length, ring.length(sequence));
+        ByteBuffer out = ByteBuffer.allocate(length);
+        ring.copy(sequence, out);
+        assertArrayEquals(message(sequence, length).array(), out.array(), "message " + sequence);
+    }
+
+    @Test
+    void replaysWhatItRecorded() {
+        ReplayRing ring = new ReplayRing(1024);
+        assertEquals(0, ring.last());
+        assertTrue(ring.canResumeAfter(0));
+        for (long sequence = 1; sequence <= 5; sequence++) {
+            ring.record(sequence, message(sequence, 10 + (int) sequence));
+        }
+        assertEquals(5, ring.last());
+        assertTrue(ring.canResumeAfter(0));
+        assertTrue(ring.canResumeAfter(5)); // Nothing missed
+        assertFalse(ring.canResumeAfter(6)); // Ahead of the server
+        for (long sequence = 1; sequence <= 5; sequence++) {
+            assertHolds(ring, sequence, 10 + (int) sequence);
+        }
+    }
+
+    @Test
+    void recordingDoesNotMoveThePayloadPosition() {
+        ReplayRing ring = new ReplayRing(1024);
+        ByteBuffer payload = ByteBuffer.allocate(20);
+        payload.position(4);
+        ring.record(1, payload);
+        assertEquals(4, payload.position());
+        assertEquals(16, ring.length(1));
+    }
+
+    @Test
+    void wrapsAroundAndEvictsTheOldest() {
+        ReplayRing ring = new ReplayRing(100);
+        for (long sequence = 1; sequence <= 10; sequence++) {
+            ring.record(sequence, message(sequence, 30));
+        }
+        // 30-byte messages: three fit, the tail of the arena stays unused and every fourth starts at the front
+        assertFalse(ring.canResumeAfter(6));
+        assertTrue(ring.canResumeAfter(7));
+        for (long sequence = 8; sequence <= 10; sequence++) {
+            assertHolds(ring, sequence, 30);
+        }
+    }
+
+    @Test
+    void keepsMessagesIntactAcrossManyWraps() {
+        ReplayRing ring = new ReplayRing(256);
+        for (long sequence = 1; sequence <= 1000; sequence++) {
+            int length = 1 + (int) (sequence * 37 % 90);
+            ring.record(sequence, message(sequence, length));
+            long oldest = sequence;
+            while (ring.canResumeAfter(oldest - 2)) {
+                oldest--;
+            }
+            int held = 0;
+            for (long s = oldest; s <= sequence; s++) {
+                int expected = 1 + (int) (s * 37 % 90);
+                assertHolds(ring, s, expected);
+                held += expected;
+            }
+            assertTrue(held <= 256);
+        }
+    }
+
+    @Test
+    void gapInSequenceStartsOver() {
+        ReplayRing ring = new ReplayRing(1024);
+        ring.record(1, message(1, 10));
+        ring.record(2, message(2, 10));
+        ring.record(5, message(5, 10));
+        assertEquals(5, ring.last());
+        assertFalse(ring.canResumeAfter(2));
+        assertTrue(ring.canResumeAfter(4));
+        assertHolds(ring, 5, 10);
+    }
+
+    @Test
+    void messageLargerThanTheArenaIsNotHeld() {
+        ReplayRing ring = new ReplayRing(64);
+        ring.record(1, message(1, 10));
+        ring.record(2, message(2, 65));
+        assertEquals(2, ring.last());
+        assertFalse(ring.canResumeAfter(1)); // Message 2 cannot be replayed
+        assertTrue(ring.canResumeAfter(2));
+        ring.record(3, message(3, 10));
+        assertTrue(ring.canResumeAfter(2));
+        assertHolds(ring, 3, 10);
+    }
+
+    @Test
+    void indexCapEvictsBeforeTheArenaIsFull() {
+        ReplayRing ring = new ReplayRing(1024); // 64 index slots
+        for (long sequence = 1; sequence <= 100; sequence++) {
+            ring.record(sequence, message(sequence, 1));
+        }
+        assertFalse(ring.canResumeAfter(35));
+        assertTrue(ring.canResumeAfter(36));
+        assertHolds(ring, 37, 1);
+        assertHolds(ring, 100, 1);
+    }
+
+    @Test
+    void clearExpectsTheGivenSequenceNext() {
+        ReplayRing ring = new ReplayRing(1024);
+        ring.record(1, message(1, 10));
+        ring.clear(50);
+        assertEquals(49, ring.last());
+        assertTrue(ring.canResumeAfter(49));
+        assertFalse(ring.canResumeAfter(1));
+        ring.record(50, message(50, 10));
+        assertHolds(ring, 50, 10);
+    }
+}
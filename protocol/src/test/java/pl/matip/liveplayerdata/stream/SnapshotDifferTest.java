@@ -0,0 +1,167 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The same random-walk run through a serial differ and one that diffs every sample on the pool; every
+// ChangeSet entry has to match
+final class SnapshotDifferTest {
+
+    // Not a multiple of the 64-player fork-join leaf, so the ranges are uneven
+    private static final int PLAYERS = 150;
+    private static final int SAMPLES = 300;
+    private static final int INTERVAL = 2;
+
+    private final List<Run> runs = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        for (Run run : runs) {
+            run.differ.close();
+        }
+    }
+
+    @Test
+    void parallelDeltaDiffMatchesSerial() {
+        compare(true);
+    }
+
+    @Test
+    void parallelAbsoluteDiffMatchesSerial() {
+        compare(false);
+    }
+
+    private void compare(boolean deltaEncoding) {
+        Run serial = run(deltaEncoding, 0);
+        Run parallel = run(deltaEncoding, 1);
+        Random random = new Random(42);
+        List<Integer> online = new ArrayList<>();
+        double[][] position = new double[PLAYERS * 2][3];
+        float[] health = new float[PLAYERS * 2];
+        int[] xp = new int[PLAYERS * 2];
+        int[] dimension = new int[PLAYERS * 2];
+        long tick = 0;
+        for (int id = 0; id < PLAYERS; id++) {
+            position[id] = new double[]{random.nextDouble() * 1000, 64, random.nextDouble() * 1000};
+            health[id] = 20;
+            online.add(id);
+            for (Run run : List.of(serial, parallel)) {
+                run.join(id, position[id], 20, 0, 0, tick);
+            }
+        }
+
+        int nextId = PLAYERS;
+        int reused = 0;
+        for (int sample = 0; sample < SAMPLES; sample++) {
+            tick += INTERVAL;
+            // Now and then someone leaves and someone joins, half the time with the freed session ID
+            if (sample % 25 == 10) {
+                int leaving = online.remove(random.nextInt(online.size()));
+                for (Run run : List.of(serial, parallel)) {
+                    run.leave(leaving);
+                }
+                int joining = random.nextBoolean() ? leaving : nextId++;
+                if (joining == leaving) reused++;
+                position[joining] = new double[]{random.nextDouble() * 1000, 70, random.nextDouble() * 1000};
+                health[joining] = 12;
+                xp[joining] = 3;
+                dimension[joining] = 0;
+                online.add(joining);
+                for (Run run : List.of(serial, parallel)) {
+                    run.join(joining, position[joining], 12, 3, 0, tick);
+                }
+            }
+
+            Collections.shuffle(online, random);
+            TickSnapshot snapshot = new TickSnapshot(online.size());
+            snapshot.beginPlayers(tick, online.size());
+            for (int id : online) {
+                // Half stand still, so some are idle and some sub-dead-band jitter is in the mix
+                if (id % 2 == 0) {
+                    position[id][0] += random.nextGaussian() * 2;
+                    position[id][2] += random.nextGaussian() * 2;
+                } else {
+                    position[id][1] += random.nextGaussian() * 0.01;
+                }
+                if (random.nextInt(20) == 0) health[id] = Math.max(0, health[id] - random.nextInt(6));
+                if (random.nextInt(50) == 0) xp[id]++;
+                if (random.nextInt(200) == 0) dimension[id] = (dimension[id] + 1) % 3;
+                snapshot.addPlayer(id, dimension[id], position[id][0], position[id][1], position[id][2], health[id], xp[id]);
+            }
+
+            ChangeSet expected = serial.diff(snapshot);
+            ChangeSet actual = parallel.diff(snapshot);
+            assertEquals(expected.count, actual.count, "entries at tick " + tick);
+            for (int i = 0; i < expected.count; i++) {
+                String entry = "entry " + i + " at tick " + tick;
+                assertEquals(expected.players[i].sessionId, actual.players[i].sessionId, entry);
+                assertEquals(expected.masks[i], actual.masks[i], entry);
+                assertEquals(expected.dx[i], actual.dx[i], entry);
+                assertEquals(expected.dy[i], actual.dy[i], entry);
+                assertEquals(expected.dz[i], actual.dz[i], entry);
+                assertEquals(expected.dHealth[i], actual.dHealth[i], entry);
+                assertEquals(expected.dXp[i], actual.dXp[i], entry);
+                PlayerData a = expected.players[i];
+                PlayerData b = actual.players[i];
+                assertEquals(a.x, b.x, entry);
+                assertEquals(a.y, b.y, entry);
+                assertEquals(a.z, b.z, entry);
+                assertEquals(a.health, b.health, entry);
+                assertEquals(a.xp, b.xp, entry);
+                assertEquals(a.dimension, b.dimension, entry);
+            }
+        }
+        assertTrue(reused > 0, "no session ID was reused");
+        assertTrue(nextId > PLAYERS, "no player joined past the initial ones");
+    }
+
+    // parallelDiffMinPlayers 0 never uses the pool, 1 always does
+    private Run run(boolean deltaEncoding, int parallelDiffMinPlayers) {
+        StreamSettings settings = new StreamSettings();
+        settings.deltaEncoding = deltaEncoding;
+        settings.minIntervalTicks = INTERVAL;
+        settings.keyframeIntervalTicks = 100;
+        settings.parallelDiffMinPlayers = parallelDiffMinPlayers;
+        settings.diffThreads = 4;
+        Run run = new Run(new SnapshotDiffer(settings, 16));
+        runs.add(run);
+        return run;
+    }
+
+    // One differ with its own PlayerData, which pass 2 updates
+    private static final class Run {
+        final SnapshotDiffer differ;
+        final PlayerData[] players = new PlayerData[PLAYERS * 2];
+        final ChangeSet changes = new ChangeSet(16);
+
+        Run(SnapshotDiffer differ) {
+            this.differ = differ;
+        }
+
+        void join(int id, double[] position, float health, int xp, int dimension, long tick) {
+            PlayerData data = new PlayerData(id, "Player" + id, dimension, position[0], position[1], position[2],
+                    health, xp, new BitSet());
+            players[id] = data;
+            differ.join(data, tick);
+        }
+
+        void leave(int id) {
+            players[id] = null;
+            differ.leave(id);
+        }
+
+        ChangeSet diff(TickSnapshot snapshot) {
+            changes.clear();
+            differ.diff(snapshot, players, changes);
+            return changes;
+        }
+    }
+}
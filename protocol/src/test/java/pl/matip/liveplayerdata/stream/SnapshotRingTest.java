@@ -0,0 +1,87 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class SnapshotRingTest {
+
+    @Test
+    void publishedSlotsAreConsumedInOrder() {
+        SnapshotRing ring = new SnapshotRing(4, 1);
+        assertNull(ring.peek());
+        for (long tick = 1; tick <= 3; tick++) {
+            ring.openSlot().beginPlayers(tick, 0);
+            assertTrue(ring.publish());
+        }
+        for (long tick = 1; tick <= 3; tick++) {
+            TickSnapshot snapshot = ring.peek();
+            assertNotNull(snapshot);
+            assertEquals(tick, snapshot.tick);
+            ring.release();
+        }
+        assertNull(ring.peek());
+    }
+
+    @Test
+    void fullRingRefusesAndKeepsTheOpenSlot() {
+        SnapshotRing ring = new SnapshotRing(2, 1);
+        ring.openSlot().beginPlayers(1, 0);
+        assertTrue(ring.publish());
+        TickSnapshot open = ring.openSlot();
+        open.beginPlayers(2, 0);
+        assertFalse(ring.publish()); // The spare slot is never handed out
+        assertSame(open, ring.openSlot());
+        open.beginPlayers(3, 0); // The next sample overwrites the refused one
+
+        assertEquals(1, ring.peek().tick);
+        ring.release();
+        assertTrue(ring.publish());
+        assertEquals(3, ring.peek().tick);
+    }
+
+    @Test
+    void openSlotIsResetWhenPublished() {
+        SnapshotRing ring = new SnapshotRing(2, 1);
+        ring.openSlot().beginPlayers(1, 0);
+        ring.publish();
+        ring.peek();
+        ring.release();
+        ring.openSlot().beginPlayers(2, 0);
+        ring.publish();
+        assertFalse(ring.openSlot().hasPlayers);
+    }
+
+    // One producer and one consumer thread: every tick arrives once, in order
+    @Test
+    void handsOffBetweenThreads() throws InterruptedException {
+        SnapshotRing ring = new SnapshotRing(8, 1);
+        int count = 50_000;
+        long[] received = new long[count];
+        int[] receivedCount = new int[1];
+        Thread consumer = new Thread(() -> {
+            while (receivedCount[0] < count) {
+                TickSnapshot snapshot = ring.peek();
+                if (snapshot == null) {
+                    Thread.yield(); // Not spinning: the test may run on one core
+                    continue;
+                }
+                received[receivedCount[0]++] = snapshot.tick;
+                ring.release();
+            }
+        });
+        consumer.start();
+        for (long tick = 0; tick < count; tick++) {
+            ring.openSlot().beginPlayers(tick, 0);
+            while (!ring.publish()) {
+                Thread.yield();
+            }
+        }
+        consumer.join(10_000);
+        assertFalse(consumer.isAlive());
+        assertEquals(count, receivedCount[0]);
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, received[i]);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class SpatialGridTest {
+
+    private static final int CELL = 1 << SpatialGrid.CELL_SHIFT;
+    private static final int TABLE_MASK = 63; // Slots of a new grid, until it holds 32 cells
+
+    private static PlayerData player(int sessionId, int dimension, double x, double z) {
+        return new PlayerData(sessionId, "Player" + sessionId, dimension, x, 64, z, 20, 0, new BitSet());
+    }
+
+    @Test
+    void queryFindsPlayersInOverlappingCells() {
+        SpatialGrid grid = new SpatialGrid();
+        grid.insert(player(1, 0, 10, 10));
+        grid.insert(player(2, 0, 20, -20));
+        grid.insert(player(3, 0, 1000, 1000));
+        grid.insert(player(4, 1, 10, 10));
+
+        assertEquals(Set.of(1, 2), query(grid, 0, -30, -30, 30, 30));
+        assertEquals(Set.of(4), query(grid, 1, -30, -30, 30, 30));
+        assertEquals(Set.of(1, 2, 4), query(grid, SpatialGrid.ANY_DIMENSION, -30, -30, 30, 30));
+        assertEquals(Set.of(), query(grid, 2, -30, -30, 30, 30));
+    }
+
+    @Test
+    void updateMovesPlayersBetweenCells() {
+        SpatialGrid grid = new SpatialGrid();
+        PlayerData data = player(1, 0, 10, 10);
+        grid.insert(data);
+
+        data.x = 10 + CELL * 5;
+        grid.update(data);
+        assertEquals(Set.of(), query(grid, 0, 0, 0, 10, 10));
+        assertEquals(Set.of(1), query(grid, 0, data.x, 10, data.x, 10));
+
+        data.dimension = 1;
+        grid.update(data);
+        assertEquals(Set.of(), query(grid, 0, data.x, 10, data.x, 10));
+        assertEquals(Set.of(1), query(grid, 1, data.x, 10, data.x, 10));
+
+        grid.remove(data);
+        assertEquals(Set.of(), query(grid, SpatialGrid.ANY_DIMENSION, -1e6, -1e6, 1e6, 1e6));
+    }
+
+    @Test
+    void playersSharingACellAreRemovedOneByOne() {
+        SpatialGrid grid = new SpatialGrid();
+        PlayerData first = player(1, 0, 1, 1);
+        PlayerData second = player(2, 0, 2, 2);
+        PlayerData third = player(3, 0, 3, 3);
+        grid.insert(first);
+        grid.insert(second);
+        grid.insert(third);
+
+        grid.remove(second);
+        assertEquals(Set.of(1, 3), query(grid, 0, 0, 0, 4, 4));
+        grid.remove(first);
+        grid.remove(third);
+        assertEquals(Set.of(), query(grid, 0, 0, 0, 4, 4));
+        grid.insert(second); // The emptied cell was deleted; a new one takes its place
+        assertEquals(Set.of(2), query(grid, 0, 0, 0, 4, 4));
+    }
+
+    // Cells whose keys share a home slot form one probe run. Deleting an emptied cell in the middle of the run
+    // must shift the later cells back, or lookups stop at the hole and miss them.
+    @Test
+    void removingTheMiddleOfAProbeRunKeepsLaterCellsReachable() {
+        double[] cellX = collidingCells(4);
+        SpatialGrid grid = new SpatialGrid();
+        List<PlayerData> run = new ArrayList<>();
+        for (int i = 0; i < cellX.length; i++) {
+            PlayerData data = player(i, 0, cellX[i], 0);
+            run.add(data);
+            grid.insert(data);
+        }
+        for (int i = 0; i < cellX.length; i++) {
+            assertEquals(Set.of(i), queryCell(grid, cellX[i]), "cell " + i);
+        }
+
+        grid.remove(run.get(1));
+        assertEquals(Set.of(), queryCell(grid, cellX[1]));
+        for (int i : new int[]{0, 2, 3}) {
+            assertEquals(Set.of(i), queryCell(grid, cellX[i]), "cell " + i + " after removing cell 1");
+        }
+
+        grid.remove(run.get(0)); // Head of the run
+        assertEquals(Set.of(2), queryCell(grid, cellX[2]));
+        assertEquals(Set.of(3), queryCell(grid, cellX[3]));
+
+        // A player moving out of the run and back in
+        PlayerData moving = run.get(2);
+        moving.x = cellX[2] + CELL * 1000;
+        grid.update(moving);
+        assertEquals(Set.of(), queryCell(grid, cellX[2]));
+        assertEquals(Set.of(3), queryCell(grid, cellX[3]));
+        moving.x = cellX[2];
+        grid.update(moving);
+        assertEquals(Set.of(2), queryCell(grid, cellX[2]));
+    }
+
+    @Test
+    void probeRunsSurviveTheTableWrappingAround() {
+        double[] cellX = collidingCells(3, TABLE_MASK);
+        SpatialGrid grid = new SpatialGrid();
+        List<PlayerData> run = new ArrayList<>();
+        for (int i = 0; i < cellX.length; i++) {
+            PlayerData data = player(i, 0, cellX[i], 0);
+            run.add(data);
+            grid.insert(data);
+        }
+        grid.remove(run.get(0)); // In the last slot; the rest of the run wrapped to slots 0 and 1
+        assertEquals(Set.of(1), queryCell(grid, cellX[1]));
+        assertEquals(Set.of(2), queryCell(grid, cellX[2]));
+        grid.remove(run.get(1));
+        assertEquals(Set.of(2), queryCell(grid, cellX[2]));
+    }
+
+    @Test
+    void manyCellsSurviveRehashing() {
+        SpatialGrid grid = new SpatialGrid();
+        PlayerData[] players = new PlayerData[500];
+        int count = players.length;
+        for (int i = 0; i < count; i++) {
+            players[i] = player(i, i % 3, i * CELL, -i * CELL);
+            grid.insert(players[i]);
+        }
+        for (int i = 0; i < count; i += 2) {
+            grid.remove(players[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            Set<Integer> expected = i % 2 == 0 ? Set.of() : Set.of(i);
+            assertEquals(expected, query(grid, i % 3, i * CELL, -i * CELL, i * CELL, -i * CELL), "player " + i);
+        }
+    }
+
+    // X coordinates of 'count' cells in dimension 0 (at z = 0) whose keys all hash to the same slot
+    private static double[] collidingCells(int count) {
+        return collidingCells(count, -1);
+    }
+
+    private static double[] collidingCells(int count, int slot) {
+        double[] cellX = new double[count];
+        int found = 0;
+        int target = slot;
+        for (int cell = 0; found < count; cell++) {
+            double x = cell * CELL + 1;
+            int home = SpatialGrid.hash(SpatialGrid.key(0, x, 0)) & TABLE_MASK;
+            if (target < 0) {
+                target = home;
+            }
+            if (home == target) {
+                cellX[found++] = x;
+            }
+        }
+        return cellX;
+    }
+
+    // Single-cell query, which looks the cell up in the table instead of scanning it
+    private static Set<Integer> queryCell(SpatialGrid grid, double x) {
+        return query(grid, 0, x, 0, x, 0);
+    }
+
+    private static Set<Integer> query(SpatialGrid grid, int dimension, double minX, double minZ, double maxX, double maxZ) {
+        grid.query(dimension, minX, minZ, maxX, maxZ);
+        Set<Integer> sessionIds = new HashSet<>();
+        for (int i = 0; i < grid.resultCount; i++) {
+            sessionIds.add(grid.result[i]);
+        }
+        return sessionIds;
+    }
+}
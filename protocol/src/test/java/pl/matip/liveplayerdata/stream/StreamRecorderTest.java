@@ -0,0 +1,191 @@
+package pl.matip.liveplayerdata.stream;
+
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Records through StreamRecorder and plays back through StreamPlayer to a TestConnection. Recording times are
+// made up (one message every STEP_MILLIS), so playback at full speed takes a fraction of a second.
+final class StreamRecorderTest {
+
+    private static final long START_MILLIS = 1_000_000;
+    private static final long STEP_MILLIS = 100;
+    private static final int MESSAGES = 300;
+    private static final PlayerData[] PLAYERS = {player(0), player(1)};
+
+    @TempDir
+    Path directory;
+
+    // What was recorded, in order, as the tokens playback should produce for it
+    private final List<Long> times = new ArrayList<>();
+    private final List<String> tokens = new ArrayList<>();
+
+    private static StreamSettings settings() {
+        StreamSettings settings = new StreamSettings();
+        settings.recordingSegmentBytes = 4096;
+        settings.recordingMaxSegments = 8;
+        settings.recordingKeyframeSeconds = 1;
+        return settings;
+    }
+
+    private static PlayerData player(int sessionId) {
+        return new PlayerData(sessionId, "Player" + sessionId, 0, 0, 64, 0, 20, 0, new BitSet());
+    }
+
+    @Test
+    void playbackFromMidSegmentStartsAtAKeyframeAndKeepsTheOrder() throws Exception {
+        StreamRecorder recorder = StreamRecorder.open(directory, settings());
+        StreamPlayer player = new StreamPlayer(recorder);
+        try {
+            record(recorder);
+            List<Long> segmentStarts = segmentStarts();
+            assertTrue(segmentStarts.size() >= 2, "recorded into " + segmentStarts.size() + " segment(s)");
+
+            // From halfway between two messages of the first segment into the second one
+            long boundary = segmentStarts.get(1);
+            long from = boundary - 4 * STEP_MILLIS - STEP_MILLIS / 2;
+            long to = boundary + 15 * STEP_MILLIS + STEP_MILLIS / 2;
+            TestConnection conn = new TestConnection();
+            player.start();
+            player.open(conn, from, to, StreamPlayer.MAX_SPEED);
+
+            assertEquals(expected(from, to, segmentStarts), played(conn));
+        } finally {
+            player.stop();
+            recorder.close();
+        }
+    }
+
+    // A keyframe whenever the recorder asks for one, then one numbered LEAVE per step
+    private void record(StreamRecorder recorder) {
+        for (int sequence = 1; sequence <= MESSAGES; sequence++) {
+            long now = START_MILLIS + sequence * STEP_MILLIS;
+            if (recorder.keyframeDue(now)) {
+                long bytes = StreamRecorder.recordSize(dictionary().remaining());
+                for (PlayerData data : PLAYERS) {
+                    bytes += StreamRecorder.recordSize(join(data).remaining());
+                }
+                recorder.beginKeyframe(now, bytes);
+                appendState(recorder, now, dictionary(), "dictionary");
+                for (PlayerData data : PLAYERS) {
+                    appendState(recorder, now, join(data), "join:" + data.sessionId);
+                }
+                recorder.endKeyframe(now);
+            }
+            ByteBuffer leave = ByteBuffer.allocate(MessageCodec.SEQUENCE_SIZE + MessageCodec.leaveSize());
+            MessageCodec.writeSequence(leave, sequence);
+            MessageCodec.writeLeave(leave, PLAYERS[sequence % PLAYERS.length]);
+            recorder.appendLive(now, leave.flip());
+            times.add(now);
+            tokens.add("live:" + sequence);
+        }
+    }
+
+    private void appendState(StreamRecorder recorder, long now, ByteBuffer payload, String token) {
+        recorder.appendState(now, payload);
+        times.add(now);
+        tokens.add(token);
+    }
+
+    // The keyframe at or before 'from' and everything after it up to 'to'. The next segment is entered with a
+    // new HELLO and its opening keyframe; keyframes inside a segment are not sent, the client is up to date.
+    private List<String> expected(long from, long to, List<Long> segmentStarts) {
+        long segment = segmentStarts.stream().filter(start -> start <= from).reduce((a, b) -> b).orElseThrow();
+        int first = -1;
+        for (int i = 0; i < tokens.size(); i++) {
+            long time = times.get(i);
+            if (time >= segment && time <= from && tokens.get(i).equals("dictionary")) {
+                first = i;
+            }
+        }
+        List<String> expected = new ArrayList<>(List.of("hello", "playback"));
+        boolean inKeyframe = true;
+        for (int i = first; i < tokens.size() && times.get(i) <= to; i++) {
+            String token = tokens.get(i);
+            if (token.equals("dictionary") && segmentStarts.contains(times.get(i)) && i != first) {
+                expected.add("hello");
+                inKeyframe = true;
+            }
+            boolean state = !token.startsWith("live:");
+            if (!state) {
+                inKeyframe = false;
+            }
+            if (!state || inKeyframe) {
+                expected.add(token);
+            }
+        }
+        expected.add("playback_end");
+        return expected;
+    }
+
+    // Everything the connection was sent until the end of playback
+    private static List<String> played(TestConnection conn) throws InterruptedException {
+        List<String> played = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!played.contains("playback_end")) {
+            assertTrue(System.nanoTime() < deadline, "playback did not end, got " + played);
+            ByteBuffer frame = conn.outQueue.poll(10, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                played.add(token(frame, conn.payloadOf(frame)));
+            }
+        }
+        return played;
+    }
+
+    private static String token(ByteBuffer frame, ByteBuffer payload) {
+        if ((frame.get(frame.position()) & 0x0F) == 0x01) {
+            String text = StandardCharsets.UTF_8.decode(payload).toString();
+            return JsonParser.parseString(text).getAsJsonObject().get("type").getAsString();
+        }
+        long sequence = Integer.toUnsignedLong(payload.getInt());
+        byte type = payload.get();
+        if (type == MessageCodec.MSG_TYPE_HELLO) {
+            payload.getInt(); // Epoch
+            assertEquals(MessageCodec.HELLO_FLAG_PLAYBACK, payload.get());
+            return "hello";
+        }
+        if (type == MessageCodec.MSG_TYPE_ADVANCEMENT_DICTIONARY) return "dictionary";
+        if (type == MessageCodec.MSG_TYPE_JOIN) return "join:" + payload.getShort();
+        assertEquals(MessageCodec.MSG_TYPE_LEAVE, type);
+        return "live:" + sequence;
+    }
+
+    private List<Long> segmentStarts() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".lpdr"))
+                    .map(name -> Long.parseLong(name.substring(0, name.indexOf('.'))))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static ByteBuffer dictionary() {
+        AdvancementDictionary dictionary = AdvancementDictionary.EMPTY;
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.SEQUENCE_SIZE + MessageCodec.advancementDictionarySize(dictionary));
+        MessageCodec.writeSequence(buffer, 0);
+        MessageCodec.writeAdvancementDictionary(buffer, dictionary);
+        return buffer.flip();
+    }
+
+    private static ByteBuffer join(PlayerData data) {
+        byte[] advancements = data.advancementSet();
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.SEQUENCE_SIZE + MessageCodec.joinSize(data, advancements));
+        MessageCodec.writeSequence(buffer, 0);
+        MessageCodec.writeJoin(buffer, data, advancements);
+        return buffer.flip();
+    }
+}
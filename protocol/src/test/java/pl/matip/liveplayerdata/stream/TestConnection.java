@@ -0,0 +1,90 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketListener;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+// A connection without a socket: frames pile up in outQueue, where tests read them back or set its depth
+final class TestConnection extends WebSocketImpl {
+
+    // Counts onWriteDemand calls per connection, ignores everything else
+    private static final WebSocketListener LISTENER = (WebSocketListener) Proxy.newProxyInstance(
+            WebSocketListener.class.getClassLoader(), new Class<?>[]{WebSocketListener.class},
+            (proxy, method, args) -> switch (method.getName()) {
+                case "onWriteDemand" -> {
+                    ((TestConnection) args[0]).writeDemands++;
+                    yield null;
+                }
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                default -> null;
+            });
+
+    boolean closed;
+    boolean flushAndClose;
+    int writeDemands;
+    int closeCode;
+    InetSocketAddress remoteAddress; // null like an unconnected socket's
+
+    TestConnection() {
+        this(new Draft_6455());
+    }
+
+    TestConnection(Draft draft) {
+        super(LISTENER, draft);
+    }
+
+    // Replaces whatever is queued with 'frames' placeholder frames
+    void queued(int frames) {
+        outQueue.clear();
+        for (int i = 0; i < frames; i++) {
+            outQueue.add(ByteBuffer.allocate(1));
+        }
+    }
+
+    // Payload of the next queued frame; frames sent here are unmasked and shorter than 64 KiB
+    ByteBuffer nextPayload() {
+        return payloadOf(outQueue.poll());
+    }
+
+    ByteBuffer payloadOf(ByteBuffer queued) {
+        ByteBuffer frame = queued.duplicate();
+        frame.get(); // FIN + opcode
+        int length = frame.get() & 0x7F;
+        if (length == 126) {
+            length = frame.getShort() & 0xFFFF;
+        }
+        return frame.slice(frame.position(), length);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteSocketAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isFlushAndClose() {
+        return flushAndClose;
+    }
+
+    @Override
+    public void close(int code, String message) {
+        closeCode = code;
+        closed = true;
+    }
+}
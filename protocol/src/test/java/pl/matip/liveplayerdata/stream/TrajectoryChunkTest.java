@@ -0,0 +1,125 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class TrajectoryChunkTest {
+
+    // tick, x, y, z, health, xp
+    private static List<long[]> decode(TrajectoryChunk chunk) {
+        ByteBuffer in = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+        List<long[]> points = new ArrayList<>();
+        long[] point = new long[6];
+        long delta = 0;
+        for (int i = 0; i < chunk.count; i++) {
+            if (i == 0) {
+                point[0] = VarInts.read(in);
+            } else {
+                delta += VarInts.readSigned(in);
+                point[0] += delta;
+            }
+            for (int f = 1; f < 6; f++) {
+                point[f] = i == 0 ? VarInts.readSigned(in) : point[f] + VarInts.readSigned(in);
+            }
+            points.add(point.clone());
+        }
+        assertFalse(in.hasRemaining());
+        return points;
+    }
+
+    private static long[] point(long tick) {
+        return new long[]{tick, tick * 3 - 500, 64 * 16 + tick % 7, -tick * 2, 320 - tick % 20, tick / 100};
+    }
+
+    private static TrajectoryChunk chunk(long fromTick, long toTick, int tickStep) {
+        TrajectoryChunk chunk = new TrajectoryChunk();
+        for (long tick = fromTick; tick <= toTick; tick += tickStep) {
+            long[] p = point(tick);
+            assertTrue(chunk.append(p[0], p[1], p[2], p[3], p[4], p[5]));
+        }
+        return chunk;
+    }
+
+    @Test
+    void pointsRoundTrip() {
+        TrajectoryChunk chunk = chunk(1000, 1090, 2);
+        assertEquals(46, chunk.count);
+        assertEquals(1000, chunk.firstTick);
+        assertEquals(1090, chunk.lastTick);
+        List<long[]> points = decode(chunk);
+        for (int i = 0; i < points.size(); i++) {
+            assertArrayEquals(point(1000 + 2L * i), points.get(i));
+        }
+    }
+
+    @Test
+    void refusesPointsWhenFull() {
+        TrajectoryChunk chunk = new TrajectoryChunk();
+        int appended = 0;
+        // Large jumps, so every point takes many bytes
+        while (chunk.append(appended * 1000L, (appended % 2) << 40, 0, 0, 0, 0)) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        assertEquals(appended, chunk.count);
+        assertTrue(chunk.length <= TrajectoryChunk.CAPACITY);
+        assertEquals(appended, decode(chunk).size());
+    }
+
+    @Test
+    void sealTrimsToTheBytesWritten() {
+        TrajectoryChunk chunk = chunk(0, 20, 1);
+        int length = chunk.length;
+        assertFalse(chunk.isSealed());
+        chunk.seal();
+        assertTrue(chunk.isSealed());
+        assertEquals(length, chunk.data.length);
+        assertEquals(21, decode(chunk).size());
+    }
+
+    @Test
+    void downsampleKeepsOnePointPerStepAndBothEnds() {
+        TrajectoryChunk chunk = chunk(100, 157, 1);
+        chunk.seal();
+        TrajectoryChunk smaller = chunk.downsample(20);
+        assertTrue(smaller.isSealed());
+        assertTrue(smaller.downsampled);
+        assertTrue(smaller.footprint() < chunk.footprint());
+        assertEquals(chunk.firstTick, smaller.firstTick);
+        assertEquals(chunk.lastTick, smaller.lastTick);
+
+        List<long[]> points = decode(smaller);
+        assertEquals(4, points.size()); // 100, 120, 140 and the last point, 157
+        for (int i = 0; i < points.size(); i++) {
+            long[] p = points.get(i);
+            assertArrayEquals(point(p[0]), p, "values at tick " + p[0]);
+            if (i > 0 && i < points.size() - 1) {
+                assertEquals(20, p[0] - points.get(i - 1)[0]);
+            }
+        }
+    }
+
+    @Test
+    void downsampleKeepsIrregularPointsAtLeastAStepApart() {
+        TrajectoryChunk chunk = new TrajectoryChunk();
+        long tick = 0;
+        for (int i = 0; i < 60; i++) {
+            tick += 1 + i * 13 % 11;
+            long[] p = point(tick);
+            chunk.append(p[0], p[1], p[2], p[3], p[4], p[5]);
+        }
+        List<long[]> points = decode(chunk.downsample(15));
+        for (int i = 1; i < points.size() - 1; i++) {
+            assertTrue(points.get(i)[0] - points.get(i - 1)[0] >= 15);
+        }
+        assertEquals(tick, points.get(points.size() - 1)[0]);
+        for (long[] p : points) {
+            assertArrayEquals(point(p[0]), p);
+        }
+    }
+}
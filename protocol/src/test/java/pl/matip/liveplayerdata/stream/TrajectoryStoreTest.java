@@ -0,0 +1,70 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class TrajectoryStoreTest {
+
+    private static final long RETENTION = 6000;
+    private static final long FULL_RESOLUTION = 1200;
+
+    private static TrajectoryStore store() {
+        return new TrajectoryStore(RETENTION, FULL_RESOLUTION, 20, 1 << 20);
+    }
+
+    private static PlayerData player(int sessionId) {
+        return new PlayerData(sessionId, "Player" + sessionId, 0, 0, 64, 0, 20, 0, new BitSet());
+    }
+
+    @Test
+    void returnsChunksReachingBackToTheGivenTick() {
+        TrajectoryStore store = store();
+        PlayerData data = player(3);
+        for (long tick = 1; tick <= 100; tick++) {
+            data.x = tick;
+            store.record(data, tick);
+        }
+        List<TrajectoryChunk> chunks = store.chunks(3, 50);
+        assertNotNull(chunks);
+        assertEquals(100, chunks.get(chunks.size() - 1).lastTick);
+        assertNull(store.chunks(3, 101));
+        assertNull(store.chunks(4, 0));
+    }
+
+    @Test
+    void idleOpenChunkAgesOutLikeTheOthers() {
+        TrajectoryStore store = store();
+        PlayerData data = player(1);
+        for (long tick = 1; tick <= 10; tick++) {
+            data.x = tick;
+            store.record(data, tick);
+        }
+        store.maintain(10 + FULL_RESOLUTION);
+        assertFalse(store.chunks(1, 0).get(0).isSealed());
+
+        store.maintain(11 + FULL_RESOLUTION); // Idle for the full-resolution window: sealed and downsampled
+        TrajectoryChunk chunk = store.chunks(1, 0).get(0);
+        assertTrue(chunk.isSealed());
+        assertTrue(chunk.downsampled);
+
+        store.maintain(11 + RETENTION);
+        assertNull(store.chunks(1, 0));
+        assertEquals(0, store.bytes());
+    }
+
+    @Test
+    void removeReleasesThePlayersBytes() {
+        TrajectoryStore store = store();
+        store.record(player(1), 1);
+        store.record(player(2), 1);
+        long bytes = store.bytes();
+        store.remove(2);
+        assertEquals(bytes / 2, store.bytes());
+        assertNull(store.chunks(2, 0));
+        store.remove(70); // Never seen
+    }
+}
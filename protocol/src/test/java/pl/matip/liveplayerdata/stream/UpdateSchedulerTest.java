@@ -0,0 +1,121 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class UpdateSchedulerTest {
+
+    private static final int MIN = 2;
+    private static final int MAX = 40;
+    private static final int IDLE_AFTER = 20;
+    private static final int KEYFRAME = 100;
+
+    private static StreamSettings settings() {
+        StreamSettings settings = new StreamSettings();
+        settings.minIntervalTicks = MIN;
+        settings.maxIntervalTicks = MAX;
+        settings.targetDistance = 1.0;
+        settings.idleAfterTicks = IDLE_AFTER;
+        settings.keyframeIntervalTicks = KEYFRAME;
+        return settings;
+    }
+
+    // Slot (session ID) 0 starts unstaggered: its first check counts from the join tick
+    private static PlayerStateStore store() {
+        PlayerStateStore store = new PlayerStateStore(1);
+        store.join(new PlayerData(0, "Player", 0, 0, 64, 0, 20, 0, new BitSet()));
+        return store;
+    }
+
+    @Test
+    void idlePlayerBacksOffToTheMaxInterval() {
+        StreamSettings settings = settings();
+        settings.keyframeIntervalTicks = 10_000; // Keyframes would cut intervals short
+        UpdateScheduler scheduler = new UpdateScheduler(settings);
+        PlayerStateStore store = store();
+        scheduler.onJoin(store, 0, 0);
+
+        // Running at two blocks per tick: due on every sample
+        long tick = 0;
+        double x = 0;
+        while (tick < 20) {
+            tick += MIN;
+            x += 4;
+            assertTrue(scheduler.observe(store, 0, tick, x, 64, 0, 20), "moving, tick " + tick);
+            scheduler.checked(store, 0, tick, false);
+        }
+
+        // Standing still: the interval grows as the smoothed speed fades, and is MAX once idle
+        List<Long> due = new ArrayList<>(List.of(tick));
+        for (tick += MIN; tick <= 400; tick += MIN) {
+            if (scheduler.observe(store, 0, tick, x, 64, 0, 20)) {
+                scheduler.checked(store, 0, tick, false);
+                due.add(tick);
+            }
+        }
+        long previousGap = 0;
+        for (int i = 1; i < due.size(); i++) {
+            long gap = due.get(i) - due.get(i - 1);
+            assertTrue(gap >= previousGap, "interval shrank at " + due.get(i));
+            if (due.get(i - 1) >= 20 + IDLE_AFTER) {
+                assertEquals(MAX, gap, "check at " + due.get(i));
+            }
+            previousGap = gap;
+        }
+        assertEquals(MAX, previousGap);
+    }
+
+    @Test
+    void movementCutsALongIntervalShort() {
+        UpdateScheduler scheduler = new UpdateScheduler(settings());
+        PlayerStateStore store = store();
+        scheduler.onJoin(store, 0, 0);
+        assertTrue(scheduler.observe(store, 0, MAX, 0, 64, 0, 20));
+        scheduler.checked(store, 0, MAX, false);
+        assertFalse(scheduler.observe(store, 0, MAX + MIN, 0, 64, 0, 20), "idle player waits for MAX");
+
+        // Takes off: picked up on the next sample instead of at the end of the idle interval
+        assertTrue(scheduler.observe(store, 0, MAX + 2 * MIN, 4, 64, 0, 20));
+        scheduler.checked(store, 0, MAX + 2 * MIN, false);
+        assertFalse(scheduler.observe(store, 0, MAX + 2 * MIN + 1, 6, 64, 0, 20), "still bounded by MIN");
+        assertTrue(scheduler.observe(store, 0, MAX + 3 * MIN, 8, 64, 0, 20));
+    }
+
+    @Test
+    void healthChangeHoldsTheMinInterval() {
+        StreamSettings settings = settings();
+        settings.combatHoldTicks = 10;
+        UpdateScheduler scheduler = new UpdateScheduler(settings);
+        PlayerStateStore store = store();
+        scheduler.onJoin(store, 0, 0);
+
+        assertTrue(scheduler.observe(store, 0, MIN, 0, 64, 0, 15));
+        scheduler.checked(store, 0, MIN, false);
+        assertTrue(scheduler.observe(store, 0, 2 * MIN, 0, 64, 0, 15), "within the combat hold");
+        scheduler.checked(store, 0, 2 * MIN, false);
+        assertFalse(scheduler.observe(store, 0, MIN + 10 + MIN, 0, 64, 0, 15), "hold over, not moving");
+    }
+
+    @Test
+    void keyframeIsDueAtTheConfiguredInterval() {
+        UpdateScheduler scheduler = new UpdateScheduler(settings());
+        PlayerStateStore store = store();
+        scheduler.onJoin(store, 0, 0); // JOIN counts as a keyframe
+
+        assertFalse(scheduler.keyframeDue(store, 0, KEYFRAME - 1));
+        assertTrue(scheduler.keyframeDue(store, 0, KEYFRAME));
+        scheduler.checked(store, 0, KEYFRAME, false);
+        assertTrue(scheduler.keyframeDue(store, 0, KEYFRAME + 1), "a plain check is not a keyframe");
+
+        scheduler.checked(store, 0, KEYFRAME + 1, true);
+        assertFalse(scheduler.keyframeDue(store, 0, 2 * KEYFRAME));
+        assertTrue(scheduler.keyframeDue(store, 0, 2 * KEYFRAME + 1));
+        // Due even when the activity interval is not
+        assertTrue(scheduler.observe(store, 0, 2 * KEYFRAME + 1, 0, 64, 0, 20));
+    }
+}
@@ -0,0 +1,69 @@
+package pl.matip.liveplayerdata.stream;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class VarIntsTest {
+
+    private static final long[] VALUES = {
+            0, 1, -1, 2, -2, 63, -64, 64, -65, 127, 128, 8191, -8192, 8192,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, 1L << 40, -(1L << 40), Long.MAX_VALUE, Long.MIN_VALUE
+    };
+
+    @Test
+    void zigzagRoundTrips() {
+        for (long value : VALUES) {
+            assertEquals(value, VarInts.unzigzag(VarInts.zigzag(value)), "value " + value);
+        }
+    }
+
+    @Test
+    void zigzagKeepsSmallValuesOfEitherSignSmall() {
+        assertEquals(0, VarInts.zigzag(0));
+        assertEquals(1, VarInts.zigzag(-1));
+        assertEquals(2, VarInts.zigzag(1));
+        assertEquals(127, VarInts.zigzag(-64));
+        assertEquals(1, VarInts.signedSize(63));
+        assertEquals(1, VarInts.signedSize(-64));
+        assertEquals(2, VarInts.signedSize(64));
+        assertEquals(10, VarInts.signedSize(Long.MIN_VALUE));
+    }
+
+    @Test
+    void signedValuesRoundTripInTheirSize() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (long value : VALUES) {
+            buffer.clear();
+            VarInts.writeSigned(buffer, value);
+            assertEquals(VarInts.signedSize(value), buffer.position(), "size of " + value);
+            buffer.flip();
+            assertEquals(value, VarInts.readSigned(buffer), "value " + value);
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void unsignedValuesRoundTripInTheirSize() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (long value : VALUES) {
+            buffer.clear();
+            VarInts.write(buffer, value);
+            assertEquals(VarInts.size(value), buffer.position(), "size of " + value);
+            buffer.flip();
+            assertEquals(value, VarInts.read(buffer), "value " + value);
+        }
+    }
+
+    @Test
+    void sizeStepsEverySevenBits() {
+        assertEquals(1, VarInts.size(0));
+        assertEquals(1, VarInts.size(0x7F));
+        assertEquals(2, VarInts.size(0x80));
+        assertEquals(2, VarInts.size(0x3FFF));
+        assertEquals(3, VarInts.size(0x4000));
+        assertEquals(10, VarInts.size(-1));
+    }
+}
@@ -0,0 +1,76 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+import pl.matip.liveplayerdata.stream.MetricsHttpServer;
+import pl.matip.liveplayerdata.stream.PipelineStats;
+import pl.matip.liveplayerdata.stream.StreamEndpoint;
+import pl.matip.liveplayerdata.stream.StreamSettings;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+// A running relay: the upstream connection, the RelayState it feeds, the relay's own BroadcastPipeline and the
+// viewer-facing RelayServer
+final class Relay {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Relay.class);
+
+    private final BroadcastPipeline pipeline;
+    private final RelayServer server;
+    private final Upstream upstream;
+    private final MetricsHttpServer metricsServer; // null unless --metrics-port is set
+
+    private Relay(BroadcastPipeline pipeline, RelayServer server, Upstream upstream, MetricsHttpServer metricsServer) {
+        this.pipeline = pipeline;
+        this.server = server;
+        this.upstream = upstream;
+        this.metricsServer = metricsServer;
+    }
+
+    static Relay start(RelayMain.Options options) throws IOException {
+        StreamSettings settings = settings(options);
+        BroadcastPipeline pipeline = new BroadcastPipeline(settings, null);
+        pipeline.start();
+        StreamEndpoint endpoint = new StreamEndpoint(pipeline, null, MessageCodec.PROTOCOL_VERSION);
+        RelayServer server = new RelayServer(new InetSocketAddress(options.bind, options.port), endpoint,
+                StreamEndpoint.drafts(settings), options.selectors);
+        server.start();
+
+        Upstream upstream = new Upstream(options.upstream, new RelayState(pipeline));
+        upstream.start();
+
+        MetricsHttpServer metricsServer = null;
+        if (options.metricsPort > 0) {
+            metricsServer = new MetricsHttpServer(new InetSocketAddress(options.bind, options.metricsPort),
+                    new PipelineStats(pipeline));
+            metricsServer.start();
+            LOGGER.info("Metrics endpoint listening on http://{}:{}/metrics", options.bind, options.metricsPort);
+        }
+        return new Relay(pipeline, server, upstream, metricsServer);
+    }
+
+    static StreamSettings settings(RelayMain.Options options) {
+        StreamSettings settings = new StreamSettings();
+        settings.deltaEncoding = options.deltaEncoding;
+        settings.permessageDeflate = options.deflate;
+        // The upstream already applied its dead-bands and scheduling: pass every change on as it arrives
+        settings.positionDeadband = 0;
+        settings.healthDeadband = 0;
+        settings.xpDeadband = 1;
+        settings.minIntervalTicks = 1;
+        settings.maxIntervalTicks = 1;
+        return settings;
+    }
+
+    void stop() {
+        upstream.stop();
+        server.stop();
+        pipeline.stop();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+
+// Standalone relay: subscribes once to a mod (or another relay) and serves the same stream to many viewers.
+//   java -jar live-player-data-relay.jar --upstream ws://minecraft.example:8887/ --port 8888
+// The mod's server then carries one connection however many dashboards are open, and relays can be chained
+// to spread viewers over several machines.
+public final class RelayMain {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RelayMain.class);
+
+    private RelayMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Relay relay = Relay.start(options);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            LOGGER.info("Stopping relay");
+            relay.stop();
+        }, "Relay-Shutdown"));
+    }
+
+    static final class Options {
+        static final String USAGE = """
+                Options (defaults in brackets):
+                  --upstream URI       stream of the mod or of another relay, e.g. ws://host:8887/ (required)
+                  --port N             port viewers connect to [8888]
+                  --bind ADDRESS       address to listen on [0.0.0.0]
+                  --selectors N        threads serving viewer connections [half the CPUs]
+                  --encoding E         absolute or delta updates for protocol 2 viewers [delta]
+                  --no-deflate         do not offer permessage-deflate to viewers
+                  --metrics-port N     Prometheus endpoint, 0 = off [0]""";
+
+        URI upstream;
+        int port = 8888;
+        String bind = "0.0.0.0";
+        int selectors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        boolean deltaEncoding = true;
+        boolean deflate = true;
+        int metricsPort;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--no-deflate")) {
+                    options.deflate = false;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++i];
+                try {
+                    switch (arg) {
+                        case "--upstream" -> {
+                            options.upstream = URI.create(value);
+                            if (!"ws".equals(options.upstream.getScheme()) && !"wss".equals(options.upstream.getScheme())) {
+                                throw new IllegalArgumentException("Upstream must be a ws:// or wss:// URI: " + value);
+                            }
+                        }
+                        case "--port" -> options.port = Integer.parseInt(value);
+                        case "--bind" -> options.bind = value;
+                        case "--selectors" -> options.selectors = Integer.parseInt(value);
+                        case "--encoding" -> {
+                            if (!value.equals("absolute") && !value.equals("delta")) {
+                                throw new IllegalArgumentException("Unknown encoding " + value);
+                            }
+                            options.deltaEncoding = value.equals("delta");
+                        }
+                        case "--metrics-port" -> options.metricsPort = Integer.parseInt(value);
+                        default -> throw new IllegalArgumentException("Unknown option " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Not a number for " + arg + ": " + value);
+                }
+            }
+            if (options.upstream == null) {
+                throw new IllegalArgumentException("--upstream is required");
+            }
+            if (options.selectors < 1 || options.port <= 0 || options.port > 0xFFFF) {
+                throw new IllegalArgumentException("Out of range: selectors >= 1, port 1-65535");
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.Handshakedata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.matip.liveplayerdata.stream.StreamEndpoint;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+// Viewer-facing WebSocket server of the relay. Java-WebSocket's WebSocketServer reads and writes every
+// connection on one selector thread, which is what runs out first with thousands of viewers; here an acceptor
+// thread hands each new connection to the least busy of several SelectorLoops. What connections ask for is
+// handled by StreamEndpoint, as in the mod, so viewers talk to a relay exactly as they would to the mod. Plain
+// ws:// only; put a TLS-terminating proxy in front for wss://.
+final class RelayServer extends WebSocketAdapter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RelayServer.class);
+
+    private final InetSocketAddress address;
+    private final StreamEndpoint endpoint;
+    private final SelectorLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+
+    RelayServer(InetSocketAddress address, StreamEndpoint endpoint, List<Draft> drafts, int selectors) throws IOException {
+        this.address = address;
+        this.endpoint = endpoint;
+        this.loops = new SelectorLoop[selectors];
+        for (int i = 0; i < selectors; i++) {
+            loops[i] = new SelectorLoop(i, this, drafts);
+        }
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(address);
+        for (SelectorLoop loop : loops) {
+            loop.start();
+        }
+        acceptor = new Thread(this::accept, "Relay-Acceptor");
+        acceptor.start();
+        LOGGER.info("Relay listening on {} with {} selector thread(s)", serverChannel.getLocalAddress(), loops.length);
+    }
+
+    void stop() {
+        try {
+            serverChannel.close(); // Ends accept()
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+        for (SelectorLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    private void accept() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                SelectorLoop target = loops[0];
+                for (SelectorLoop loop : loops) {
+                    if (loop.connections() < target.connections()) {
+                        target = loop;
+                    }
+                }
+                target.add(channel);
+            } catch (AsynchronousCloseException e) {
+                return; // stop()
+            } catch (IOException e) {
+                // Usually out of file descriptors; keep serving the connections we have
+                LOGGER.warn("Accepting a connection failed", e);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // --- WebSocketListener, called on the connection's selector thread (writes also from the encoder) ---
+
+    @Override
+    public void onWebsocketOpen(WebSocket conn, Handshakedata handshake) {
+        endpoint.open(conn, ((ClientHandshake) handshake).getResourceDescriptor());
+    }
+
+    @Override
+    public void onWebsocketMessage(WebSocket conn, String message) {
+        endpoint.message(conn, message);
+    }
+
+    @Override
+    public void onWebsocketMessage(WebSocket conn, ByteBuffer blob) {
+        // Viewers have nothing binary to say
+    }
+
+    @Override
+    public void onWebsocketClose(WebSocket conn, int code, String reason, boolean remote) {
+        endpoint.close(conn);
+        for (SelectorLoop loop : loops) {
+            if (loop.owns((WebSocketImpl) conn)) {
+                loop.removed();
+                break;
+            }
+        }
+        LOGGER.debug("Viewer connection closed: {} Code: {} Reason: {}", conn.getRemoteSocketAddress(), code, reason);
+    }
+
+    @Override
+    public void onWebsocketClosing(WebSocket conn, int code, String reason, boolean remote) {
+    }
+
+    @Override
+    public void onWebsocketCloseInitiated(WebSocket conn, int code, String reason) {
+    }
+
+    @Override
+    public void onWebsocketError(WebSocket conn, Exception ex) {
+        LOGGER.debug("Viewer connection error {}", conn.getRemoteSocketAddress(), ex);
+        endpoint.close(conn);
+    }
+
+    @Override
+    public void onWriteDemand(WebSocket conn) {
+        SelectorLoop.writeDemand((WebSocketImpl) conn);
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress(WebSocket conn) {
+        return socketAddress(conn, true);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteSocketAddress(WebSocket conn) {
+        return socketAddress(conn, false);
+    }
+
+    private static InetSocketAddress socketAddress(WebSocket conn, boolean local) {
+        if (((WebSocketImpl) conn).getChannel() instanceof SocketChannel channel) {
+            SocketAddress address = local ? channel.socket().getLocalSocketAddress() : channel.socket().getRemoteSocketAddress();
+            return address instanceof InetSocketAddress inet ? inet : null;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,404 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+import pl.matip.liveplayerdata.stream.PipelineEvent;
+import pl.matip.liveplayerdata.stream.TickSnapshot;
+import pl.matip.liveplayerdata.stream.VarInts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The relay's copy of the world, kept from the upstream protocol 2 stream, and the producer side of the relay's
+// own BroadcastPipeline: it plays the part the Minecraft server thread plays in the mod. Every upstream update
+// batch becomes a sample of all players, so the relay's viewers get the same diffing, initial state, resume,
+// subscriptions and history as the mod's own clients, and a relay can be the upstream of another relay.
+//
+// Upstream session IDs are used as they are. After a reconnect that could not resume, the upstream sends its
+// full state again; it is collected apart and compared with what the viewers have, so they only see LEAVE and
+// JOIN for players that actually changed. Protocol 2 carries no dimensions, so every player is in dimension 0
+// here and dimension subscriptions do not match on a relay.
+//
+// Only the upstream connection's read thread calls in (one connection at a time).
+final class RelayState {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RelayState.class);
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final BroadcastPipeline pipeline;
+    private final long startNanos = System.nanoTime();
+    private long lastTick;
+
+    // --- Mirror ---
+    private MirroredPlayer[] players = new MirroredPlayer[64]; // indexed by session ID
+    private List<String> dictionary = List.of();
+    // --- Full state after a fresh HELLO, until its SYNC ---
+    private boolean resyncing;
+    private MirroredPlayer[] staged;
+    private List<String> stagedDictionary;
+
+    // --- Upstream sequence numbers, for ?resume ---
+    private long epoch = -1;
+    private long lastSequence; // 0 until the first SYNC
+    private boolean inSync;
+
+    RelayState(BroadcastPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    // ?resume=<epoch>:<sequence> for the next upstream connection, or null
+    String resumeParameter() {
+        return inSync && epoch >= 0 ? epoch + ":" + lastSequence : null;
+    }
+
+    // The upstream connection closed; anything half-received is not trusted
+    void disconnected() {
+        if (resyncing) {
+            resyncing = false;
+            staged = null;
+            stagedDictionary = null;
+            inSync = false;
+        }
+    }
+
+    // One upstream binary message. Returns false if the stream is no longer consistent with the relay's copy
+    // (a skipped sequence number or a message it cannot read); the caller then reconnects without resuming.
+    boolean accept(ByteBuffer message) {
+        message.order(ByteOrder.BIG_ENDIAN);
+        try {
+            long sequence = message.getInt() & 0xFFFFFFFFL;
+            if (sequence != 0) {
+                if (inSync && sequence != lastSequence + 1) {
+                    LOGGER.warn("Upstream skipped from sequence {} to {}", lastSequence, sequence);
+                    inSync = false;
+                    return false;
+                }
+                lastSequence = sequence;
+            }
+            byte type = message.get();
+            switch (type) {
+                case MessageCodec.MSG_TYPE_HELLO -> hello(message);
+                case MessageCodec.MSG_TYPE_SYNC -> sync(message.getInt() & 0xFFFFFFFFL);
+                case MessageCodec.MSG_TYPE_JOIN -> join(message);
+                case MessageCodec.MSG_TYPE_LEAVE -> leave(message.getShort() & 0xFFFF);
+                case MessageCodec.MSG_TYPE_BATCH_UPDATE -> batchUpdate(message);
+                case MessageCodec.MSG_TYPE_DELTA_BATCH -> deltaBatch(message);
+                case MessageCodec.MSG_TYPE_ADVANCEMENT_DICTIONARY -> advancementDictionary(message);
+                case MessageCodec.MSG_TYPE_ADVANCEMENT_SET -> advancementSet(message);
+                case MessageCodec.MSG_TYPE_ADVANCEMENT_BATCH -> advancementBatch(message);
+                case MessageCodec.MSG_TYPE_HISTORY -> {
+                    // Never asked for
+                }
+                default -> {
+                    LOGGER.warn("Unknown upstream message type {}", type);
+                    inSync = false;
+                    return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            // Truncated message or an ID out of range
+            LOGGER.warn("Unreadable upstream message", e);
+            inSync = false;
+            return false;
+        }
+        pipeline.publish();
+        return true;
+    }
+
+    // --- Connection state ---
+
+    private void hello(ByteBuffer message) {
+        long helloEpoch = message.getInt() & 0xFFFFFFFFL;
+        byte flags = message.get();
+        if ((flags & MessageCodec.HELLO_FLAG_RESUMED) != 0 && helloEpoch == epoch) {
+            LOGGER.info("Resumed upstream stream after sequence {}", lastSequence);
+            return; // The missed messages follow
+        }
+        epoch = helloEpoch;
+        inSync = false;
+        lastSequence = 0;
+        resyncing = true;
+        staged = new MirroredPlayer[players.length];
+        stagedDictionary = dictionary;
+    }
+
+    private void sync(long sequence) {
+        lastSequence = sequence;
+        inSync = true;
+        if (resyncing) {
+            resyncing = false;
+            reconcile();
+        }
+    }
+
+    // Turns the difference between what the viewers have and the upstream's full state into events
+    private void reconcile() {
+        MirroredPlayer[] next = staged;
+        boolean newDictionary = !stagedDictionary.equals(dictionary);
+        int joined = 0;
+        int left = 0;
+        for (int id = 0; id < players.length; id++) {
+            MirroredPlayer old = players[id];
+            MirroredPlayer now = get(next, id);
+            if (old != null && (now == null || !now.name.equals(old.name))) {
+                pipeline.postEvent(new PipelineEvent.Leave(id));
+                left++;
+            }
+        }
+        if (newDictionary) {
+            dictionary = stagedDictionary;
+            pipeline.postEvent(new PipelineEvent.AdvancementDictionary(dictionary));
+        }
+        long tick = nextTick();
+        for (int id = 0; id < next.length; id++) {
+            MirroredPlayer now = next[id];
+            if (now == null) continue;
+            MirroredPlayer old = get(players, id);
+            if (old == null || !old.name.equals(now.name)) {
+                postJoin(now, tick);
+                joined++;
+            } else if (newDictionary || !old.advancements.equals(now.advancements)) {
+                pipeline.postEvent(new PipelineEvent.AdvancementSet(id, (BitSet) now.advancements.clone()));
+            }
+        }
+        players = next;
+        staged = null;
+        stagedDictionary = null;
+        // Values of players that stayed
+        publishSample(tick);
+        LOGGER.info("Synchronized with upstream epoch {} at sequence {} ({} joined, {} left)", epoch, lastSequence,
+                joined, left);
+    }
+
+    // --- Players ---
+
+    private void join(ByteBuffer message) {
+        int id = message.getShort() & 0xFFFF;
+        byte[] nameBytes = new byte[message.get() & 0xFF];
+        message.get(nameBytes);
+        MirroredPlayer player = new MirroredPlayer(new String(nameBytes, StandardCharsets.UTF_8));
+        player.x = message.getDouble();
+        player.y = message.getDouble();
+        player.z = message.getDouble();
+        player.health = message.getFloat();
+        player.xp = message.getInt();
+        player.advancements = readAdvancementSet(message);
+        if (resyncing) {
+            staged = put(staged, id, player);
+            return;
+        }
+        if (get(players, id) != null) {
+            pipeline.postEvent(new PipelineEvent.Leave(id)); // Not expected: IDs are reused only after a LEAVE
+        }
+        players = put(players, id, player);
+        postJoin(player, nextTick());
+    }
+
+    private void postJoin(MirroredPlayer player, long tick) {
+        pipeline.postEvent(new PipelineEvent.Join(tick, player.sessionId, player.name, 0, player.x, player.y, player.z,
+                player.health, player.xp, (BitSet) player.advancements.clone()));
+    }
+
+    private void leave(int id) {
+        MirroredPlayer[] target = resyncing ? staged : players;
+        if (get(target, id) == null) return;
+        target[id] = null;
+        if (!resyncing) {
+            pipeline.postEvent(new PipelineEvent.Leave(id));
+        }
+    }
+
+    private void batchUpdate(ByteBuffer message) {
+        MirroredPlayer[] target = resyncing ? staged : players;
+        int count = message.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int length = message.get() & 0xFF;
+            int next = message.position() + length;
+            MirroredPlayer player = get(target, message.getShort() & 0xFFFF);
+            int mask = (int) VarInts.read(message);
+            if (player != null) {
+                if ((mask & MessageCodec.MASK_COORDS) != 0) {
+                    player.x = message.getDouble();
+                    player.y = message.getDouble();
+                    player.z = message.getDouble();
+                }
+                if ((mask & MessageCodec.MASK_HEALTH) != 0) player.health = message.getFloat();
+                if ((mask & MessageCodec.MASK_XP) != 0) player.xp = message.getInt();
+            }
+            message.position(next);
+        }
+        if (!resyncing) {
+            publishSample(nextTick());
+        }
+    }
+
+    // Deltas apply on the upstream's fixed-point grid, exactly like the pipeline computes them
+    private void deltaBatch(ByteBuffer message) {
+        MirroredPlayer[] target = resyncing ? staged : players;
+        double scale = 1 << message.get();
+        message.get(); // Flags
+        int count = message.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int length = message.get() & 0xFF;
+            int next = message.position() + length;
+            MirroredPlayer player = get(target, message.getShort() & 0xFFFF);
+            int mask = (int) VarInts.read(message);
+            if (player != null) {
+                boolean absolute = (mask & MessageCodec.MASK_ABSOLUTE) != 0;
+                if ((mask & MessageCodec.MASK_COORDS) != 0) {
+                    player.x = quantized(player.x, scale, VarInts.readSigned(message), absolute) / scale;
+                    player.y = quantized(player.y, scale, VarInts.readSigned(message), absolute) / scale;
+                    player.z = quantized(player.z, scale, VarInts.readSigned(message), absolute) / scale;
+                }
+                if ((mask & MessageCodec.MASK_HEALTH) != 0) {
+                    long health = quantized(player.health, MessageCodec.HEALTH_SCALE, VarInts.readSigned(message), absolute);
+                    player.health = (float) health / MessageCodec.HEALTH_SCALE;
+                }
+                if ((mask & MessageCodec.MASK_XP) != 0) {
+                    int xp = (int) VarInts.readSigned(message);
+                    player.xp = absolute ? xp : player.xp + xp;
+                }
+            }
+            message.position(next);
+        }
+        if (!resyncing) {
+            publishSample(nextTick());
+        }
+    }
+
+    private static long quantized(double current, double scale, long value, boolean absolute) {
+        return absolute ? value : Math.round(current * scale) + value;
+    }
+
+    // Every player, like the mod's samples; the relay's pipeline sends what changed
+    private void publishSample(long tick) {
+        int count = 0;
+        for (MirroredPlayer player : players) {
+            if (player != null) count++;
+        }
+        TickSnapshot snapshot = pipeline.openSnapshot();
+        snapshot.beginPlayers(tick, count);
+        for (int id = 0; id < players.length; id++) {
+            MirroredPlayer player = players[id];
+            if (player != null) {
+                snapshot.addPlayer(id, 0, player.x, player.y, player.z, player.health, player.xp);
+            }
+        }
+    }
+
+    // Server ticks since the relay started, but at least one more than last time: the relay's pipeline has to
+    // see every upstream batch as due (see RelayMain's settings), however close together they arrive
+    private long nextTick() {
+        lastTick = Math.max(lastTick + 1, (System.nanoTime() - startNanos) / TICK_NANOS);
+        return lastTick;
+    }
+
+    // --- Advancements ---
+
+    private void advancementDictionary(ByteBuffer message) {
+        int count = (int) VarInts.read(message);
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] id = new byte[(int) VarInts.read(message)];
+            message.get(id);
+            ids.add(new String(id, StandardCharsets.UTF_8));
+        }
+        if (resyncing) {
+            stagedDictionary = ids;
+            return;
+        }
+        dictionary = ids;
+        // Followed by an ADVANCEMENT_SET for every player, which become AdvancementSet events
+        pipeline.postEvent(new PipelineEvent.AdvancementDictionary(ids));
+    }
+
+    private void advancementSet(ByteBuffer message) {
+        int id = message.getShort() & 0xFFFF;
+        BitSet advancements = readAdvancementSet(message);
+        MirroredPlayer[] target = resyncing ? staged : players;
+        MirroredPlayer player = get(target, id);
+        if (player == null) return;
+        player.advancements = advancements;
+        if (!resyncing) {
+            pipeline.postEvent(new PipelineEvent.AdvancementSet(id, (BitSet) advancements.clone()));
+        }
+    }
+
+    private void advancementBatch(ByteBuffer message) {
+        MirroredPlayer[] target = resyncing ? staged : players;
+        int count = (int) VarInts.read(message);
+        int[] sessionIds = new int[count];
+        int[] indices = new int[count];
+        boolean[] granted = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            sessionIds[i] = message.getShort() & 0xFFFF;
+            long change = VarInts.read(message);
+            indices[i] = (int) (change >>> 1);
+            granted[i] = (change & 1) == 0;
+            MirroredPlayer player = get(target, sessionIds[i]);
+            if (player != null) {
+                player.advancements.set(indices[i], granted[i]);
+            }
+        }
+        if (!resyncing) {
+            pipeline.postEvent(new PipelineEvent.AdvancementChanges(sessionIds, indices, granted));
+        }
+    }
+
+    // Both forms, see MessageCodec
+    private static BitSet readAdvancementSet(ByteBuffer message) {
+        byte form = message.get();
+        if (form == MessageCodec.ADVANCEMENT_SET_BITMAP) {
+            byte[] bitmap = new byte[(int) VarInts.read(message)];
+            message.get(bitmap);
+            return BitSet.valueOf(bitmap); // Same bit order
+        }
+        if (form != MessageCodec.ADVANCEMENT_SET_GAPS) {
+            throw new IllegalArgumentException("Unknown advancement set form " + form);
+        }
+        int count = (int) VarInts.read(message);
+        BitSet set = new BitSet();
+        int index = -1;
+        for (int i = 0; i < count; i++) {
+            index += (int) VarInts.read(message) + 1;
+            set.set(index);
+        }
+        return set;
+    }
+
+    // --- Storage ---
+
+    private static MirroredPlayer[] put(MirroredPlayer[] array, int id, MirroredPlayer player) {
+        if (id >= array.length) {
+            array = Arrays.copyOf(array, Math.max(id + 1, array.length * 2));
+        }
+        array[id] = player;
+        player.sessionId = id;
+        return array;
+    }
+
+    private static MirroredPlayer get(MirroredPlayer[] array, int id) {
+        return id < array.length ? array[id] : null;
+    }
+
+    private static final class MirroredPlayer {
+        final String name;
+        int sessionId;
+        double x, y, z;
+        float health;
+        int xp;
+        BitSet advancements;
+
+        MirroredPlayer(String name) {
+            this.name = name;
+        }
+    }
+}
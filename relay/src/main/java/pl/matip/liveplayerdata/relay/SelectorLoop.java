@@ -0,0 +1,189 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.java_websocket.SocketChannelIOHelper;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketListener;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.framing.CloseFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One selector thread of RelayServer: reads, handshakes and writes for its share of the connections, the way
+// Java-WebSocket's WebSocketServer does for all of them. Frames are queued on a connection by the relay's
+// encoder thread (see FrameBroadcaster) and written here once the socket accepts them.
+final class SelectorLoop implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SelectorLoop.class);
+    private static final long STOP_MILLIS = 1000;
+    private static final int READ_BUFFER_BYTES = 16384;
+
+    private final Selector selector;
+    private final WebSocketListener listener;
+    private final List<Draft> drafts;
+    private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean stopping;
+
+    SelectorLoop(int index, WebSocketListener listener, List<Draft> drafts) throws IOException {
+        this.selector = Selector.open();
+        this.listener = listener;
+        this.drafts = drafts;
+        this.thread = new Thread(this, "Relay-Selector-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Closes every connection, gives them a moment to send the close frame, then stops
+    void stop() {
+        stopping = true;
+        selector.wakeup();
+        try {
+            thread.join(STOP_MILLIS * 2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int connections() {
+        return connections.get();
+    }
+
+    // From the acceptor thread
+    void add(SocketChannel channel) {
+        connections.incrementAndGet();
+        accepted.add(channel);
+        selector.wakeup();
+    }
+
+    boolean owns(WebSocketImpl conn) {
+        SelectionKey key = conn.getSelectionKey();
+        return key != null && key.selector() == selector;
+    }
+
+    // From the listener, when a connection of this loop has closed
+    void removed() {
+        connections.decrementAndGet();
+    }
+
+    // Same as WebSocketServer.onWriteDemand, for whichever loop the connection belongs to
+    static void writeDemand(WebSocketImpl conn) {
+        SelectionKey key = conn.getSelectionKey();
+        try {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            // Closed; the thread that cancelled the key cleans up
+            conn.outQueue.clear();
+            return;
+        }
+        key.selector().wakeup();
+    }
+
+    @Override
+    public void run() {
+        long stopDeadline = 0;
+        try {
+            while (true) {
+                selector.select(stopDeadline == 0 ? 0 : 100);
+                register();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                if (stopping && stopDeadline == 0) {
+                    stopDeadline = System.currentTimeMillis() + STOP_MILLIS;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof WebSocketImpl conn) {
+                            conn.close(CloseFrame.GOING_AWAY);
+                        }
+                    }
+                }
+                if (stopDeadline != 0 && (selector.keys().isEmpty() || System.currentTimeMillis() > stopDeadline)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Selector failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeChannel(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Stopping anyway
+            }
+        }
+    }
+
+    private void register() {
+        SocketChannel channel;
+        while ((channel = accepted.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                WebSocketImpl conn = new WebSocketImpl(listener, drafts);
+                conn.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, conn));
+                conn.setChannel(channel);
+            } catch (IOException e) {
+                LOGGER.debug("Could not register a new connection", e);
+                connections.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already broken
+                }
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        WebSocketImpl conn = (WebSocketImpl) key.attachment();
+        try {
+            if (key.isReadable() && SocketChannelIOHelper.read(readBuffer, conn, conn.getChannel())) {
+                // Handshake, client text messages, pings and close frames; decode() consumes the whole buffer
+                conn.decode(readBuffer);
+            }
+            if (key.isValid() && key.isWritable() && SocketChannelIOHelper.batch(conn, conn.getChannel())
+                    && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+                // The encoder may have queued a frame after batch() emptied the queue
+                if (!conn.outQueue.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (CancelledKeyException e) {
+            // Closed while handling
+        } catch (IOException e) {
+            conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Error on connection {}", conn.getRemoteSocketAddress(), e);
+            conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, e.getMessage());
+        }
+    }
+
+    private static void closeChannel(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The relay's single connection to the mod, or to another relay. Protocol 2 with permessage-deflate, decoded
+// into RelayState. After a drop it reconnects with ?resume, so a short outage costs only the missed messages;
+// delays double from one second up to a minute while the upstream is unreachable.
+final class Upstream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Upstream.class);
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60_000;
+
+    private final URI uri;
+    private final RelayState state;
+    private final ScheduledExecutorService reconnects = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Relay-Upstream-Reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean running;
+    private volatile Connection connection;
+    private long retryMillis = MIN_RETRY_MILLIS; // reconnect thread only
+
+    // uri: the upstream's stream address, without query
+    Upstream(URI uri, RelayState state) {
+        this.uri = uri;
+        this.state = state;
+    }
+
+    void start() {
+        running = true;
+        reconnects.execute(this::connect);
+    }
+
+    void stop() {
+        running = false;
+        reconnects.shutdownNow();
+        Connection current = connection;
+        if (current != null) {
+            current.close(CloseFrame.GOING_AWAY);
+        }
+    }
+
+    private void connect() {
+        if (!running) return;
+        String resume = state.resumeParameter();
+        URI target = URI.create(uri + "?protocol=" + MessageCodec.PROTOCOL_VERSION + (resume != null ? "&resume=" + resume : ""));
+        LOGGER.info("Connecting to upstream {}", target);
+        Connection next = new Connection(target);
+        connection = next;
+        next.connect();
+    }
+
+    private void scheduleReconnect() {
+        if (!running) return;
+        reconnects.schedule(this::connect, retryMillis, TimeUnit.MILLISECONDS);
+        retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+    }
+
+    private final class Connection extends WebSocketClient {
+
+        private boolean broken; // read thread only
+
+        Connection(URI uri) {
+            super(uri, new Draft_6455(new PerMessageDeflateExtension()));
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+            LOGGER.info("Connected to upstream {}", uri);
+            if (running) {
+                reconnects.execute(() -> retryMillis = MIN_RETRY_MILLIS);
+            }
+        }
+
+        @Override
+        public void onMessage(ByteBuffer message) {
+            if (broken) return; // Whatever was already on its way before the close
+            if (!state.accept(message)) {
+                // Reconnect for a full state; resumeParameter() is null now
+                broken = true;
+                close(CloseFrame.POLICY_VALIDATION, "Inconsistent stream");
+            }
+        }
+
+        @Override
+        public void onMessage(String message) {
+            LOGGER.warn("Upstream says: {}", message); // Only errors are sent as text to a plain subscriber
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            state.disconnected();
+            if (!running) return;
+            LOGGER.warn("Upstream connection closed (code {}{}), reconnecting", code,
+                    reason == null || reason.isEmpty() ? "" : ", " + reason);
+            reconnects.execute(Upstream.this::scheduleReconnect);
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            LOGGER.debug("Upstream connection error", ex);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+import pl.matip.liveplayerdata.stream.MyWebSocketServer;
+import pl.matip.liveplayerdata.stream.PipelineEvent;
+import pl.matip.liveplayerdata.stream.StreamSettings;
+import pl.matip.liveplayerdata.stream.TickSnapshot;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// The mod's server, a relay subscribed to it and a second relay subscribed to the first, all in process and
+// over real sockets. The origin is driven the way the mod's server thread drives it.
+final class RelayChainTest {
+
+    private BroadcastPipeline origin;
+    private MyWebSocketServer originServer;
+    private final List<Relay> relays = new ArrayList<>();
+    private final List<Viewer> viewers = new ArrayList<>();
+    private long tick;
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        for (Viewer viewer : viewers) {
+            viewer.closeBlocking();
+        }
+        for (int i = relays.size() - 1; i >= 0; i--) {
+            relays.get(i).stop();
+        }
+        originServer.stop(1000);
+        origin.stop();
+    }
+
+    @Test
+    void chainedRelaysPassTheStreamOn() throws Exception {
+        int originPort = startOrigin();
+        int firstPort = startRelay(originPort);
+        int secondPort = startRelay(firstPort);
+
+        join(0, "Alice", 1);
+        Viewer early = viewer(secondPort);
+        early.await(events -> events.contains("join:Alice"), "Alice through both relays");
+
+        sample(new double[]{40});
+        early.awaitX("Alice", 40);
+        join(1, "Bob", 2);
+        early.awaitX("Bob", 2);
+
+        // Served from the second relay's copy
+        Viewer late = viewer(secondPort);
+        late.awaitX("Alice", 40);
+        late.awaitX("Bob", 2);
+        Viewer direct = viewer(firstPort);
+        direct.awaitX("Bob", 2);
+
+        origin.postEvent(new PipelineEvent.Leave(0));
+        origin.publish();
+        for (Viewer viewer : viewers) {
+            viewer.await(events -> events.contains("leave:Alice"), "Alice leaving");
+        }
+    }
+
+    private int startOrigin() throws Exception {
+        int port = Viewer.freePort();
+        StreamSettings settings = new StreamSettings();
+        settings.minIntervalTicks = 1;
+        settings.maxIntervalTicks = 1;
+        origin = new BroadcastPipeline(settings, null);
+        origin.start();
+        originServer = new MyWebSocketServer(new InetSocketAddress("127.0.0.1", port), origin, null,
+                MessageCodec.PROTOCOL_VERSION, settings);
+        originServer.start();
+        return port;
+    }
+
+    private int startRelay(int upstreamPort) throws Exception {
+        int port = Viewer.freePort();
+        relays.add(Relay.start(RelayMain.Options.parse(new String[]{
+                "--upstream", "ws://127.0.0.1:" + upstreamPort + "/", "--bind", "127.0.0.1",
+                "--port", Integer.toString(port), "--selectors", "2", "--encoding", "absolute"})));
+        return port;
+    }
+
+    private Viewer viewer(int port) throws InterruptedException {
+        Viewer viewer = Viewer.connect(port);
+        viewers.add(viewer);
+        return viewer;
+    }
+
+    private void join(int sessionId, String name, double x) {
+        origin.postEvent(new PipelineEvent.Join(++tick, sessionId, name, 0, x, 64, 0, 20, 0, new BitSet()));
+        origin.publish();
+    }
+
+    // Player i at x[i]
+    private void sample(double[] x) {
+        TickSnapshot snapshot = origin.openSnapshot();
+        snapshot.beginPlayers(++tick, x.length);
+        for (int i = 0; i < x.length; i++) {
+            snapshot.addPlayer(i, 0, x[i], 64, 0, 20, 0);
+        }
+        origin.publish();
+    }
+}
@@ -0,0 +1,200 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+import pl.matip.liveplayerdata.stream.StreamEndpoint;
+import pl.matip.liveplayerdata.stream.StreamSettings;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Upstream messages are written here and fed to RelayState directly; viewers connect to a RelayServer in front of
+// the relay's pipeline, as they would to a running relay
+final class RelayStateTest {
+
+    private static final int EPOCH = 7;
+
+    private BroadcastPipeline pipeline;
+    private RelayServer server;
+    private RelayState state;
+    private int port;
+    private final List<Viewer> viewers = new ArrayList<>();
+
+    @BeforeEach
+    void startRelay() throws Exception {
+        port = Viewer.freePort();
+        RelayMain.Options options = RelayMain.Options.parse(new String[]{"--upstream", "ws://127.0.0.1:1/",
+                "--port", Integer.toString(port), "--selectors", "2", "--encoding", "absolute", "--no-deflate"});
+        StreamSettings settings = Relay.settings(options);
+        pipeline = new BroadcastPipeline(settings, null);
+        pipeline.start();
+        server = new RelayServer(new InetSocketAddress("127.0.0.1", port),
+                new StreamEndpoint(pipeline, null, MessageCodec.PROTOCOL_VERSION), StreamEndpoint.drafts(settings),
+                options.selectors);
+        server.start();
+        state = new RelayState(pipeline);
+    }
+
+    @AfterEach
+    void stopRelay() throws InterruptedException {
+        for (Viewer viewer : viewers) {
+            viewer.closeBlocking();
+        }
+        server.stop();
+        pipeline.stop();
+    }
+
+    @Test
+    void newViewersAreServedTheMirroredState() throws Exception {
+        fullState(EPOCH, 5, join(0, "Alice", 1), join(1, "Bob", 2));
+        assertTrue(state.accept(update(6, 0, 10)));
+        assertEquals(EPOCH + ":6", state.resumeParameter());
+
+        for (int i = 0; i < 2; i++) {
+            Viewer viewer = viewer();
+            viewer.await(events -> events.containsAll(List.of("join:Alice", "join:Bob")), "both players");
+            viewer.awaitX("Alice", 10);
+            viewer.awaitX("Bob", 2);
+        }
+    }
+
+    @Test
+    void liveMessagesFanOutToEveryViewer() throws Exception {
+        fullState(EPOCH, 5, join(0, "Alice", 1));
+        Viewer first = viewer();
+        Viewer second = viewer();
+        for (Viewer viewer : viewers) {
+            viewer.await(events -> events.contains("join:Alice"), "Alice");
+        }
+
+        assertTrue(state.accept(update(6, 0, 50)));
+        assertTrue(state.accept(join(7, 1, "Bob", 3)));
+        for (Viewer viewer : List.of(first, second)) {
+            viewer.awaitX("Alice", 50);
+            viewer.awaitX("Bob", 3);
+        }
+        assertTrue(state.accept(leave(8, 0)));
+        for (Viewer viewer : viewers) {
+            viewer.await(events -> events.equals(List.of("join:Alice", "join:Bob", "leave:Alice")), "Alice leaving");
+        }
+    }
+
+    @Test
+    void freshUpstreamStateOnlyChangesWhatDiffers() throws Exception {
+        fullState(EPOCH, 5, join(0, "Alice", 1), join(1, "Bob", 2));
+        Viewer viewer = viewer();
+        viewer.await(events -> events.size() == 2, "both players");
+
+        // Another upstream epoch: Alice moved while the relay was away, Bob left and Carol got his session ID
+        state.disconnected();
+        fullState(EPOCH + 1, 40, join(0, "Alice", 4), join(1, "Carol", 5));
+        viewer.awaitX("Alice", 4);
+        viewer.await(events -> events.size() == 4, "Bob leaving and Carol joining");
+        assertEquals(List.of("leave:Bob", "join:Carol"), viewer.events().subList(2, 4));
+        assertEquals(1, Collections.frequency(viewer.events(), "join:Alice"), "Alice stayed");
+        assertEquals((EPOCH + 1) + ":40", state.resumeParameter());
+    }
+
+    @Test
+    void resumesOnlyAnUnbrokenSequence() {
+        fullState(EPOCH, 5, join(0, "Alice", 1));
+        state.disconnected();
+        assertEquals(EPOCH + ":5", state.resumeParameter(), "a settled state survives the connection");
+
+        assertTrue(state.accept(hello(EPOCH, MessageCodec.HELLO_FLAG_RESUMED)));
+        assertTrue(state.accept(update(6, 0, 2)));
+        assertFalse(state.accept(update(8, 0, 3)), "7 was skipped");
+        assertNull(state.resumeParameter());
+    }
+
+    @Test
+    void halfReceivedStateIsNotResumed() {
+        fullState(EPOCH, 5, join(0, "Alice", 1));
+        assertTrue(state.accept(hello(EPOCH + 1, (byte) 0)));
+        assertTrue(state.accept(join(0, 0, "Alice", 1)));
+        state.disconnected();
+        assertNull(state.resumeParameter());
+    }
+
+    private Viewer viewer() throws InterruptedException {
+        Viewer viewer = Viewer.connect(port);
+        viewers.add(viewer);
+        return viewer;
+    }
+
+    // What an upstream sends a new client: HELLO, the unnumbered JOINs, then SYNC with its last sequence number
+    private void fullState(int epoch, long lastSequence, ByteBuffer... joins) {
+        assertTrue(state.accept(hello(epoch, (byte) 0)));
+        for (ByteBuffer join : joins) {
+            assertTrue(state.accept(join));
+        }
+        assertTrue(state.accept(sync(lastSequence)));
+    }
+
+    // --- Upstream messages ---
+
+    private static ByteBuffer hello(int epoch, byte flags) {
+        ByteBuffer message = message(0);
+        MessageCodec.writeHello(message, epoch, flags);
+        return message.flip();
+    }
+
+    private static ByteBuffer sync(long lastSequence) {
+        ByteBuffer message = message(0);
+        MessageCodec.writeSync(message, lastSequence);
+        return message.flip();
+    }
+
+    private static ByteBuffer join(int sessionId, String name, double x) {
+        return join(0, sessionId, name, x);
+    }
+
+    private static ByteBuffer join(long sequence, int sessionId, String name, double x) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = message(sequence);
+        message.put(MessageCodec.MSG_TYPE_JOIN);
+        message.putShort((short) sessionId);
+        message.put((byte) nameBytes.length);
+        message.put(nameBytes);
+        message.putDouble(x).putDouble(64).putDouble(0);
+        message.putFloat(20);
+        message.putInt(0);
+        message.put(MessageCodec.encodeAdvancementSet(new BitSet()));
+        return message.flip();
+    }
+
+    private static ByteBuffer leave(long sequence, int sessionId) {
+        ByteBuffer message = message(sequence);
+        message.put(MessageCodec.MSG_TYPE_LEAVE);
+        message.putShort((short) sessionId);
+        return message.flip();
+    }
+
+    // BATCH_UPDATE moving one player
+    private static ByteBuffer update(long sequence, int sessionId, double x) {
+        ByteBuffer message = message(sequence);
+        message.put(MessageCodec.MSG_TYPE_BATCH_UPDATE);
+        message.putShort((short) 1);
+        message.put((byte) (2 + 1 + 24)); // u16 id, mask, f64 x/y/z
+        message.putShort((short) sessionId);
+        message.put(MessageCodec.MASK_COORDS);
+        message.putDouble(x).putDouble(64).putDouble(0);
+        return message.flip();
+    }
+
+    private static ByteBuffer message(long sequence) {
+        ByteBuffer message = ByteBuffer.allocate(256);
+        MessageCodec.writeSequence(message, sequence);
+        return message;
+    }
+}
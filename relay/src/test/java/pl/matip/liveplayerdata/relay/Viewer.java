@@ -0,0 +1,120 @@
+package pl.matip.liveplayerdata.relay;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import pl.matip.liveplayerdata.stream.MessageCodec;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Protocol 2 viewer for the relay tests. Keeps the players it was told about (absolute updates only) and a log of
+// what happened to them, as "join:<name>" and "leave:<name>", with any text message as "text:<message>".
+final class Viewer extends WebSocketClient {
+
+    private static final long WAIT_SECONDS = 10;
+
+    private final Map<Integer, String> names = new HashMap<>();
+    private final Map<Integer, Double> xs = new HashMap<>();
+    private final List<String> events = new ArrayList<>();
+
+    private Viewer(int port) {
+        super(URI.create("ws://127.0.0.1:" + port + "/?protocol=" + MessageCodec.PROTOCOL_VERSION));
+    }
+
+    static Viewer connect(int port) throws InterruptedException {
+        Viewer viewer = new Viewer(port);
+        assertTrue(viewer.connectBlocking(WAIT_SECONDS, TimeUnit.SECONDS), "could not connect to port " + port);
+        return viewer;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Waits until the event log passes 'condition'
+    synchronized void await(Predicate<List<String>> condition, String description) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (!condition.test(events)) {
+            long left = deadline - System.nanoTime();
+            assertTrue(left > 0, "timed out waiting for " + description + ", got " + events);
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    synchronized void awaitX(String name, double x) throws InterruptedException {
+        await(log -> Double.valueOf(x).equals(xs.get(sessionId(name))), name + " at x " + x);
+    }
+
+    synchronized List<String> events() {
+        return List.copyOf(events);
+    }
+
+    private Integer sessionId(String name) {
+        for (Map.Entry<Integer, String> entry : names.entrySet()) {
+            if (entry.getValue().equals(name)) return entry.getKey();
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void onMessage(ByteBuffer message) {
+        message.getInt(); // Sequence
+        byte type = message.get();
+        if (type == MessageCodec.MSG_TYPE_JOIN) {
+            int id = message.getShort() & 0xFFFF;
+            byte[] name = new byte[message.get() & 0xFF];
+            message.get(name);
+            names.put(id, new String(name, StandardCharsets.UTF_8));
+            xs.put(id, message.getDouble());
+            events.add("join:" + names.get(id));
+        } else if (type == MessageCodec.MSG_TYPE_LEAVE) {
+            int id = message.getShort() & 0xFFFF;
+            events.add("leave:" + names.remove(id));
+            xs.remove(id);
+        } else if (type == MessageCodec.MSG_TYPE_BATCH_UPDATE) {
+            int count = message.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int next = (message.get() & 0xFF) + message.position();
+                int id = message.getShort() & 0xFFFF;
+                if ((message.get() & MessageCodec.MASK_COORDS) != 0) {
+                    xs.put(id, message.getDouble());
+                }
+                message.position(next);
+            }
+        } else {
+            return; // Nothing the tests look at
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void onOpen(ServerHandshake handshake) {
+    }
+
+    @Override
+    public synchronized void onMessage(String message) {
+        events.add("text:" + message); // Only errors are sent to a plain viewer
+        notifyAll();
+    }
+
+    @Override
+    public void onClose(int code, String reason, boolean remote) {
+    }
+
+    @Override
+    public void onError(Exception ex) {
+    }
+}
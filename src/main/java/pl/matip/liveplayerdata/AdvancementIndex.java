@@ -0,0 +1,57 @@
+package pl.matip.liveplayerdata;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.advancement.AdvancementEntry;
+import net.minecraft.advancement.PlayerAdvancementTracker;
+import net.minecraft.server.ServerAdvancementLoader;
+import net.minecraft.util.Identifier;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+// Numbers the loaded advancements so a player's completed set fits in a BitSet.
+// Built on the server thread at start-up and again after every data pack reload; indices are only valid for
+// the index (and the pipeline dictionary) they came from.
+final class AdvancementIndex {
+
+    private final AdvancementEntry[] entries;
+    private final List<String> ids;
+    private final Object2IntOpenHashMap<Identifier> indices;
+
+    private AdvancementIndex(Collection<AdvancementEntry> advancements) {
+        entries = advancements.toArray(new AdvancementEntry[0]);
+        ids = new ArrayList<>(entries.length);
+        indices = new Object2IntOpenHashMap<>(entries.length);
+        indices.defaultReturnValue(-1);
+        for (int i = 0; i < entries.length; i++) {
+            ids.add(entries[i].id().toString());
+            indices.put(entries[i].id(), i);
+        }
+    }
+
+    static AdvancementIndex build(ServerAdvancementLoader loader) {
+        return new AdvancementIndex(loader.getAdvancements());
+    }
+
+    // -1 for advancements that were not loaded when the index was built
+    int indexOf(AdvancementEntry advancement) {
+        return indices.getInt(advancement.id());
+    }
+
+    List<String> ids() {
+        return ids;
+    }
+
+    // Full scan; only done when a player joins or data packs are reloaded
+    BitSet completed(PlayerAdvancementTracker tracker) {
+        BitSet completed = new BitSet(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            if (tracker.getProgress(entries[i]).isDone()) {
+                completed.set(i);
+            }
+        }
+        return completed;
+    }
+}
@@ -0,0 +1,36 @@
+package pl.matip.liveplayerdata;
+
+import net.minecraft.server.network.ServerPlayerEntity;
+import pl.matip.liveplayerdata.stream.PlayerField;
+import pl.matip.liveplayerdata.stream.TickSnapshot;
+
+import java.util.function.ToIntFunction;
+
+// Server-thread side of the extra fields in PlayerField: how each one is read from a player. A new field is a
+// descriptor there and a reader here. The dimension field comes from the snapshot's dimension column.
+final class ExtraFieldReaders {
+
+    private record Reader(PlayerField field, ToIntFunction<ServerPlayerEntity> read) {
+    }
+
+    private static final Reader[] READERS = {
+            new Reader(PlayerField.YAW, player -> Math.floorMod(Math.round(player.getYaw() * 256.0F / 360.0F), 256)),
+            new Reader(PlayerField.PITCH, player -> Math.round(player.getPitch() * 256.0F / 360.0F)),
+            new Reader(PlayerField.FOOD, player -> player.getHungerManager().getFoodLevel()),
+            new Reader(PlayerField.ARMOR, ServerPlayerEntity::getArmor),
+            new Reader(PlayerField.GAME_MODE, player -> player.interactionManager.getGameMode().getId()),
+            new Reader(PlayerField.PING, player -> player.networkHandler.getLatency()),
+    };
+
+    private ExtraFieldReaders() {
+    }
+
+    // fields: the extra fields wanted, see BroadcastPipeline.extraFields
+    static void read(ServerPlayerEntity player, int fields, TickSnapshot snapshot) {
+        for (Reader reader : READERS) {
+            if ((fields & reader.field.bit) != 0) {
+                snapshot.setExtra(reader.field, reader.read.applyAsInt(player));
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package pl.matip.liveplayerdata;
+
+import com.mojang.brigadier.CommandDispatcher;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import pl.matip.liveplayerdata.stream.BroadcastPipeline;
+import pl.matip.liveplayerdata.stream.ClientSession;
+import pl.matip.liveplayerdata.stream.CompressionStats;
+
+import java.util.List;
+
+// Operator commands:
+//   /liveplayerdata clients       connected WebSocket clients with their outbound queue depth and drop counts
+//   /liveplayerdata compression   permessage-deflate ratio and CPU time
+public final class LivePlayerDataCommands {
+
+    private LivePlayerDataCommands() {
+    }
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher, BroadcastPipeline pipeline) {
+        dispatcher.register(CommandManager.literal("liveplayerdata")
+                .requires(source -> source.hasPermissionLevel(2))
+                .then(CommandManager.literal("clients")
+                        .executes(context -> listClients(context.getSource(), pipeline)))
+                .then(CommandManager.literal("compression")
+                        .executes(context -> showCompression(context.getSource(), pipeline))));
+    }
+
+    private static int listClients(ServerCommandSource source, BroadcastPipeline pipeline) {
+        List<ClientSession> clients = pipeline.clientSessions();
+        source.sendFeedback(() -> Text.literal(clients.size() + " WebSocket client(s)"), false);
+        for (ClientSession client : clients) {
+            String line = client.remoteAddress()
+                    + " protocol " + client.protocolVersion()
+                    + ", queued " + client.queueDepth()
+                    + ", dropped " + client.droppedFrames()
+                    + ", catch-ups " + client.catchUps()
+                    + (client.isLagging() ? ", LAGGING" : "");
+            source.sendFeedback(() -> Text.literal(line), false);
+        }
+        return clients.size();
+    }
+
+    private static int showCompression(ServerCommandSource source, BroadcastPipeline pipeline) {
+        CompressionStats stats = pipeline.compressionStats();
+        String line = stats.compressedMessages() + " message(s) compressed, "
+                + stats.bytesBeforeCompression() + " -> " + stats.bytesAfterCompression() + " bytes"
+                + String.format(" (%.1f%%)", stats.ratio() * 100)
+                + ", " + stats.incompressibleMessages() + " sent uncompressed"
+                + String.format(", %.1f ms CPU", stats.cpuNanos() / 1e6);
+        source.sendFeedback(() -> Text.literal(line), false);
+        return (int) Math.min(Integer.MAX_VALUE, stats.compressedMessages());
+    }
+}
@@ -0,0 +1,320 @@
+package pl.matip.liveplayerdata;
+
+import net.fabricmc.loader.api.FabricLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pl.matip.liveplayerdata.stream.StreamRecorder;
+import pl.matip.liveplayerdata.stream.StreamSettings;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+// Settings read from config/live-player-data.properties.
+// Missing keys fall back to the defaults below; the file is (re)written on load so new keys show up for the admin.
+public class LivePlayerDataConfig {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LivePlayerDataConfig.class);
+    private static final String FILE_NAME = "live-player-data.properties";
+    // The encoder's own defaults, so they are only written down once
+    private static final StreamSettings STREAM_DEFAULTS = new StreamSettings();
+    private static final int TICKS_PER_SECOND = 20;
+    private static final int TICKS_PER_MINUTE = 60 * TICKS_PER_SECOND;
+
+    // --- WebSocket ---
+    public int wsPort = 8887;
+
+    // --- Wire format ---
+    // Protocol for clients that do not ask for one (?protocol=N):
+    // 1 = original name-keyed per-player messages, 2 = session IDs and one batched update frame per flush.
+    // 1 by default so existing consumers keep working; new ones ask for ?protocol=2.
+    public int defaultProtocol = 1;
+
+    // --- Update encoding (protocol 2) ---
+    // "absolute" = BATCH_UPDATE with doubles, "delta" = DELTA_BATCH with quantized var-int deltas
+    public String updateEncoding = STREAM_DEFAULTS.deltaEncoding ? "delta" : "absolute";
+    public int positionPrecisionBits = STREAM_DEFAULTS.positionPrecisionBits;
+    public double positionDeadband = STREAM_DEFAULTS.positionDeadband;
+    public double healthDeadband = STREAM_DEFAULTS.healthDeadband;
+    public int xpDeadband = STREAM_DEFAULTS.xpDeadband;
+    public int keyframeIntervalTicks = STREAM_DEFAULTS.keyframeIntervalTicks;
+
+    // --- Adaptive update scheduling ---
+    // Players are sampled every min_update_interval_ticks and each is sent between the min and max interval,
+    // depending on speed, recent health changes and idle time
+    public int minUpdateIntervalTicks = STREAM_DEFAULTS.minIntervalTicks;
+    public int maxUpdateIntervalTicks = STREAM_DEFAULTS.maxIntervalTicks;
+    public double targetDistancePerUpdate = STREAM_DEFAULTS.targetDistance;
+    public int combatHoldTicks = STREAM_DEFAULTS.combatHoldTicks;
+    public int idleAfterTicks = STREAM_DEFAULTS.idleAfterTicks;
+    // Samples of at least parallel_diff_min_players players (0 = never) are diffed on diff_threads threads
+    // (0 = half the processors)
+    public int parallelDiffMinPlayers = STREAM_DEFAULTS.parallelDiffMinPlayers;
+    public int diffThreads = STREAM_DEFAULTS.diffThreads;
+
+    // --- Slow clients ---
+    // Above max_queued_frames unsent frames a client only gets JOIN/LEAVE/achievements, then one catch-up
+    // batch once it has drained; after slow_client_timeout_seconds behind it is disconnected
+    public int maxQueuedFrames = STREAM_DEFAULTS.maxQueuedFrames;
+    public int slowClientTimeoutSeconds = STREAM_DEFAULTS.slowClientTimeoutSeconds;
+
+    // --- Resume ---
+    // A protocol 2 client that reconnects within resume_window_seconds is sent only the messages it missed,
+    // if they still fit in the last replay_buffer_kb of the stream; otherwise it gets the full state.
+    // replay_buffer_kb=0 turns this off.
+    public int replayBufferKb = STREAM_DEFAULTS.replayBufferBytes / 1024;
+    public int resumeWindowSeconds = STREAM_DEFAULTS.resumeWindowSeconds;
+
+    // --- Compression ---
+    // Negotiate permessage-deflate with clients that offer it; only messages of at least
+    // compression_min_bytes are compressed (JOIN bursts, dictionaries, big batches), each once for all clients
+    public boolean permessageDeflate = STREAM_DEFAULTS.permessageDeflate;
+    public int compressionMinBytes = STREAM_DEFAULTS.compressionMinBytes;
+
+    // --- Recording ---
+    // Appends the protocol 2 stream to segment files under recording_directory (relative to the server
+    // directory) for playback with ?playback. The oldest segments are deleted beyond recording_max_segments.
+    public boolean recordingEnabled = false;
+    public String recordingDirectory = "live-player-data/recordings";
+    public int recordingSegmentMb = STREAM_DEFAULTS.recordingSegmentBytes >> 20;
+    public int recordingMaxSegments = STREAM_DEFAULTS.recordingMaxSegments;
+    public int recordingKeyframeSeconds = STREAM_DEFAULTS.recordingKeyframeSeconds;
+
+    // --- History ---
+    // The server keeps each online player's path, health and XP for history_minutes (0 turns this off), so
+    // protocol 2 clients can ask for trails instead of collecting them. Points older than
+    // history_full_resolution_minutes are thinned to one per history_downsample_seconds; at most
+    // history_max_mb is kept, oldest first out.
+    public int historyMinutes = STREAM_DEFAULTS.historyTicks / TICKS_PER_MINUTE;
+    public int historyFullResolutionMinutes = STREAM_DEFAULTS.historyFullResolutionTicks / TICKS_PER_MINUTE;
+    public int historyDownsampleSeconds = STREAM_DEFAULTS.historyDownsampleTicks / TICKS_PER_SECOND;
+    public int historyMaxMb = (int) (STREAM_DEFAULTS.historyMaxBytes >> 20);
+
+    // --- Heatmap ---
+    // The server keeps a player-density heatmap of every dimension, in tiles that protocol 2 clients can ask
+    // for. Level 0 cells are heatmap_cell_blocks wide (a power of two, up to 64), each further level 4 times
+    // wider. Time spent in a cell counts half as much after every heatmap_half_life_minutes; at most
+    // heatmap_max_mb of tiles is kept (0 turns the heatmap off), the least visited first out.
+    public int heatmapMaxMb = (int) (STREAM_DEFAULTS.heatmapMaxBytes >> 20);
+    public int heatmapCellBlocks = 1 << STREAM_DEFAULTS.heatmapCellShift;
+    public int heatmapHalfLifeMinutes = (int) (STREAM_DEFAULTS.heatmapHalfLifeTicks / TICKS_PER_MINUTE);
+
+    // --- Datagrams ---
+    // With datagrams_enabled, a protocol 2 WebSocket client can send {"type":"datagrams","port":N} to also get
+    // position/health/XP updates as UDP datagrams at its own address, packed into at most datagram_max_bytes,
+    // with every player's full state every datagram_keyframe_ticks so lost datagrams heal
+    public boolean datagramsEnabled = STREAM_DEFAULTS.datagramsEnabled;
+    public int datagramMaxBytes = STREAM_DEFAULTS.datagramMaxBytes;
+    public int datagramKeyframeTicks = STREAM_DEFAULTS.datagramKeyframeTicks;
+
+    // --- Metrics ---
+    // Pipeline counters as the JMX bean pl.matip.liveplayerdata:type=Pipeline, and in Prometheus text format
+    // on http://metrics_bind_address:metrics_port/metrics when metrics_port is not 0
+    public boolean jmxEnabled = true;
+    public int metricsPort = 0;
+    public String metricsBindAddress = "127.0.0.1";
+
+    public static LivePlayerDataConfig load() {
+        LivePlayerDataConfig config = new LivePlayerDataConfig();
+        Path path = FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
+        Properties props = new Properties();
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            } catch (IOException e) {
+                LOGGER.error("Could not read " + path + ", using defaults", e);
+            }
+        }
+
+        config.wsPort = getInt(props, "websocket_port", config.wsPort);
+        if (!props.containsKey("default_protocol") && getBoolean(props, "batch_updates", false)) {
+            // batch_updates=true from older configs opted in to batched frames, which protocol 2 keeps
+            config.defaultProtocol = 2;
+        }
+        config.defaultProtocol = getInt(props, "default_protocol", config.defaultProtocol);
+        if (config.defaultProtocol != 1 && config.defaultProtocol != 2) {
+            LOGGER.warn("Unknown default_protocol {}, using 1", config.defaultProtocol);
+            config.defaultProtocol = 1;
+        }
+
+        config.updateEncoding = props.getProperty("update_encoding", config.updateEncoding).trim();
+        if (!config.updateEncoding.equals("absolute") && !config.updateEncoding.equals("delta")) {
+            LOGGER.warn("Unknown update_encoding {}, using absolute", config.updateEncoding);
+            config.updateEncoding = "absolute";
+        }
+        config.positionPrecisionBits = Math.max(0, Math.min(16,
+                getInt(props, "position_precision_bits", config.positionPrecisionBits)));
+        config.positionDeadband = getDouble(props, "position_deadband", config.positionDeadband);
+        config.healthDeadband = getDouble(props, "health_deadband", config.healthDeadband);
+        config.xpDeadband = getInt(props, "xp_deadband", config.xpDeadband);
+        config.keyframeIntervalTicks = Math.max(1, getInt(props, "keyframe_interval_ticks", config.keyframeIntervalTicks));
+        config.minUpdateIntervalTicks = Math.max(1, getInt(props, "min_update_interval_ticks", config.minUpdateIntervalTicks));
+        config.maxUpdateIntervalTicks = Math.max(config.minUpdateIntervalTicks,
+                getInt(props, "max_update_interval_ticks", config.maxUpdateIntervalTicks));
+        config.targetDistancePerUpdate = getDouble(props, "target_distance_per_update", config.targetDistancePerUpdate);
+        config.combatHoldTicks = getInt(props, "combat_hold_ticks", config.combatHoldTicks);
+        config.idleAfterTicks = getInt(props, "idle_after_ticks", config.idleAfterTicks);
+        config.parallelDiffMinPlayers = Math.max(0, getInt(props, "parallel_diff_min_players", config.parallelDiffMinPlayers));
+        config.diffThreads = Math.max(0, getInt(props, "diff_threads", config.diffThreads));
+        config.maxQueuedFrames = Math.max(16, getInt(props, "max_queued_frames", config.maxQueuedFrames));
+        config.slowClientTimeoutSeconds = Math.max(1, getInt(props, "slow_client_timeout_seconds", config.slowClientTimeoutSeconds));
+        config.replayBufferKb = Math.max(0, Math.min(1 << 20, getInt(props, "replay_buffer_kb", config.replayBufferKb)));
+        config.resumeWindowSeconds = Math.max(0, getInt(props, "resume_window_seconds", config.resumeWindowSeconds));
+        config.permessageDeflate = getBoolean(props, "permessage_deflate", config.permessageDeflate);
+        config.compressionMinBytes = Math.max(0, getInt(props, "compression_min_bytes", config.compressionMinBytes));
+        config.recordingEnabled = getBoolean(props, "recording_enabled", config.recordingEnabled);
+        config.recordingDirectory = props.getProperty("recording_directory", config.recordingDirectory).trim();
+        config.recordingSegmentMb = Math.max(1, Math.min(1024, getInt(props, "recording_segment_mb", config.recordingSegmentMb)));
+        config.recordingMaxSegments = Math.max(1, getInt(props, "recording_max_segments", config.recordingMaxSegments));
+        config.recordingKeyframeSeconds = Math.max(1, getInt(props, "recording_keyframe_seconds", config.recordingKeyframeSeconds));
+        config.historyMinutes = Math.max(0, getInt(props, "history_minutes", config.historyMinutes));
+        config.historyFullResolutionMinutes = Math.max(0, Math.min(config.historyMinutes,
+                getInt(props, "history_full_resolution_minutes", config.historyFullResolutionMinutes)));
+        config.historyDownsampleSeconds = Math.max(1, getInt(props, "history_downsample_seconds", config.historyDownsampleSeconds));
+        config.historyMaxMb = Math.max(1, Math.min(1024, getInt(props, "history_max_mb", config.historyMaxMb)));
+        config.heatmapMaxMb = Math.max(0, Math.min(1024, getInt(props, "heatmap_max_mb", config.heatmapMaxMb)));
+        // Rounded down to a power of two
+        config.heatmapCellBlocks = Integer.highestOneBit(Math.max(1, Math.min(64, getInt(props, "heatmap_cell_blocks", config.heatmapCellBlocks))));
+        config.heatmapHalfLifeMinutes = Math.max(1, getInt(props, "heatmap_half_life_minutes", config.heatmapHalfLifeMinutes));
+        config.datagramsEnabled = getBoolean(props, "datagrams_enabled", config.datagramsEnabled);
+        config.datagramMaxBytes = Math.max(256, Math.min(65507, getInt(props, "datagram_max_bytes", config.datagramMaxBytes)));
+        config.datagramKeyframeTicks = Math.max(1, getInt(props, "datagram_keyframe_ticks", config.datagramKeyframeTicks));
+        config.jmxEnabled = getBoolean(props, "jmx_enabled", config.jmxEnabled);
+        config.metricsPort = Math.max(0, Math.min(65535, getInt(props, "metrics_port", config.metricsPort)));
+        config.metricsBindAddress = props.getProperty("metrics_bind_address", config.metricsBindAddress).trim();
+
+        config.save(path);
+        return config;
+    }
+
+    public StreamSettings toStreamSettings() {
+        StreamSettings settings = new StreamSettings();
+        settings.deltaEncoding = updateEncoding.equals("delta");
+        settings.positionPrecisionBits = positionPrecisionBits;
+        settings.positionDeadband = positionDeadband;
+        settings.healthDeadband = healthDeadband;
+        settings.xpDeadband = xpDeadband;
+        settings.keyframeIntervalTicks = keyframeIntervalTicks;
+        settings.minIntervalTicks = minUpdateIntervalTicks;
+        settings.maxIntervalTicks = maxUpdateIntervalTicks;
+        settings.targetDistance = targetDistancePerUpdate;
+        settings.combatHoldTicks = combatHoldTicks;
+        settings.idleAfterTicks = idleAfterTicks;
+        settings.parallelDiffMinPlayers = parallelDiffMinPlayers;
+        settings.diffThreads = diffThreads;
+        settings.maxQueuedFrames = maxQueuedFrames;
+        settings.slowClientTimeoutSeconds = slowClientTimeoutSeconds;
+        settings.replayBufferBytes = replayBufferKb * 1024;
+        settings.resumeWindowSeconds = resumeWindowSeconds;
+        settings.permessageDeflate = permessageDeflate;
+        settings.compressionMinBytes = compressionMinBytes;
+        settings.recordingSegmentBytes = recordingSegmentMb << 20;
+        settings.recordingMaxSegments = recordingMaxSegments;
+        settings.recordingKeyframeSeconds = recordingKeyframeSeconds;
+        settings.historyTicks = historyMinutes * TICKS_PER_MINUTE;
+        settings.historyFullResolutionTicks = historyFullResolutionMinutes * TICKS_PER_MINUTE;
+        settings.historyDownsampleTicks = historyDownsampleSeconds * TICKS_PER_SECOND;
+        settings.historyMaxBytes = historyMaxMb * 1024L * 1024;
+        settings.heatmapMaxBytes = heatmapMaxMb * 1024L * 1024;
+        settings.heatmapCellShift = Integer.numberOfTrailingZeros(heatmapCellBlocks);
+        settings.heatmapHalfLifeTicks = (long) heatmapHalfLifeMinutes * TICKS_PER_MINUTE;
+        settings.datagramsEnabled = datagramsEnabled;
+        settings.datagramMaxBytes = datagramMaxBytes;
+        settings.datagramKeyframeTicks = datagramKeyframeTicks;
+        return settings;
+    }
+
+    // null when recording is off or the directory cannot be used
+    public StreamRecorder openRecorder(StreamSettings settings) {
+        if (!recordingEnabled) return null;
+        Path directory = FabricLoader.getInstance().getGameDir().resolve(recordingDirectory);
+        try {
+            return StreamRecorder.open(directory, settings);
+        } catch (IOException e) {
+            LOGGER.error("Could not open recording directory " + directory + ", recording is off", e);
+            return null;
+        }
+    }
+
+    private void save(Path path) {
+        Properties props = new Properties();
+        props.setProperty("websocket_port", Integer.toString(wsPort));
+        props.setProperty("default_protocol", Integer.toString(defaultProtocol));
+        props.setProperty("update_encoding", updateEncoding);
+        props.setProperty("position_precision_bits", Integer.toString(positionPrecisionBits));
+        props.setProperty("position_deadband", Double.toString(positionDeadband));
+        props.setProperty("health_deadband", Double.toString(healthDeadband));
+        props.setProperty("xp_deadband", Integer.toString(xpDeadband));
+        props.setProperty("keyframe_interval_ticks", Integer.toString(keyframeIntervalTicks));
+        props.setProperty("min_update_interval_ticks", Integer.toString(minUpdateIntervalTicks));
+        props.setProperty("max_update_interval_ticks", Integer.toString(maxUpdateIntervalTicks));
+        props.setProperty("target_distance_per_update", Double.toString(targetDistancePerUpdate));
+        props.setProperty("combat_hold_ticks", Integer.toString(combatHoldTicks));
+        props.setProperty("idle_after_ticks", Integer.toString(idleAfterTicks));
+        props.setProperty("parallel_diff_min_players", Integer.toString(parallelDiffMinPlayers));
+        props.setProperty("diff_threads", Integer.toString(diffThreads));
+        props.setProperty("max_queued_frames", Integer.toString(maxQueuedFrames));
+        props.setProperty("slow_client_timeout_seconds", Integer.toString(slowClientTimeoutSeconds));
+        props.setProperty("replay_buffer_kb", Integer.toString(replayBufferKb));
+        props.setProperty("resume_window_seconds", Integer.toString(resumeWindowSeconds));
+        props.setProperty("permessage_deflate", Boolean.toString(permessageDeflate));
+        props.setProperty("compression_min_bytes", Integer.toString(compressionMinBytes));
+        props.setProperty("recording_enabled", Boolean.toString(recordingEnabled));
+        props.setProperty("recording_directory", recordingDirectory);
+        props.setProperty("recording_segment_mb", Integer.toString(recordingSegmentMb));
+        props.setProperty("recording_max_segments", Integer.toString(recordingMaxSegments));
+        props.setProperty("recording_keyframe_seconds", Integer.toString(recordingKeyframeSeconds));
+        props.setProperty("history_minutes", Integer.toString(historyMinutes));
+        props.setProperty("history_full_resolution_minutes", Integer.toString(historyFullResolutionMinutes));
+        props.setProperty("history_downsample_seconds", Integer.toString(historyDownsampleSeconds));
+        props.setProperty("history_max_mb", Integer.toString(historyMaxMb));
+        props.setProperty("heatmap_max_mb", Integer.toString(heatmapMaxMb));
+        props.setProperty("heatmap_cell_blocks", Integer.toString(heatmapCellBlocks));
+        props.setProperty("heatmap_half_life_minutes", Integer.toString(heatmapHalfLifeMinutes));
+        props.setProperty("datagrams_enabled", Boolean.toString(datagramsEnabled));
+        props.setProperty("datagram_max_bytes", Integer.toString(datagramMaxBytes));
+        props.setProperty("datagram_keyframe_ticks", Integer.toString(datagramKeyframeTicks));
+        props.setProperty("jmx_enabled", Boolean.toString(jmxEnabled));
+        props.setProperty("metrics_port", Integer.toString(metricsPort));
+        props.setProperty("metrics_bind_address", metricsBindAddress);
+        try {
+            Files.createDirectories(path.getParent());
+            try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                props.store(writer, "Live Player Data settings");
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not write " + path, e);
+        }
+    }
+
+    private static int getInt(Properties props, String key, int fallback) {
+        String value = props.getProperty(key);
+        if (value == null) return fallback;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for {}: {}, using {}", key, value, fallback);
+            return fallback;
+        }
+    }
+
+    private static double getDouble(Properties props, String key, double fallback) {
+        String value = props.getProperty(key);
+        if (value == null) return fallback;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for {}: {}, using {}", key, value, fallback);
+            return fallback;
+        }
+    }
+
+    private static boolean getBoolean(Properties props, String key, boolean fallback) {
+        String value = props.getProperty(key);
+        return value == null ? fallback : Boolean.parseBoolean(value.trim());
+    }
+}
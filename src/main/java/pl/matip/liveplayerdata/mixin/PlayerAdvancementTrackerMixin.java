@@ -1,48 +1,77 @@
 package pl.matip.liveplayerdata.mixin;
 
-import net.minecraft.advancement.AdvancementDisplay;
+import com.llamalad7.mixinextras.sugar.Share;
+import com.llamalad7.mixinextras.sugar.ref.LocalBooleanRef;
 import net.minecraft.advancement.AdvancementEntry;
-import net.minecraft.advancement.AdvancementProgress;
 import net.minecraft.advancement.PlayerAdvancementTracker; // Correct package
 
-import net.minecraft.item.ItemStack;
 import net.minecraft.server.network.ServerPlayerEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
-import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 import pl.matip.liveplayerdata.Live_player_data;
 
+// Reports advancements that became done or stopped being done. The done state is read before and after
+// each criterion change, so granting further criteria of a finished advancement (or revoking criteria of an
+// unfinished one) reports nothing. The state before is kept per call (@Share), since granting a criterion can
+// run rewards that grant or revoke others on the same tracker. Live_player_data batches the reports per tick.
 @Mixin(PlayerAdvancementTracker.class) // Target the correct class
 public abstract class PlayerAdvancementTrackerMixin {
 
+    @Unique private static final Logger liveplayerdata$LOGGER = LoggerFactory.getLogger("LivePlayerData");
+
     @Shadow private ServerPlayerEntity owner;
 
+    @Inject(method = "grantCriterion", at = @At("HEAD"))
+    private void onGrantCriterionHead(AdvancementEntry advancement, String criterionName, CallbackInfoReturnable<Boolean> cir,
+                                    @Share("wasDone") LocalBooleanRef wasDone) {
+        wasDone.set(liveplayerdata$isDone(advancement));
+    }
+
     @Inject(method = "grantCriterion", at = @At("RETURN"))
-    private void onGrantCriterionReturn(AdvancementEntry advancement, String criterionName, CallbackInfoReturnable<Boolean> cir) {
-        PlayerAdvancementTracker tracker = (PlayerAdvancementTracker)(Object)this;
-        AdvancementProgress progress = tracker.getProgress(advancement);
-
-        // Simplified check: If it's done now, send update.
-        // This might send duplicates if criteria are granted after completion.
-        // A more robust check would involve comparing state before/after or tracking sent advancements.
-        if (progress.isDone()) {
-            String advancementId = advancement.id().toString();
-
-
-            if (this.owner != null) {
-                String playerName = this.owner.getGameProfile().getName();
-                Live_player_data mainModInstance = Live_player_data.getInstance();
-                if (mainModInstance != null) {
-                    mainModInstance.sendSingleAchievementUpdate(playerName, advancementId);
-                } else {
-                    System.err.println("Could not get Live_player_data instance in Mixin!");
-                }
-            } else {
-                System.err.println("Mixin could not access player owner!");
-            }
+    private void onGrantCriterionReturn(AdvancementEntry advancement, String criterionName, CallbackInfoReturnable<Boolean> cir,
+                                      @Share("wasDone") LocalBooleanRef wasDone) {
+        if (!wasDone.get() && liveplayerdata$isDone(advancement)) {
+            liveplayerdata$report(advancement, true);
+        }
+    }
+
+    @Inject(method = "revokeCriterion", at = @At("HEAD"))
+    private void onRevokeCriterionHead(AdvancementEntry advancement, String criterionName, CallbackInfoReturnable<Boolean> cir,
+                                    @Share("wasDone") LocalBooleanRef wasDone) {
+        wasDone.set(liveplayerdata$isDone(advancement));
+    }
+
+    @Inject(method = "revokeCriterion", at = @At("RETURN"))
+    private void onRevokeCriterionReturn(AdvancementEntry advancement, String criterionName, CallbackInfoReturnable<Boolean> cir,
+                                      @Share("wasDone") LocalBooleanRef wasDone) {
+        if (wasDone.get() && !liveplayerdata$isDone(advancement)) {
+            liveplayerdata$report(advancement, false);
+        }
+    }
+
+    @Unique
+    private boolean liveplayerdata$isDone(AdvancementEntry advancement) {
+        PlayerAdvancementTracker tracker = (PlayerAdvancementTracker) (Object) this;
+        return tracker.getProgress(advancement).isDone();
+    }
+
+    @Unique
+    private void liveplayerdata$report(AdvancementEntry advancement, boolean done) {
+        if (this.owner == null) {
+            liveplayerdata$LOGGER.warn("Mixin could not access player owner!");
+            return;
+        }
+        Live_player_data mainModInstance = Live_player_data.getInstance();
+        if (mainModInstance == null) {
+            liveplayerdata$LOGGER.warn("Could not get Live_player_data instance in Mixin!");
+            return;
         }
+        mainModInstance.onAdvancementChanged(this.owner, advancement, done);
     }
 }